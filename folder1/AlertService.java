@@ -0,0 +1,680 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Per-user watchlists and standing price alerts ("tell me when TSLA goes
+// above 750"). Alerts are one-shot: each is indexed by threshold in its
+// symbol's TriggerIndex, and every tick asks only that symbol's index for the
+// alerts it crossed, so the cost of a tick does not depend on how many alerts
+// are waiting. The tick thread only takes fired alerts out of the index;
+// writing them off in the journal and delivering the notifications happens on
+// a separate delivery thread, so a burst of alerts never holds up the feed.
+//
+// Notifications go to the user's inbox: straight to its subscriber if a
+// session has registered one, otherwise they are kept, up to INBOX_LIMIT,
+// until a session drains them or subscribes. A subscriber that throws, or
+// reports one as undelivered(), is dropped and the notification kept.
+//
+// Everything is kept in one journal (-Dalerts.journal, default
+// alerts.journal) of records "A;id;user;symbol;direction;ticks",
+// "X;id;user" for an alert cancelled or fired, and "W;user;symbol" /
+// "U;user;symbol" for watching and unwatching. It is rewritten with only
+// what is live when it has grown to several times that: checked on every
+// write, and done on the delivery thread. Each change is made to the account
+// before, or under the same account lock as, its record is written, so the
+// rewrite can copy the accounts without stopping writers and then append the
+// records written while it did.
+class AlertService implements PriceTable.TickListener {
+    static final int INBOX_LIMIT = 1000;
+    static final int WATCHLIST_LIMIT = 200;
+    private static final int COMPACT_MIN_RECORDS = 10_000;
+    private static final Metrics.Operation DELIVER = Metrics.operation("alerts.deliver");
+
+    static class Alert {
+        final long id;
+        final String symbol;
+        final byte direction;
+        final long thresholdTicks;
+        private long handle;
+
+        Alert(long id, String symbol, byte direction, long thresholdTicks) {
+            this.id = id;
+            this.symbol = symbol;
+            this.direction = direction;
+            this.thresholdTicks = thresholdTicks;
+        }
+
+        String describe() {
+            return String.format(Locale.ROOT, "%d %s %s %.2f", id, symbol, direction == TriggerIndex.ABOVE ? "ABOVE" : "BELOW",
+                    MatchingEngine.toPrice(thresholdTicks));
+        }
+    }
+
+    // An alert that fired and the price that fired it; each front end words
+    // it for its own users.
+    static class Notification {
+        final long id;
+        final String symbol;
+        final byte direction;
+        final long thresholdTicks;
+        final long priceTicks;
+
+        Notification(Alert alert, long priceTicks) {
+            this.id = alert.id;
+            this.symbol = alert.symbol;
+            this.direction = alert.direction;
+            this.thresholdTicks = alert.thresholdTicks;
+            this.priceTicks = priceTicks;
+        }
+    }
+
+    // One user's watchlist, standing alerts and undelivered notifications;
+    // guarded by its own lock.
+    private static class Account {
+        final Set<String> watchlist = new LinkedHashSet<>();
+        final Map<Long, Alert> alerts = new HashMap<>();
+        final ArrayDeque<Notification> inbox = new ArrayDeque<>();
+        Consumer<Notification> subscriber;
+    }
+
+    // The symbol's index; fire() and add() on it are serialized by locking it.
+    private static class Book {
+        final TriggerIndex index = new TriggerIndex();
+    }
+
+    // A record written while a compaction was copying the accounts.
+    private static class Written {
+        final String record;
+        final CompletableFuture<Void> committed;
+
+        Written(String record, CompletableFuture<Void> committed) {
+            this.record = record;
+            this.committed = committed;
+        }
+    }
+
+    private final MatchingEngine engine;
+    private final PriceTable prices;
+    private final Map<String, Stock> listings;
+    private final Path path;
+    private volatile TradeJournal journal;
+    private final ConcurrentHashMap<String, Book> books = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicLong standing = new AtomicLong();
+    private final AtomicLong watching = new AtomicLong();
+    private final AtomicBoolean compactionQueued = new AtomicBoolean();
+    private final ExecutorService delivery;
+    // The rest are guarded by this. The last record handed to the journal,
+    // and, while a compaction copies the accounts, every record since it began.
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+    private List<Written> duringCompaction;
+    private boolean batching;
+
+    public AlertService(MatchingEngine engine, PriceTable prices, Map<String, Stock> listings, String path) {
+        this.engine = engine;
+        this.prices = prices;
+        this.listings = listings;
+        this.path = Paths.get(path);
+        this.journal = new TradeJournal(path);
+        if (!journal.replay(0, this::applyJournalRecord)) {
+            System.out.println("Skipped damaged records in the alerts journal.");
+        }
+        this.delivery = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "alert-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (compactionDue()) {
+            compact();
+        }
+    }
+
+    private void applyJournalRecord(String[] record) {
+        try {
+            switch (record[0]) {
+                case "A":
+                    long id = Long.parseLong(record[1]);
+                    // A compaction can copy an alert and then append the record that set it.
+                    if (!account(record[2]).alerts.containsKey(id)) {
+                        index(record[2], new Alert(id, canonical(record[3]), Byte.parseByte(record[4]), Long.parseLong(record[5])));
+                    }
+                    nextId.accumulateAndGet(id + 1, Math::max);
+                    return;
+                case "X":
+                    unindex(record[2], Long.parseLong(record[1]));
+                    return;
+                case "W":
+                    if (account(record[1]).watchlist.add(record[2])) {
+                        watching.incrementAndGet();
+                    }
+                    return;
+                case "U":
+                    if (account(record[1]).watchlist.remove(record[2])) {
+                        watching.decrementAndGet();
+                    }
+                    return;
+                default:
+                    System.out.println("Unknown alerts record: " + String.join(";", record) + ". Skipping.");
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.out.println("Error parsing alerts record: " + String.join(";", record) + ". Skipping.");
+        }
+    }
+
+    private Account account(String user) {
+        return accounts.computeIfAbsent(user, u -> new Account());
+    }
+
+    // The catalog's own copy of the symbol, so a million alerts on it share one string.
+    private String canonical(String symbol) {
+        Stock listing = listings.get(symbol);
+        return listing == null ? symbol : listing.getSymbol();
+    }
+
+    private Book book(String symbol) {
+        return books.computeIfAbsent(symbol, s -> new Book());
+    }
+
+    // Adds the symbol to the user's watchlist; false if it is not listed, is
+    // already there, or the list is full.
+    public boolean watch(String user, String symbol) {
+        if (!listings.containsKey(symbol)) {
+            return false;
+        }
+        Account account = account(user);
+        synchronized (account) {
+            if (account.watchlist.size() >= WATCHLIST_LIMIT || !account.watchlist.add(symbol)) {
+                return false;
+            }
+            if (!write("W;" + user + ";" + symbol)) {
+                account.watchlist.remove(symbol);
+                return false;
+            }
+            watching.incrementAndGet();
+            return true;
+        }
+    }
+
+    public boolean unwatch(String user, String symbol) {
+        Account account = account(user);
+        synchronized (account) {
+            if (!account.watchlist.remove(symbol)) {
+                return false;
+            }
+            if (!write("U;" + user + ";" + symbol)) {
+                account.watchlist.add(symbol);
+                return false;
+            }
+            watching.decrementAndGet();
+            return true;
+        }
+    }
+
+    public List<String> getWatchlist(String user) {
+        Account account = accounts.get(user);
+        if (account == null) {
+            return Collections.emptyList();
+        }
+        synchronized (account) {
+            return new ArrayList<>(account.watchlist);
+        }
+    }
+
+    // The direction an alert at the threshold has to move in from the
+    // current price: ABOVE if the price is under it, BELOW otherwise.
+    public byte crossing(String symbol, long thresholdTicks) {
+        int symbolId = engine.symbolId(symbol);
+        long current = symbolId < 0 ? PriceTable.NO_PRICE : prices.getTicks(symbolId);
+        if (current == PriceTable.NO_PRICE) {
+            Stock listing = listings.get(symbol);
+            current = listing == null ? 0 : MatchingEngine.toTicks(listing.getPrice());
+        }
+        return thresholdTicks > current ? TriggerIndex.ABOVE : TriggerIndex.BELOW;
+    }
+
+    // Sets a one-shot alert; null if the symbol is not listed, the threshold
+    // is not a price, or it could not be written. An alert the price already
+    // satisfies fires on the next tick.
+    public Alert add(String user, String symbol, byte direction, long thresholdTicks) {
+        if (!listings.containsKey(symbol) || thresholdTicks <= 0) {
+            return null;
+        }
+        Alert alert = new Alert(nextId.getAndIncrement(), canonical(symbol), direction, thresholdTicks);
+        Account account = account(user);
+        synchronized (account) {
+            if (!write("A;" + alert.id + ";" + user + ";" + symbol + ";" + direction + ";" + thresholdTicks)) {
+                return null;
+            }
+            index(user, alert);
+        }
+        return alert;
+    }
+
+    // False if the user has no such standing alert, or if the cancellation
+    // could not be written; the alert is then set again.
+    public boolean cancel(String user, long id) {
+        Account account = accounts.get(user);
+        if (account == null) {
+            return false;
+        }
+        synchronized (account) {
+            Alert alert = unindex(user, id);
+            if (alert == null) {
+                return false;
+            }
+            if (!write("X;" + id + ";" + user)) {
+                index(user, alert);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    // The user's standing alerts, oldest first.
+    public List<Alert> getAlerts(String user) {
+        Account account = accounts.get(user);
+        if (account == null) {
+            return Collections.emptyList();
+        }
+        List<Alert> alerts;
+        synchronized (account) {
+            alerts = new ArrayList<>(account.alerts.values());
+        }
+        alerts.sort(Comparator.comparingLong(alert -> alert.id));
+        return alerts;
+    }
+
+    public long size() {
+        return standing.get();
+    }
+
+    // From now on the user's notifications go to subscriber, starting with
+    // any that were waiting. Returns the subscriber it replaced, if any.
+    public Consumer<Notification> subscribe(String user, Consumer<Notification> subscriber) {
+        Account account = account(user);
+        Consumer<Notification> previous;
+        List<Notification> pending;
+        synchronized (account) {
+            previous = account.subscriber;
+            account.subscriber = subscriber;
+            pending = new ArrayList<>(account.inbox);
+            account.inbox.clear();
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            try {
+                subscriber.accept(pending.get(i));
+            } catch (RuntimeException e) {
+                for (Notification notification : pending.subList(i, pending.size())) {
+                    undelivered(user, subscriber, notification);
+                }
+                break;
+            }
+        }
+        return previous;
+    }
+
+    // For a subscriber that could not take a notification: stops delivery to
+    // it and keeps the notification for the user's next session.
+    public void undelivered(String user, Consumer<Notification> subscriber, Notification notification) {
+        Account account = account(user);
+        synchronized (account) {
+            if (account.subscriber == subscriber) {
+                account.subscriber = null;
+            }
+            keep(account, notification);
+        }
+    }
+
+    // Stops delivery to subscriber, unless another has taken its place.
+    public void unsubscribe(String user, Consumer<Notification> subscriber) {
+        Account account = accounts.get(user);
+        if (account == null) {
+            return;
+        }
+        synchronized (account) {
+            if (account.subscriber == subscriber) {
+                account.subscriber = null;
+            }
+        }
+    }
+
+    // Notifications kept for the user since they were last drained.
+    public List<Notification> drain(String user) {
+        Account account = accounts.get(user);
+        if (account == null) {
+            return Collections.emptyList();
+        }
+        synchronized (account) {
+            List<Notification> pending = new ArrayList<>(account.inbox);
+            account.inbox.clear();
+            return pending;
+        }
+    }
+
+    // Runs on the thread that moved the price: takes whatever the tick
+    // triggered out of the index and hands it to the delivery thread.
+    public void onTick(int symbolId, long oldTicks, long newTicks) {
+        Book book = books.get(engine.symbol(symbolId));
+        if (book == null) {
+            return;
+        }
+        List<long[]> fired;
+        synchronized (book) {
+            if (!book.index.triggers(newTicks)) {
+                return;
+            }
+            fired = new ArrayList<>();
+            book.index.fire(newTicks, (id, owner, direction, threshold) -> fired.add(new long[]{id, owner}));
+        }
+        standing.addAndGet(-fired.size());
+        long firedAt = System.nanoTime();
+        try {
+            delivery.execute(() -> deliver(fired, newTicks, firedAt));
+        } catch (RejectedExecutionException e) {
+            // Closing: the alerts stay in the journal and fire again after a restart.
+        }
+    }
+
+    // One journal write per tick's worth of fired alerts. Subscribers are
+    // called outside the account lock, and are expected to hand the
+    // notification off rather than write it to a client here: this one
+    // thread delivers for every user.
+    private void deliver(List<long[]> fired, long priceTicks, long firedAt) {
+        List<String> writtenOff = new ArrayList<>(fired.size());
+        List<String> users = new ArrayList<>(fired.size());
+        List<Notification> notifications = new ArrayList<>(fired.size());
+        List<Consumer<Notification>> subscribers = new ArrayList<>(fired.size());
+        for (long[] entry : fired) {
+            String user = engine.ownerName((int) entry[1]);
+            Account account = account(user);
+            synchronized (account) {
+                Alert alert = account.alerts.remove(entry[0]);
+                if (alert == null) {
+                    continue;
+                }
+                writtenOff.add("X;" + alert.id + ";" + user);
+                Notification notification = new Notification(alert, priceTicks);
+                if (account.subscriber == null) {
+                    keep(account, notification);
+                } else {
+                    users.add(user);
+                    notifications.add(notification);
+                    subscribers.add(account.subscriber);
+                }
+            }
+        }
+        writeDeferred(writtenOff);
+        for (int i = 0; i < subscribers.size(); i++) {
+            try {
+                subscribers.get(i).accept(notifications.get(i));
+            } catch (RuntimeException e) {
+                // The session went away or is not keeping up.
+                undelivered(users.get(i), subscribers.get(i), notifications.get(i));
+            }
+        }
+        DELIVER.stop(firedAt);
+    }
+
+    private static void keep(Account account, Notification notification) {
+        if (account.inbox.size() == INBOX_LIMIT) {
+            account.inbox.poll();
+        }
+        account.inbox.add(notification);
+    }
+
+    private void index(String user, Alert alert) {
+        Account account = account(user);
+        Book book = book(alert.symbol);
+        synchronized (account) {
+            synchronized (book) {
+                alert.handle = book.index.add(alert.id, engine.ownerId(user), alert.direction, alert.thresholdTicks);
+            }
+            account.alerts.put(alert.id, alert);
+        }
+        standing.incrementAndGet();
+    }
+
+    // The alert taken out, or null if it was not standing.
+    private Alert unindex(String user, long id) {
+        Account account = accounts.get(user);
+        if (account == null) {
+            return null;
+        }
+        Alert alert;
+        synchronized (account) {
+            alert = account.alerts.get(id);
+            if (alert == null) {
+                return null;
+            }
+            Book book = book(alert.symbol);
+            boolean cancelled;
+            synchronized (book) {
+                cancelled = book.index.cancel(alert.handle);
+            }
+            if (!cancelled) {
+                // Fired, and on its way to delivery.
+                return null;
+            }
+            account.alerts.remove(id);
+        }
+        standing.decrementAndGet();
+        return alert;
+    }
+
+    // Batches records in the journal; see TradeJournal.beginBatch().
+    public synchronized void beginBatch() {
+        batching = true;
+        journal.beginBatch();
+    }
+
+    public synchronized void endBatch() {
+        batching = false;
+        try {
+            journal.endBatch();
+        } catch (IOException e) {
+            System.out.println("Error writing alerts: " + e.getMessage());
+        }
+    }
+
+    private boolean write(String record) {
+        try {
+            CompletableFuture<Void> committed;
+            synchronized (this) {
+                committed = journal.write(record);
+                lastWrite = committed;
+                if (duringCompaction != null) {
+                    duringCompaction.add(new Written(record, committed));
+                }
+            }
+            TradeJournal.await(committed);
+            compactIfDue();
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error writing alerts: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Fired alerts are written off without waiting for the disk; if that is
+    // lost in a crash, they fire once more after the restart.
+    private void writeDeferred(List<String> records) {
+        synchronized (this) {
+            try {
+                journal.appendDeferred(records);
+            } catch (IOException e) {
+                System.out.println("Error writing alerts: " + e.getMessage());
+                return;
+            }
+            if (duringCompaction != null) {
+                CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+                for (String record : records) {
+                    duringCompaction.add(new Written(record, written));
+                }
+            }
+        }
+        compactIfDue();
+    }
+
+    private boolean compactionDue() {
+        return journal.getRecordsSinceSnapshot() > Math.max(COMPACT_MIN_RECORDS, 4 * (standing.get() + watching.get()));
+    }
+
+    // Queues a compaction on the delivery thread, unless one is queued already.
+    private void compactIfDue() {
+        if (compactionDue() && compactionQueued.compareAndSet(false, true)) {
+            try {
+                delivery.execute(() -> {
+                    compact();
+                    compactionQueued.set(false);
+                });
+            } catch (RejectedExecutionException e) {
+                // Closing; the next start compacts instead.
+            }
+        }
+    }
+
+    // Rewrites the journal with one record per live alert and watched symbol,
+    // followed by the records written while it copied them, then swaps it in.
+    // Only the swap holds the journal lock.
+    private void compact() {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        TradeJournal rewritten = null;
+        try {
+            Files.deleteIfExists(temp);
+            rewritten = new TradeJournal(temp.toString());
+            synchronized (this) {
+                duringCompaction = new ArrayList<>();
+            }
+            for (Map.Entry<String, Account> entry : accounts.entrySet()) {
+                Account account = entry.getValue();
+                synchronized (account) {
+                    for (String symbol : account.watchlist) {
+                        rewritten.appendDeferred("W;" + entry.getKey() + ";" + symbol);
+                    }
+                    for (Alert alert : account.alerts.values()) {
+                        rewritten.appendDeferred("A;" + alert.id + ";" + entry.getKey() + ";" + alert.symbol + ";" + alert.direction + ";" + alert.thresholdTicks);
+                    }
+                }
+            }
+            synchronized (this) {
+                // Commits finish in order, so once the last is settled every
+                // record written meanwhile is known to have made it or not.
+                lastWrite.handle((done, failure) -> null).join();
+                for (Written written : duringCompaction) {
+                    if (!written.committed.isCompletedExceptionally()) {
+                        rewritten.appendDeferred(written.record);
+                    }
+                }
+                rewritten.sync();
+                rewritten.close();
+                journal.close();
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                journal = new TradeJournal(path.toString());
+                journal.replay(0, record -> { });
+                if (batching) {
+                    journal.beginBatch();
+                }
+                lastWrite = CompletableFuture.completedFuture(null);
+            }
+        } catch (IOException e) {
+            System.out.println("Error compacting alerts: " + e.getMessage());
+            if (rewritten != null) {
+                rewritten.close();
+            }
+        } finally {
+            synchronized (this) {
+                duringCompaction = null;
+            }
+        }
+    }
+
+    // Delivers what has already fired, then makes the journal durable.
+    public void close() {
+        delivery.shutdown();
+        try {
+            delivery.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                journal.sync();
+            } catch (IOException e) {
+                System.out.println("Error writing alerts: " + e.getMessage());
+            }
+            journal.close();
+        }
+    }
+
+    // java AlertService bench [alerts] [symbols] [ticks] [users]
+    //   sets that many alerts around the opening prices in a temp directory,
+    //   then drives a random walk through the PriceTable and reports how fast
+    //   ticks are evaluated and how many alerts fired and were delivered.
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || !args[0].equals("bench")) {
+            System.out.println("usage: AlertService bench [alerts] [symbols] [ticks] [users]");
+            return;
+        }
+        int alertCount = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int symbolCount = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int tickCount = args.length > 3 ? Integer.parseInt(args[3]) : 1_000_000;
+        int userCount = args.length > 4 ? Integer.parseInt(args[4]) : 10_000;
+        Path dir = Files.createTempDirectory("alerts");
+        MatchingEngine engine = new MatchingEngine((symbolId, buyOwner, sellOwner, priceTicks, quantity, makerOrderId) -> { });
+        PriceTable prices = new PriceTable();
+        Map<String, Stock> listings = new HashMap<>();
+        int[] ids = new int[symbolCount];
+        for (int i = 0; i < symbolCount; i++) {
+            String symbol = "ALRT" + i;
+            listings.put(symbol, new Stock(symbol, "Alert bench " + i, 100, 1));
+            engine.addInstrument(symbol, "Alert bench " + i);
+            ids[i] = engine.symbolId(symbol);
+            prices.initialize(ids[i], MatchingEngine.toTicks(100));
+        }
+        AlertService alerts = new AlertService(engine, prices, listings, dir.resolve("alerts.journal").toString());
+        prices.addListener(alerts);
+        AtomicLong delivered = new AtomicLong();
+        for (int u = 0; u < userCount; u++) {
+            alerts.subscribe("user" + u, notification -> delivered.incrementAndGet());
+        }
+
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        alerts.beginBatch();
+        for (int i = 0; i < alertCount; i++) {
+            String symbol = "ALRT" + random.nextInt(symbolCount);
+            // Thresholds within +-20% of the opening price, a cent apart.
+            long threshold = MatchingEngine.toTicks(100) + random.nextInt(4001) - 2000;
+            alerts.add("user" + random.nextInt(userCount), symbol, alerts.crossing(symbol, threshold), threshold);
+        }
+        alerts.endBatch();
+        long added = System.nanoTime();
+        System.gc();
+        System.out.printf("%,d alerts over %d symbols set in %.1f ms (%,.0f alerts/s), heap used %,d MB%n",
+                alertCount, symbolCount, (added - start) / 1e6, alertCount * 1e9 / (added - start),
+                (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) >> 20);
+
+        long[] last = new long[symbolCount];
+        Arrays.fill(last, MatchingEngine.toTicks(100));
+        start = System.nanoTime();
+        for (int t = 0; t < tickCount; t++) {
+            int i = random.nextInt(symbolCount);
+            last[i] = Math.max(1, last[i] + random.nextInt(21) - 10);
+            prices.update(ids[i], last[i]);
+        }
+        long ticked = System.nanoTime();
+        long standing = alerts.size();
+        alerts.close();
+        long end = System.nanoTime();
+        System.out.printf("%,d ticks in %.1f ms (%,.0f ticks/s, %.2f us/tick); %,d alerts fired, %,d still standing%n",
+                tickCount, (ticked - start) / 1e6, tickCount * 1e9 / (ticked - start), (ticked - start) / 1e3 / tickCount,
+                alertCount - standing, standing);
+        System.out.printf("%,d notifications delivered, delivery finished %.1f ms after the last tick%n", delivered.get(), (end - ticked) / 1e6);
+        Files.walk(dir).sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+// AlertService's journal compaction. Setting and cancelling alerts must
+// rewrite the journal once it is mostly dead records, while the service is
+// running rather than only at the next start, and a compaction that runs
+// while other threads keep setting, cancelling and watching must lose none
+// of their changes: reopening the journal gives back exactly the alerts and
+// watchlists that were live at close. Journals go to a temp directory.
+//
+//   java AlertServiceTest
+class AlertServiceTest {
+    private static final int SYMBOLS = 4;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("alert-test");
+        boolean passed = Checks.run("AlertServiceTest",
+                () -> compactsWhileRunning(dir.resolve("churn.journal")),
+                () -> compactionKeepsConcurrentChanges(dir.resolve("concurrent.journal")));
+        Checks.delete(dir);
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    // 12,000 alerts set and cancelled one at a time leave 24,000 records
+    // for one live alert and one watched symbol.
+    static void compactsWhileRunning(Path journal) throws IOException {
+        AlertService alerts = open(journal);
+        alerts.watch("alice", "ALT0");
+        AlertService.Alert kept = alerts.add("alice", "ALT1", TriggerIndex.ABOVE, MatchingEngine.toTicks(500));
+        alerts.beginBatch();
+        for (int i = 0; i < 12_000; i++) {
+            AlertService.Alert alert = alerts.add("bob", "ALT" + (i % SYMBOLS), TriggerIndex.ABOVE, MatchingEngine.toTicks(200));
+            Checks.check(alerts.cancel("bob", alert.id), "alert " + alert.id + " cancels");
+        }
+        alerts.endBatch();
+        Checks.check(!alerts.cancel("bob", kept.id) && !alerts.cancel("alice", 999_999), "only the owner's standing alerts cancel");
+        alerts.close();
+        long lines = Files.lines(journal).count();
+        Checks.check(lines < 10_000, "journal was compacted while running, " + lines + " lines");
+
+        AlertService reopened = open(journal);
+        Checks.check(ids(reopened, "alice").equals(List.of(kept.id)) && reopened.size() == 1, "the live alert survives, got " + ids(reopened, "alice"));
+        Checks.check(reopened.getWatchlist("alice").equals(List.of("ALT0")), "the watchlist survives");
+        reopened.close();
+    }
+
+    // Four users churn on their own threads while compactions come and go.
+    static void compactionKeepsConcurrentChanges(Path journal) throws Exception {
+        AlertService alerts = open(journal);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            String user = "user" + t;
+            long seed = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                List<Long> live = new ArrayList<>();
+                for (int i = 0; i < 4_000; i++) {
+                    String symbol = "ALT" + random.nextInt(SYMBOLS);
+                    int action = random.nextInt(4);
+                    if (action == 0) {
+                        alerts.watch(user, symbol);
+                    } else if (action == 1) {
+                        alerts.unwatch(user, symbol);
+                    } else if (action == 2 || live.isEmpty()) {
+                        AlertService.Alert alert = alerts.add(user, symbol, TriggerIndex.BELOW, MatchingEngine.toTicks(1 + random.nextInt(50)));
+                        live.add(alert.id);
+                    } else {
+                        alerts.cancel(user, live.remove(random.nextInt(live.size())));
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Map<String, List<Long>> expectedAlerts = new TreeMap<>();
+        Map<String, List<String>> expectedWatchlists = new TreeMap<>();
+        for (int t = 0; t < 4; t++) {
+            expectedAlerts.put("user" + t, ids(alerts, "user" + t));
+            expectedWatchlists.put("user" + t, sorted(alerts.getWatchlist("user" + t)));
+        }
+        long standing = alerts.size();
+        alerts.close();
+        long lines = Files.lines(journal).count();
+        Checks.check(lines < 10_000, "journal was compacted while running, " + lines + " lines");
+
+        AlertService reopened = open(journal);
+        for (int t = 0; t < 4; t++) {
+            String user = "user" + t;
+            Checks.check(ids(reopened, user).equals(expectedAlerts.get(user)), user + "'s alerts survive");
+            Checks.check(sorted(reopened.getWatchlist(user)).equals(expectedWatchlists.get(user)), user + "'s watchlist survives");
+        }
+        Checks.check(reopened.size() == standing, "no alert is indexed twice, " + reopened.size() + " vs " + standing);
+        reopened.close();
+    }
+
+    // Listed at 100.00, so none of the alerts set here fire.
+    private static AlertService open(Path journal) {
+        MatchingEngine engine = new MatchingEngine((symbolId, buyOwner, sellOwner, priceTicks, quantity, makerOrderId) -> { });
+        PriceTable prices = new PriceTable();
+        Map<String, Stock> listings = new HashMap<>();
+        for (int i = 0; i < SYMBOLS; i++) {
+            String symbol = "ALT" + i;
+            listings.put(symbol, new Stock(symbol, "Alert test " + i, 100, 1));
+            engine.addInstrument(symbol, "Alert test " + i);
+            prices.initialize(engine.symbolId(symbol), MatchingEngine.toTicks(100));
+        }
+        return new AlertService(engine, prices, listings, journal.toString());
+    }
+
+    private static List<Long> ids(AlertService alerts, String user) {
+        List<Long> ids = new ArrayList<>();
+        for (AlertService.Alert alert : alerts.getAlerts(user)) {
+            ids.add(alert.id);
+        }
+        return ids;
+    }
+
+    private static List<String> sorted(List<String> symbols) {
+        List<String> copy = new ArrayList<>(symbols);
+        Collections.sort(copy);
+        return copy;
+    }
+}
@@ -0,0 +1,223 @@
+import java.util.regex.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Sign-up and sign-in against the CredentialStore. Password hashing is slow on
+// purpose, so it runs on a small pool of its own (-Dauth.hashThreads, default
+// half the cores) with a bounded queue: a burst of sign-ins waits there, or is
+// turned away once the queue is full, instead of taking every core from the
+// trading sessions. One hash at the default 600,000 iterations measured about
+// 240 ms on one warm core, so each hash thread serves about four sign-ins a
+// second: size the pool at the peak sign-in rate over four, and a full queue
+// is HASH_QUEUE / (4 x threads) seconds of waiting.
+//
+// Portfolios are kept in portfolio_files/, or, with -Dshards=host:port,...,
+// on the ShardWorker processes a ShardRouter places each user on.
+class Authentication {
+    private static final Pattern PASSWORD_POLICY = Pattern.compile("(?=.*[0-9])(?=.*[a-zA-Z])(?=.*[^a-zA-Z0-9\\s]).{8,}");
+    // Usernames go into ';'-separated ledger and alert records and name the
+    // user's portfolio file, so they may not hold separators, whitespace or
+    // path characters, or start with a dot.
+    private static final Pattern USERNAME_POLICY = Pattern.compile("[^.;/\\\\\\s\\p{Cntrl}][^;/\\\\\\s\\p{Cntrl}]*");
+    // Plaintext credentials from before the store; imported once, then deleted.
+    private static final String LEGACY_CREDENTIALS_FILE = "credentials.txt";
+    private static final int HASH_QUEUE = 1024;
+    private static final Metrics.Operation AUTHENTICATE = Metrics.operation("auth.authenticate");
+    private static final Metrics.Operation SIGN_UP = Metrics.operation("auth.signUp");
+
+    private final CredentialStore credentials;
+    private final ThreadPoolExecutor hashing;
+    private final ShardRouter shards;
+    private UserStore userStore;
+
+    public Authentication() {
+        this.credentials = new CredentialStore(System.getProperty("credentials.store", "credentials"));
+        int threads = Integer.getInteger("auth.hashThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        this.hashing = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(HASH_QUEUE), runnable -> {
+            Thread thread = new Thread(runnable, "password-hash");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.shards = ShardRouter.fromProperty();
+        this.userStore = new UserStore(this);
+        importLegacyCredentials();
+    }
+
+    // Moves the users in an old credentials.txt into the store, hashing their
+    // passwords, and deletes the file once they are all safely written. A
+    // user already in the store counts as moved, so a retry picks up where a
+    // failed import stopped. Users the signup rules would refuse are reported
+    // and left out; they have to sign up again.
+    private void importLegacyCredentials() {
+        Path legacy = Paths.get(LEGACY_CREDENTIALS_FILE);
+        if (!Files.exists(legacy)) {
+            return;
+        }
+        Map<String, String> passwords = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(LEGACY_CREDENTIALS_FILE))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length >= 2) {
+                    passwords.putIfAbsent(parts[0], parts[1]);
+                } else {
+                    System.out.println("Invalid data format in credentials.txt: " + line + ". Skipping.");
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error loading credentials: " + e.getMessage());
+            return;
+        }
+        Metrics.addBytes("credentials.read", new File(LEGACY_CREDENTIALS_FILE).length());
+        int rejected = 0;
+        for (Iterator<Map.Entry<String, String>> it = passwords.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> entry = it.next();
+            String reason = rejection(entry.getKey(), entry.getValue());
+            if (reason != null) {
+                System.out.println("Not importing " + entry.getKey() + " from credentials.txt: " + reason);
+                it.remove();
+                rejected++;
+            }
+        }
+        List<Map.Entry<String, String>> entries = new ArrayList<>(passwords.entrySet());
+        int imported = 0;
+        credentials.beginBatch();
+        for (int from = 0; from < entries.size(); from += HASH_QUEUE) {
+            List<Future<CredentialStore.Credential>> pending = new ArrayList<>();
+            for (Map.Entry<String, String> entry : entries.subList(from, Math.min(entries.size(), from + HASH_QUEUE))) {
+                pending.add(hashing.submit(() -> CredentialStore.Credential.create(entry.getKey(), entry.getValue(), CredentialStore.DEFAULT_ITERATIONS)));
+            }
+            List<CredentialStore.Credential> created = new ArrayList<>(pending.size());
+            for (Future<CredentialStore.Credential> future : pending) {
+                CredentialStore.Credential credential = await(future);
+                if (credential == null) {
+                    credentials.endBatch();
+                    return;
+                }
+                created.add(credential);
+            }
+            imported += credentials.add(created);
+        }
+        // add() reports a closed, full or failing store only by adding fewer,
+        // so the file goes only once every user in it can be read back.
+        boolean durable = credentials.endBatch();
+        List<String> missing = new ArrayList<>();
+        for (String username : passwords.keySet()) {
+            if (!credentials.contains(username)) {
+                missing.add(username);
+            }
+        }
+        if (!durable || !missing.isEmpty()) {
+            System.out.println("Kept credentials.txt: " + (durable ? missing.size() + " of " + passwords.size() + " users could not be moved into the credential store"
+                    : "the credential store could not be written") + ". They are retried on the next start.");
+            return;
+        }
+        try {
+            Files.delete(legacy);
+            System.out.println("Moved " + imported + " users from credentials.txt into the hashed credential store"
+                    + (rejected > 0 ? "; " + rejected + " were refused and must sign up again." : "."));
+        } catch (IOException e) {
+            System.out.println("Error removing credentials.txt: " + e.getMessage());
+        }
+    }
+
+    private <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            System.out.println("Error hashing password: " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    // Runs a hash on the pool and waits for it; null if the pool is saturated.
+    private <T> T hashed(Callable<T> work) {
+        try {
+            return await(hashing.submit(work));
+        } catch (RejectedExecutionException e) {
+            System.out.println("Error hashing password: too many sign-ins in progress.");
+            return null;
+        }
+    }
+
+    public boolean authenticate(String username, String password) {
+        long start = AUTHENTICATE.start();
+        CredentialStore.Credential stored = credentials.get(username);
+        CredentialStore.Credential checked = stored != null ? stored : CredentialStore.Credential.unknownUser();
+        boolean matched = Boolean.TRUE.equals(hashed(() -> checked.matches(password)));
+        boolean ok = stored != null && matched;
+        if (ok) {
+            AUTHENTICATE.stop(start);
+        } else {
+            AUTHENTICATE.fail(start);
+        }
+        return ok;
+    }
+
+    // Why the signup rules refuse this username and password, or null if
+    // they don't. New signups and imported users are held to the same rules.
+    private static String rejection(String username, String password) {
+        if (!CredentialStore.isValidUsername(username)) {
+            return "Username must be 1 to " + CredentialStore.MAX_USERNAME_BYTES + " bytes long.";
+        }
+        if (!USERNAME_POLICY.matcher(username).matches()) {
+            return "Username cannot contain spaces, ';', '/' or '\\', or start with '.'.";
+        }
+        if (password.isEmpty() || !PASSWORD_POLICY.matcher(password).matches()) {
+            return "Password must contain at least one number, one alphabet character, one special character, and be at least 8 characters long.";
+        }
+        return null;
+    }
+
+    public boolean addUser(String username, String password) {
+        if (CredentialStore.isValidUsername(username) && credentials.contains(username)) {
+            return false;
+        }
+        String reason = rejection(username, password);
+        if (reason != null) {
+            System.out.println("\n" + reason);
+            return false;
+        }
+        long start = SIGN_UP.start();
+        CredentialStore.Credential created = hashed(() -> CredentialStore.Credential.create(username, password, CredentialStore.DEFAULT_ITERATIONS));
+        boolean ok = created != null && credentials.add(created);
+        if (ok) {
+            SIGN_UP.stop(start);
+        } else {
+            SIGN_UP.fail(start);
+        }
+        return ok;
+    }
+
+    boolean hasUser(String username) {
+        return credentials.contains(username);
+    }
+
+    // Where the user's portfolio is kept: the shard that owns them, or portfolio_files/.
+    PortfolioStorage openPortfolio(String username) {
+        return shards != null ? shards.open(username) : new PortfolioStorage.Local(Paths.get(Portfolio.PORTFOLIO_DIRECTORY), username);
+    }
+
+    // Writes the credential index's header so the next start does not re-index,
+    // and hangs up on the shards.
+    public void close() {
+        hashing.shutdown();
+        credentials.close();
+        if (shards != null) {
+            shards.close();
+        }
+    }
+
+    public User getUser(String username) {
+        return userStore.get(username);
+    }
+
+    public UserStore getUserStore() {
+        return userStore;
+    }
+}
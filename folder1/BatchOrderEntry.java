@@ -0,0 +1,160 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Headless order entry: streams "user side symbol qty" lines (side BUY or
+// SELL, '#' starts a comment) from a file or stdin through the same
+// TradingSession checks the console uses, with no prompts; buys are paid
+// from the user's cash balance. Users' portfolios and the cash ledger are
+// put in batch mode a chunk at a time, so trades cost one journal force and
+// one snapshot per chunk rather than one each. A chunk ends when an order
+// names one user more than -Dbatch.chunkUsers (default 256): its users are
+// flushed and released, so the run never pins more than that many however
+// many the input names. Prints a throughput and latency summary when the
+// input is done.
+//
+//   java BatchOrderEntry [orderFile|-]
+class BatchOrderEntry {
+    private static final int CHUNK_USERS = Integer.getInteger("batch.chunkUsers", 256);
+
+    private final MarketContext market;
+    private final Map<String, TradingSession> sessions = new HashMap<>();
+    private final Set<String> users = new HashSet<>();
+    private final Map<String, Integer> outcomes = new TreeMap<>();
+    private long[] latencies = new long[1 << 16];
+    private int orders;
+    private long filledShares;
+    private int chunks;
+    private long flushNanos;
+
+    BatchOrderEntry(MarketContext market) {
+        this.market = market;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Authentication auth = new Authentication();
+        MarketContext market = new MarketContext(auth);
+        Metrics.start();
+        BatchOrderEntry entry = new BatchOrderEntry(market);
+        boolean fromStdin = args.length == 0 || args[0].equals("-");
+        try (BufferedReader in = fromStdin
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            entry.run(in);
+        }
+        market.close();
+    }
+
+    void run(BufferedReader in) throws IOException {
+        long start = System.nanoTime();
+        market.getLedger().beginBatch();
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            long sent = System.nanoTime();
+            String outcome = execute(line);
+            record(System.nanoTime() - sent);
+            outcomes.merge(outcome, 1, Integer::sum);
+            if (outcome.equals("BAD_LINE")) {
+                System.out.println("Skipping line " + lineNumber + ": " + line);
+            }
+        }
+        endChunk();
+        summarize(start, System.nanoTime());
+    }
+
+    // Makes the chunk's trades durable and lets its users go.
+    private void endChunk() {
+        long started = System.nanoTime();
+        market.getLedger().endBatch();
+        for (Map.Entry<String, TradingSession> session : sessions.entrySet()) {
+            session.getValue().getPortfolio().endBatch();
+            market.getAuth().getUserStore().release(session.getKey());
+        }
+        chunks++;
+        sessions.clear();
+        flushNanos += System.nanoTime() - started;
+    }
+
+    private String execute(String line) {
+        String[] parts = line.split("\\s+");
+        if (parts.length != 4) {
+            return "BAD_LINE";
+        }
+        int quantity;
+        try {
+            quantity = Integer.parseInt(parts[3]);
+        } catch (NumberFormatException e) {
+            return "BAD_LINE";
+        }
+        TradingSession session = session(parts[0]);
+        if (session == null) {
+            return "UNKNOWN_USER";
+        }
+        TradingSession.TradeResult trade;
+        switch (parts[1].toUpperCase()) {
+            case "BUY":
+                trade = session.buy(parts[2], quantity);
+                break;
+            case "SELL":
+                trade = session.sell(parts[2], quantity);
+                break;
+            default:
+                return "BAD_LINE";
+        }
+        filledShares += trade.filled;
+        return parts[1].toUpperCase() + " " + trade.status;
+    }
+
+    private TradingSession session(String username) {
+        TradingSession session = sessions.get(username);
+        if (session == null) {
+            Authentication auth = market.getAuth();
+            if (!auth.hasUser(username)) {
+                return null;
+            }
+            if (sessions.size() == CHUNK_USERS) {
+                endChunk();
+                market.getLedger().beginBatch();
+            }
+            User user = auth.getUserStore().acquire(username);
+            user.getPortfolio().beginBatch();
+            session = new TradingSession(user, market);
+            users.add(username);
+            sessions.put(username, session);
+        }
+        return session;
+    }
+
+    private void record(long nanos) {
+        if (orders == latencies.length) {
+            latencies = Arrays.copyOf(latencies, orders * 2);
+        }
+        latencies[orders++] = nanos;
+    }
+
+    private void summarize(long start, long end) {
+        System.out.println("\nOutcome                        Orders");
+        for (Map.Entry<String, Integer> outcome : outcomes.entrySet()) {
+            System.out.printf("%-30s %,6d%n", outcome.getKey(), outcome.getValue());
+        }
+        if (orders == 0) {
+            System.out.println("No orders.");
+            return;
+        }
+        long[] sorted = Arrays.copyOf(latencies, orders);
+        Arrays.sort(sorted);
+        double seconds = (end - start) / 1e9;
+        System.out.printf("%n%,d orders for %d users in %.1f ms: %,.0f orders/s, %,d shares filled%n",
+                orders, users.size(), seconds * 1e3, orders / seconds, filledShares);
+        System.out.printf("order latency p50 %.1f us, p99 %.1f us, max %.1f us%n",
+                sorted[orders / 2] / 1e3, sorted[(int) (orders * 0.99)] / 1e3, sorted[orders - 1] / 1e3);
+        System.out.printf("flushes of %d chunks of up to %d users: %.1f ms%n", chunks, CHUNK_USERS, flushNanos / 1e6);
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+
+// Microbenchmarks for the portfolio, persistence and authentication hot paths.
+// Each benchmark is warmed up, then timed over several fixed-length
+// iterations on one thread; throughput, latency and bytes allocated per
+// operation are printed and appended to a CSV so runs can be compared over
+// time.
+//
+//   mkdir /tmp/bench && cd /tmp/bench && java -cp <classes> Benchmarks [filter]
+//
+// The benchmarks write their own credential store and portfolio_files/ into
+// the working directory, so it must not hold real data. Tuning:
+//   -Dbench.warmup=<ms>  -Dbench.time=<ms>  -Dbench.iterations=<n>
+//   -Dbench.out=<csv>    (default benchmark-results.csv)
+class Benchmarks {
+    private static final int[] LOT_COUNTS = {10, 1_000, 100_000};
+    private static final int SYMBOLS = 100;
+    private static final int CREDENTIAL_USERS = 100_000;
+
+    interface Operation {
+        Object run() throws Exception;
+    }
+
+    static class Result {
+        final String name;
+        final double opsPerSecond;
+        final double nanosPerOp;
+        final double bytesPerOp;
+
+        Result(String name, double opsPerSecond, double nanosPerOp, double bytesPerOp) {
+            this.name = name;
+            this.opsPerSecond = opsPerSecond;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    // Results are folded in here so the JIT cannot drop the work.
+    static volatile int sink;
+
+    private final long warmupMillis = Long.getLong("bench.warmup", 1000);
+    private final long iterationMillis = Long.getLong("bench.time", 1000);
+    private final int iterations = Integer.getInteger("bench.iterations", 3);
+    private final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final String filter;
+    private final List<Result> results = new ArrayList<>();
+
+    Benchmarks(String filter) {
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (Files.exists(Paths.get("credentials.txt")) || Files.exists(Paths.get("credentials" + CredentialStore.RECORDS_EXTENSION))
+                || Files.exists(Paths.get("portfolio_files"))) {
+            System.out.println("Run the benchmarks from an empty directory; they overwrite the credential store and portfolio_files/.");
+            return;
+        }
+        Files.createDirectories(Paths.get("portfolio_files"));
+        Benchmarks benchmarks = new Benchmarks(args.length > 0 ? args[0] : "");
+        benchmarks.runAll();
+        benchmarks.publish(Paths.get(System.getProperty("bench.out", "benchmark-results.csv")));
+    }
+
+    void runAll() throws Exception {
+        for (int lots : LOT_COUNTS) {
+            String user = "bench" + lots;
+            writeSnapshot(user, lots);
+            Portfolio portfolio = new Portfolio(user);
+            Stock lot = new Stock("SYM0", "Symbol 0", 100.0, 1);
+            // A buy and a sell of one share keep the lot count steady.
+            run("portfolio.addRemoveStock[" + lots + "]", () -> {
+                portfolio.addStock(lot);
+                return portfolio.removeStock("SYM0", 1);
+            });
+            run("portfolio.getTotalValue[" + lots + "]", portfolio::getTotalValue);
+            run("portfolio.getMostProfitableStock[" + lots + "]", portfolio::getMostProfitableStock);
+            portfolio.close();
+            run("portfolio.loadSaveRoundTrip[" + lots + "]", () -> {
+                Portfolio loaded = new Portfolio(user);
+                loaded.addStock(lot);
+                loaded.removeStock("SYM0", 1);
+                loaded.close();
+                return loaded;
+            });
+        }
+
+        writeCredentials(CREDENTIAL_USERS);
+        run("authentication.open[" + CREDENTIAL_USERS + "]", () -> {
+            Authentication opened = new Authentication();
+            opened.close();
+            return opened;
+        });
+        CredentialStore store = new CredentialStore("credentials");
+        Random users = new Random(7);
+        run("credentials.lookup[" + CREDENTIAL_USERS + "]", () -> store.get("user" + users.nextInt(CREDENTIAL_USERS)));
+        store.close();
+
+        // The buy decision: validate, quote, check funds and reserve, then
+        // hand the reservation back as a declined payment would.
+        Authentication auth = new Authentication();
+        MarketContext market = new MarketContext(auth);
+        TradingSession session = new TradingSession(auth.getUserStore().acquire("user0"), market);
+        run("session.buyDecision", () -> {
+            TradingSession.BuyOrder order = session.prepareBuy("AAPL", 1);
+            session.cancel(order);
+            return order;
+        });
+    }
+
+    void run(String name, Operation operation) throws Exception {
+        if (!name.contains(filter)) {
+            return;
+        }
+        long thread = Thread.currentThread().getId();
+        measure(operation, warmupMillis);
+        long ops = 0;
+        long nanos = 0;
+        long bytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            ops += measure(operation, iterationMillis);
+            nanos += System.nanoTime() - start;
+            bytes += threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        }
+        Result result = new Result(name, ops * 1e9 / nanos, (double) nanos / ops, (double) bytes / ops);
+        results.add(result);
+        System.out.printf("%-45s %,15.1f ops/s %,15.1f ns/op %,12.1f B/op%n",
+                name, result.opsPerSecond, result.nanosPerOp, result.bytesPerOp);
+    }
+
+    private static long measure(Operation operation, long millis) throws Exception {
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        long ops = 0;
+        do {
+            sink += System.identityHashCode(operation.run());
+            ops++;
+        } while (System.nanoTime() < deadline);
+        return ops;
+    }
+
+    // Appends one row per benchmark, with a header if the file is new.
+    void publish(Path csv) {
+        boolean fresh = !Files.exists(csv);
+        String timestamp = Instant.now().toString();
+        try (BufferedWriter writer = Files.newBufferedWriter(csv, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            if (fresh) {
+                writer.write("timestamp,java,benchmark,ops_per_sec,ns_per_op,bytes_per_op");
+                writer.newLine();
+            }
+            for (Result result : results) {
+                writer.write(String.format(Locale.ROOT, "%s,%s,%s,%.1f,%.1f,%.1f", timestamp,
+                        System.getProperty("java.version"), result.name, result.opsPerSecond, result.nanosPerOp, result.bytesPerOp));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing benchmark results: " + e.getMessage());
+            return;
+        }
+        System.out.println("Results appended to " + csv);
+    }
+
+    private static void writeSnapshot(String user, int lots) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get("portfolio_files", user + ".txt"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < lots; i++) {
+                int symbol = i % SYMBOLS;
+                writer.write("SYM" + symbol + ";Symbol " + symbol + ";" + (50 + i % 97) + ".0;" + (1 + i % 10));
+                writer.newLine();
+            }
+        }
+        Files.deleteIfExists(Paths.get("portfolio_files", user + ".journal"));
+    }
+
+    // One PBKDF2 iteration each, so writing them does not take minutes.
+    private static void writeCredentials(int users) {
+        List<CredentialStore.Credential> created = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            created.add(CredentialStore.Credential.create("user" + i, "Passw0rd#" + i, 1));
+        }
+        CredentialStore store = new CredentialStore("credentials");
+        store.add(created);
+        store.close();
+    }
+}
@@ -0,0 +1,368 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Double-entry cash accounts, kept as one append-only journal of postings.
+// A posting moves an amount in price ticks from one account to another, so
+// the balances of all accounts always sum to zero. The accounts are:
+//
+//   cash:<user>        what the user can spend; sells are paid in here
+//   house              the market's side of every trade
+//   payments:<method>  money brought in by card or UPI for a buy
+//   equity:opening     the opening balance every user's account starts with
+//
+// Balances are per-account atomics, so sessions of different users never
+// contend on them. The one shared step is sequencing a posting into the
+// journal, which takes no longer than building its line; the fsync is shared
+// with every other posting in flight by group commit. A buy paid from cash
+// holds the most it can cost before it goes to the book, so two sessions can
+// never spend the same money.
+//
+// Journal records are "P;from;to;amount;memo". Opening the ledger, and every
+// COMPACTION_THRESHOLD postings after that, folds the journal into a snapshot
+// of every balance, so a start replays only the postings made since the last
+// one. Postings hold a shared lock from the write until their balances are
+// applied, and the snapshot is taken under the exclusive side, so it never
+// sees a posting that is on disk but not yet in the balances. The snapshot
+// sits next to the journal as "<name>.balances": a "#seq=<n>" line, then
+// "account;balance" per account.
+class CashLedger {
+    static final String HOUSE = "house";
+    static final String OPENING = "equity:opening";
+    static final String CASH_PREFIX = "cash:";
+    static final String PAYMENTS_PREFIX = "payments:";
+    // What the portfolio used to assume every user had before they traded.
+    static final long OPENING_BALANCE = 10_000L * MatchingEngine.PRICE_SCALE;
+    static final String SNAPSHOT_EXTENSION = ".balances";
+    private static final String SEQ_HEADER = "#seq=";
+    private static final int COMPACTION_THRESHOLD = 10_000;
+
+    static class Account {
+        final String name;
+        private final AtomicLong balance = new AtomicLong();
+        // Balance less whatever is on hold for orders in flight.
+        private final AtomicLong available = new AtomicLong();
+        // Whether a cash account has had its opening balance posted.
+        private volatile boolean opened;
+
+        Account(String name) {
+            this.name = name;
+        }
+
+        public long getBalance() {
+            return balance.get();
+        }
+
+        public long getAvailable() {
+            return available.get();
+        }
+
+        // Sets aside amount if that much is available; false if it is not.
+        boolean hold(long amount) {
+            long current;
+            do {
+                current = available.get();
+                if (current < amount) {
+                    return false;
+                }
+            } while (!available.compareAndSet(current, current - amount));
+            return true;
+        }
+
+        void release(long amount) {
+            available.addAndGet(amount);
+        }
+
+        private void apply(long delta) {
+            balance.addAndGet(delta);
+            available.addAndGet(delta);
+        }
+    }
+
+    private final TradeJournal journal;
+    private final Path snapshot;
+    private final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<>();
+    private final Account house;
+    private final ReentrantReadWriteLock postings = new ReentrantReadWriteLock();
+
+    public CashLedger(String path) {
+        this.journal = new TradeJournal(path);
+        this.snapshot = Paths.get((path.endsWith(".journal") ? path.substring(0, path.length() - ".journal".length()) : path) + SNAPSHOT_EXTENSION);
+        long snapshotSeq = 0;
+        if (Files.exists(snapshot)) {
+            try {
+                snapshotSeq = readSnapshot();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Error loading cash ledger: " + e);
+            }
+        }
+        if (!journal.replay(snapshotSeq, this::applyJournalRecord)) {
+            System.out.println("Skipped damaged records in the cash ledger.");
+        }
+        if (journal.getRecordsSinceSnapshot() > 0) {
+            saveSnapshot();
+        }
+        this.house = account(HOUSE);
+    }
+
+    private long readSnapshot() throws IOException {
+        List<String> lines = Files.readAllLines(snapshot);
+        if (lines.isEmpty() || !lines.get(0).startsWith(SEQ_HEADER)) {
+            throw new IOException("Not a cash ledger snapshot: " + snapshot);
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            int sep = line.lastIndexOf(';');
+            Account account = account(line.substring(0, sep));
+            account.apply(Long.parseLong(line.substring(sep + 1)));
+            account.opened = true;
+        }
+        return Long.parseLong(lines.get(0).substring(SEQ_HEADER.length()));
+    }
+
+    // Writes every balance next to the live snapshot, swaps it in and empties
+    // the journal. Only called while nothing else posts.
+    private void saveSnapshot() {
+        Path temp = Paths.get(snapshot + ".tmp");
+        List<String> lines = new ArrayList<>(accounts.size() + 1);
+        lines.add(SEQ_HEADER + journal.getLastSeq());
+        for (Account account : accounts.values()) {
+            lines.add(account.name + ";" + account.getBalance());
+        }
+        try {
+            Files.write(temp, lines);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (journal) {
+                journal.reset();
+            }
+        } catch (IOException e) {
+            System.out.println("Error saving cash ledger: " + e.getMessage());
+        }
+    }
+
+    private void applyJournalRecord(String[] record) {
+        if (record.length != 5 || !record[0].equals("P")) {
+            System.out.println("Unknown cash ledger record: " + String.join(";", record) + ". Skipping.");
+            return;
+        }
+        try {
+            long amount = Long.parseLong(record[3]);
+            Account from = account(record[1]);
+            Account to = account(record[2]);
+            from.apply(-amount);
+            to.apply(amount);
+            from.opened = true;
+            to.opened = true;
+        } catch (NumberFormatException e) {
+            System.out.println("Error parsing cash ledger record: " + String.join(";", record) + ". Skipping.");
+        }
+    }
+
+    public Account account(String name) {
+        return accounts.computeIfAbsent(name, Account::new);
+    }
+
+    public Account getHouse() {
+        return house;
+    }
+
+    // The user's cash account, opened with OPENING_BALANCE the first time
+    // the user is seen. Callers for the same user wait until the opening
+    // posting is applied; if it could not be written, the account is
+    // returned empty and the next call tries again.
+    public Account cashAccount(String username) {
+        Account account = account(CASH_PREFIX + username);
+        if (account.opened) {
+            return account;
+        }
+        synchronized (account) {
+            if (!account.opened && post(account(OPENING), account, OPENING_BALANCE, "opening balance")) {
+                account.opened = true;
+            }
+        }
+        return account;
+    }
+
+    public Account paymentsAccount(String method) {
+        return account(PAYMENTS_PREFIX + method);
+    }
+
+    // Moves amount from one account to the other once the posting is on
+    // disk. Returns false, leaving both balances alone, if it could not be written.
+    public boolean post(Account from, Account to, long amount, String memo) {
+        postings.readLock().lock();
+        try {
+            if (!write(from, to, amount, memo)) {
+                return false;
+            }
+            from.apply(-amount);
+            to.apply(amount);
+        } finally {
+            postings.readLock().unlock();
+        }
+        compactIfNeeded();
+        return true;
+    }
+
+    // Settles an order that held held from the account: posts amount, which
+    // is at most held, to the other account and frees the rest of the hold.
+    public boolean settleHold(Account from, Account to, long held, long amount, String memo) {
+        boolean written;
+        postings.readLock().lock();
+        try {
+            written = amount == 0 || write(from, to, amount, memo);
+            if (written && amount != 0) {
+                from.balance.addAndGet(-amount);
+                to.apply(amount);
+            }
+            from.release(written ? held - amount : held);
+        } finally {
+            postings.readLock().unlock();
+        }
+        compactIfNeeded();
+        return written;
+    }
+
+    // Snapshots once the journal has grown past COMPACTION_THRESHOLD. Waits
+    // for the postings in flight and holds new ones back meanwhile; if
+    // another thread is already at it, leaves it to that one.
+    private void compactIfNeeded() {
+        if (journal.getRecordsSinceSnapshot() < COMPACTION_THRESHOLD || !postings.writeLock().tryLock()) {
+            return;
+        }
+        try {
+            if (journal.getRecordsSinceSnapshot() >= COMPACTION_THRESHOLD) {
+                saveSnapshot();
+            }
+        } finally {
+            postings.writeLock().unlock();
+        }
+    }
+
+    private boolean write(Account from, Account to, long amount, String memo) {
+        String record = "P;" + from.name + ";" + to.name + ";" + amount + ";" + memo;
+        try {
+            CompletableFuture<Void> committed;
+            synchronized (journal) {
+                committed = journal.write(record);
+            }
+            TradeJournal.await(committed);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error writing cash ledger: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Batches postings in the journal; see TradeJournal.beginBatch().
+    public void beginBatch() {
+        synchronized (journal) {
+            journal.beginBatch();
+        }
+    }
+
+    public void endBatch() {
+        synchronized (journal) {
+            try {
+                journal.endBatch();
+            } catch (IOException e) {
+                System.out.println("Error writing cash ledger: " + e.getMessage());
+            }
+        }
+    }
+
+    public void close() {
+        endBatch();
+        synchronized (journal) {
+            journal.close();
+        }
+    }
+
+    // Sum of every balance; zero unless the journal was damaged.
+    public long imbalance() {
+        long sum = 0;
+        for (Account account : accounts.values()) {
+            sum += account.getBalance();
+        }
+        return sum;
+    }
+
+    // java CashLedger bench [threads] [postingsPerThread]
+    //   has each thread move cash between its own pair of users through a
+    //   ledger in a temp directory, then replays the file and checks that
+    //   every balance matches and the books still sum to zero, and once more
+    //   from the snapshot that replay left behind.
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || !args[0].equals("bench")) {
+            System.out.println("usage: CashLedger bench [threads] [postingsPerThread]");
+            return;
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int postings = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        Path dir = Files.createTempDirectory("cash-ledger");
+        Path file = dir.resolve("ledger.journal");
+        CashLedger ledger = new CashLedger(file.toString());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> done = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            done.add(pool.submit(() -> {
+                Random random = new Random(thread);
+                Account buyer = ledger.cashAccount("user" + thread);
+                for (int i = 0; i < postings; i++) {
+                    long amount = 1 + random.nextInt(10_000);
+                    if (random.nextBoolean() && buyer.hold(amount)) {
+                        ledger.settleHold(buyer, ledger.getHouse(), amount, amount - random.nextInt((int) amount), "buy");
+                    } else {
+                        ledger.post(ledger.getHouse(), buyer, amount, "sell");
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : done) {
+            future.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        System.out.printf("%,d postings from %d threads in %.1f ms (%,.0f postings/s), imbalance %d%n",
+                threads * postings, threads, elapsed / 1e6, threads * postings * 1e9 / elapsed, ledger.imbalance());
+        Map<String, Long> balances = new TreeMap<>();
+        for (Account account : ledger.accounts.values()) {
+            balances.put(account.name, account.getBalance());
+        }
+        ledger.close();
+        long bytes = Files.size(file);
+
+        start = System.nanoTime();
+        CashLedger replayed = new CashLedger(file.toString());
+        elapsed = System.nanoTime() - start;
+        boolean same = true;
+        for (Map.Entry<String, Long> balance : balances.entrySet()) {
+            same &= replayed.account(balance.getKey()).getBalance() == balance.getValue();
+        }
+        System.out.printf("replay: %,d bytes in %.1f ms, balances %s, imbalance %d%n",
+                bytes, elapsed / 1e6, same ? "match" : "DIFFER", replayed.imbalance());
+        replayed.close();
+
+        start = System.nanoTime();
+        CashLedger reopened = new CashLedger(file.toString());
+        elapsed = System.nanoTime() - start;
+        same = true;
+        for (Map.Entry<String, Long> balance : balances.entrySet()) {
+            same &= reopened.account(balance.getKey()).getBalance() == balance.getValue();
+        }
+        System.out.printf("snapshot: %d accounts in %.1f ms, balances %s, imbalance %d%n",
+                balances.size(), elapsed / 1e6, same ? "match" : "DIFFER", reopened.imbalance());
+        reopened.close();
+        Files.deleteIfExists(file);
+        Files.delete(dir.resolve("ledger" + SNAPSHOT_EXTENSION));
+        Files.delete(dir);
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+// CashLedger's bookkeeping: holds only limit what can be spent, settling a
+// hold posts what was used and frees the rest, a reversal puts the money back,
+// and after a restart, from the journal or from a snapshot, every balance is
+// the same and the books still sum to zero. Ledgers live in a temp directory.
+//
+//   java CashLedgerTest
+class CashLedgerTest {
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("ledger-test");
+        boolean passed = Checks.run("CashLedgerTest",
+                () -> holdSettleAndReverse(dir.resolve("hold.journal")),
+                () -> compactsWhileRunning(dir.resolve("compact.journal")));
+        Checks.delete(dir);
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    static void holdSettleAndReverse(Path path) {
+        CashLedger ledger = new CashLedger(path.toString());
+        CashLedger.Account alice = ledger.cashAccount("alice");
+        CashLedger.Account house = ledger.getHouse();
+        long opening = CashLedger.OPENING_BALANCE;
+        Checks.check(alice.getBalance() == opening && alice.getAvailable() == opening, "account opens with the opening balance");
+
+        // A buy holds its worst case; a second one cannot spend the same money.
+        long held = opening - 100;
+        Checks.check(alice.hold(held), "hold within the balance succeeds");
+        Checks.check(alice.getBalance() == opening && alice.getAvailable() == 100, "hold only lowers what is available");
+        Checks.check(!alice.hold(101), "hold past what is available fails");
+
+        // The fill cost less than the hold: only that is posted.
+        Checks.check(ledger.settleHold(alice, house, held, 3_000, "buy AAA 10"), "settle is written");
+        Checks.check(alice.getBalance() == opening - 3_000, "settle posts what was used, got " + alice.getBalance());
+        Checks.check(alice.getAvailable() == alice.getBalance(), "settle frees the rest of the hold");
+        Checks.check(house.getBalance() == 3_000, "house is paid, got " + house.getBalance());
+
+        // Part of the fill could not be booked, so the trade is undone.
+        Checks.check(ledger.post(house, alice, 1_200, "undo buy AAA 4"), "reversal is written");
+        Checks.check(alice.getBalance() == opening - 1_800 && house.getBalance() == 1_800, "reversal puts the money back");
+
+        // Nothing filled: the whole hold comes back and nothing is posted.
+        Checks.check(alice.hold(500), "second hold");
+        Checks.check(ledger.settleHold(alice, house, 500, 0, "buy BBB 0"), "empty settle");
+        Checks.check(alice.getAvailable() == opening - 1_800, "empty settle frees the whole hold");
+
+        CashLedger.Account bob = ledger.cashAccount("bob");
+        Checks.check(ledger.post(house, bob, 700, "sell CCC 7"), "sale is written");
+        Checks.check(ledger.imbalance() == 0, "books sum to zero, got " + ledger.imbalance());
+        Map<String, Long> before = balances(ledger, "cash:alice", "cash:bob", CashLedger.HOUSE, CashLedger.OPENING);
+        ledger.close();
+
+        // First from the journal, then from the snapshot that replay leaves.
+        for (int start = 0; start < 2; start++) {
+            CashLedger reopened = new CashLedger(path.toString());
+            Map<String, Long> after = balances(reopened, "cash:alice", "cash:bob", CashLedger.HOUSE, CashLedger.OPENING);
+            Checks.check(after.equals(before), "balances survive restart " + start + ", got " + after + " expected " + before);
+            Checks.check(reopened.imbalance() == 0, "books sum to zero after restart " + start + ", got " + reopened.imbalance());
+            Checks.check(reopened.cashAccount("alice").getAvailable() == before.get("cash:alice"), "no hold survives a restart");
+            reopened.close();
+        }
+    }
+
+    // Enough postings to cross the compaction threshold: the journal is
+    // folded into a snapshot without a restart, and nothing is lost by it.
+    static void compactsWhileRunning(Path path) throws IOException {
+        CashLedger ledger = new CashLedger(path.toString());
+        CashLedger.Account carol = ledger.cashAccount("carol");
+        ledger.beginBatch();
+        for (int i = 0; i < 12_000; i++) {
+            Checks.check(i % 2 == 0 ? ledger.post(carol, ledger.getHouse(), 3, "buy") : ledger.post(ledger.getHouse(), carol, 2, "sell"),
+                    "posting " + i + " is written");
+        }
+        ledger.endBatch();
+        long expected = CashLedger.OPENING_BALANCE - 6_000;
+        Checks.check(carol.getBalance() == expected, "running balance, got " + carol.getBalance());
+        Checks.check(Files.size(path) < 12_000 * 20, "journal was compacted, " + Files.size(path) + " bytes");
+        ledger.close();
+
+        CashLedger reopened = new CashLedger(path.toString());
+        Checks.check(reopened.cashAccount("carol").getBalance() == expected, "balance survives compaction, got "
+                + reopened.cashAccount("carol").getBalance());
+        Checks.check(reopened.imbalance() == 0, "books sum to zero after compaction, got " + reopened.imbalance());
+        reopened.close();
+    }
+
+    private static Map<String, Long> balances(CashLedger ledger, String... names) {
+        Map<String, Long> balances = new TreeMap<>();
+        for (String name : names) {
+            balances.put(name, ledger.account(name).getBalance());
+        }
+        return balances;
+    }
+}
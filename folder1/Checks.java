@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// What the *Test programs share. Each is a main() that hands its cases to
+// run(), which stops at the first one that throws and says which check it
+// was; the test then cleans up and exits 1 if anything failed.
+final class Checks {
+    interface Case {
+        void run() throws Exception;
+    }
+
+    private Checks() {
+    }
+
+    static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    // Runs the cases in order; prints "<test> passed." or the first failure.
+    static boolean run(String test, Case... cases) {
+        for (Case c : cases) {
+            try {
+                c.run();
+            } catch (AssertionError e) {
+                System.out.println(test + " failed: " + e.getMessage());
+                return false;
+            } catch (Exception e) {
+                System.out.println(test + " failed: " + e);
+                e.printStackTrace(System.out);
+                return false;
+            }
+        }
+        System.out.println(test + " passed.");
+        return true;
+    }
+
+    // Deletes a test's scratch directory and everything under it.
+    static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
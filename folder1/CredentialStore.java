@@ -0,0 +1,567 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Users' salted password hashes, kept on disk as an append-only record file
+// (prefix + ".db") and an open-addressing hash index over it (prefix + ".idx")
+// that is memory-mapped rather than read in. A signup appends one record and
+// sets one index slot; a lookup probes the mapped index and reads that one
+// record. Neither depends on how many users there are, and nothing is loaded
+// at startup.
+//
+// Record layout, little-endian: the username as a 16-bit length and UTF-8
+// bytes, the PBKDF2 iteration count, a 16-byte salt, the 32-byte
+// PBKDF2-HMAC-SHA256 hash, and a CRC32 of everything before it. Index layout:
+// a 32-byte header (magic "CIX1", version, slot count, user count, length of
+// the record file it covers), then one long per slot holding the username's
+// hash in the high 32 bits and the record offset + 1 in the low 32; 0 is
+// empty. Slots are probed linearly and doubled at half full.
+//
+// The index header is brought up to date and forced only on close(). Opening
+// indexes whatever records lie past the length it covers; if the record file
+// ends in a torn record, that record is cut off and the index rebuilt.
+//
+// Lookups take no lock: they probe whichever index is current and read the
+// record with a positional read, and a record whose name or CRC does not
+// check out is passed over, so a slot being filled in as they look at it can
+// only make them miss a user who is still signing up. Signups hold the lock to
+// append and index, and force the record file after letting it go; a force
+// covers everything appended before it started, so signups that queue behind
+// one share the next.
+class CredentialStore {
+    static final String RECORDS_EXTENSION = ".db";
+    static final String INDEX_EXTENSION = ".idx";
+    // OWASP's current figure for PBKDF2-HMAC-SHA256; -Dauth.hashIterations
+    // lowers it for load tests. Stored credentials keep their own count.
+    static final int DEFAULT_ITERATIONS = Integer.getInteger("auth.hashIterations", 600_000);
+    static final int MAX_USERNAME_BYTES = 255;
+
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+    // "CIX1" as little-endian bytes.
+    private static final int MAGIC = 0x31584943;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int INITIAL_SLOTS = 1024;
+    // Keeps slot offsets within an int.
+    private static final int MAX_SLOTS = 1 << 27;
+    private static final int MAX_RECORD_BYTES = recordLength(MAX_USERNAME_BYTES);
+    // Offsets must fit the low 32 bits of a slot.
+    private static final long MAX_RECORDS_LENGTH = 0xFFFF_FFFEL;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    static class Credential {
+        final String username;
+        final int iterations;
+        private final byte[] salt;
+        private final byte[] hash;
+
+        Credential(String username, int iterations, byte[] salt, byte[] hash) {
+            this.username = username;
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        // Hashes the password under a new random salt. Slow on purpose.
+        static Credential create(String username, String password, int iterations) {
+            byte[] salt = new byte[SALT_BYTES];
+            RANDOM.nextBytes(salt);
+            return new Credential(username, iterations, salt, hash(password, salt, iterations));
+        }
+
+        // Slow on purpose, like create; compares in constant time.
+        boolean matches(String password) {
+            return MessageDigest.isEqual(hash, hash(password, salt, iterations));
+        }
+
+        // Checked in place of a user who does not exist, so that a failed
+        // sign-in takes as long either way and does not give away which
+        // usernames are taken. Made on first use.
+        static Credential unknownUser() {
+            return UnknownUser.CREDENTIAL;
+        }
+    }
+
+    private static class UnknownUser {
+        static final Credential CREDENTIAL = Credential.create("", UUID.randomUUID().toString(), DEFAULT_ITERATIONS);
+    }
+
+    private final Path recordsPath;
+    private final Path indexPath;
+    // Taken by one force at a time, after the store's own lock is let go.
+    private final Object forcing = new Object();
+    private volatile FileChannel records;
+    private volatile MappedByteBuffer index;
+    private int slots;
+    private volatile int count;
+    // End of the last whole record.
+    private volatile long length;
+    // How much of the record file is known to be on disk; guarded by forcing.
+    private long forced;
+    private boolean batching;
+
+    // Opens the store kept at prefix + ".db" / ".idx".
+    public CredentialStore(String prefix) {
+        this.recordsPath = Paths.get(prefix + RECORDS_EXTENSION);
+        this.indexPath = Paths.get(prefix + INDEX_EXTENSION);
+        try {
+            open();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error opening credential store: " + e);
+            records = null;
+        }
+    }
+
+    private void open() throws IOException {
+        records = FileChannel.open(recordsPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = records.size();
+        long covered = Files.exists(indexPath) ? mapIndex() : -1;
+        if (covered >= 0 && covered <= size) {
+            length = covered;
+            if (indexRecords(size)) {
+                return;
+            }
+        }
+        length = 0;
+        count = 0;
+        index = newIndex(indexPath, Math.max(INITIAL_SLOTS, Integer.highestOneBit((int) Math.min(size / 32, MAX_SLOTS / 2)) * 2), 0);
+        slots = index.getInt(8);
+        if (!indexRecords(size)) {
+            System.out.println("Cutting torn credential record at byte " + length + " of " + recordsPath + ".");
+            records.truncate(length);
+        }
+        forced = length;
+    }
+
+    // Maps an existing index; returns the record length it covers, or -1 if it is not usable.
+    private long mapIndex() throws IOException {
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < HEADER_SIZE) {
+                return -1;
+            }
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            int mappedSlots = map.getInt(8);
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || Integer.bitCount(mappedSlots) != 1
+                    || map.limit() != HEADER_SIZE + (long) mappedSlots * 8) {
+                return -1;
+            }
+            index = map;
+            slots = mappedSlots;
+            count = map.getInt(12);
+            return map.getLong(16);
+        }
+    }
+
+    private static MappedByteBuffer newIndex(Path path, int slotCount, long covered) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slotCount * 8);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            map.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, slotCount).putInt(12, 0).putLong(16, covered);
+            return map;
+        }
+    }
+
+    // Indexes the records from length to size. Returns false, with length at
+    // the end of the last whole record, if it stopped at a torn one.
+    private boolean indexRecords(long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        long readAt = length;
+        CRC32 crc = new CRC32();
+        while (length < size) {
+            if (buffer.remaining() < MAX_RECORD_BYTES && readAt < size) {
+                buffer.compact();
+                while (buffer.hasRemaining() && readAt < size) {
+                    int read = records.read(buffer, readAt);
+                    if (read < 0) {
+                        break;
+                    }
+                    readAt += read;
+                }
+                buffer.flip();
+            }
+            int start = buffer.position();
+            if (buffer.remaining() < 2) {
+                return false;
+            }
+            int nameLength = buffer.getShort(start) & 0xFFFF;
+            int recordLength = recordLength(nameLength);
+            if (nameLength == 0 || nameLength > MAX_USERNAME_BYTES || buffer.remaining() < recordLength) {
+                return false;
+            }
+            crc.reset();
+            crc.update(buffer.array(), start, recordLength - 4);
+            if ((int) crc.getValue() != buffer.getInt(start + recordLength - 4)) {
+                return false;
+            }
+            String username = new String(buffer.array(), start + 2, nameLength, StandardCharsets.UTF_8);
+            // After a crash the index may already hold records past what it covered.
+            if (find(username, hash(username)) == null) {
+                insert(hash(username), length);
+            }
+            buffer.position(start + recordLength);
+            length += recordLength;
+        }
+        return true;
+    }
+
+    private static int recordLength(int nameLength) {
+        return 2 + nameLength + 4 + SALT_BYTES + HASH_BYTES + 4;
+    }
+
+    public static boolean isValidUsername(String username) {
+        return !username.isEmpty() && username.getBytes(StandardCharsets.UTF_8).length <= MAX_USERNAME_BYTES;
+    }
+
+    public boolean contains(String username) {
+        return get(username) != null;
+    }
+
+    // The user's credential, or null if there is no such user. Takes no lock.
+    public Credential get(String username) {
+        FileChannel channel = records;
+        if (channel == null || !isValidUsername(username)) {
+            return null;
+        }
+        try {
+            return find(channel, index, username, hash(username));
+        } catch (IOException e) {
+            System.out.println("Error reading credentials: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Credential find(String username, int hash) throws IOException {
+        return find(records, index, username, hash);
+    }
+
+    // The slot count is read from the map itself, so a lookup that raced a
+    // grow() probes the old index consistently.
+    private static Credential find(FileChannel channel, MappedByteBuffer map, String username, int hash) throws IOException {
+        int mask = map.getInt(8) - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            long slot = map.getLong(HEADER_SIZE + i * 8);
+            if (slot == 0) {
+                return null;
+            }
+            if ((int) (slot >>> 32) == hash) {
+                Credential credential = read(channel, (slot & 0xFFFF_FFFFL) - 1);
+                if (credential != null && credential.username.equals(username)) {
+                    return credential;
+                }
+            }
+        }
+    }
+
+    // Null if there is no whole record at offset.
+    private static Credential read(FileChannel channel, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) <= 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+        int recordLength = recordLength(buffer.getShort(0) & 0xFFFF);
+        if (buffer.remaining() < recordLength) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, recordLength - 4);
+        if ((int) crc.getValue() != buffer.getInt(recordLength - 4)) {
+            return null;
+        }
+        Metrics.addBytes("credentials.read", recordLength);
+        byte[] name = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(name);
+        int iterations = buffer.getInt();
+        byte[] salt = new byte[SALT_BYTES];
+        byte[] hash = new byte[HASH_BYTES];
+        buffer.get(salt).get(hash);
+        return new Credential(new String(name, StandardCharsets.UTF_8), iterations, salt, hash);
+    }
+
+    private void insert(int hash, long offset) throws IOException {
+        if ((count + 1) * 2L > slots) {
+            grow();
+        }
+        int mask = slots - 1;
+        int i = hash & mask;
+        while (index.getLong(HEADER_SIZE + i * 8) != 0) {
+            i = (i + 1) & mask;
+        }
+        index.putLong(HEADER_SIZE + i * 8, ((long) hash << 32) | (offset + 1));
+        index.putInt(12, ++count);
+    }
+
+    // Rehashes into an index twice the size, written next to the live one and swapped in.
+    private void grow() throws IOException {
+        if (slots >= MAX_SLOTS) {
+            throw new IOException("credential index is full");
+        }
+        Path temp = Paths.get(indexPath + ".tmp");
+        int grown = slots * 2;
+        MappedByteBuffer bigger = newIndex(temp, grown, index.getLong(16));
+        int mask = grown - 1;
+        for (int s = 0; s < slots; s++) {
+            long slot = index.getLong(HEADER_SIZE + s * 8);
+            if (slot != 0) {
+                int i = (int) (slot >>> 32) & mask;
+                while (bigger.getLong(HEADER_SIZE + i * 8) != 0) {
+                    i = (i + 1) & mask;
+                }
+                bigger.putLong(HEADER_SIZE + i * 8, slot);
+            }
+        }
+        bigger.putInt(12, count);
+        bigger.force();
+        Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = bigger;
+        slots = grown;
+    }
+
+    // Adds the user; false if the name is taken or it could not be written.
+    public boolean add(Credential credential) {
+        return add(Collections.singletonList(credential)) == 1;
+    }
+
+    // Appends every credential whose username is not taken, with one write
+    // and one force between them. Returns how many were added, or 0 if the
+    // force failed: those users stay indexed, and close() forces them again.
+    public int add(Collection<Credential> credentials) {
+        int added;
+        long upTo;
+        synchronized (this) {
+            added = append(credentials);
+            if (added == 0 || batching) {
+                return added;
+            }
+            upTo = length;
+        }
+        return force(upTo) ? added : 0;
+    }
+
+    private int append(Collection<Credential> credentials) {
+        if (records == null) {
+            return 0;
+        }
+        try {
+            List<Credential> fresh = new ArrayList<>(credentials.size());
+            Set<String> seen = new HashSet<>();
+            int bytes = 0;
+            for (Credential credential : credentials) {
+                if (isValidUsername(credential.username) && seen.add(credential.username)
+                        && find(credential.username, hash(credential.username)) == null) {
+                    fresh.add(credential);
+                    bytes += recordLength(credential.username.getBytes(StandardCharsets.UTF_8).length);
+                }
+            }
+            if (length + bytes > MAX_RECORDS_LENGTH) {
+                System.out.println("Error writing credentials: the store is full.");
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            CRC32 crc = new CRC32();
+            for (Credential credential : fresh) {
+                int start = buffer.position();
+                byte[] name = credential.username.getBytes(StandardCharsets.UTF_8);
+                buffer.putShort((short) name.length).put(name).putInt(credential.iterations).put(credential.salt).put(credential.hash);
+                crc.reset();
+                crc.update(buffer.array(), start, buffer.position() - start);
+                buffer.putInt((int) crc.getValue());
+            }
+            buffer.flip();
+            long offset = length;
+            while (buffer.hasRemaining()) {
+                offset += records.write(buffer, offset);
+            }
+            // Indexed before the force, so the records are there to be read
+            // by the time a lookup can find them.
+            long at = length;
+            for (Credential credential : fresh) {
+                insert(hash(credential.username), at);
+                at += recordLength(credential.username.getBytes(StandardCharsets.UTF_8).length);
+            }
+            length = at;
+            Metrics.addBytes("credentials.write", bytes);
+            return fresh.size();
+        } catch (IOException e) {
+            System.out.println("Error writing credentials: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // Makes the records up to upTo durable, unless a force that started after
+    // they were appended already has. Returns false if the force failed.
+    private boolean force(long upTo) {
+        synchronized (forcing) {
+            if (forced >= upTo) {
+                return true;
+            }
+            FileChannel channel = records;
+            if (channel == null) {
+                return false;
+            }
+            long covered = length;
+            try {
+                channel.force(false);
+                forced = covered;
+                return true;
+            } catch (IOException e) {
+                System.out.println("Error writing credentials: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    public synchronized void beginBatch() {
+        batching = true;
+    }
+
+    // Returns false if the signups could not be made durable.
+    public boolean endBatch() {
+        long upTo;
+        synchronized (this) {
+            batching = false;
+            if (records == null) {
+                return false;
+            }
+            upTo = length;
+        }
+        return force(upTo);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // Forces the records, then records in the index how far it covers them.
+    public synchronized void close() {
+        if (records == null) {
+            return;
+        }
+        synchronized (forcing) {
+            try {
+                records.force(false);
+                index.putLong(16, length);
+                index.force();
+                records.close();
+            } catch (IOException e) {
+                System.out.println("Error closing credential store: " + e.getMessage());
+            }
+            records = null;
+        }
+    }
+
+    private static int hash(String username) {
+        // Murmur3's finalizer, so similar names land in different slots.
+        int h = username.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        return h ^ (h >>> 16);
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BYTES * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    // java CredentialStore bench [users] [iterations]
+    //   signs up that many users (default 1,000,000) in a temp directory with
+    //   the given PBKDF2 iteration count (default 1, so the store rather than
+    //   the hash is measured), then times a cold open and the lookup and
+    //   verification of one user, and what one hash costs at the default count.
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || !args[0].equals("bench")) {
+            System.out.println("usage: CredentialStore bench [users] [iterations]");
+            return;
+        }
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        Path dir = Files.createTempDirectory("credential-store");
+        String prefix = dir.resolve("credentials").toString();
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CredentialStore store = new CredentialStore(prefix);
+        long hashing = 0;
+        long storing = 0;
+        int chunk = 10_000;
+        store.beginBatch();
+        for (int from = 0; from < users; from += chunk) {
+            long start = System.nanoTime();
+            List<Future<Credential>> pending = new ArrayList<>(chunk);
+            for (int i = from; i < Math.min(users, from + chunk); i++) {
+                String username = "user" + i;
+                String password = "Passw0rd#" + i;
+                pending.add(pool.submit(() -> Credential.create(username, password, iterations)));
+            }
+            List<Credential> created = new ArrayList<>(pending.size());
+            for (Future<Credential> future : pending) {
+                created.add(future.get());
+            }
+            long hashed = System.nanoTime();
+            store.add(created);
+            hashing += hashed - start;
+            storing += System.nanoTime() - hashed;
+        }
+        long start = System.nanoTime();
+        store.endBatch();
+        store.close();
+        storing += System.nanoTime() - start;
+        pool.shutdown();
+        System.out.printf("signup: %,d users, hashing %.1f ms on %d threads, storing %.1f ms (%,.0f signups/s stored)%n",
+                users, hashing / 1e6, threads, storing / 1e6, users * 1e9 / storing);
+        System.out.printf("files: %,d bytes of records, %,d bytes of index%n",
+                Files.size(Paths.get(prefix + RECORDS_EXTENSION)), Files.size(Paths.get(prefix + INDEX_EXTENSION)));
+
+        for (int pass = 0; pass < 3; pass++) {
+            String username = "user" + (users / 2 + pass);
+            start = System.nanoTime();
+            CredentialStore opened = new CredentialStore(prefix);
+            long open = System.nanoTime();
+            Credential credential = opened.get(username);
+            long lookup = System.nanoTime();
+            boolean ok = credential != null && credential.matches("Passw0rd#" + (users / 2 + pass));
+            long verify = System.nanoTime();
+            System.out.printf("cold open %.2f ms, lookup %.1f us, verify %.1f us: %s%n",
+                    (open - start) / 1e6, (lookup - open) / 1e3, (verify - lookup) / 1e3, ok ? "ok" : "FAILED");
+            opened.close();
+        }
+        Credential sample = Credential.create("sample", "Passw0rd#", DEFAULT_ITERATIONS);
+        start = System.nanoTime();
+        sample.matches("Passw0rd#");
+        System.out.printf("one hash at %,d iterations: %.1f ms%n", DEFAULT_ITERATIONS, (System.nanoTime() - start) / 1e6);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+}
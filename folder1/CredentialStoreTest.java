@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// Crash recovery of CredentialStore's record file and index: every user
+// whose record was written can sign in after a crash before close(), after
+// the record file was torn mid-record, and after the index was lost or
+// damaged; and lookups running alongside signups, which take no lock, find
+// every user already signed up while the index grows under them. Stores live
+// in a temp directory and hash with one iteration.
+//
+//   java CredentialStoreTest
+class CredentialStoreTest {
+    private static final int USERS = 3_000;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("credential-test");
+        boolean passed = Checks.run("CredentialStoreTest",
+                () -> reopensAfterClose(dir.resolve("closed")),
+                () -> recordsPastTheIndexAreIndexed(dir.resolve("crashed")),
+                () -> tornRecordIsCut(dir.resolve("torn")),
+                () -> lostIndexIsRebuilt(dir.resolve("lost")),
+                () -> lookupsRunAlongsideSignups(dir.resolve("concurrent")));
+        Checks.delete(dir);
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    // Enough users to grow the index past its first size.
+    static void reopensAfterClose(Path prefix) {
+        CredentialStore store = new CredentialStore(prefix.toString());
+        signUp(store, 0, USERS);
+        Checks.check(!store.add(credential(7)), "a taken name is refused");
+        store.close();
+        CredentialStore reopened = new CredentialStore(prefix.toString());
+        Checks.check(reopened.size() == USERS, "every user is indexed, got " + reopened.size());
+        checkSignIns(reopened, USERS);
+        Checks.check(reopened.get("nobody") == null && !reopened.contains(""), "unknown names are not found");
+        reopened.close();
+    }
+
+    // The index header only learns how far it covers the records on
+    // close(). Copying the files while the store is open is what a crash
+    // leaves behind: records the header does not know about, some of them
+    // already in the index.
+    static void recordsPastTheIndexAreIndexed(Path prefix) throws IOException {
+        CredentialStore store = new CredentialStore(prefix.toString());
+        signUp(store, 0, 100);
+        store.close();
+        store = new CredentialStore(prefix.toString());
+        signUp(store, 100, 200);
+        Path crashed = prefix.resolveSibling("crashed-copy");
+        copy(prefix, crashed);
+        store.close();
+
+        CredentialStore recovered = new CredentialStore(crashed.toString());
+        Checks.check(recovered.size() == 200, "no user is lost or indexed twice, got " + recovered.size());
+        checkSignIns(recovered, 200);
+        Checks.check(recovered.add(credential(200)), "signups carry on after recovery");
+        recovered.close();
+    }
+
+    static void tornRecordIsCut(Path prefix) throws IOException {
+        CredentialStore store = new CredentialStore(prefix.toString());
+        signUp(store, 0, 50);
+        store.close();
+        Path records = Paths.get(prefix + CredentialStore.RECORDS_EXTENSION);
+        long whole = Files.size(records);
+        // Half of the next record: its length, name and part of its salt.
+        try (FileChannel channel = FileChannel.open(records, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {6, 0, 'u', 's', 'e', 'r', '5', '0', 1, 0, 0, 0, 9, 9, 9}));
+        }
+
+        CredentialStore reopened = new CredentialStore(prefix.toString());
+        Checks.check(Files.size(records) == whole, "torn record is cut off, " + Files.size(records) + " bytes");
+        Checks.check(reopened.size() == 50 && reopened.get("user50") == null, "torn user is not indexed");
+        Checks.check(reopened.add(credential(50)), "the torn user can sign up again");
+        reopened.close();
+        reopened = new CredentialStore(prefix.toString());
+        checkSignIns(reopened, 51);
+        reopened.close();
+    }
+
+    // An index that is missing or not an index at all is rebuilt from the records.
+    static void lostIndexIsRebuilt(Path prefix) throws IOException {
+        CredentialStore store = new CredentialStore(prefix.toString());
+        signUp(store, 0, USERS);
+        store.close();
+        Path index = Paths.get(prefix + CredentialStore.INDEX_EXTENSION);
+        Files.write(index, new byte[] {'n', 'o', 't', ' ', 'a', 'n', ' ', 'i', 'n', 'd', 'e', 'x'});
+        CredentialStore rebuilt = new CredentialStore(prefix.toString());
+        Checks.check(rebuilt.size() == USERS, "damaged index is rebuilt, got " + rebuilt.size());
+        checkSignIns(rebuilt, USERS);
+        rebuilt.close();
+
+        Files.delete(index);
+        rebuilt = new CredentialStore(prefix.toString());
+        Checks.check(rebuilt.size() == USERS, "missing index is rebuilt, got " + rebuilt.size());
+        rebuilt.close();
+    }
+
+    // Signups from two threads, each forcing on its own, while two more
+    // threads look up users that are already in. The index starts at 1,024
+    // slots, so it grows several times underneath the lookups.
+    static void lookupsRunAlongsideSignups(Path prefix) throws InterruptedException {
+        CredentialStore store = new CredentialStore(prefix.toString());
+        signUp(store, 0, 100);
+        AtomicInteger misses = new AtomicInteger();
+        AtomicBoolean done = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < 2; w++) {
+            int first = 100 + w;
+            threads.add(new Thread(() -> {
+                for (int i = first; i < USERS; i += 2) {
+                    if (!store.add(credential(i))) {
+                        misses.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (int r = 0; r < 2; r++) {
+            threads.add(new Thread(() -> {
+                Random random = new Random();
+                while (!done.get()) {
+                    int i = random.nextInt(100);
+                    CredentialStore.Credential credential = store.get("user" + i);
+                    if (credential == null || !credential.username.equals("user" + i)) {
+                        misses.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        threads.get(0).join();
+        threads.get(1).join();
+        done.set(true);
+        threads.get(2).join();
+        threads.get(3).join();
+        Checks.check(misses.get() == 0, misses.get() + " signups failed or lookups missed");
+        Checks.check(store.size() == USERS, "every signup is indexed, got " + store.size());
+        store.close();
+        CredentialStore reopened = new CredentialStore(prefix.toString());
+        checkSignIns(reopened, USERS);
+        reopened.close();
+    }
+
+    private static void signUp(CredentialStore store, int from, int to) {
+        List<CredentialStore.Credential> batch = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            batch.add(credential(i));
+        }
+        Checks.check(store.add(batch) == to - from, "users " + from + ".." + to + " sign up");
+    }
+
+    private static CredentialStore.Credential credential(int i) {
+        return CredentialStore.Credential.create("user" + i, "Passw0rd#" + i, 1);
+    }
+
+    private static void checkSignIns(CredentialStore store, int users) {
+        for (int i = 0; i < users; i++) {
+            CredentialStore.Credential credential = store.get("user" + i);
+            Checks.check(credential != null && credential.matches("Passw0rd#" + i), "user" + i + " signs in");
+        }
+        Checks.check(!store.get("user0").matches("Passw0rd#1"), "a wrong password is refused");
+    }
+
+    private static void copy(Path from, Path to) throws IOException {
+        for (String extension : new String[] {CredentialStore.RECORDS_EXTENSION, CredentialStore.INDEX_EXTENSION}) {
+            Files.copy(Paths.get(from + extension), Paths.get(to + extension));
+        }
+    }
+}
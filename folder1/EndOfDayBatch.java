@@ -0,0 +1,360 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// End-of-day pass over a whole portfolio directory without going through
+// Portfolio or Stock. Files are streamed off a directory listing into a
+// bounded worker pool; each worker folds the lots it reads into its own
+// per-symbol totals, which are merged once at the end. Per-user totals are
+// streamed straight to a CSV. Files that fail to parse are counted and listed.
+// A user is read from their binary snapshot if there is one, else their text
+// snapshot, plus their journal; a user who has traded but never been
+// snapshotted has only the journal, which is then read on its own.
+//
+// With -Deod.risk=history (daily closes from -Dtick.history) or
+// -Deod.risk=synthetic, every user's holdings are also kept and, once the
+// pass is done, run through a RiskEngine over the symbols anyone holds;
+// per-user VaR goes to <reportPrefix>-risk.csv.
+//
+//   java EndOfDayBatch [directory] [threads] [reportPrefix]
+//   java EndOfDayBatch generate <directory> <users> <lotsPerUser>
+class EndOfDayBatch {
+    private static final int MAX_PROBLEMS_LISTED = 20;
+    private static final int TOP_SYMBOLS = 20;
+
+    static class SymbolTotals {
+        final String symbol;
+        int holders;
+        long quantity;
+        long cost;
+
+        SymbolTotals(String symbol) {
+            this.symbol = symbol;
+        }
+
+        void add(SymbolTotals other) {
+            holders += other.holders;
+            quantity += other.quantity;
+            cost += other.cost;
+        }
+    }
+
+    // One user's holding in one symbol while their file is being read.
+    private static class Holding {
+        long quantity;
+        long cost;
+    }
+
+    // Per-thread scratch and running totals; merged after the pool drains.
+    private static class Worker {
+        final Map<String, SymbolTotals> symbols = new HashMap<>();
+        final Map<String, Holding> holdings = new HashMap<>();
+    }
+
+    private final Path directory;
+    private final int threads;
+    private final ConcurrentLinkedQueue<Worker> workers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Worker> worker = ThreadLocal.withInitial(() -> {
+        Worker created = new Worker();
+        workers.add(created);
+        return created;
+    });
+    private final LongAdder files = new LongAdder();
+    private final LongAdder lots = new LongAdder();
+    private final LongAdder users = new LongAdder();
+    private final LongAdder corrupt = new LongAdder();
+    private final List<String> problems = Collections.synchronizedList(new ArrayList<>());
+    private final String risk = System.getProperty("eod.risk");
+    private final ConcurrentLinkedQueue<RiskEngine.Holdings> books = new ConcurrentLinkedQueue<>();
+    private BufferedWriter userReport;
+
+    EndOfDayBatch(Path directory, int threads) {
+        this.directory = directory;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("generate")) {
+            generate(Paths.get(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+        Path directory = Paths.get(args.length > 0 ? args[0] : "portfolio_files");
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        String reportPrefix = args.length > 2 ? args[2] : null;
+        new EndOfDayBatch(directory, threads).run(reportPrefix);
+    }
+
+    void run(String reportPrefix) throws IOException, InterruptedException {
+        if (reportPrefix != null) {
+            userReport = Files.newBufferedWriter(Paths.get(reportPrefix + "-users.csv"), StandardCharsets.UTF_8);
+            userReport.write("user,positions,quantity,cost");
+            userReport.newLine();
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 256), new ThreadPoolExecutor.CallerRunsPolicy());
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "eod-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        progress.scheduleAtFixedRate(() -> report("progress", start), 1, 1, TimeUnit.SECONDS);
+        try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
+            for (Path file : listing) {
+                pool.execute(() -> process(file));
+            }
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        progress.shutdownNow();
+        report("done", start);
+        if (userReport != null) {
+            userReport.close();
+        }
+
+        Map<String, SymbolTotals> merged = new HashMap<>();
+        for (Worker done : workers) {
+            for (SymbolTotals totals : done.symbols.values()) {
+                merged.computeIfAbsent(totals.symbol, SymbolTotals::new).add(totals);
+            }
+        }
+        List<SymbolTotals> bySymbol = new ArrayList<>(merged.values());
+        bySymbol.sort(Comparator.comparingLong((SymbolTotals totals) -> totals.cost).reversed());
+        System.out.printf("%n%-10s %10s %14s %18s%n", "Symbol", "Holders", "Quantity", "Cost");
+        for (SymbolTotals totals : bySymbol.subList(0, Math.min(TOP_SYMBOLS, bySymbol.size()))) {
+            System.out.printf("%-10s %10d %14d %18.2f%n", totals.symbol, totals.holders, totals.quantity, MatchingEngine.toPrice(totals.cost));
+        }
+        if (bySymbol.size() > TOP_SYMBOLS) {
+            System.out.println("... " + (bySymbol.size() - TOP_SYMBOLS) + " more symbols");
+        }
+        if (reportPrefix != null) {
+            try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(reportPrefix + "-symbols.csv"), StandardCharsets.UTF_8)) {
+                writer.write("symbol,holders,quantity,cost");
+                writer.newLine();
+                for (SymbolTotals totals : bySymbol) {
+                    writer.write(totals.symbol + "," + totals.holders + "," + totals.quantity + "," + String.format(Locale.ROOT, "%.2f", MatchingEngine.toPrice(totals.cost)));
+                    writer.newLine();
+                }
+            }
+            System.out.println("Reports written to " + reportPrefix + "-symbols.csv and " + reportPrefix + "-users.csv");
+        }
+        if (risk != null) {
+            assessRisk(merged.keySet(), reportPrefix);
+        }
+        if (corrupt.sum() > 0) {
+            System.out.println("\n" + corrupt.sum() + " corrupt portfolio files:");
+            synchronized (problems) {
+                for (String problem : problems) {
+                    System.out.println("  " + problem);
+                }
+            }
+            if (corrupt.sum() > problems.size()) {
+                System.out.println("  ...");
+            }
+        }
+    }
+
+    private void report(String label, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s: %,d files, %,d users, %,d lots in %.1f s (%,.0f files/s, %,.0f lots/s), %d corrupt%n",
+                label, files.sum(), users.sum(), lots.sum(), seconds, files.sum() / seconds, lots.sum() / seconds, corrupt.sum());
+    }
+
+    private void process(Path file) {
+        String fileName = file.getFileName().toString();
+        String user;
+        Path snapshot = file;
+        if (fileName.endsWith(PortfolioFiles.BINARY_EXTENSION)) {
+            user = fileName.substring(0, fileName.length() - PortfolioFiles.BINARY_EXTENSION.length());
+        } else if (fileName.endsWith(PortfolioFiles.TEXT_EXTENSION)) {
+            user = fileName.substring(0, fileName.length() - PortfolioFiles.TEXT_EXTENSION.length());
+            // The binary snapshot, when there is one, is the live copy.
+            if (Files.exists(file.resolveSibling(user + PortfolioFiles.BINARY_EXTENSION))) {
+                return;
+            }
+        } else if (fileName.endsWith(PortfolioStorage.Local.JOURNAL_EXTENSION)) {
+            user = fileName.substring(0, fileName.length() - PortfolioStorage.Local.JOURNAL_EXTENSION.length());
+            // Read with the snapshot, when there is one.
+            if (Files.exists(file.resolveSibling(user + PortfolioFiles.BINARY_EXTENSION))
+                    || Files.exists(file.resolveSibling(user + PortfolioFiles.TEXT_EXTENSION))) {
+                return;
+            }
+            snapshot = null;
+        } else {
+            return;
+        }
+        files.increment();
+        Worker local = worker.get();
+        Map<String, Holding> holdings = local.holdings;
+        holdings.clear();
+        boolean[] damaged = new boolean[1];
+        try {
+            Path journal = file.resolveSibling(user + PortfolioStorage.Local.JOURNAL_EXTENSION);
+            if (snapshot == null || Files.exists(journal) && Files.size(journal) > 0) {
+                damaged[0] = !readWithJournal(snapshot, journal, holdings, problem -> problem(user, problem, damaged));
+            } else {
+                PortfolioFiles.read(file, (symbol, name, priceTicks, quantity, timestamp) -> {
+                    Holding holding = holdings.computeIfAbsent(symbol, s -> new Holding());
+                    holding.quantity += quantity;
+                    holding.cost += priceTicks * quantity;
+                    lots.increment();
+                }, problem -> problem(user, problem, damaged));
+            }
+        } catch (IOException | RuntimeException e) {
+            problem(user, e.toString(), damaged);
+        }
+        if (damaged[0]) {
+            corrupt.increment();
+        }
+        users.increment();
+        long quantity = 0;
+        long cost = 0;
+        if (risk != null) {
+            keep(user, holdings);
+        }
+        for (Map.Entry<String, Holding> entry : holdings.entrySet()) {
+            Holding holding = entry.getValue();
+            SymbolTotals totals = local.symbols.computeIfAbsent(entry.getKey(), SymbolTotals::new);
+            totals.holders++;
+            totals.quantity += holding.quantity;
+            totals.cost += holding.cost;
+            quantity += holding.quantity;
+            cost += holding.cost;
+        }
+        if (userReport != null) {
+            String line = user + "," + holdings.size() + "," + quantity + "," + String.format(Locale.ROOT, "%.2f", MatchingEngine.toPrice(cost)) + "\n";
+            synchronized (userReport) {
+                try {
+                    userReport.write(line);
+                } catch (IOException e) {
+                    System.out.println("Error writing user report: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void keep(String user, Map<String, Holding> holdings) {
+        String[] symbols = new String[holdings.size()];
+        long[] quantities = new long[symbols.length];
+        double[] costs = new double[symbols.length];
+        int i = 0;
+        for (Map.Entry<String, Holding> entry : holdings.entrySet()) {
+            symbols[i] = entry.getKey();
+            quantities[i] = entry.getValue().quantity;
+            costs[i] = MatchingEngine.toPrice(entry.getValue().cost);
+            i++;
+        }
+        books.add(new RiskEngine.Holdings(user, symbols, quantities, costs));
+    }
+
+    private void assessRisk(Set<String> universe, String reportPrefix) throws IOException {
+        RiskEngine.PriceSource source;
+        TickHistory history = null;
+        if (risk.equals("synthetic")) {
+            source = new RiskEngine.SyntheticPrices(42, RiskEngine.DAYS + 1);
+        } else if (risk.equals("history")) {
+            history = new TickHistory(Paths.get(System.getProperty("tick.history", "tick_history")));
+            source = new RiskEngine.HistoryPrices(history);
+        } else {
+            System.out.println("Unknown eod.risk " + risk + "; expected history or synthetic");
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long start = System.nanoTime();
+            RiskEngine engine = new RiskEngine(universe, source, RiskEngine.DAYS, RiskEngine.SCENARIOS, RiskEngine.CONFIDENCE, 42, pool);
+            long built = System.nanoTime();
+            RiskEngine.Report[] reports = engine.assessAll(new ArrayList<>(books));
+            long end = System.nanoTime();
+            System.out.printf("%nrisk: %d of %d symbols with %d days of returns, engine built in %.1f ms, %,d portfolios assessed in %.1f ms%n",
+                    engine.getCoveredSymbols(), engine.getUniverseSize(), engine.getObservations(), (built - start) / 1e6, reports.length, (end - built) / 1e6);
+            RiskEngine.summarize(reports, TOP_SYMBOLS);
+            if (reportPrefix != null) {
+                try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(reportPrefix + "-risk.csv"), StandardCharsets.UTF_8)) {
+                    writer.write("user,value,uncovered,volatility,historicalVar,monteCarloVar,beta");
+                    writer.newLine();
+                    for (RiskEngine.Report report : reports) {
+                        writer.write(report.toCsv());
+                        writer.newLine();
+                    }
+                }
+                System.out.println("Risk report written to " + reportPrefix + "-risk.csv");
+            }
+        } finally {
+            pool.shutdown();
+            if (history != null) {
+                history.close();
+            }
+        }
+    }
+
+    // Snapshots with trades journalled since need exact lot accounting for
+    // their sells, so they go through Position. With no snapshot the whole
+    // journal is replayed. Returns false if the journal had a damaged tail.
+    private boolean readWithJournal(Path file, Path journalFile, Map<String, Holding> holdings, Consumer<String> problems) throws IOException {
+        Map<String, Position> positions = new HashMap<>();
+        long snapshotSeq = file == null ? 0 : PortfolioFiles.read(file, (symbol, name, priceTicks, quantity, timestamp) -> {
+            positions.computeIfAbsent(symbol, s -> new Position(symbol, name)).buy(priceTicks, quantity, timestamp);
+            lots.increment();
+        }, problems);
+        boolean intact = new TradeJournal(journalFile.toString()).replay(snapshotSeq, record -> {
+            try {
+                if (record[0].equals("B") && record.length >= 5) {
+                    positions.computeIfAbsent(record[1], s -> new Position(record[1], record[2]))
+                            .buy(MatchingEngine.toTicks(Double.parseDouble(record[3])), Integer.parseInt(record[4]), record.length == 6 ? Long.parseLong(record[5]) : 0);
+                } else if (record[0].equals("S") && record.length >= 3) {
+                    Position position = positions.get(record[1]);
+                    int quantity = Integer.parseInt(record[2]);
+                    if (position == null || quantity > position.getQuantity()) {
+                        problems.accept("journal sells more " + record[1] + " than held");
+                        return;
+                    }
+                    position.sell(quantity, record.length == 4 && record[3].equals("L") ? Position.LotMethod.LIFO : Position.LotMethod.FIFO);
+                }
+            } catch (NumberFormatException e) {
+                problems.accept("bad journal record " + String.join(";", record));
+            }
+        });
+        if (!intact) {
+            problems.accept("damaged journal tail");
+        }
+        for (Position position : positions.values()) {
+            if (!position.isEmpty()) {
+                Holding holding = holdings.computeIfAbsent(position.getSymbol(), s -> new Holding());
+                holding.quantity += position.getQuantity();
+                holding.cost += position.getCostTicks();
+            }
+        }
+        return intact;
+    }
+
+    private void problem(String user, String problem, boolean[] damaged) {
+        if (!damaged[0] && problems.size() < MAX_PROBLEMS_LISTED) {
+            problems.add(user + ": " + problem);
+        }
+        damaged[0] = true;
+    }
+
+    // Writes that many text snapshots with random lots over 500 symbols.
+    private static void generate(Path directory, int userCount, int lotsPerUser) throws IOException {
+        Files.createDirectories(directory);
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for (int u = 0; u < userCount; u++) {
+            try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve("user" + u + PortfolioFiles.TEXT_EXTENSION), StandardCharsets.UTF_8)) {
+                writer.write("#seq=0");
+                writer.newLine();
+                for (int l = 0; l < lotsPerUser; l++) {
+                    int symbol = random.nextInt(500);
+                    writer.write("SYM" + symbol + ";Company " + symbol + ";" + (10 + random.nextInt(100_000) / 100.0) + ";" + (1 + random.nextInt(100)));
+                    writer.newLine();
+                }
+            }
+        }
+        System.out.printf("Generated %,d portfolios in %.1f s%n", userCount, (System.nanoTime() - start) / 1e9);
+    }
+}
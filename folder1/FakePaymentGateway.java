@@ -0,0 +1,45 @@
+import java.util.List;
+import java.util.Random;
+
+// In-process stand-in for a card/UPI gateway: each call costs one simulated
+// round trip and declines each payment with the given probability.
+class FakePaymentGateway implements PaymentSettlement.Gateway {
+    private final long latencyMillis;
+    private final double failureRate;
+    private final Random random;
+
+    public FakePaymentGateway(long latencyMillis, double failureRate, long seed) {
+        this.latencyMillis = latencyMillis;
+        this.failureRate = failureRate;
+        this.random = new Random(seed);
+    }
+
+    public boolean[] authorize(List<PaymentSettlement.Payment> batch) {
+        roundTrip();
+        boolean[] authorized = new boolean[batch.size()];
+        for (int i = 0; i < authorized.length; i++) {
+            authorized[i] = batch.get(i).amount > 0 && random.nextDouble() >= failureRate;
+        }
+        return authorized;
+    }
+
+    // Refunds of a positive amount always go through.
+    public boolean[] refund(List<PaymentSettlement.Payment> batch) {
+        roundTrip();
+        boolean[] refunded = new boolean[batch.size()];
+        for (int i = 0; i < refunded.length; i++) {
+            refunded[i] = batch.get(i).amount > 0;
+        }
+        return refunded;
+    }
+
+    private void roundTrip() {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Every listing the market offers, shared by all sessions and kept on disk as
+// a binary snapshot plus a TradeJournal of the listings added or changed
+// since. Startup maps the snapshot and replays the journal; once the journal
+// has COMPACTION_THRESHOLD records, or on close(), they are folded into a new
+// snapshot the same way portfolios are.
+//
+// Snapshot layout, little-endian: a 24-byte header (magic "ICT1", version,
+// journal sequence number, listing count, unused), then per listing the
+// symbol and name as an unsigned 16-bit length and UTF-8 bytes, the price in
+// ticks and the listed quantity. Journal records are "L;SYM;Name;price;qty".
+class InstrumentCatalog {
+    static final String SNAPSHOT_EXTENSION = ".dat";
+    static final String JOURNAL_EXTENSION = ".journal";
+
+    // "ICT1" as little-endian bytes.
+    private static final int MAGIC = 0x31544349;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int COMPACTION_THRESHOLD = 1000;
+    // Longest symbol or name, in UTF-8 bytes, that its length prefix can hold.
+    static final int MAX_FIELD_BYTES = 0xFFFF;
+
+    private final Path snapshot;
+    private final TradeJournal journal;
+    private final ConcurrentHashMap<String, Stock> listings;
+    private final Map<String, Stock> view;
+
+    // Opens the catalog stored at prefix + ".dat" / ".journal".
+    public InstrumentCatalog(String prefix) {
+        this.snapshot = Paths.get(prefix + SNAPSHOT_EXTENSION);
+        this.journal = new TradeJournal(prefix + JOURNAL_EXTENSION);
+        this.listings = new ConcurrentHashMap<>(Math.max(16, snapshotCount() * 4 / 3 + 1));
+        this.view = Collections.unmodifiableMap(listings);
+        load();
+    }
+
+    private void load() {
+        long snapshotSeq = 0;
+        if (Files.exists(snapshot)) {
+            try {
+                snapshotSeq = readSnapshot();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Error loading instrument catalog: " + e);
+            }
+        }
+        if (!journal.replay(snapshotSeq, this::applyJournalRecord)) {
+            System.out.println("Skipped damaged records in the instrument journal.");
+        }
+    }
+
+    // Listing count from the snapshot header, to size the map; 0 if unreadable.
+    private int snapshotCount() {
+        if (!Files.exists(snapshot)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            return header.getInt(0) == MAGIC ? Math.max(0, header.getInt(16)) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private long readSnapshot() throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.limit() < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                throw new IOException("Not a version " + VERSION + " instrument catalog: " + snapshot);
+            }
+            long snapshotSeq = map.getLong(8);
+            int count = map.getInt(16);
+            map.position(HEADER_SIZE);
+            byte[] scratch = new byte[1 << 16];
+            for (int i = 0; i < count; i++) {
+                String symbol = getString(map, scratch);
+                String name = getString(map, scratch);
+                long priceTicks = map.getLong();
+                int quantity = map.getInt();
+                listings.put(symbol, new Stock(symbol, name, MatchingEngine.toPrice(priceTicks), quantity));
+            }
+            return snapshotSeq;
+        }
+    }
+
+    private void applyJournalRecord(String[] record) {
+        if (record.length != 5 || !record[0].equals("L")) {
+            System.out.println("Unknown instrument journal record: " + String.join(";", record) + ". Skipping.");
+            return;
+        }
+        try {
+            listings.put(record[1], new Stock(record[1], record[2], Double.parseDouble(record[3]), Integer.parseInt(record[4])));
+        } catch (NumberFormatException e) {
+            System.out.println("Error parsing instrument journal record: " + String.join(";", record) + ". Skipping.");
+        }
+    }
+
+    public boolean isEmpty() {
+        return listings.isEmpty();
+    }
+
+    public int size() {
+        return listings.size();
+    }
+
+    public Stock get(String symbol) {
+        return listings.get(symbol);
+    }
+
+    // Read-only live view; changes go through put().
+    public Map<String, Stock> getListings() {
+        return view;
+    }
+
+    // Adds or replaces a listing and makes it durable before it is visible.
+    // Returns false if it could not be written.
+    public synchronized boolean put(Stock listing) {
+        return put(Collections.singletonList(listing));
+    }
+
+    // Several listings with one journal force between them.
+    public synchronized boolean put(Collection<Stock> added) {
+        for (Stock listing : added) {
+            if (!isValid(listing.getSymbol()) || !isValid(listing.getName()) || listing.getSymbol().contains(" ")) {
+                System.out.println("Invalid listing " + listing.getSymbol() + ": symbols and names cannot contain ';' or line breaks.");
+                return false;
+            }
+            if (utf8Length(listing.getSymbol()) > MAX_FIELD_BYTES || utf8Length(listing.getName()) > MAX_FIELD_BYTES) {
+                System.out.println("Invalid listing " + listing.getSymbol() + ": symbols and names are limited to " + MAX_FIELD_BYTES + " bytes.");
+                return false;
+            }
+        }
+        try {
+            for (Stock listing : added) {
+                journal.appendDeferred("L;" + listing.getSymbol() + ";" + listing.getName() + ";"
+                        + MatchingEngine.toPrice(MatchingEngine.toTicks(listing.getPrice())) + ";" + listing.getQuantity());
+            }
+            journal.sync();
+        } catch (IOException e) {
+            System.out.println("Error writing instrument journal: " + e.getMessage());
+            return false;
+        }
+        for (Stock listing : added) {
+            listings.put(listing.getSymbol(), listing);
+        }
+        if (journal.getRecordsSinceSnapshot() >= COMPACTION_THRESHOLD) {
+            saveSnapshot();
+        }
+        return true;
+    }
+
+    private static int utf8Length(String value) {
+        return value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static boolean isValid(String value) {
+        return !value.isEmpty() && value.indexOf(';') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0;
+    }
+
+    // Writes a full snapshot next to the live one and swaps it in.
+    private void saveSnapshot() {
+        Path temp = Paths.get(snapshot + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, journal.getLastSeq(), listings.values());
+            channel.force(true);
+        } catch (IOException e) {
+            System.out.println("Error saving instrument catalog: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journal.reset();
+        } catch (IOException e) {
+            System.out.println("Error saving instrument catalog: " + e.getMessage());
+        }
+    }
+
+    public synchronized void close() {
+        if (journal.getRecordsSinceSnapshot() > 0) {
+            saveSnapshot();
+        }
+        journal.close();
+    }
+
+    static void write(FileChannel channel, long snapshotSeq, Collection<Stock> listings) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(snapshotSeq).putInt(listings.size()).putInt(0);
+        for (Stock listing : listings) {
+            byte[] symbol = listing.getSymbol().getBytes(StandardCharsets.UTF_8);
+            byte[] name = listing.getName().getBytes(StandardCharsets.UTF_8);
+            if (symbol.length > MAX_FIELD_BYTES || name.length > MAX_FIELD_BYTES) {
+                throw new IOException("Listing " + listing.getSymbol() + " has a symbol or name over " + MAX_FIELD_BYTES + " bytes");
+            }
+            int size = 16 + symbol.length + name.length;
+            if (buffer.remaining() < size) {
+                drain(channel, buffer);
+                if (buffer.capacity() < size) {
+                    buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+            buffer.putShort((short) symbol.length).put(symbol).putShort((short) name.length).put(name)
+                    .putLong(MatchingEngine.toTicks(listing.getPrice())).putInt(listing.getQuantity());
+        }
+        drain(channel, buffer);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static String getString(ByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getShort() & 0xFFFF;
+        buffer.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // java InstrumentCatalog generate <prefix> <listings>
+    //   writes a snapshot of that many synthetic listings.
+    // java InstrumentCatalog bench [listings]
+    //   generates a catalog in a temp directory, times opening it, then times
+    //   adding listings through the journal and reopening with them replayed.
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("generate")) {
+            generate(args[1], Integer.parseInt(args[2]));
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("bench")) {
+            bench(args.length > 1 ? Integer.parseInt(args[1]) : 50_000);
+            return;
+        }
+        System.out.println("usage: InstrumentCatalog generate <prefix> <listings> | bench [listings]");
+    }
+
+    private static void generate(String prefix, int count) throws IOException {
+        List<Stock> listings = new ArrayList<>(count);
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            listings.add(new Stock("SYM" + i, "Company " + i + " Holdings Inc.", 1 + random.nextInt(500_000) / 100.0, 10 + random.nextInt(1000)));
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(prefix + SNAPSHOT_EXTENSION),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, 0, listings);
+            channel.force(true);
+        }
+    }
+
+    private static void bench(int count) throws IOException {
+        Path dir = Files.createTempDirectory("instrument-catalog");
+        String prefix = dir.resolve("instruments").toString();
+        generate(prefix, count);
+        for (int pass = 0; pass < 5; pass++) {
+            long start = System.nanoTime();
+            InstrumentCatalog catalog = new InstrumentCatalog(prefix);
+            System.out.printf("pass %d open: %,d listings, %,d bytes in %.1f ms%n", pass + 1, catalog.size(),
+                    Files.size(dir.resolve("instruments" + SNAPSHOT_EXTENSION)), (System.nanoTime() - start) / 1e6);
+            catalog.journal.close();
+        }
+        InstrumentCatalog catalog = new InstrumentCatalog(prefix);
+        int added = COMPACTION_THRESHOLD - 1;
+        long start = System.nanoTime();
+        for (int i = 0; i < added; i++) {
+            catalog.put(new Stock("NEW" + i, "New Listing " + i, 10.5, 100));
+        }
+        System.out.printf("put: %,d listings one at a time in %.1f ms%n", added, (System.nanoTime() - start) / 1e6);
+        catalog.journal.close();
+        start = System.nanoTime();
+        catalog = new InstrumentCatalog(prefix);
+        System.out.printf("open with %,d journal records: %,d listings in %.1f ms%n", added, catalog.size(), (System.nanoTime() - start) / 1e6);
+        start = System.nanoTime();
+        catalog.close();
+        System.out.printf("compact on close: %.1f ms%n", (System.nanoTime() - start) / 1e6);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+}
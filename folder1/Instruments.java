@@ -0,0 +1,64 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Process-wide registry of every instrument the application has seen, from
+// the listings and from portfolio files alike. Each symbol gets a small int id
+// the first time it is registered, and its symbol and name strings are held
+// here once; positions, the order books and the price table all refer to the
+// instrument by that id. The first name registered for a symbol is the one
+// that sticks.
+//
+// Registration is rare and locked; lookups by id read a published array and
+// take no lock.
+class Instruments {
+    // Tables indexed by id grow to this many instruments as they are opened.
+    static final int MAX_INSTRUMENTS = 1 << 24;
+
+    private static final ConcurrentHashMap<String, Integer> IDS = new ConcurrentHashMap<>();
+    private static volatile String[] symbols = new String[64];
+    private static volatile String[] names = new String[64];
+    private static int count;
+
+    private Instruments() {
+    }
+
+    // Returns the symbol's id, assigning the next one if it is new.
+    static int register(String symbol, String name) {
+        Integer id = IDS.get(symbol);
+        if (id != null) {
+            return id;
+        }
+        synchronized (Instruments.class) {
+            id = IDS.get(symbol);
+            if (id != null) {
+                return id;
+            }
+            if (count == symbols.length) {
+                names = Arrays.copyOf(names, count * 2);
+                symbols = Arrays.copyOf(symbols, count * 2);
+            }
+            names[count] = name;
+            symbols[count] = symbol;
+            IDS.put(symbol, count);
+            return count++;
+        }
+    }
+
+    // The symbol's id, or -1 if it was never registered.
+    static int id(String symbol) {
+        Integer id = IDS.get(symbol);
+        return id == null ? -1 : id;
+    }
+
+    static String symbol(int id) {
+        return symbols[id];
+    }
+
+    static String name(int id) {
+        return names[id];
+    }
+
+    static int size() {
+        return IDS.size();
+    }
+}
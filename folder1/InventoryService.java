@@ -0,0 +1,150 @@
+import java.util.Random;
+import java.util.concurrent.*;
+
+// Shares the house still has to sell, per symbol id, shared by every session.
+// Each symbol's available and reserved counts are packed into one long so a
+// reservation is a single CAS, and every symbol sits on its own cache line so
+// buyers of different symbols never contend. Room for more symbols is added
+// a segment at a time as they are listed.
+class InventoryService {
+    private static final int STRIDE = 8;
+    private static final long LOW = 0xFFFFFFFFL;
+
+    // A claim on shares between the funds check and the fill. Whatever is not
+    // committed goes back to the pool when the reservation is released.
+    static class Reservation {
+        final int symbolId;
+        final int quantity;
+        private boolean settled;
+
+        private Reservation(int symbolId, int quantity) {
+            this.symbolId = symbolId;
+            this.quantity = quantity;
+        }
+    }
+
+    private final SegmentedLongArray counts;
+
+    public InventoryService() {
+        this(Instruments.MAX_INSTRUMENTS);
+    }
+
+    // Room for symbol ids below capacity.
+    public InventoryService(int capacity) {
+        this.counts = new SegmentedLongArray(capacity * STRIDE);
+    }
+
+    public int available(int symbolId) {
+        return (int) (counts.get(symbolId * STRIDE) >>> 32);
+    }
+
+    public int reserved(int symbolId) {
+        return (int) (counts.get(symbolId * STRIDE) & LOW);
+    }
+
+    // Adds shares to the pool: a new listing, or shares the house bought back.
+    public void restock(int symbolId, int quantity) {
+        counts.getAndAdd(symbolId * STRIDE, (long) quantity << 32);
+    }
+
+    // Takes up to quantity shares back out of the pool, as when a sale to the
+    // house is undone after they were restocked; returns how many it took.
+    public int withdraw(int symbolId, int quantity) {
+        int index = symbolId * STRIDE;
+        while (true) {
+            long current = counts.get(index);
+            long taken = Math.min(current >>> 32, quantity);
+            if (counts.compareAndSet(index, current, current - (taken << 32))) {
+                return (int) taken;
+            }
+        }
+    }
+
+    // Returns null if fewer than quantity shares are available.
+    public Reservation reserve(int symbolId, int quantity) {
+        int index = symbolId * STRIDE;
+        while (true) {
+            long current = counts.get(index);
+            long available = current >>> 32;
+            if (available < quantity) {
+                return null;
+            }
+            long next = ((available - quantity) << 32) | ((current & LOW) + quantity);
+            if (counts.compareAndSet(index, current, next)) {
+                return new Reservation(symbolId, quantity);
+            }
+        }
+    }
+
+    // Consumes sold shares from the reservation and returns the rest.
+    public void commit(Reservation reservation, int sold) {
+        settle(reservation, Math.min(sold, reservation.quantity));
+    }
+
+    public void release(Reservation reservation) {
+        settle(reservation, 0);
+    }
+
+    private void settle(Reservation reservation, int sold) {
+        synchronized (reservation) {
+            if (reservation.settled) {
+                return;
+            }
+            reservation.settled = true;
+        }
+        int returned = reservation.quantity - sold;
+        // reserved -= quantity, available += returned, in one atomic add.
+        counts.getAndAdd(reservation.symbolId * STRIDE, ((long) returned << 32) - reservation.quantity);
+    }
+
+    // Scaling run: java InventoryService [maxThreads] [symbols] [millisPerRun]
+    // Each thread reserves and commits or releases random symbols; the run is
+    // repeated for 1, 2, 4, ... threads to show how throughput scales.
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int symbols = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int millis = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            InventoryService inventory = new InventoryService(symbols);
+            for (int s = 0; s < symbols; s++) {
+                inventory.restock(s, 1_000_000_000);
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            long[] ops = new long[threads];
+            CountDownLatch start = new CountDownLatch(1);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis) + TimeUnit.MILLISECONDS.toNanos(50);
+            for (int t = 0; t < threads; t++) {
+                final int worker = t;
+                pool.execute(() -> {
+                    Random random = new Random(worker);
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long count = 0;
+                    while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+                        Reservation reservation = inventory.reserve(random.nextInt(symbols), 1 + random.nextInt(10));
+                        if (reservation != null) {
+                            if (random.nextInt(10) == 0) {
+                                inventory.release(reservation);
+                            } else {
+                                inventory.commit(reservation, reservation.quantity);
+                            }
+                        }
+                        count++;
+                    }
+                    ops[worker] = count;
+                });
+            }
+            start.countDown();
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+            long total = 0;
+            for (long o : ops) {
+                total += o;
+            }
+            System.out.printf("%2d threads: %,.0f reservations/s%n", threads, total * 1000.0 / (millis + 50));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// InventoryService's counts under contention: a reservation moves shares
+// from available to reserved and settles exactly once, and eight threads
+// racing on one symbol's counts never hand out a share twice.
+//
+//   java InventoryServiceTest
+class InventoryServiceTest {
+    public static void main(String[] args) {
+        if (!Checks.run("InventoryServiceTest",
+                InventoryServiceTest::reservationSettlesOnce,
+                InventoryServiceTest::racingBuyersNeverOversell,
+                InventoryServiceTest::withdrawalsAndReservationsShareThePool)) {
+            System.exit(1);
+        }
+    }
+
+    // Committing part of a reservation returns the rest; settling it again,
+    // either way, changes nothing.
+    static void reservationSettlesOnce() {
+        InventoryService inventory = new InventoryService(4);
+        inventory.restock(1, 10);
+        InventoryService.Reservation reservation = inventory.reserve(1, 4);
+        Checks.check(reservation != null, "4 of 10 can be reserved");
+        Checks.check(inventory.available(1) == 6 && inventory.reserved(1) == 4, "reserve moves 4 to reserved, got "
+                + inventory.available(1) + "/" + inventory.reserved(1));
+        Checks.check(inventory.reserve(1, 7) == null, "7 more cannot be reserved");
+
+        inventory.commit(reservation, 3);
+        Checks.check(inventory.available(1) == 7 && inventory.reserved(1) == 0, "commit keeps 3 and returns 1, got "
+                + inventory.available(1) + "/" + inventory.reserved(1));
+        inventory.release(reservation);
+        inventory.commit(reservation, 0);
+        Checks.check(inventory.available(1) == 7 && inventory.reserved(1) == 0, "second settle is ignored, got "
+                + inventory.available(1) + "/" + inventory.reserved(1));
+        Checks.check(inventory.available(0) == 0 && inventory.available(2) == 0, "other symbols untouched");
+    }
+
+    // Many threads reserve one share at a time until the pool is empty:
+    // exactly the stock is reserved, however the CASes interleave.
+    static void racingBuyersNeverOversell() throws Exception {
+        int stock = 100_000;
+        InventoryService inventory = new InventoryService(1);
+        inventory.restock(0, stock);
+        AtomicInteger reserved = new AtomicInteger();
+        List<InventoryService.Reservation> held = Collections.synchronizedList(new ArrayList<>());
+        race(8, () -> {
+            InventoryService.Reservation reservation;
+            while ((reservation = inventory.reserve(0, 1)) != null) {
+                reserved.incrementAndGet();
+                held.add(reservation);
+            }
+        });
+        Checks.check(reserved.get() == stock, "every share reserved once, got " + reserved.get());
+        Checks.check(inventory.available(0) == 0 && inventory.reserved(0) == stock, "all stock reserved, got "
+                + inventory.available(0) + "/" + inventory.reserved(0));
+
+        // Every thread settles every reservation; each must count once.
+        race(8, () -> {
+            for (int i = 0; i < held.size(); i++) {
+                InventoryService.Reservation reservation = held.get(i);
+                if (i % 2 == 0) {
+                    inventory.commit(reservation, 1);
+                } else {
+                    inventory.release(reservation);
+                }
+            }
+        });
+        Checks.check(inventory.reserved(0) == 0, "nothing left reserved, got " + inventory.reserved(0));
+        Checks.check(inventory.available(0) == stock / 2, "released half is back, got " + inventory.available(0));
+    }
+
+    // Shares taken back by withdraw() are not reserved as well, and withdraw
+    // never takes more than is available.
+    static void withdrawalsAndReservationsShareThePool() throws Exception {
+        int stock = 100_000;
+        InventoryService inventory = new InventoryService(1);
+        inventory.restock(0, stock);
+        AtomicInteger reserved = new AtomicInteger();
+        AtomicInteger withdrawn = new AtomicInteger();
+        race(8, () -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (inventory.available(0) > 0) {
+                if (random.nextBoolean()) {
+                    if (inventory.reserve(0, 3) != null) {
+                        reserved.addAndGet(3);
+                    }
+                } else {
+                    withdrawn.addAndGet(inventory.withdraw(0, 5));
+                }
+            }
+        });
+        Checks.check(inventory.available(0) == 0, "pool emptied, got " + inventory.available(0));
+        Checks.check(inventory.reserved(0) == reserved.get(), "reserved count matches, got " + inventory.reserved(0) + " vs " + reserved.get());
+        Checks.check(reserved.get() + withdrawn.get() == stock, "every share went one way, got "
+                + reserved.get() + " reserved + " + withdrawn.get() + " withdrawn");
+    }
+
+    // Runs body on that many threads, started together, and waits for all.
+    private static void race(int threads, Runnable body) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> done = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            done.add(pool.submit(() -> {
+                start.await();
+                body.run();
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : done) {
+            future.get();
+        }
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,364 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Headless load generator. Simulated users sign up through Authentication,
+// then loop: sign in, place a handful of orders through TradingSession, and
+// disconnect, with an exponentially distributed think time between steps. The
+// first sign-in checks the password through the SessionManager; later ones
+// resume the session by its token, as a reconnecting client would. Buys pick
+// a symbol from a Zipf distribution, so a few symbols are hot; sells pick one
+// of the user's holdings. A market data feed moves prices throughout.
+//
+//   java LoadGenerator [users] [seconds] [thinkMillis] [buyPercent] [skew] [symbols]
+//
+// Defaults: 200 users for 30 s, 50 ms think time, 60% buys, skew 1.0 over 100
+// symbols. -Dload.threads (default 32) sets the worker count, -Dload.warmup
+// the seconds run before measuring starts (default 5), -Dfeed.rate the price
+// ticks per second (default 100). A skew of 0 makes every symbol equally likely.
+//
+// The run happens in a child JVM whose working directory is a new temp
+// directory, so the credential store, portfolio_files/ and the journals it writes
+// never touch the caller's data. The directory is deleted afterwards unless
+// -Dload.keep=true. The report gives sustained throughput, latency percentiles
+// per step, the bytes written to disk, and the per-layer Metrics breakdown.
+class LoadGenerator {
+    private static final int ORDERS_PER_SESSION = 10;
+    private static final int MAX_ORDER = 10;
+
+    // Histogram of one simulated step, recorded only while measuring.
+    private static class Latency {
+        final String name;
+        private final AtomicLongArray counts = new AtomicLongArray(Metrics.BUCKETS);
+        private final LongAdder errors = new LongAdder();
+
+        Latency(String name) {
+            this.name = name;
+        }
+
+        void add(long nanos, boolean ok) {
+            counts.incrementAndGet(Metrics.bucket(Math.max(0, nanos)));
+            if (!ok) {
+                errors.increment();
+            }
+        }
+
+        Metrics.Snapshot snapshot() {
+            long[] copy = new long[Metrics.BUCKETS];
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = counts.get(i);
+            }
+            return new Metrics.Snapshot(copy, errors.sum());
+        }
+    }
+
+    private static class SimUser {
+        final String name;
+        final String password;
+        String token;
+        SessionManager.Session session;
+        int ordersLeft;
+
+        SimUser(String name, String password) {
+            this.name = name;
+            this.password = password;
+        }
+    }
+
+    private final int users;
+    private final int seconds;
+    private final double thinkMillis;
+    private final int buyPercent;
+    private final double skew;
+    private final int symbols;
+    private final int threads = Integer.getInteger("load.threads", 32);
+    private final int warmup = Integer.getInteger("load.warmup", 5);
+
+    private final Latency signup = new Latency("signup");
+    private final Latency login = new Latency("login");
+    private final Latency resume = new Latency("resume");
+    private final Latency buy = new Latency("buy");
+    private final Latency sell = new Latency("sell");
+    private final Latency logout = new Latency("logout");
+    private final Map<String, LongAdder> outcomes = new ConcurrentSkipListMap<>();
+    private final LongAdder orders = new LongAdder();
+    private final LongAdder sessions = new LongAdder();
+    private final LongAdder filledShares = new LongAdder();
+
+    private double[] cumulative;
+    private String[] symbolNames;
+    private MarketContext market;
+    private SessionManager sessionManager;
+    private ScheduledExecutorService pool;
+    private CountDownLatch stopped;
+    private volatile boolean measuring;
+    private volatile boolean stopping;
+
+    LoadGenerator(String[] args) {
+        this.users = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        this.seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        this.thinkMillis = args.length > 2 ? Double.parseDouble(args[2]) : 50;
+        this.buyPercent = args.length > 3 ? Integer.parseInt(args[3]) : 60;
+        this.skew = args.length > 4 ? Double.parseDouble(args[4]) : 1.0;
+        this.symbols = args.length > 5 ? Integer.parseInt(args[5]) : 100;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (Boolean.getBoolean("load.child")) {
+            new LoadGenerator(args).run();
+            return;
+        }
+        Path dir = Files.createTempDirectory("load");
+        int exit = relaunch(dir, args);
+        if (Boolean.getBoolean("load.keep")) {
+            System.out.println("Working directory kept at " + dir);
+        } else {
+            try (Stream<Path> files = Files.walk(dir)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(file);
+                }
+            }
+        }
+        if (exit != 0) {
+            System.out.println("Error running load: child exited with " + exit);
+        }
+    }
+
+    // Starts this class again in dir with the same JVM options, metrics on,
+    // and the class path made absolute so it still resolves from there.
+    private static int relaunch(Path dir, String[] args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-Dload.child=true");
+        command.add("-Dmetrics.enabled=true");
+        command.add("-cp");
+        List<String> classPath = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(Paths.get(entry).toAbsolutePath().toString());
+        }
+        command.add(String.join(File.pathSeparator, classPath));
+        command.add(LoadGenerator.class.getName());
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).directory(dir.toFile()).inheritIO().start().waitFor();
+    }
+
+    void run() throws Exception {
+        Files.createDirectories(Paths.get("portfolio_files"));
+        listSymbols();
+        Authentication auth = new Authentication();
+        market = new MarketContext(auth);
+        sessionManager = new SessionManager(market);
+        MarketDataFeed feed = new MarketDataFeed(market.getPrices(), 0,
+                Double.parseDouble(System.getProperty("feed.rate", "100")), 0.002, 42);
+
+        List<SimUser> population = new ArrayList<>(users);
+        long start = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            SimUser user = new SimUser("load" + i, "Load#" + i + "pass");
+            long sent = System.nanoTime();
+            boolean ok = auth.addUser(user.name, user.password);
+            signup.add(System.nanoTime() - sent, ok);
+            population.add(user);
+        }
+        System.out.printf("signed up %,d users in %.1f ms%n", users, (System.nanoTime() - start) / 1e6);
+
+        feed.start();
+        pool = Executors.newScheduledThreadPool(threads);
+        stopped = new CountDownLatch(users);
+        for (SimUser user : population) {
+            pool.schedule(() -> step(user), think(), TimeUnit.MICROSECONDS);
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+
+        long[] ioBefore = readProcIo();
+        long ordersBefore = orders.sum();
+        long sessionsBefore = sessions.sum();
+        measuring = true;
+        long measureStart = System.nanoTime();
+        for (int s = 1; s <= seconds; s++) {
+            long previous = orders.sum();
+            Thread.sleep(1000);
+            if (s % 5 == 0 || s == seconds) {
+                System.out.printf("%4d s %,10d orders/s%n", s, orders.sum() - previous);
+            }
+        }
+        measuring = false;
+        long measured = System.nanoTime() - measureStart;
+        long[] ioAfter = readProcIo();
+        long ordersDone = orders.sum() - ordersBefore;
+        long sessionsDone = sessions.sum() - sessionsBefore;
+
+        stopping = true;
+        stopped.await(30, TimeUnit.SECONDS);
+        pool.shutdown();
+        feed.stop();
+        sessionManager.close();
+        market.close();
+
+        report(measured, ordersDone, sessionsDone, ioBefore, ioAfter);
+    }
+
+    // Writes a catalog of synthetic listings deep enough that the house never sells out.
+    private void listSymbols() {
+        InstrumentCatalog catalog = new InstrumentCatalog(System.getProperty("instrument.catalog", "instruments"));
+        List<Stock> listings = new ArrayList<>(symbols);
+        Random random = new Random(42);
+        symbolNames = new String[symbols];
+        cumulative = new double[symbols];
+        double total = 0;
+        for (int i = 0; i < symbols; i++) {
+            symbolNames[i] = "LOAD" + i;
+            listings.add(new Stock(symbolNames[i], "Load Test " + i, 5 + random.nextInt(19_500) / 100.0, 1_000_000));
+            total += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < symbols; i++) {
+            cumulative[i] /= total;
+        }
+        catalog.put(listings);
+        catalog.close();
+    }
+
+    private String pickSymbol(ThreadLocalRandom random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return symbolNames[Math.min(index < 0 ? -index - 1 : index, symbols - 1)];
+    }
+
+    private long think() {
+        return (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * thinkMillis * 1000);
+    }
+
+    // One step of a user's loop; schedules the next one after a think time.
+    private void step(SimUser user) {
+        try {
+            if (stopping) {
+                if (user.session != null) {
+                    signOut(user);
+                }
+                stopped.countDown();
+                return;
+            }
+            if (user.session == null) {
+                signIn(user);
+            } else if (user.ordersLeft == 0) {
+                signOut(user);
+            } else {
+                trade(user);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Error in load step for " + user.name + ": " + e);
+        }
+        pool.schedule(() -> step(user), think(), TimeUnit.MICROSECONDS);
+    }
+
+    private void signIn(SimUser user) {
+        long start = System.nanoTime();
+        SessionManager.Session session = sessionManager.resume(user.token);
+        boolean resumed = session != null;
+        if (!resumed) {
+            session = sessionManager.signIn(user.name, user.password);
+        }
+        if (session != null) {
+            user.session = session;
+            user.token = session.token;
+            user.ordersLeft = 1 + ThreadLocalRandom.current().nextInt(2 * ORDERS_PER_SESSION);
+        }
+        record(resumed ? resume : login, System.nanoTime() - start, session != null);
+    }
+
+    private void signOut(SimUser user) {
+        long start = System.nanoTime();
+        sessionManager.done(user.session);
+        user.session = null;
+        record(logout, System.nanoTime() - start, true);
+        if (measuring) {
+            sessions.increment();
+        }
+    }
+
+    private void trade(SimUser user) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        user.ordersLeft--;
+        TradingSession session = user.session.getTrading();
+        List<Position> held = session.getPositions(null);
+        boolean buying = held.isEmpty() || random.nextInt(100) < buyPercent;
+        long start = System.nanoTime();
+        TradingSession.TradeResult result;
+        if (buying) {
+            result = session.buy(pickSymbol(random), 1 + random.nextInt(MAX_ORDER));
+        } else {
+            Position position = held.get(random.nextInt(held.size()));
+            result = session.sell(position.getSymbol(), 1 + random.nextInt(Math.min(position.getQuantity(), MAX_ORDER)));
+        }
+        record(buying ? buy : sell, System.nanoTime() - start, result.isFilled());
+        if (measuring) {
+            orders.increment();
+            filledShares.add(result.filled);
+            outcomes.computeIfAbsent((buying ? "BUY " : "SELL ") + result.status, k -> new LongAdder()).increment();
+        }
+    }
+
+    private void record(Latency latency, long nanos, boolean ok) {
+        if (measuring) {
+            latency.add(nanos, ok);
+        }
+    }
+
+    // wchar and write_bytes from /proc/self/io: bytes handed to write() and
+    // bytes that reached the block device. -1 where the file is not available.
+    private static long[] readProcIo() {
+        long[] io = {-1, -1};
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/io"), StandardCharsets.UTF_8)) {
+                if (line.startsWith("wchar:")) {
+                    io[0] = Long.parseLong(line.substring(6).trim());
+                } else if (line.startsWith("write_bytes:")) {
+                    io[1] = Long.parseLong(line.substring(12).trim());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not Linux; the per-layer byte counters still apply.
+        }
+        return io;
+    }
+
+    private void report(long measured, long ordersDone, long sessionsDone, long[] ioBefore, long[] ioAfter) throws IOException {
+        double secondsMeasured = measured / 1e9;
+        System.out.printf("%n== load: %d users, %d workers, %.0f ms think time, %d%% buys, skew %.2f over %d symbols, %d s after %d s warm-up%n",
+                users, threads, thinkMillis, buyPercent, skew, symbols, seconds, warmup);
+        System.out.printf("%-10s %10s %8s %10s %10s %10s %10s%n", "step", "count", "errors", "p50 us", "p99 us", "p99.9 us", "max us");
+        for (Latency latency : Arrays.asList(signup, login, resume, buy, sell, logout)) {
+            Metrics.Snapshot s = latency.snapshot();
+            System.out.printf("%-10s %10d %8d %10.1f %10.1f %10.1f %10.1f%n", latency.name, s.count, s.errors,
+                    s.percentile(0.5) / 1e3, s.percentile(0.99) / 1e3, s.percentile(0.999) / 1e3, s.max() / 1e3);
+        }
+        System.out.println();
+        for (Map.Entry<String, LongAdder> outcome : outcomes.entrySet()) {
+            System.out.printf("%-30s %,10d%n", outcome.getKey(), outcome.getValue().sum());
+        }
+        System.out.printf("%nthroughput: %,.0f orders/s, %,.0f sessions/s, %,d shares filled%n",
+                ordersDone / secondsMeasured, sessionsDone / secondsMeasured, filledShares.sum());
+        if (ioBefore[0] >= 0 && ioAfter[0] >= 0) {
+            System.out.printf("disk: %,d bytes written (%,.0f/s, %,.0f per order), %,d bytes to the device%n",
+                    ioAfter[0] - ioBefore[0], (ioAfter[0] - ioBefore[0]) / secondsMeasured,
+                    (ioAfter[0] - ioBefore[0]) / (double) Math.max(1, ordersDone), ioAfter[1] - ioBefore[1]);
+        }
+        long onDisk = 0;
+        try (Stream<Path> files = Files.walk(Paths.get("."))) {
+            for (Path file : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                onDisk += Files.size(file);
+            }
+        }
+        System.out.printf("on disk after the run: %,d bytes%n%n", onDisk);
+        System.out.print(Metrics.report());
+    }
+}
@@ -1,247 +1,26 @@
-import java.util.regex.*;
-import java.io.*;
 import java.util.*;
-
-class User {
-    private String username;
-    private String password;
-    private Portfolio portfolio;
-
-    public User(String username, String password) {
-        this.username = username;
-        this.password = password;
-        this.portfolio = new Portfolio(username);
-    }
-
-    public String getUsername() {
-        return username;
-    }
-
-    public String getPassword() {
-        return password;
-    }
-
-    public Portfolio getPortfolio() {
-        return portfolio;
-    }
-}
-
-class Authentication {
-    private Map<String, User> users;
-    private static final String CREDENTIALS_FILE = "credentials.txt";
-
-    public Authentication() {
-        this.users = new HashMap<>();
-        loadCredentials();
-    }
-
-    private void loadCredentials() {
-        try (BufferedReader reader = new BufferedReader(new FileReader(CREDENTIALS_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(" ");
-                if (parts.length >= 2) {
-                    addUser(parts[0], parts[1]);
-                } else {
-                    System.out.println("Invalid data format in credentials.txt: " + line + ". Skipping.");
-                }
-            }
-        } catch (IOException e) {
-            System.out.println("Error loading credentials: " + e.getMessage());
-        }
-    }
-
-    private void saveCredentials() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(CREDENTIALS_FILE))) {
-            for (User user : users.values()) {
-                writer.write(user.getUsername() + " " + user.getPassword());
-                writer.newLine();
-            }
-        } catch (IOException e) {
-            System.out.println("Error saving credentials: " + e.getMessage());
-        }
-    }
-
-    public boolean authenticate(String username, String password) {
-        User user = users.get(username);
-        return user != null && user.getPassword().equals(password);
-    }
-
-    public boolean addUser(String username, String password) {
-        if (users.containsKey(username)) {
-            return false;
-        }
-        if (password.isEmpty() || !Pattern.compile("(?=.*[0-9])(?=.*[a-zA-Z])(?=.*[^a-zA-Z0-9\\s]).{8,}").matcher(password).matches()) {
-            System.out.println("\nPassword must contain at least one number, one alphabet character, one special character, and be at least 8 characters long.");
-            return false;
-        }
-        users.put(username, new User(username, password));
-        saveCredentials();
-        return true;
-    }
-
-    public User getUser(String username) {
-        return users.get(username);
-    }
-}
-
-class Portfolio {
-    private String username;
-    private List<Stock> stocks;
-    private static final String PORTFOLIO_DIRECTORY = "portfolio_files/";
-    private static final String PORTFOLIO_FILE_EXTENSION = ".txt";
-
-    public Portfolio(String username) {
-        this.username = username;
-        this.stocks = new ArrayList<>();
-        loadPortfolio();
-    }
-
-    private String getPortfolioFilePath() {
-        return PORTFOLIO_DIRECTORY + username + PORTFOLIO_FILE_EXTENSION;
-    }
-
-    private void loadPortfolio() {
-        String filePath = getPortfolioFilePath();
-        try {
-            File file = new File(filePath);
-            File parentDir = file.getParentFile();
-            if (!parentDir.exists()) {
-                parentDir.mkdirs(); 
-            }
-            if (!file.exists()) {
-                file.createNewFile();
-                return;
-            }
-            try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-                String line;
-                int lineCount = 0;
-                while ((line = reader.readLine()) != null) {
-                    lineCount++;
-                    String[] parts = line.split(";");
-                    if (parts.length != 4) {
-                        System.out.println("Invalid data format in portfolio file at line " + lineCount + ": " + line + ". Skipping.");
-                        continue;
-                    }
-                    try {
-                        String symbol = parts[0];
-                        String name = parts[1];
-                        double price = Double.parseDouble(parts[2]);
-                        int quantity = Integer.parseInt(parts[3]);
-                        stocks.add(new Stock(symbol, name, price, quantity));
-                    } catch (NumberFormatException e) {
-                        System.out.println("Error parsing data in portfolio file at line " + lineCount + ": " + line + ". Skipping.");
-                    }
-                }
-            } catch (IOException e) {
-                System.out.println("Error loading portfolio: " + e.getMessage());
-            }
-        } catch (IOException e) {
-            System.out.println("Error creating portfolio file: " + e.getMessage());
-        }
-    }
-
-    private void savePortfolio() {
-        String filePath = getPortfolioFilePath();
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath))) {
-            for (Stock stock : stocks) {
-                writer.write(stock.getSymbol() + ";" + stock.getName() + ";" + stock.getPrice() + ";" + stock.getQuantity());
-                writer.newLine();
-            }
-        } catch (IOException e) {
-            System.out.println("Error saving portfolio: " + e.getMessage());
-        }
-    }
-
-    public void addStock(Stock stock) {
-        this.stocks.add(stock);
-        savePortfolio();
-    }
-
-    public boolean removeStock(String symbol, int quantityToRemove) {
-        for (Stock stock : stocks) {
-            if (stock.getSymbol().equals(symbol)) {
-                if (quantityToRemove < stock.getQuantity()) {
-                    stock.setQuantity(stock.getQuantity() - quantityToRemove);
-                    savePortfolio();
-                    return true;
-                } else if (quantityToRemove == stock.getQuantity()) {
-                    stocks.remove(stock);
-                    savePortfolio();
-                    return true;
-                } else {
-                    System.out.println("Cannot remove more quantity than available.");
-                    return false;
-                }
-            }
-        }
-        return false;
-    }
-    
-
-    public List<Stock> getStocks() {
-        return stocks;
-    }
-
-    public double getTotalValue() {
-        double totalValue = 10000;
-        for (Stock stock : stocks) {
-            totalValue += stock.getValue();
-        }
-        return totalValue;
-    }
-
-    public Stock getMostProfitableStock() {
-        Stock mostProfitable = null;
-        double maxProfit = Double.MIN_VALUE;
-        for (Stock stock : stocks) {
-            double profit = stock.getValue();
-            if (profit > maxProfit) {
-                maxProfit = profit;
-                mostProfitable = stock;
-            }
-        }
-        return mostProfitable;
-    }
-
-    public void sortBySymbol() {
-        stocks.sort(Comparator.comparing(Stock::getSymbol));
-    }
-
-    public void sortByPrice() {
-        stocks.sort(Comparator.comparing(Stock::getPrice));
-    }
-
-    public void sortByQuantity() {
-        stocks.sort(Comparator.comparing(Stock::getQuantity));
-    }
-
-    public void displayPortfolio() {
-        if (stocks.isEmpty()) {
-            System.out.println("Portfolio is empty.");
-        } else {
-            System.out.println("\n\nPortfolio:");
-            System.out.printf("%-10s %-20s %-10s %-10s %-10s%n", "Symbol", "Name", "Price", "Quantity", "Value");
-            for (Stock stock : stocks) {
-                System.out.printf("%-10s %-20s %-10.2f %-10d %-10.2f%n",
-                        stock.getSymbol(), stock.getName(), stock.getPrice(), stock.getQuantity(), stock.getValue());
-            }
-            System.out.println("\nTotal Portfolio Value: $" + getTotalValue());
-        }
-    }
-}
+import java.util.concurrent.*;
 
 class PaymentSystem1 {
-    Scanner sc = new Scanner(System.in);
+    private final Scanner sc;
+    private final PaymentSettlement settlement;
+    private final String payer;
 
-    public PaymentSystem1(int i) {
+    // Card and UPI details are read from the session's own scanner, then the
+    // payment is handed to the settlement queue; the caller gets a future.
+    public PaymentSystem1(Scanner sc, PaymentSettlement settlement, String payer) {
+        this.sc = sc;
+        this.settlement = settlement;
+        this.payer = payer;
     }
 
-    void CashPayment(double amount) {
-        System.out.println("\nPaid " + amount + " INR by cash.");
+    // Cash comes out of the user's ledger balance when the order fills, so there is nothing to authorize.
+    CompletableFuture<Boolean> CashPayment(double amount) {
+        System.out.println("\nPaying " + amount + " INR from your cash balance.");
+        return CompletableFuture.completedFuture(true);
     }
 
-    void Credit(double totalPrice) {
+    CompletableFuture<Boolean> Credit(double totalPrice) {
         boolean flag = true;
         while (flag) {
             System.out.print("\nEnter Card Number : ");
@@ -265,7 +44,6 @@ class PaymentSystem1 {
             String cvv = sc.next();
             if (cvv.length() == 3) {
                 flag1 = false;
-                System.out.println("Paid " + totalPrice + " INR by Credit card.");
             } else {
                 System.out.println("Enter correct CVV!!");
                 temp++;
@@ -276,9 +54,13 @@ class PaymentSystem1 {
                 }
             }
         }
+        if (temp == 3) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return settle("Credit card", totalPrice);
     }
 
-    void Debit(double totalPrice) {
+    CompletableFuture<Boolean> Debit(double totalPrice) {
         boolean flag = true;
         while (flag) {
             System.out.print("\nEnter Card Number : ");
@@ -302,7 +84,6 @@ class PaymentSystem1 {
             String cvv = sc.next();
             if (cvv.length() == 3) {
                 flag1 = false;
-                System.out.println("Paid " + totalPrice + " INR by Debit card.");
             } else {
                 System.out.println("Enter correct CVV!!");
                 temp++;
@@ -313,52 +94,26 @@ class PaymentSystem1 {
                 }
             }
         }
+        if (temp == 3) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return settle("Debit card", totalPrice);
     }
 
-    void UPI(double totalPrice) {
+    CompletableFuture<Boolean> UPI(double totalPrice) {
         System.out.print("\nEnter UPI Id: ");
         sc.next();
         System.out.print("Enter UPI pin: ");
         sc.nextInt();
-        System.out.println("Paid " + totalPrice + " INR by UPI.");
-    }
-}
-
-class Stock {
-    private String symbol;
-    private String name;
-    private double price;
-    private int quantity;
-
-    public Stock(String symbol, String name, double price, int quantity) {
-        this.symbol = symbol;
-        this.name = name;
-        this.price = price;
-        this.quantity = quantity;
-    }
-
-    public String getSymbol() {
-        return symbol;
-    }
-
-    public String getName() {
-        return name;
+        return settle("UPI", totalPrice);
     }
 
-    public double getPrice() {
-        return price;
-    }
-
-    public int getQuantity() {
-        return quantity;
-    }
-
-    public void setQuantity(int quantity) {
-        this.quantity = quantity;
-    }
-
-    public double getValue() {
-        return price * quantity;
+    private CompletableFuture<Boolean> settle(String method, double amount) {
+        System.out.println("Authorizing " + amount + " INR by " + method + "...");
+        return settlement.submit(new PaymentSettlement.Payment(payer, method, amount)).thenApply(paid -> {
+            System.out.println(paid ? "Paid " + amount + " INR by " + method + "." : "\nPayment declined!!");
+            return paid;
+        });
     }
 }
 
@@ -368,28 +123,21 @@ class StockMarket {
     public Map<String, Stock> availableStocks;
     private PaymentSystem1 paymentSystem;
     public Authentication auth;
+    private MarketContext market;
+    private TradingSession session;
 
-    public StockMarket(Scanner scanner, User user) {
-        this.portfolio = user.getPortfolio();
+    public StockMarket(Scanner scanner, TradingSession session) {
+        this.portfolio = session.getPortfolio();
         this.scanner = scanner;
-        this.availableStocks = new HashMap<>();
-        initializeAvailableStocks();
-        this.paymentSystem = new PaymentSystem1(0);
-        this.auth = new Authentication();
-    }
-
-    private void initializeAvailableStocks() {
-        availableStocks.put("AAPL", new Stock("AAPL", "Apple Inc.", 135.00, 100));
-        availableStocks.put("GOOGL", new Stock("GOOGL", "Alphabet Inc.", 2350.00, 50));
-        availableStocks.put("MSFT", new Stock("MSFT", "Microsoft Corporation", 300.00, 75));
-        availableStocks.put("AMZN", new Stock("AMZN", "Amazon.com Inc.", 3300.00, 30));
-        availableStocks.put("FB", new Stock("FB", "Meta Platforms Inc.", 330.00, 80));
-        availableStocks.put("TSLA", new Stock("TSLA", "Tesla Inc.", 700.00, 60));
-        availableStocks.put("NFLX", new Stock("NFLX", "Netflix Inc.", 520.00, 45));
-        availableStocks.put("NVDA", new Stock("NVDA", "NVIDIA Corporation", 700.00, 55));
+        this.market = session.getMarket();
+        this.session = session;
+        this.availableStocks = market.getListings();
+        this.paymentSystem = new PaymentSystem1(scanner, market.getPayments(), session.getUser().getUsername());
+        this.auth = market.getAuth();
     }
 
     public void displayMenu() {
+        showNotifications();
         System.out.println("\n\u001B[34m╔══════════════════════════════════════╗");
         System.out.println("║\u001B[38;5;208m              Main Menu               \u001B[34m║");
         System.out.println("╠══════════════════════════════════════╣");
@@ -399,7 +147,8 @@ class StockMarket {
         System.out.println("║\u001B[38;5;208m [4] Display Most Profitable Share    \u001B[34m║");
         System.out.println("║\u001B[38;5;208m [5] Sort Portfolio                   \u001B[34m║");
         System.out.println("║\u001B[38;5;208m [6] Add New Stock                    \u001B[34m║");
-        System.out.println("║\u001B[38;5;208m [7] Sign Out                         \u001B[34m║");
+        System.out.println("║\u001B[38;5;208m [7] Watchlist & Alerts               \u001B[34m║");
+        System.out.println("║\u001B[38;5;208m [8] Sign Out                         \u001B[34m║");
         System.out.println("╚══════════════════════════════════════╝\u001B[0m");
         System.out.print("Enter your choice: ");
     }
@@ -425,6 +174,9 @@ class StockMarket {
                 addNewStock();
                 break;
             case 7:
+                manageAlerts();
+                break;
+            case 8:
                 System.out.println("\nSigning out...");
                 return;
             default:
@@ -432,6 +184,76 @@ class StockMarket {
         }
     }
 
+    // Alerts that fired since the menu was last shown.
+    private void showNotifications() {
+        for (AlertService.Notification notification : market.getAlerts().drain(session.getUser().getUsername())) {
+            System.out.printf(Locale.ROOT, "%n\u001B[33m%s is now %.2f, %s your alert at %.2f.\u001B[0m%n", notification.symbol,
+                    MatchingEngine.toPrice(notification.priceTicks), notification.direction == TriggerIndex.ABOVE ? "above" : "below",
+                    MatchingEngine.toPrice(notification.thresholdTicks));
+        }
+    }
+
+    public void manageAlerts() {
+        AlertService alerts = market.getAlerts();
+        String username = session.getUser().getUsername();
+        System.out.println("\nWatchlist:");
+        List<String> watchlist = alerts.getWatchlist(username);
+        if (watchlist.isEmpty()) {
+            System.out.println("  (empty)");
+        }
+        for (String symbol : watchlist) {
+            Stock listing = availableStocks.get(symbol);
+            System.out.printf("  %-10s %10.2f%n", symbol, market.getPrice(symbol, listing == null ? 0 : listing.getPrice()));
+        }
+        System.out.println("Alerts:");
+        List<AlertService.Alert> standing = alerts.getAlerts(username);
+        if (standing.isEmpty()) {
+            System.out.println("  (none)");
+        }
+        for (AlertService.Alert alert : standing) {
+            System.out.println("  #" + alert.describe());
+        }
+        System.out.println("\n1. Watch a stock");
+        System.out.println("2. Stop watching a stock");
+        System.out.println("3. Set a price alert");
+        System.out.println("4. Cancel an alert");
+        System.out.println("5. Back");
+        System.out.print("Enter your choice: ");
+        int choice = scanner.nextInt();
+        scanner.nextLine();
+        switch (choice) {
+            case 1:
+                System.out.print("Enter symbol: ");
+                String watched = scanner.nextLine().trim();
+                System.out.println(alerts.watch(username, watched) ? "\nWatching " + watched + "." : "\nCannot watch " + watched + ".");
+                break;
+            case 2:
+                System.out.print("Enter symbol: ");
+                String unwatched = scanner.nextLine().trim();
+                System.out.println(alerts.unwatch(username, unwatched) ? "\nStopped watching " + unwatched + "." : "\n" + unwatched + " is not on your watchlist.");
+                break;
+            case 3:
+                System.out.print("Enter symbol: ");
+                String symbol = scanner.nextLine().trim();
+                System.out.print("Notify me when the price crosses: ");
+                long threshold = MatchingEngine.toTicks(scanner.nextDouble());
+                scanner.nextLine();
+                AlertService.Alert alert = alerts.add(username, symbol, alerts.crossing(symbol, threshold), threshold);
+                System.out.println(alert == null ? "\nStock not found." : "\nAlert #" + alert.describe() + " set.");
+                break;
+            case 4:
+                System.out.print("Enter alert number: ");
+                long id = scanner.nextLong();
+                scanner.nextLine();
+                System.out.println(alerts.cancel(username, id) ? "\nAlert cancelled." : "\nNo such alert.");
+                break;
+            case 5:
+                break;
+            default:
+                System.out.println("\nInvalid choice!");
+        }
+    }
+
     public void addNewStock() {
         boolean a = true;
         while (a) {
@@ -443,8 +265,9 @@ class StockMarket {
             double price = scanner.nextDouble();
             System.out.print("Enter quantity: ");
             int quantity = scanner.nextInt();
-            availableStocks.put(symbol, new Stock(symbol, name, price, quantity));
-            System.out.println("\nNew stock added successfully.");
+            if (market.list(new Stock(symbol, name, price, quantity))) {
+                System.out.println("\nNew stock added successfully.");
+            }
             a=false;
         }
     }
@@ -460,19 +283,19 @@ class StockMarket {
         }
         String symbol = parts[0];
         int quantity = Integer.parseInt(parts[1]);
-        Stock stockToBuy = availableStocks.get(symbol);
-        if (stockToBuy == null) {
-            System.out.println("\nStock not found.\n");
-            return;
-        }
-        double totalPrice = stockToBuy.getPrice() * quantity;
-        double availableFunds = portfolio.getTotalValue();
-        if (totalPrice > availableFunds) {
-            System.out.println("\nInsufficient funds to buy.\n");
-            return;
+        TradingSession.BuyOrder order = session.prepareBuy(symbol, quantity);
+        switch (order.status) {
+            case NOT_FOUND:
+            case INVALID:
+                System.out.println("\nStock not found.\n");
+                return;
+            case SOLD_OUT:
+                System.out.println("\nOnly " + market.available(symbol) + " shares of " + symbol + " are available.\n");
+                return;
+            default:
+                break;
         }
-        portfolio.addStock(new Stock(stockToBuy.getSymbol(), stockToBuy.getName(), stockToBuy.getPrice(), quantity));
-        System.out.println("\nBought " + quantity + " shares of " + stockToBuy.getName() + " (" + symbol + ") at $" + stockToBuy.getPrice() + " each.");
+        double totalPrice = order.getTotal();
 
         System.out.println("\nChoose payment method for " + totalPrice + " INR:");
         System.out.println("1. Cash Payment");
@@ -482,21 +305,56 @@ class StockMarket {
         System.out.print("Enter your choice: ");
         int paymentChoice = scanner.nextInt();
         scanner.nextLine();
+        CompletableFuture<Boolean> payment;
+        String method;
         switch (paymentChoice) {
             case 1:
-                paymentSystem.CashPayment(totalPrice);
+                payment = paymentSystem.CashPayment(totalPrice);
+                method = TradingSession.CASH;
                 break;
             case 2:
-                paymentSystem.Credit(totalPrice);
+                payment = paymentSystem.Credit(totalPrice);
+                method = "credit";
                 break;
             case 3:
-                paymentSystem.Debit(totalPrice);
+                payment = paymentSystem.Debit(totalPrice);
+                method = "debit";
                 break;
             case 4:
-                paymentSystem.UPI(totalPrice);
+                payment = paymentSystem.UPI(totalPrice);
+                method = "upi";
                 break;
             default:
                 System.out.println("\nInvalid choice! Payment failed.");
+                payment = CompletableFuture.completedFuture(false);
+                method = TradingSession.CASH;
+        }
+
+        // Payment covered the quote; whatever did not fill at or under it is refunded.
+        TradingSession.TradeResult trade = session.buy(order, method, payment);
+        if (trade.status == TradingSession.TradeResult.Status.PAYMENT_DECLINED) {
+            System.out.println("Your reservation of " + quantity + " shares of " + symbol + " was released.");
+            return;
+        }
+        if (trade.status == TradingSession.TradeResult.Status.INSUFFICIENT_FUNDS) {
+            System.out.printf("%nInsufficient funds to buy: your cash balance is $%.2f.%n", portfolio.getCash());
+            return;
+        }
+        if (trade.status == TradingSession.TradeResult.Status.NOT_RECORDED) {
+            System.out.println("\nThe purchase of " + symbol + " could not be recorded and was undone.");
+        } else if (!trade.isFilled()) {
+            System.out.println("\nThe price of " + symbol + " moved before the order could fill.");
+        } else {
+            System.out.println("\nBought " + trade.filled + " shares of " + trade.name + " (" + symbol + ") at $" + trade.getAveragePrice() + " each.");
+            if (trade.status == TradingSession.TradeResult.Status.PARTIAL) {
+                System.out.println("Only " + trade.filled + " of " + quantity + " shares were on offer.");
+            }
+        }
+        if (trade.refunded > 0) {
+            System.out.printf("Refunded %.2f INR.%n", trade.refunded);
+        }
+        if (trade.owed > 0) {
+            System.out.printf("The refund of %.2f INR could not be made.%n", trade.owed);
         }
     }
 
@@ -511,23 +369,30 @@ class StockMarket {
         }
         String symbol = parts[0];
         int quantity = Integer.parseInt(parts[1]);
-        Stock stockToSell = portfolio.getStocks().stream()
-                .filter(stock -> stock.getSymbol().equals(symbol))
-                .findFirst().orElse(null);
-        if (stockToSell == null) {
-            System.out.println("\nStock not found in portfolio.");
-            return;
-        }
-        if (quantity > stockToSell.getQuantity()) {
-            System.out.println("\nInsufficient quantity to sell.");
-            return;
-        }
-        double totalPrice = stockToSell.getPrice() * quantity;
-        if (portfolio.removeStock(symbol, quantity)) {
-            System.out.println("\nSold " + quantity + " shares of " + stockToSell.getName() + " (" + symbol + ") at $" + stockToSell.getPrice() + " each.");
-            System.out.println("Total amount received: $" + totalPrice);
-        } else {
-            System.out.println("\nFailed to sell shares.");
+        TradingSession.TradeResult trade = session.sell(symbol, quantity);
+        switch (trade.status) {
+            case NOT_HELD:
+            case INVALID:
+                System.out.println("\nStock not found in portfolio.");
+                break;
+            case INSUFFICIENT_QUANTITY:
+                System.out.println("\nInsufficient quantity to sell.");
+                break;
+            case NOT_FOUND:
+                System.out.println("\n" + symbol + " is not listed on the market.");
+                break;
+            case NO_LIQUIDITY:
+                System.out.println("\nFailed to sell shares.");
+                break;
+            case NOT_RECORDED:
+                System.out.println("\nThe sale of " + symbol + " could not be recorded and was undone.");
+                break;
+            default:
+                System.out.println("\nSold " + trade.filled + " shares of " + trade.name + " (" + symbol + ") at $" + trade.getAveragePrice() + " each.");
+                System.out.println("Total amount received: $" + trade.total);
+                if (trade.status == TradingSession.TradeResult.Status.PARTIAL) {
+                    System.out.println("Only " + trade.filled + " of " + quantity + " shares found a buyer.");
+                }
         }
     }
 
@@ -538,10 +403,15 @@ class StockMarket {
 
     private void displayCompanyMenu() {
         System.out.println("\nAvailable Stocks:");
-        System.out.printf("%-10s %-20s %-10s %-10s%n", "Symbol", "Name", "Price", "Quantity");
+        System.out.printf("%-10s %-20s %-10s %-10s %-19s %-10s%n", "Symbol", "Name", "Price", "Change", "Day Range", "Quantity");
+        long now = System.currentTimeMillis();
         for (Stock stock : availableStocks.values()) {
-            System.out.printf("%-10s %-20s %-10.2f %-10d%n",
-                    stock.getSymbol(), stock.getName(), stock.getPrice(), stock.getQuantity());
+            double price = market.getPrice(stock.getSymbol(), stock.getPrice());
+            TickHistory.Candle today = market.getHistory().today(stock.getSymbol(), now);
+            String change = today == null ? "-" : String.format("%+.2f%%", (price - MatchingEngine.toPrice(today.open)) * 100 / MatchingEngine.toPrice(today.open));
+            String range = today == null ? "-" : String.format("%.2f-%.2f", MatchingEngine.toPrice(today.low), MatchingEngine.toPrice(today.high));
+            System.out.printf("%-10s %-20s %-10.2f %-10s %-19s %-10d%n",
+                    stock.getSymbol(), stock.getName(), price, change, range, market.available(stock.getSymbol()));
         }
     }
 
@@ -567,22 +437,23 @@ class StockMarket {
         System.out.print("Enter your choice: ");
         int sortChoice = scanner.nextInt();
         scanner.nextLine();
+        PositionIndex.Key key;
         switch (sortChoice) {
             case 1:
-                portfolio.sortBySymbol();
+                key = PositionIndex.Key.SYMBOL;
                 break;
             case 2:
-                portfolio.sortByPrice();
+                key = PositionIndex.Key.PRICE;
                 break;
             case 3:
-                portfolio.sortByQuantity();
+                key = PositionIndex.Key.QUANTITY;
                 break;
             default:
                 System.out.println("\nInvalid choice!");
                 return;
         }
         System.out.println("\nPortfolio sorted successfully.");
-        displayPortfolio();
+        portfolio.displayPortfolio(key);
     }
 }
 
@@ -592,6 +463,12 @@ public class Main {
         Scanner scanner = new Scanner(System.in);
         System.out.println("\nWelcome to the Stock Market System");
         Authentication auth = new Authentication();
+        MarketContext market = new MarketContext(auth);
+        Metrics.start();
+        MarketDataFeed feed = new MarketDataFeed(market.getPrices(), 0,
+                Double.parseDouble(System.getProperty("feed.rate", "5")), 0.002, System.nanoTime());
+        feed.start();
+        SessionManager sessions = new SessionManager(market);
         boolean isRunning = true;
         while (isRunning) {
             System.out.println("\n\n1. Sign In");
@@ -602,13 +479,17 @@ public class Main {
             scanner.nextLine();
             switch (choice) {
                 case 1:
-                    signIn(scanner, auth);
+                    signIn(scanner, sessions);
                     break;
                 case 2:
                     signUp(scanner, auth);
                     break;
                 case 3:
                     System.out.println("\nExiting...");
+                    feed.stop();
+                    sessions.close();
+                    auth.getUserStore().flushAll();
+                    market.close();
                     scanner.close();
                     isRunning = false;
                     break;
@@ -618,24 +499,35 @@ public class Main {
         }
     }
 
-    public static void signIn(Scanner scanner, Authentication auth) {
+    // Signing out leaves the session warm, so signing back in before it idles
+    // out picks up the same portfolio and StockMarket without reloading them.
+    public static void signIn(Scanner scanner, SessionManager sessions) {
         System.out.print("Enter username: ");
         String username = scanner.nextLine();
         System.out.print("Enter password: ");
         String password = scanner.nextLine();
-        if (auth.authenticate(username, password)) {
+        SessionManager.Session session = sessions.signIn(username, password);
+        if (session != null) {
             System.out.println("Sign in successful!");
-            User user = auth.getUser(username);
-            StockMarket stockMarket = new StockMarket(scanner, user);
+            StockMarket stockMarket = (StockMarket) session.getAttachment();
+            if (stockMarket == null) {
+                stockMarket = new StockMarket(scanner, session.getTrading());
+                session.setAttachment(stockMarket);
+            }
             boolean isLoggedIn = true;
-            while (isLoggedIn) {
-                stockMarket.displayMenu();
-                int choice = scanner.nextInt();
-                scanner.nextLine();
-                stockMarket.processChoice(choice);
-                if (choice == 7) {
-                    isLoggedIn = false;
+            try {
+                while (isLoggedIn) {
+                    stockMarket.displayMenu();
+                    int choice = scanner.nextInt();
+                    scanner.nextLine();
+                    stockMarket.processChoice(choice);
+                    if (choice == 8) {
+                        isLoggedIn = false;
+                    }
                 }
+            } finally {
+                session.getTrading().getPortfolio().flush();
+                sessions.done(session);
             }
         } else {
             System.out.println("\nInvalid username or password. Please try again.");
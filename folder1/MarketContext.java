@@ -0,0 +1,344 @@
+import java.nio.file.Paths;
+import java.util.*;
+
+// State shared by every trading session: the user base, the instrument
+// catalog, the order books and the live prices. A small catalog has every
+// book opened at startup; past EAGER_OPEN_LIMIT listings a book is opened the
+// first time it is traded, so a large catalog costs nothing until it is used.
+// Fills coming out of the books are booked into the portfolios of the users
+// on either side; the house account has no portfolio. A fill arrives with its
+// book locked, so it is only recorded there, and the thread whose order made
+// it books it once submit() has returned: loading a portfolio and writing its
+// journal never hold up other orders in the symbol.
+class MarketContext implements OrderBook.FillListener, PriceTable.TickListener, UserStore.Listener {
+    private static final int EAGER_OPEN_LIMIT = 1024;
+
+    private final Authentication auth;
+    private final MatchingEngine engine;
+    private final PriceTable prices;
+    private final ValuationEngine valuation;
+    private final InventoryService inventory;
+    private final PaymentSettlement payments;
+    private final TickHistory history;
+    private final InstrumentCatalog catalog;
+    private final CashLedger ledger;
+    private final AlertService alerts;
+    private final Object opening = new Object();
+    private final Map<Integer, long[]> houseOrders;
+    private final SegmentedLongArray pendingBuybacks;
+    private final SegmentedLongArray pendingSales;
+    private final ThreadLocal<List<Fill>> unbooked = ThreadLocal.withInitial(ArrayList::new);
+
+    // One user's side of a fill, waiting to be booked into their portfolio.
+    static class Fill {
+        final int symbolId;
+        final int owner;
+        final boolean bought;
+        final long priceTicks;
+        final int quantity;
+
+        Fill(int symbolId, int owner, boolean bought, long priceTicks, int quantity) {
+            this.symbolId = symbolId;
+            this.owner = owner;
+            this.bought = bought;
+            this.priceTicks = priceTicks;
+            this.quantity = quantity;
+        }
+    }
+
+    public MarketContext(Authentication auth) {
+        this.auth = auth;
+        this.engine = new MatchingEngine(this);
+        this.prices = new PriceTable();
+        this.valuation = new ValuationEngine(engine, prices);
+        this.inventory = new InventoryService();
+        this.payments = new PaymentSettlement(new FakePaymentGateway(
+                Long.getLong("payment.latency", 0), Double.parseDouble(System.getProperty("payment.failureRate", "0")), System.nanoTime()));
+        this.history = new TickHistory(Paths.get(System.getProperty("tick.history", "tick_history")));
+        this.catalog = new InstrumentCatalog(System.getProperty("instrument.catalog", "instruments"));
+        this.ledger = new CashLedger(System.getProperty("cash.ledger", "cash_ledger.journal"));
+        this.alerts = new AlertService(engine, prices, catalog.getListings(), System.getProperty("alerts.journal", "alerts.journal"));
+        this.houseOrders = new HashMap<>();
+        this.pendingBuybacks = new SegmentedLongArray(Instruments.MAX_INSTRUMENTS);
+        this.pendingSales = new SegmentedLongArray(Instruments.MAX_INSTRUMENTS);
+        prices.addListener(this);
+        prices.addListener(valuation);
+        prices.addListener(alerts);
+        auth.getUserStore().addListener(valuation);
+        auth.getUserStore().addListener(this);
+        if (catalog.isEmpty()) {
+            listDefaults();
+        }
+        if (catalog.size() <= EAGER_OPEN_LIMIT) {
+            for (String symbol : catalog.getListings().keySet()) {
+                open(symbol);
+            }
+        }
+    }
+
+    // Seeds a catalog that has never been written.
+    private void listDefaults() {
+        catalog.put(Arrays.asList(
+                new Stock("AAPL", "Apple Inc.", 135.00, 100),
+                new Stock("GOOGL", "Alphabet Inc.", 2350.00, 50),
+                new Stock("MSFT", "Microsoft Corporation", 300.00, 75),
+                new Stock("AMZN", "Amazon.com Inc.", 3300.00, 30),
+                new Stock("FB", "Meta Platforms Inc.", 330.00, 80),
+                new Stock("TSLA", "Tesla Inc.", 700.00, 60),
+                new Stock("NFLX", "Netflix Inc.", 520.00, 45),
+                new Stock("NVDA", "NVIDIA Corporation", 700.00, 55)));
+    }
+
+    public Authentication getAuth() {
+        return auth;
+    }
+
+    public MatchingEngine getEngine() {
+        return engine;
+    }
+
+    public PriceTable getPrices() {
+        return prices;
+    }
+
+    public ValuationEngine getValuation() {
+        return valuation;
+    }
+
+    public InventoryService getInventory() {
+        return inventory;
+    }
+
+    public TickHistory getHistory() {
+        return history;
+    }
+
+    public PaymentSettlement getPayments() {
+        return payments;
+    }
+
+    public CashLedger getLedger() {
+        return ledger;
+    }
+
+    public AlertService getAlerts() {
+        return alerts;
+    }
+
+    // Gives every portfolio that is loaded its cash account.
+    public void loaded(User user) {
+        user.getPortfolio().setCashAccount(ledger.cashAccount(user.getUsername()));
+    }
+
+    public void evicted(User user) {
+    }
+
+    public InstrumentCatalog getCatalog() {
+        return catalog;
+    }
+
+    // Every session reads this one live view of the catalog.
+    public Map<String, Stock> getListings() {
+        return catalog.getListings();
+    }
+
+    // Latest price for the symbol, or the fallback if it is not listed.
+    public double getPrice(String symbol, double fallback) {
+        int symbolId = engine.symbolId(symbol);
+        if (symbolId < 0 || prices.getTicks(symbolId) == PriceTable.NO_PRICE) {
+            return fallback;
+        }
+        return prices.getPrice(symbolId);
+    }
+
+    // Folds the catalog journal into its snapshot, and closes the cash ledger,
+    // the alerts, the tick history and the credential store.
+    public void close() {
+        auth.close();
+        alerts.close();
+        catalog.close();
+        ledger.close();
+        history.close();
+    }
+
+    // Shares the house still has on offer, or the listed quantity if the book
+    // has not been opened yet; -1 if the symbol is not listed.
+    public int available(String symbol) {
+        int symbolId = engine.symbolId(symbol);
+        if (symbolId >= 0) {
+            return inventory.available(symbolId);
+        }
+        Stock listing = catalog.get(symbol);
+        return listing == null ? -1 : listing.getQuantity();
+    }
+
+    // Adds the listing to the catalog, or updates it. A book that is already
+    // open keeps trading as it is; the new details apply from the next start.
+    public boolean list(Stock listing) {
+        return catalog.put(listing);
+    }
+
+    // The symbol's id, opening its book from the catalog listing if this is
+    // the first use; -1 if it is not listed. The house then offers the listed
+    // quantity at the listed price and bids for the same quantity one tick
+    // below, so there is always a counterparty to trade with.
+    public int open(String symbol) {
+        int symbolId = engine.symbolId(symbol);
+        if (symbolId >= 0 && prices.getTicks(symbolId) != PriceTable.NO_PRICE) {
+            return symbolId;
+        }
+        Stock listing = catalog.get(symbol);
+        if (listing == null) {
+            return -1;
+        }
+        synchronized (opening) {
+            if (engine.symbolId(symbol) >= 0) {
+                return engine.symbolId(symbol);
+            }
+            int id = Instruments.register(listing.getSymbol(), listing.getName());
+            if (id >= Instruments.MAX_INSTRUMENTS) {
+                System.out.println("Error opening " + symbol + ": more than " + Instruments.MAX_INSTRUMENTS + " instruments.");
+                return -1;
+            }
+            engine.addInstrument(listing.getSymbol(), listing.getName());
+            open(id, listing);
+            return id;
+        }
+    }
+
+    private void open(int symbolId, Stock listing) {
+        long price = MatchingEngine.toTicks(listing.getPrice());
+        OrderBook.Result result = new OrderBook.Result();
+        long[] quotes = new long[2];
+        engine.submit(symbolId, OrderBook.SELL, price, listing.getQuantity(), MatchingEngine.HOUSE, false, result);
+        quotes[0] = result.orderId;
+        engine.submit(symbolId, OrderBook.BUY, price - 1, listing.getQuantity(), MatchingEngine.HOUSE, false, result);
+        quotes[1] = result.orderId;
+        synchronized (houseOrders) {
+            houseOrders.put(symbolId, quotes);
+        }
+        inventory.restock(symbolId, listing.getQuantity());
+        prices.initialize(symbolId, price);
+    }
+
+    // Keeps the house making a market on both sides: shares it has bought on
+    // its bid go back on offer, and shares it has sold off its ask go back on
+    // its bid, so users can keep selling once the listing has traded. Fills
+    // arrive with the book locked, so they are only counted there and settled
+    // here, once the order that caused them has returned.
+    public void settleHouseFills(int symbolId) {
+        int bought = (int) pendingBuybacks.getAndSet(symbolId, 0);
+        int sold = (int) pendingSales.getAndSet(symbolId, 0);
+        if (bought == 0 && sold == 0) {
+            return;
+        }
+        long[] quotes;
+        synchronized (houseOrders) {
+            quotes = houseOrders.get(symbolId);
+        }
+        if (bought > 0) {
+            inventory.restock(symbolId, bought);
+        } else if (bought < 0) {
+            inventory.withdraw(symbolId, -bought);
+        }
+        if (quotes == null) {
+            return;
+        }
+        synchronized (quotes) {
+            OrderBook.Result result = new OrderBook.Result();
+            long ticks = prices.getTicks(symbolId);
+            if (bought != 0) {
+                engine.topUp(symbolId, quotes[0], OrderBook.SELL, ticks, bought, MatchingEngine.HOUSE, result);
+                quotes[0] = result.orderId;
+            }
+            if (sold != 0) {
+                engine.topUp(symbolId, quotes[1], OrderBook.BUY, ticks - 1, sold, MatchingEngine.HOUSE, result);
+                quotes[1] = result.orderId;
+            }
+        }
+        bookFills();
+    }
+
+    // Undoes the house's side of fills that could not be booked for the user,
+    // as if they had never happened: shares a user bought go back on the
+    // house's offer, shares a user sold come off its bid again. Counted like
+    // the fills themselves, so the counts can go below zero when the fills
+    // have already been settled, and settled by the next settleHouseFills().
+    public void reverseFills(int symbolId, boolean userBought, int quantity) {
+        pendingBuybacks.addAndGet(symbolId, userBought ? quantity : -quantity);
+        pendingSales.addAndGet(symbolId, userBought ? -quantity : quantity);
+    }
+
+    // Moves the house quotes with the market, keeping whatever is left of them.
+    public void onTick(int symbolId, long oldTicks, long newTicks) {
+        history.record(engine.symbol(symbolId), System.currentTimeMillis(), newTicks, 0);
+        long[] quotes;
+        synchronized (houseOrders) {
+            quotes = houseOrders.get(symbolId);
+        }
+        if (quotes == null) {
+            return;
+        }
+        // Move the quote on the far side first so the house never crosses itself.
+        int first = newTicks > oldTicks ? 0 : 1;
+        synchronized (quotes) {
+            OrderBook.Result result = new OrderBook.Result();
+            for (int i = 0; i < 2; i++) {
+                int quote = i == 0 ? first : 1 - first;
+                engine.requote(symbolId, quotes[quote], quote == 0 ? newTicks : newTicks - 1, result);
+                quotes[quote] = result.orderId;
+            }
+        }
+        bookFills();
+    }
+
+    public void onFill(int symbolId, int buyOwner, int sellOwner, long priceTicks, int quantity, long makerOrderId) {
+        history.record(engine.symbol(symbolId), System.currentTimeMillis(), priceTicks, quantity);
+        if (buyOwner != MatchingEngine.HOUSE) {
+            unbooked.get().add(new Fill(symbolId, buyOwner, true, priceTicks, quantity));
+        }
+        if (buyOwner == MatchingEngine.HOUSE && sellOwner != MatchingEngine.HOUSE) {
+            pendingBuybacks.addAndGet(symbolId, quantity);
+        }
+        if (sellOwner == MatchingEngine.HOUSE && buyOwner != MatchingEngine.HOUSE) {
+            pendingSales.addAndGet(symbolId, quantity);
+        }
+        if (sellOwner != MatchingEngine.HOUSE) {
+            unbooked.get().add(new Fill(symbolId, sellOwner, false, priceTicks, quantity));
+        }
+    }
+
+    // The user fills made by this thread's orders since it last asked. Every
+    // caller of the engine takes them once it returns.
+    public List<Fill> takeFills() {
+        List<Fill> fills = unbooked.get();
+        if (fills.isEmpty()) {
+            return Collections.emptyList();
+        }
+        unbooked.set(new ArrayList<>());
+        return fills;
+    }
+
+    // Adds the shares bought to the user's portfolio, or takes the shares
+    // sold out of it; false if the user or the journal write failed.
+    public boolean book(Fill fill) {
+        User user = auth.getUser(engine.ownerName(fill.owner));
+        if (user == null) {
+            return false;
+        }
+        String symbol = engine.symbol(fill.symbolId);
+        if (fill.bought) {
+            return user.getPortfolio().addStock(new Stock(symbol, engine.name(fill.symbolId), MatchingEngine.toPrice(fill.priceTicks), fill.quantity));
+        }
+        return user.getPortfolio().removeStock(symbol, fill.quantity);
+    }
+
+    // Books every fill this thread's orders made.
+    public void bookFills() {
+        for (Fill fill : takeFills()) {
+            if (!book(fill)) {
+                System.out.println("Fill of " + fill.quantity + " " + engine.symbol(fill.symbolId) + " could not be booked for " + engine.ownerName(fill.owner) + ".");
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Local stand-in for an exchange feed: moves the prices in a PriceTable by a
+// random walk at a fixed rate from its own daemon thread.
+class MarketDataFeed implements Runnable {
+    private final PriceTable table;
+    private final int symbolCount;
+    private final double ticksPerSecond;
+    private final double volatility;
+    private final Random random;
+    private volatile boolean running;
+    private Thread thread;
+    private volatile long published;
+
+    // symbolCount caps which ids are moved (0 means every priced id); volatility
+    // is the standard deviation of one step as a fraction of the price.
+    public MarketDataFeed(PriceTable table, int symbolCount, double ticksPerSecond, double volatility, long seed) {
+        this.table = table;
+        this.symbolCount = symbolCount;
+        this.ticksPerSecond = ticksPerSecond;
+        this.volatility = volatility;
+        this.random = new Random(seed);
+    }
+
+    public synchronized void start() {
+        if (running || ticksPerSecond <= 0) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "market-data-feed");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    public long getPublished() {
+        return published;
+    }
+
+    public void run() {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / ticksPerSecond);
+        long nextTick = System.nanoTime();
+        while (running) {
+            step();
+            nextTick += interval;
+            long wait = nextTick - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    // Publishes one tick for a random instrument. Returns false if nothing is priced yet.
+    public boolean step() {
+        int count = symbolCount > 0 ? Math.min(symbolCount, table.size()) : table.size();
+        if (count == 0) {
+            return false;
+        }
+        int symbolId = random.nextInt(count);
+        long old = table.getTicks(symbolId);
+        if (old == PriceTable.NO_PRICE) {
+            return false;
+        }
+        long moved = Math.round(old * (1 + volatility * random.nextGaussian()));
+        table.update(symbolId, Math.max(1, moved));
+        published++;
+        return true;
+    }
+
+    // Headless run: java MarketDataFeed [ticksPerSecond] [symbols] [readers] [seconds]
+    // Publishes ticks against a synthetic universe while reader threads poll
+    // the table, and reports tick and read rates.
+    public static void main(String[] args) throws InterruptedException {
+        double rate = args.length > 0 ? Double.parseDouble(args[0]) : 1_000_000;
+        int symbols = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int readers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors() - 1;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        PriceTable table = new PriceTable(symbols);
+        for (int i = 0; i < symbols; i++) {
+            table.initialize(i, 10_000);
+        }
+        MarketDataFeed feed = new MarketDataFeed(table, symbols, rate, 0.001, 42);
+        long[] reads = new long[Math.max(readers, 0)];
+        Thread[] threads = new Thread[reads.length];
+        for (int r = 0; r < threads.length; r++) {
+            final int reader = r;
+            threads[r] = new Thread(() -> {
+                Random random = new Random(reader);
+                long count = 0;
+                long sum = 0;
+                while (!Thread.currentThread().isInterrupted()) {
+                    sum += table.getTicks(random.nextInt(symbols));
+                    count++;
+                }
+                reads[reader] = count + (sum == 42 ? 1 : 0);
+            });
+            threads[r].start();
+        }
+        feed.start();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        feed.stop();
+        long totalReads = 0;
+        for (int r = 0; r < threads.length; r++) {
+            threads[r].interrupt();
+            threads[r].join();
+            totalReads += reads[r];
+        }
+        System.out.printf("%,d ticks/s published, %,d reads/s across %d readers%n",
+                feed.getPublished() / seconds, totalReads / seconds, threads.length);
+    }
+}
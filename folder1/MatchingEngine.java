@@ -0,0 +1,221 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// One OrderBook per listed symbol plus the owner registry the books work with.
+// Symbols use their Instruments id and owners are given small int ids, so the
+// books only ever see primitives. Each book is guarded by its own lock, so
+// orders in different symbols match in parallel. Like Instruments, opening a
+// book or registering an owner is rare and locked; looking either up reads a
+// published array or a concurrent map and takes no lock.
+class MatchingEngine {
+    static final int PRICE_SCALE = 100;
+    static final int HOUSE = 0;
+
+    private final OrderBook.FillListener listener;
+    // Indexed by symbol id; replaced by a copy twice the size when it fills.
+    private volatile AtomicReferenceArray<OrderBook> books;
+    private final ConcurrentHashMap<String, Integer> ownerIds;
+    private volatile String[] owners;
+    private int ownerCount;
+
+    public MatchingEngine(OrderBook.FillListener listener) {
+        this.listener = listener;
+        this.books = new AtomicReferenceArray<>(64);
+        this.ownerIds = new ConcurrentHashMap<>();
+        this.owners = new String[64];
+        owners[HOUSE] = "house";
+        ownerIds.put("house", HOUSE);
+        ownerCount = 1;
+    }
+
+    public static long toTicks(double price) {
+        return Math.round(price * PRICE_SCALE);
+    }
+
+    public static double toPrice(long ticks) {
+        return (double) ticks / PRICE_SCALE;
+    }
+
+    // Opens a book for the symbol under its Instruments id; returns false if
+    // it already had one.
+    public synchronized boolean addInstrument(String symbol, String name) {
+        int id = Instruments.register(symbol, name);
+        AtomicReferenceArray<OrderBook> current = books;
+        if (id >= current.length()) {
+            AtomicReferenceArray<OrderBook> grown = new AtomicReferenceArray<>(Math.max(id + 1, current.length() * 2));
+            for (int i = 0; i < current.length(); i++) {
+                grown.set(i, current.get(i));
+            }
+            books = grown;
+            current = grown;
+        }
+        return current.compareAndSet(id, null, new OrderBook(id, listener));
+    }
+
+    // The symbol's id if it has a book, otherwise -1.
+    public int symbolId(String symbol) {
+        int id = Instruments.id(symbol);
+        AtomicReferenceArray<OrderBook> current = books;
+        return id >= 0 && id < current.length() && current.get(id) != null ? id : -1;
+    }
+
+    public String symbol(int symbolId) {
+        return Instruments.symbol(symbolId);
+    }
+
+    public String name(int symbolId) {
+        return Instruments.name(symbolId);
+    }
+
+    public int ownerId(String username) {
+        Integer id = ownerIds.get(username);
+        if (id != null) {
+            return id;
+        }
+        synchronized (ownerIds) {
+            id = ownerIds.get(username);
+            if (id != null) {
+                return id;
+            }
+            if (ownerCount == owners.length) {
+                owners = Arrays.copyOf(owners, ownerCount * 2);
+            }
+            owners[ownerCount] = username;
+            ownerIds.put(username, ownerCount);
+            return ownerCount++;
+        }
+    }
+
+    public String ownerName(int ownerId) {
+        return owners[ownerId];
+    }
+
+    private OrderBook book(int symbolId) {
+        return books.get(symbolId);
+    }
+
+    // The listener runs while the book's lock is held and must not submit
+    // orders to the same symbol.
+    public void submit(int symbolId, byte side, long limitPrice, int quantity, int owner, boolean immediateOrCancel, OrderBook.Result result) {
+        OrderBook book = book(symbolId);
+        synchronized (book) {
+            book.submit(side, limitPrice, quantity, owner, immediateOrCancel, result);
+        }
+    }
+
+    public boolean cancel(int symbolId, long orderId) {
+        OrderBook book = book(symbolId);
+        synchronized (book) {
+            return book.cancel(orderId);
+        }
+    }
+
+    public void replace(int symbolId, long orderId, long newPrice, int newQuantity, OrderBook.Result result) {
+        OrderBook book = book(symbolId);
+        synchronized (book) {
+            book.replace(orderId, newPrice, newQuantity, result);
+        }
+    }
+
+    // Moves a resting order to a new price with whatever quantity it has left.
+    public void requote(int symbolId, long orderId, long newPrice, OrderBook.Result result) {
+        OrderBook book = book(symbolId);
+        synchronized (book) {
+            int remaining = book.remainingQuantity(orderId);
+            if (remaining == 0) {
+                result.clear();
+                return;
+            }
+            book.replace(orderId, newPrice, remaining, result);
+        }
+    }
+
+    // Adds extra quantity to a resting order, or places a new one at price if
+    // it has already filled, all under the book's lock. A negative extra takes
+    // that much off instead, cancelling the order if nothing would be left.
+    public void topUp(int symbolId, long orderId, byte side, long price, int extra, int owner, OrderBook.Result result) {
+        OrderBook book = book(symbolId);
+        synchronized (book) {
+            int remaining = book.remainingQuantity(orderId);
+            if (remaining == 0) {
+                book.submit(side, price, extra, owner, false, result);
+            } else if (remaining + extra <= 0) {
+                book.cancel(orderId);
+                result.clear();
+            } else {
+                book.replace(orderId, price, remaining + extra, result);
+            }
+        }
+    }
+
+    public long bestBid(int symbolId) {
+        OrderBook book = book(symbolId);
+        synchronized (book) {
+            return book.bestBid();
+        }
+    }
+
+    public long bestAsk(int symbolId) {
+        OrderBook book = book(symbolId);
+        synchronized (book) {
+            return book.bestAsk();
+        }
+    }
+
+    // Headless throughput run: java MatchingEngine [orders] [symbols]
+    // Replays a pregenerated stream of limit, market and cancel messages
+    // against the books on one thread and reports orders per second.
+    public static void main(String[] args) {
+        int orders = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int symbolCount = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long[] fills = new long[1];
+        OrderBook[] books = new OrderBook[symbolCount];
+        for (int i = 0; i < symbolCount; i++) {
+            books[i] = new OrderBook(i, (symbolId, buyOwner, sellOwner, priceTicks, quantity, makerOrderId) -> fills[0]++, 1 << 20);
+        }
+
+        Random random = new Random(42);
+        int[] symbolOf = new int[orders];
+        byte[] sideOf = new byte[orders];
+        long[] priceOf = new long[orders];
+        int[] quantityOf = new int[orders];
+        byte[] kindOf = new byte[orders];
+        for (int i = 0; i < orders; i++) {
+            symbolOf[i] = random.nextInt(symbolCount);
+            sideOf[i] = (byte) random.nextInt(2);
+            priceOf[i] = 10_000 + random.nextInt(101) - 50;
+            quantityOf[i] = 1 + random.nextInt(100);
+            int roll = random.nextInt(100);
+            kindOf[i] = (byte) (roll < 80 ? 0 : roll < 90 ? 1 : 2);
+        }
+
+        long[] resting = new long[1 << 16];
+        int restingCount = 0;
+        OrderBook.Result result = new OrderBook.Result();
+        for (int pass = 0; pass < 2; pass++) {
+            fills[0] = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < orders; i++) {
+                OrderBook book = books[symbolOf[i]];
+                switch (kindOf[i]) {
+                    case 0:
+                        book.submit(sideOf[i], priceOf[i], quantityOf[i], 1 + (i & 1023), false, result);
+                        if (result.orderId != OrderBook.NO_ORDER) {
+                            resting[restingCount++ & (resting.length - 1)] = result.orderId;
+                        }
+                        break;
+                    case 1:
+                        book.submit(sideOf[i], sideOf[i] == OrderBook.BUY ? OrderBook.MARKET_BUY : OrderBook.MARKET_SELL,
+                                quantityOf[i], 1 + (i & 1023), true, result);
+                        break;
+                    default:
+                        book.cancel(resting[(int) (priceOf[i] * 31 + i) & (resting.length - 1)]);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("%s: %,d orders in %.1f ms, %,.0f orders/s, %,d fills%n",
+                    pass == 0 ? "warm-up" : "measured", orders, elapsed / 1e6, orders * 1e9 / elapsed, fills[0]);
+        }
+    }
+}
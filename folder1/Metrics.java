@@ -0,0 +1,250 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+// Latency histograms and counters for the trading, persistence and auth
+// paths. Off unless the JVM is started with -Dmetrics.enabled=true; ENABLED
+// is a static final, so when it is false the JIT folds every start/stop/count
+// call down to nothing.
+//
+// Each operation keeps STRIPES copies of its histogram, created on first use,
+// and a thread records into the one its id hashes to, so threads rarely
+// share a copy and the memory does not grow with the number of threads that
+// have ever recorded; readers merge all copies. Buckets are
+// log-linear like HdrHistogram: 32 sub-buckets per power of two, about 3%
+// relative error, covering 1 ns to 2^63 ns in 2,048 slots.
+//
+// When enabled, Metrics.start() registers the "stockmarket:type=Metrics" MBean
+// and appends a text report to -Dmetrics.dump (default metrics.log) every
+// -Dmetrics.dumpSeconds (default 60).
+class Metrics {
+    static final boolean ENABLED = Boolean.getBoolean("metrics.enabled");
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = 64 * SUB_BUCKETS;
+    // A power of two, at least twice the processor count.
+    static final int STRIPES = Math.min(256, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 4 - 1));
+
+    private static final Map<String, Operation> OPERATIONS = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongAdder> BYTES = new ConcurrentSkipListMap<>();
+    private static ScheduledExecutorService dumper;
+
+    static class Operation {
+        final String name;
+        private final LongAdder errors = new LongAdder();
+        private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+
+        private Operation(String name) {
+            this.name = name;
+        }
+
+        long start() {
+            return ENABLED ? System.nanoTime() : 0;
+        }
+
+        void stop(long start) {
+            if (ENABLED) {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        // Stops the timer and counts the operation as failed as well.
+        void fail(long start) {
+            if (ENABLED) {
+                record(System.nanoTime() - start);
+                errors.increment();
+            }
+        }
+
+        void record(long nanos) {
+            int stripe = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+            AtomicLongArray counts = stripes.get(stripe);
+            if (counts == null) {
+                stripes.compareAndSet(stripe, null, new AtomicLongArray(BUCKETS));
+                counts = stripes.get(stripe);
+            }
+            counts.getAndIncrement(bucket(Math.max(0, nanos)));
+        }
+
+        Snapshot snapshot() {
+            long[] merged = new long[BUCKETS];
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                AtomicLongArray counts = stripes.get(stripe);
+                for (int i = 0; counts != null && i < BUCKETS; i++) {
+                    merged[i] += counts.get(i);
+                }
+            }
+            return new Snapshot(merged, errors.sum());
+        }
+    }
+
+    static class Snapshot {
+        private final long[] counts;
+        final long count;
+        final long errors;
+
+        Snapshot(long[] counts, long errors) {
+            this.counts = counts;
+            this.errors = errors;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+        }
+
+        // Upper bound of the bucket holding the given quantile, in nanoseconds.
+        long percentile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        long max() {
+            for (int i = BUCKETS - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int shift = exponent - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BITS) - 1;
+        long base = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+        return base + (1L << shift) - 1;
+    }
+
+    static Operation operation(String name) {
+        return OPERATIONS.computeIfAbsent(name, Operation::new);
+    }
+
+    static void addBytes(String name, long bytes) {
+        if (ENABLED) {
+            BYTES.computeIfAbsent(name, n -> new LongAdder()).add(bytes);
+        }
+    }
+
+    static synchronized void start() {
+        if (!ENABLED || dumper != null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName("stockmarket:type=Metrics"));
+        } catch (Exception e) {
+            System.out.println("Error registering metrics MBean: " + e.getMessage());
+        }
+        Path dumpFile = Paths.get(System.getProperty("metrics.dump", "metrics.log"));
+        long seconds = Long.getLong("metrics.dumpSeconds", 60);
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(dumpFile), seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    static void dump(Path file) {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(report());
+        } catch (IOException e) {
+            System.out.println("Error writing metrics: " + e.getMessage());
+        }
+    }
+
+    static String report() {
+        StringBuilder out = new StringBuilder();
+        out.append("== metrics ").append(Instant.now()).append('\n');
+        out.append(String.format("%-24s %10s %8s %10s %10s %10s %10s%n", "operation", "count", "errors", "p50 us", "p99 us", "p99.9 us", "max us"));
+        for (Operation operation : OPERATIONS.values()) {
+            Snapshot s = operation.snapshot();
+            out.append(String.format("%-24s %10d %8d %10.1f %10.1f %10.1f %10.1f%n", operation.name, s.count, s.errors,
+                    s.percentile(0.5) / 1e3, s.percentile(0.99) / 1e3, s.percentile(0.999) / 1e3, s.max() / 1e3));
+        }
+        for (Map.Entry<String, LongAdder> entry : BYTES.entrySet()) {
+            out.append(String.format("%-24s %,14d bytes%n", entry.getKey(), entry.getValue().sum()));
+        }
+        return out.toString();
+    }
+
+    private static Map<String, Double> percentiles(double quantile) {
+        Map<String, Double> micros = new TreeMap<>();
+        for (Operation operation : OPERATIONS.values()) {
+            micros.put(operation.name, operation.snapshot().percentile(quantile) / 1e3);
+        }
+        return micros;
+    }
+
+    private static class MBean implements MetricsMXBean {
+        public Map<String, Long> getOperationCounts() {
+            Map<String, Long> counts = new TreeMap<>();
+            for (Operation operation : OPERATIONS.values()) {
+                counts.put(operation.name, operation.snapshot().count);
+            }
+            return counts;
+        }
+
+        public Map<String, Long> getErrorCounts() {
+            Map<String, Long> counts = new TreeMap<>();
+            for (Operation operation : OPERATIONS.values()) {
+                counts.put(operation.name, operation.errors.sum());
+            }
+            return counts;
+        }
+
+        public Map<String, Long> getBytes() {
+            Map<String, Long> bytes = new TreeMap<>();
+            for (Map.Entry<String, LongAdder> entry : BYTES.entrySet()) {
+                bytes.put(entry.getKey(), entry.getValue().sum());
+            }
+            return bytes;
+        }
+
+        public Map<String, Double> getP50Micros() {
+            return percentiles(0.5);
+        }
+
+        public Map<String, Double> getP99Micros() {
+            return percentiles(0.99);
+        }
+
+        public Map<String, Double> getP999Micros() {
+            return percentiles(0.999);
+        }
+
+        public String getReport() {
+            return report();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+import java.util.Map;
+
+// Management view of Metrics; JMX requires the interface to be public.
+public interface MetricsMXBean {
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Long> getErrorCounts();
+
+    Map<String, Long> getBytes();
+
+    Map<String, Double> getP50Micros();
+
+    Map<String, Double> getP99Micros();
+
+    Map<String, Double> getP999Micros();
+
+    String getReport();
+}
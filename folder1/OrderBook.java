@@ -0,0 +1,338 @@
+import java.util.Arrays;
+
+// Limit order book for one symbol with price-time priority.
+//
+// Orders live in a preallocated pool of parallel primitive arrays and are
+// chained into a doubly linked FIFO per price level. Each side keeps its price
+// levels in a sorted long[] with the best level at the end, so taking the top
+// of book and removing an emptied level are both O(1). The matching loop does
+// not allocate; fills are reported through FillListener as primitives.
+class OrderBook {
+    static final byte BUY = 0;
+    static final byte SELL = 1;
+    static final long MARKET_BUY = Long.MAX_VALUE;
+    static final long MARKET_SELL = Long.MIN_VALUE;
+    static final long NO_ORDER = 0;
+
+    private static final int NIL = -1;
+    // Order slots a new book starts with; it doubles when they run out, so a
+    // quiet listing only costs a few tens of kilobytes.
+    private static final int DEFAULT_CAPACITY = 1 << 10;
+
+    interface FillListener {
+        void onFill(int symbolId, int buyOwner, int sellOwner, long priceTicks, int quantity, long makerOrderId);
+    }
+
+    // Reused by callers so that submitting an order does not allocate.
+    static class Result {
+        long orderId;
+        int filledQuantity;
+        long filledNotional;
+
+        void clear() {
+            orderId = NO_ORDER;
+            filledQuantity = 0;
+            filledNotional = 0;
+        }
+    }
+
+    private final int symbolId;
+    private final FillListener listener;
+
+    private int[] generation;
+    private long[] orderPrice;
+    private int[] orderQuantity;
+    private int[] orderOwner;
+    private byte[] orderSide;
+    private int[] next;
+    private int[] prev;
+    private int[] freeSlots;
+    private int freeCount;
+    private int capacity;
+
+    private final Side bids = new Side(true);
+    private final Side asks = new Side(false);
+
+    public OrderBook(int symbolId, FillListener listener) {
+        this(symbolId, listener, DEFAULT_CAPACITY);
+    }
+
+    public OrderBook(int symbolId, FillListener listener, int capacity) {
+        this.symbolId = symbolId;
+        this.listener = listener;
+        this.capacity = 0;
+        grow(capacity);
+    }
+
+    // Matches the order against the opposite side and, for a limit order that
+    // is not immediate-or-cancel, rests what is left. result.orderId is the
+    // resting order, or NO_ORDER if nothing rested. An order for no shares is
+    // rejected: nothing fills and nothing rests.
+    public void submit(byte side, long limitPrice, int quantity, int owner, boolean immediateOrCancel, Result result) {
+        result.clear();
+        if (quantity <= 0) {
+            return;
+        }
+        int remaining = match(side, limitPrice, quantity, owner, result);
+        boolean market = limitPrice == MARKET_BUY || limitPrice == MARKET_SELL;
+        if (remaining > 0 && !immediateOrCancel && !market) {
+            result.orderId = rest(side, limitPrice, remaining, owner);
+        }
+    }
+
+    public boolean cancel(long orderId) {
+        int slot = liveSlot(orderId);
+        if (slot == NIL) {
+            return false;
+        }
+        unlink(slot);
+        release(slot);
+        return true;
+    }
+
+    // Shrinking an order at the same price keeps its place in the queue; any
+    // other change re-enters the book as a new order. A new quantity of zero
+    // or less is rejected and leaves the order as it was, still under
+    // orderId; use cancel() to take it out.
+    public void replace(long orderId, long newPrice, int newQuantity, Result result) {
+        result.clear();
+        int slot = liveSlot(orderId);
+        if (slot == NIL) {
+            return;
+        }
+        if (newQuantity <= 0) {
+            result.orderId = orderId;
+            return;
+        }
+        if (newPrice == orderPrice[slot] && newQuantity <= orderQuantity[slot]) {
+            Side side = orderSide[slot] == BUY ? bids : asks;
+            int level = side.find(newPrice);
+            side.quantity[level] -= orderQuantity[slot] - newQuantity;
+            orderQuantity[slot] = newQuantity;
+            result.orderId = orderId;
+            return;
+        }
+        byte side = orderSide[slot];
+        int owner = orderOwner[slot];
+        unlink(slot);
+        release(slot);
+        submit(side, newPrice, newQuantity, owner, false, result);
+    }
+
+    public long bestBid() {
+        return bids.count == 0 ? MARKET_SELL : bids.prices[bids.count - 1];
+    }
+
+    public long bestAsk() {
+        return asks.count == 0 ? MARKET_BUY : asks.prices[asks.count - 1];
+    }
+
+    public long depthAt(byte side, long price) {
+        Side s = side == BUY ? bids : asks;
+        int level = s.find(price);
+        return level < 0 ? 0 : s.quantity[level];
+    }
+
+    public int openOrders() {
+        return capacity - freeCount;
+    }
+
+    public int remainingQuantity(long orderId) {
+        int slot = liveSlot(orderId);
+        return slot == NIL ? 0 : orderQuantity[slot];
+    }
+
+    private int match(byte side, long limitPrice, int quantity, int owner, Result result) {
+        Side opposite = side == BUY ? asks : bids;
+        while (quantity > 0 && opposite.count > 0) {
+            int level = opposite.count - 1;
+            long price = opposite.prices[level];
+            if (side == BUY ? price > limitPrice : price < limitPrice) {
+                break;
+            }
+            int slot = opposite.head[level];
+            while (slot != NIL && quantity > 0) {
+                int fill = Math.min(quantity, orderQuantity[slot]);
+                orderQuantity[slot] -= fill;
+                opposite.quantity[level] -= fill;
+                quantity -= fill;
+                result.filledQuantity += fill;
+                result.filledNotional += price * fill;
+                long makerId = idOf(slot);
+                int maker = orderOwner[slot];
+                if (orderQuantity[slot] == 0) {
+                    int following = next[slot];
+                    release(slot);
+                    slot = following;
+                    opposite.head[level] = slot;
+                    if (slot == NIL) {
+                        opposite.tail[level] = NIL;
+                    } else {
+                        prev[slot] = NIL;
+                    }
+                }
+                if (side == BUY) {
+                    listener.onFill(symbolId, owner, maker, price, fill, makerId);
+                } else {
+                    listener.onFill(symbolId, maker, owner, price, fill, makerId);
+                }
+            }
+            if (opposite.head[level] == NIL) {
+                opposite.count--;
+            }
+        }
+        return quantity;
+    }
+
+    private long rest(byte side, long price, int quantity, int owner) {
+        if (freeCount == 0) {
+            grow(capacity * 2);
+        }
+        int slot = freeSlots[--freeCount];
+        generation[slot]++;
+        orderPrice[slot] = price;
+        orderQuantity[slot] = quantity;
+        orderOwner[slot] = owner;
+        orderSide[slot] = side;
+        next[slot] = NIL;
+        Side s = side == BUY ? bids : asks;
+        int level = s.findOrInsert(price);
+        int tail = s.tail[level];
+        prev[slot] = tail;
+        if (tail == NIL) {
+            s.head[level] = slot;
+        } else {
+            next[tail] = slot;
+        }
+        s.tail[level] = slot;
+        s.quantity[level] += quantity;
+        return idOf(slot);
+    }
+
+    private void unlink(int slot) {
+        Side s = orderSide[slot] == BUY ? bids : asks;
+        int level = s.find(orderPrice[slot]);
+        s.quantity[level] -= orderQuantity[slot];
+        if (prev[slot] == NIL) {
+            s.head[level] = next[slot];
+        } else {
+            next[prev[slot]] = next[slot];
+        }
+        if (next[slot] == NIL) {
+            s.tail[level] = prev[slot];
+        } else {
+            prev[next[slot]] = prev[slot];
+        }
+        if (s.head[level] == NIL) {
+            s.remove(level);
+        }
+    }
+
+    private void release(int slot) {
+        orderQuantity[slot] = 0;
+        generation[slot]++;
+        freeSlots[freeCount++] = slot;
+    }
+
+    // Order ids carry the slot's generation, so a stale id can never cancel
+    // the order that later reuses the same slot. Live orders have odd generations.
+    private long idOf(int slot) {
+        return ((long) generation[slot] << 32) | slot;
+    }
+
+    private int liveSlot(long orderId) {
+        int slot = (int) orderId;
+        if (orderId == NO_ORDER || slot < 0 || slot >= capacity) {
+            return NIL;
+        }
+        if (generation[slot] != (int) (orderId >>> 32) || (generation[slot] & 1) == 0) {
+            return NIL;
+        }
+        return slot;
+    }
+
+    private void grow(int newCapacity) {
+        int old = capacity;
+        generation = generation == null ? new int[newCapacity] : Arrays.copyOf(generation, newCapacity);
+        orderPrice = orderPrice == null ? new long[newCapacity] : Arrays.copyOf(orderPrice, newCapacity);
+        orderQuantity = orderQuantity == null ? new int[newCapacity] : Arrays.copyOf(orderQuantity, newCapacity);
+        orderOwner = orderOwner == null ? new int[newCapacity] : Arrays.copyOf(orderOwner, newCapacity);
+        orderSide = orderSide == null ? new byte[newCapacity] : Arrays.copyOf(orderSide, newCapacity);
+        next = next == null ? new int[newCapacity] : Arrays.copyOf(next, newCapacity);
+        prev = prev == null ? new int[newCapacity] : Arrays.copyOf(prev, newCapacity);
+        freeSlots = freeSlots == null ? new int[newCapacity] : Arrays.copyOf(freeSlots, newCapacity);
+        for (int slot = newCapacity - 1; slot >= old; slot--) {
+            freeSlots[freeCount++] = slot;
+        }
+        capacity = newCapacity;
+    }
+
+    // Price levels of one side, sorted so that the best price is last: bids
+    // ascending, asks descending. New levels usually appear near the touch,
+    // which keeps the insertion shift short.
+    private static class Side {
+        private final boolean bid;
+        long[] prices = new long[64];
+        int[] head = new int[64];
+        int[] tail = new int[64];
+        long[] quantity = new long[64];
+        int count;
+
+        Side(boolean bid) {
+            this.bid = bid;
+        }
+
+        // Index of price, or -(insertion point) - 1 if there is no such level.
+        int find(long price) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long p = prices[mid];
+                if (p == price) {
+                    return mid;
+                }
+                if (bid ? p < price : p > price) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return -(low + 1);
+        }
+
+        int findOrInsert(long price) {
+            int level = find(price);
+            if (level >= 0) {
+                return level;
+            }
+            level = -level - 1;
+            if (count == prices.length) {
+                prices = Arrays.copyOf(prices, count * 2);
+                head = Arrays.copyOf(head, count * 2);
+                tail = Arrays.copyOf(tail, count * 2);
+                quantity = Arrays.copyOf(quantity, count * 2);
+            }
+            int moved = count - level;
+            System.arraycopy(prices, level, prices, level + 1, moved);
+            System.arraycopy(head, level, head, level + 1, moved);
+            System.arraycopy(tail, level, tail, level + 1, moved);
+            System.arraycopy(quantity, level, quantity, level + 1, moved);
+            prices[level] = price;
+            head[level] = NIL;
+            tail[level] = NIL;
+            quantity[level] = 0;
+            count++;
+            return level;
+        }
+
+        void remove(int level) {
+            int moved = count - level - 1;
+            System.arraycopy(prices, level + 1, prices, level, moved);
+            System.arraycopy(head, level + 1, head, level, moved);
+            System.arraycopy(tail, level + 1, tail, level, moved);
+            System.arraycopy(quantity, level + 1, quantity, level, moved);
+            count--;
+        }
+    }
+}
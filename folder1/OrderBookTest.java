@@ -0,0 +1,92 @@
+import java.util.*;
+
+// Matching in OrderBook: the best price fills first, orders at one price fill
+// in the order they arrived, and a partly filled order keeps the rest of its
+// quantity in the book.
+//
+//   java OrderBookTest
+class OrderBookTest {
+    public static void main(String[] args) {
+        if (!Checks.run("OrderBookTest",
+                OrderBookTest::bestPriceThenOldestFillsFirst,
+                OrderBookTest::partialFillRestsTheRemainder,
+                OrderBookTest::shrinkingKeepsThePlaceInTheQueue)) {
+            System.exit(1);
+        }
+    }
+
+    // Fills as "maker owner x quantity @ price", in the order they happened.
+    private static class Fills implements OrderBook.FillListener {
+        final List<String> seen = new ArrayList<>();
+
+        public void onFill(int symbolId, int buyOwner, int sellOwner, long priceTicks, int quantity, long makerOrderId) {
+            seen.add(sellOwner + "x" + quantity + "@" + priceTicks);
+        }
+    }
+
+    // A buy that sweeps the asks takes the cheaper level first, and within a
+    // level the order that rested first.
+    static void bestPriceThenOldestFillsFirst() {
+        Fills fills = new Fills();
+        OrderBook book = new OrderBook(0, fills);
+        OrderBook.Result result = new OrderBook.Result();
+        book.submit(OrderBook.SELL, 101, 5, 1, false, result);
+        long dearer = result.orderId;
+        book.submit(OrderBook.SELL, 100, 5, 2, false, result);
+        book.submit(OrderBook.SELL, 100, 5, 3, false, result);
+
+        book.submit(OrderBook.BUY, 101, 12, 9, false, result);
+        Checks.check(fills.seen.equals(List.of("2x5@100", "3x5@100", "1x2@101")), "fills in price-time order, got " + fills.seen);
+        Checks.check(result.filledQuantity == 12, "whole buy filled, got " + result.filledQuantity);
+        Checks.check(result.filledNotional == 5 * 100 + 5 * 100 + 2 * 101, "notional at the makers' prices, got " + result.filledNotional);
+        Checks.check(result.orderId == OrderBook.NO_ORDER, "filled buy does not rest");
+        Checks.check(book.remainingQuantity(dearer) == 3, "dearer ask keeps its rest, got " + book.remainingQuantity(dearer));
+        Checks.check(book.bestAsk() == 101, "best ask moves up, got " + book.bestAsk());
+        Checks.check(book.openOrders() == 1, "only the partly filled ask is left, got " + book.openOrders());
+    }
+
+    // A limit buy larger than what is on offer fills what it can and rests
+    // the remainder at its limit; an immediate-or-cancel one does not rest.
+    static void partialFillRestsTheRemainder() {
+        Fills fills = new Fills();
+        OrderBook book = new OrderBook(0, fills);
+        OrderBook.Result result = new OrderBook.Result();
+        book.submit(OrderBook.SELL, 100, 4, 1, false, result);
+
+        book.submit(OrderBook.BUY, 100, 10, 9, false, result);
+        Checks.check(result.filledQuantity == 4, "buy fills what is offered, got " + result.filledQuantity);
+        Checks.check(result.orderId != OrderBook.NO_ORDER, "remainder rests");
+        Checks.check(book.remainingQuantity(result.orderId) == 6, "remainder is 6, got " + book.remainingQuantity(result.orderId));
+        Checks.check(book.bestBid() == 100 && book.bestAsk() != 100, "remainder is the best bid and the ask is gone");
+        Checks.check(book.depthAt(OrderBook.BUY, 100) == 6, "bid depth at 100 is 6, got " + book.depthAt(OrderBook.BUY, 100));
+
+        book.submit(OrderBook.SELL, 100, 8, 2, true, result);
+        Checks.check(result.filledQuantity == 6, "IOC sell fills against the resting bid, got " + result.filledQuantity);
+        Checks.check(result.orderId == OrderBook.NO_ORDER, "IOC remainder does not rest");
+        Checks.check(book.openOrders() == 0, "book is empty, got " + book.openOrders());
+        Checks.check(fills.seen.equals(List.of("1x4@100", "2x6@100")), "fills, got " + fills.seen);
+    }
+
+    // Cutting an order's size at the same price keeps its turn; moving its
+    // price sends it to the back.
+    static void shrinkingKeepsThePlaceInTheQueue() {
+        Fills fills = new Fills();
+        OrderBook book = new OrderBook(0, fills);
+        OrderBook.Result result = new OrderBook.Result();
+        book.submit(OrderBook.SELL, 100, 5, 1, false, result);
+        long first = result.orderId;
+        book.submit(OrderBook.SELL, 100, 5, 2, false, result);
+        long second = result.orderId;
+        book.submit(OrderBook.SELL, 101, 5, 3, false, result);
+        long third = result.orderId;
+
+        book.replace(first, 100, 2, result);
+        Checks.check(result.orderId == first, "shrunk order keeps its id");
+        book.replace(third, 100, 5, result);
+        Checks.check(result.orderId != third, "repriced order is a new order");
+
+        book.submit(OrderBook.BUY, 100, 8, 9, false, result);
+        Checks.check(fills.seen.equals(List.of("1x2@100", "2x5@100", "3x1@100")), "shrunk order fills first, repriced last, got " + fills.seen);
+        Checks.check(book.remainingQuantity(second) == 0, "second ask filled");
+    }
+}
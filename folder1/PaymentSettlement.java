@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Settles payments against a gateway without holding up the trade that asked
+// for them. submit() returns at once with a future; worker threads drain the
+// queue and authorize whatever has piled up as one batch, so a slow gateway
+// costs one round trip per batch rather than one per payment. Refunds of
+// what a trade did not use go through the same queue.
+class PaymentSettlement {
+    private static final int DEFAULT_WORKERS = 4;
+    private static final int DEFAULT_MAX_BATCH = 256;
+
+    // Authorizes or refunds a batch in one call; the answer for batch.get(i) is at [i].
+    interface Gateway {
+        boolean[] authorize(List<Payment> batch) throws IOException;
+
+        boolean[] refund(List<Payment> batch) throws IOException;
+    }
+
+    static class Payment {
+        final String payer;
+        final String method;
+        final double amount;
+        // Pays amount back to the payer instead of taking it.
+        final boolean refund;
+        final CompletableFuture<Boolean> settled = new CompletableFuture<>();
+
+        Payment(String payer, String method, double amount) {
+            this(payer, method, amount, false);
+        }
+
+        Payment(String payer, String method, double amount, boolean refund) {
+            this.payer = payer;
+            this.method = method;
+            this.amount = amount;
+            this.refund = refund;
+        }
+    }
+
+    private final Gateway gateway;
+    private final int maxBatch;
+    private final BlockingQueue<Payment> queue;
+    private final List<Thread> workers;
+
+    public PaymentSettlement(Gateway gateway) {
+        this(gateway, DEFAULT_WORKERS, DEFAULT_MAX_BATCH);
+    }
+
+    public PaymentSettlement(Gateway gateway, int workerCount, int maxBatch) {
+        this.gateway = gateway;
+        this.maxBatch = maxBatch;
+        this.queue = new LinkedBlockingQueue<>();
+        this.workers = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            Thread thread = new Thread(this::run, "payment-settlement-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            workers.add(thread);
+        }
+    }
+
+    // Completes with true once the gateway has authorized the payment, false
+    // if it declined, or exceptionally if the gateway could not be reached.
+    public CompletableFuture<Boolean> submit(Payment payment) {
+        queue.add(payment);
+        return payment.settled;
+    }
+
+    // Completes with true once the gateway has paid amount back to the payer.
+    public CompletableFuture<Boolean> refund(String payer, String method, double amount) {
+        return submit(new Payment(payer, method, amount, true));
+    }
+
+    public int pending() {
+        return queue.size();
+    }
+
+    // Stops the workers; payments still queued are failed.
+    public void close() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        List<Payment> left = new ArrayList<>();
+        queue.drainTo(left);
+        for (Payment payment : left) {
+            payment.settled.completeExceptionally(new IOException("Payment settlement closed"));
+        }
+    }
+
+    private void run() {
+        List<Payment> batch = new ArrayList<>();
+        List<Payment> payments = new ArrayList<>();
+        List<Payment> refunds = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, maxBatch - 1);
+            for (Payment payment : batch) {
+                (payment.refund ? refunds : payments).add(payment);
+            }
+            settle(payments, false);
+            settle(refunds, true);
+            batch.clear();
+            payments.clear();
+            refunds.clear();
+        }
+    }
+
+    private void settle(List<Payment> batch, boolean refunds) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            boolean[] settled = refunds ? gateway.refund(batch) : gateway.authorize(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).settled.complete(settled[i]);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Payment payment : batch) {
+                payment.settled.completeExceptionally(e);
+            }
+        }
+    }
+
+    // Throughput run: java PaymentSettlement [trades] [latencyMillis] [failureRate] [maxBatch]
+    // Every trade waits for its payment before its order reaches the book.
+    // The same load is run unbatched (one gateway call per payment) and then
+    // batched, to show how many trades go through while payments are in flight.
+    public static void main(String[] args) throws Exception {
+        int trades = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int latency = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        double failureRate = args.length > 2 ? Double.parseDouble(args[2]) : 0.02;
+        int maxBatch = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_MAX_BATCH;
+        for (int batch : new int[] {1, maxBatch}) {
+            MatchingEngine engine = new MatchingEngine((symbolId, buyOwner, sellOwner, priceTicks, quantity, makerOrderId) -> { });
+            engine.addInstrument("BENCH", "Bench Corp");
+            engine.submit(0, OrderBook.SELL, 10_000, Integer.MAX_VALUE, MatchingEngine.HOUSE, false, new OrderBook.Result());
+            PaymentSettlement settlement = new PaymentSettlement(new FakePaymentGateway(latency, failureRate, 42), DEFAULT_WORKERS, batch);
+            AtomicInteger filled = new AtomicInteger();
+            AtomicInteger declined = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(trades);
+            long start = System.nanoTime();
+            for (int i = 0; i < trades; i++) {
+                int owner = 1 + (i & 1023);
+                settlement.submit(new Payment("bench" + owner, "card", 100.0)).whenComplete((paid, failure) -> {
+                    if (failure == null && paid) {
+                        OrderBook.Result result = new OrderBook.Result();
+                        engine.submit(0, OrderBook.BUY, 10_000, 1, owner, true, result);
+                        filled.addAndGet(result.filledQuantity);
+                    } else {
+                        declined.incrementAndGet();
+                    }
+                    done.countDown();
+                });
+            }
+            done.await();
+            long elapsed = System.nanoTime() - start;
+            settlement.close();
+            System.out.printf("max batch %4d: %,d trades in %.1f ms, %,.0f trades/s (%d filled, %d declined)%n",
+                    batch, trades, elapsed / 1e6, trades * 1e9 / elapsed, filled.get(), declined.get());
+        }
+    }
+}
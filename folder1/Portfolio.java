@@ -0,0 +1,487 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+class Portfolio {
+    // Told when the portfolio starts or stops holding a symbol, so indexes over
+    // holders can be kept current. Called with the portfolio's lock held.
+    interface HoldingsListener {
+        void positionOpened(Portfolio portfolio, String symbol);
+
+        void positionClosed(Portfolio portfolio, String symbol);
+    }
+
+    // A position as it stood when holdings() was called.
+    static class Holding {
+        final String symbol;
+        final int quantity;
+        final double averagePrice;
+        final double markPrice;
+        final double marketValue;
+
+        Holding(Position position) {
+            this.symbol = position.getSymbol();
+            this.quantity = position.getQuantity();
+            this.averagePrice = position.getAveragePrice();
+            this.markPrice = position.getMarkPrice();
+            this.marketValue = position.getMarketValue();
+        }
+    }
+
+    // Every position and the total value, copied out under one lock.
+    static class Holdings {
+        final List<Holding> positions;
+        final double totalValue;
+
+        Holdings(List<Holding> positions, double totalValue) {
+            this.positions = Collections.unmodifiableList(positions);
+            this.totalValue = totalValue;
+        }
+    }
+
+    private String username;
+    private Map<String, Position> positions;
+    private PositionIndex index;
+    private Position.LotMethod lotMethod;
+    // Running totals in price ticks, so they stay exact however many trades go through.
+    private long totalCost;
+    private long marketValue;
+    private HoldingsListener holdingsListener;
+    private CashLedger.Account cash;
+    private PortfolioStorage storage;
+    // Held by every change to the holdings from its check, through the
+    // journal write, to the update in memory, and by snapshots and syncs; the
+    // portfolio's own lock is only taken for the update in memory. Price ticks
+    // and readers take just that lock, so they never wait behind a journal
+    // force, a shard round trip or a snapshot. Always taken first.
+    private final Object writer = new Object();
+    // Shares set aside for sells in flight, per symbol. removeStock() leaves
+    // them alone; only removeHeld() takes them. Guarded by writer, as is
+    // batching.
+    private Map<String, Integer> held = new HashMap<>();
+    private boolean batching;
+    // Set while the snapshot and journal are replayed; the index is built once at the end.
+    private boolean loading;
+    static final String PORTFOLIO_DIRECTORY = "portfolio_files/";
+    private static final int COMPACTION_THRESHOLD = 1000;
+    private static final Metrics.Operation LOAD = Metrics.operation("portfolio.load");
+    private static final Metrics.Operation SAVE = Metrics.operation("portfolio.save");
+
+    public Portfolio(String username) {
+        this(username, new PortfolioStorage.Local(Paths.get(PORTFOLIO_DIRECTORY), username));
+    }
+
+    public Portfolio(String username, PortfolioStorage storage) {
+        this.username = username;
+        this.positions = new LinkedHashMap<>();
+        this.index = new PositionIndex();
+        this.lotMethod = Position.LotMethod.FIFO;
+        this.storage = storage;
+        loadPortfolio();
+    }
+
+    private void loadPortfolio() {
+        long start = LOAD.start();
+        loading = true;
+        boolean loaded = storage.load(this::applyBuy, this::applyJournalRecord);
+        loading = false;
+        for (Position position : positions.values()) {
+            index.update(position);
+        }
+        if (loaded) {
+            LOAD.stop(start);
+        } else {
+            LOAD.fail(start);
+        }
+    }
+
+    private void applyJournalRecord(String[] record) {
+        try {
+            if (record[0].equals("B") && (record.length == 5 || record.length == 6)) {
+                long timestamp = record.length == 6 ? Long.parseLong(record[5]) : 0;
+                applyBuy(record[1], record[2], MatchingEngine.toTicks(Double.parseDouble(record[3])), Integer.parseInt(record[4]), timestamp);
+            } else if (record[0].equals("S") && (record.length == 3 || record.length == 4)) {
+                Position.LotMethod method = record.length == 4 && record[3].equals("L") ? Position.LotMethod.LIFO : Position.LotMethod.FIFO;
+                applySell(record[1], Integer.parseInt(record[2]), method);
+            } else {
+                System.out.println("Unknown journal record for " + username + ": " + String.join(";", record) + ". Skipping.");
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Error parsing journal record for " + username + ": " + String.join(";", record) + ". Skipping.");
+        }
+    }
+
+    private void savePortfolio() {
+        long start = SAVE.start();
+        try {
+            storage.save(positions.values());
+            SAVE.stop(start);
+        } catch (IOException e) {
+            System.out.println("Error saving portfolio: " + e.getMessage());
+            SAVE.fail(start);
+        }
+    }
+
+    // Folds the journal into a fresh snapshot if any trades were made since
+    // the last one. Only writer is held while it is written: positions and
+    // their lots only change under writer, and a tick only moves marks,
+    // which the snapshot does not hold.
+    public void flush() {
+        synchronized (writer) {
+            if (storage.getRecordsSinceSnapshot() > 0) {
+                savePortfolio();
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (writer) {
+            batching = false;
+            flush();
+            storage.close();
+        }
+    }
+
+    // Until endBatch(), trades go to the journal without waiting for each one
+    // to reach the disk and compaction is held back; endBatch() forces the
+    // journal once and folds the whole batch into a single snapshot.
+    public void beginBatch() {
+        synchronized (writer) {
+            batching = true;
+        }
+    }
+
+    public void endBatch() {
+        synchronized (writer) {
+            if (!batching) {
+                return;
+            }
+            batching = false;
+            try {
+                storage.sync();
+            } catch (IOException e) {
+                System.out.println("Error writing trade journal: " + e.getMessage());
+            }
+            flush();
+        }
+    }
+
+    public boolean isDirty() {
+        synchronized (writer) {
+            return storage.getRecordsSinceSnapshot() > 0;
+        }
+    }
+
+    // Called with writer held.
+    private boolean logTrade(String record) {
+        try {
+            if (batching) {
+                storage.appendDeferred(record);
+            } else {
+                storage.append(record);
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing trade journal: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    // Called with writer held, once the trade just journaled is applied, so
+    // the snapshot holds every record it claims to cover.
+    private void compactIfDue() {
+        if (!batching && storage.getRecordsSinceSnapshot() >= COMPACTION_THRESHOLD) {
+            savePortfolio();
+        }
+    }
+
+    // Returns false, leaving the portfolio as it was, if the buy could not be journaled.
+    public boolean addStock(Stock stock) {
+        synchronized (writer) {
+            long timestamp = System.currentTimeMillis();
+            long priceTicks = MatchingEngine.toTicks(stock.getPrice());
+            if (!logTrade("B;" + stock.getSymbol() + ";" + stock.getName() + ";" + MatchingEngine.toPrice(priceTicks) + ";" + stock.getQuantity() + ";" + timestamp)) {
+                return false;
+            }
+            synchronized (this) {
+                applyBuy(stock.getSymbol(), stock.getName(), priceTicks, stock.getQuantity(), timestamp);
+            }
+            compactIfDue();
+            return true;
+        }
+    }
+
+    public boolean removeStock(String symbol, int quantityToRemove) {
+        synchronized (writer) {
+            Position position = positions.get(symbol);
+            if (position == null || quantityToRemove <= 0) {
+                return false;
+            }
+            if (quantityToRemove > position.getQuantity() - held.getOrDefault(symbol, 0)) {
+                System.out.println("Cannot remove more quantity than available.");
+                return false;
+            }
+            return sell(symbol, quantityToRemove);
+        }
+    }
+
+    // Sets shares aside for a sell, so that no other sell can take them while
+    // the order is in the book; false if fewer are free.
+    public boolean holdShares(String symbol, int quantity) {
+        synchronized (writer) {
+            Position position = positions.get(symbol);
+            int onHold = held.getOrDefault(symbol, 0);
+            if (position == null || quantity <= 0 || quantity > position.getQuantity() - onHold) {
+                return false;
+            }
+            held.put(symbol, onHold + quantity);
+            return true;
+        }
+    }
+
+    public void releaseShares(String symbol, int quantity) {
+        synchronized (writer) {
+            int onHold = held.getOrDefault(symbol, 0) - quantity;
+            if (onHold > 0) {
+                held.put(symbol, onHold);
+            } else {
+                held.remove(symbol);
+            }
+        }
+    }
+
+    // Takes sold shares out of those set aside by holdShares(); false, leaving
+    // them set aside, if the sale could not be journaled.
+    public boolean removeHeld(String symbol, int quantity) {
+        synchronized (writer) {
+            if (quantity <= 0 || quantity > held.getOrDefault(symbol, 0) || !sell(symbol, quantity)) {
+                return false;
+            }
+            releaseShares(symbol, quantity);
+            return true;
+        }
+    }
+
+    // Called with writer held.
+    private boolean sell(String symbol, int quantity) {
+        Position.LotMethod method = lotMethod;
+        if (!logTrade("S;" + symbol + ";" + quantity + ";" + (method == Position.LotMethod.LIFO ? "L" : "F"))) {
+            return false;
+        }
+        synchronized (this) {
+            applySell(symbol, quantity, method);
+        }
+        compactIfDue();
+        return true;
+    }
+
+    private void applyBuy(String symbol, String name, long priceTicks, int quantity, long timestamp) {
+        Position position = positions.get(symbol);
+        boolean opened = position == null;
+        if (opened) {
+            position = new Position(symbol, name);
+            positions.put(symbol, position);
+        }
+        marketValue -= position.getMarketValueTicks();
+        position.buy(priceTicks, quantity, timestamp);
+        marketValue += position.getMarketValueTicks();
+        totalCost += priceTicks * quantity;
+        if (!loading) {
+            index.update(position);
+        }
+        if (opened && holdingsListener != null) {
+            holdingsListener.positionOpened(this, symbol);
+        }
+    }
+
+    private void applySell(String symbol, int quantity, Position.LotMethod method) {
+        Position position = positions.get(symbol);
+        if (position == null || quantity > position.getQuantity()) {
+            System.out.println("Journal sells more " + symbol + " than " + username + " holds. Skipping.");
+            return;
+        }
+        marketValue -= position.getMarketValueTicks();
+        totalCost -= position.sell(quantity, method);
+        marketValue += position.getMarketValueTicks();
+        if (!loading) {
+            index.update(position);
+        }
+        if (position.isEmpty()) {
+            positions.remove(symbol);
+            if (holdingsListener != null) {
+                holdingsListener.positionClosed(this, symbol);
+            }
+        }
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public synchronized void setHoldingsListener(HoldingsListener holdingsListener) {
+        this.holdingsListener = holdingsListener;
+    }
+
+    // The ledger account the portfolio's cash is kept in; until one is set the portfolio has no cash.
+    public synchronized void setCashAccount(CashLedger.Account cash) {
+        this.cash = cash;
+    }
+
+    public synchronized long getCashTicks() {
+        return cash == null ? 0 : cash.getBalance();
+    }
+
+    public synchronized double getCash() {
+        return MatchingEngine.toPrice(getCashTicks());
+    }
+
+    public synchronized Set<String> getSymbols() {
+        return new HashSet<>(positions.keySet());
+    }
+
+    // Applies a new price for one symbol in O(log n), re-indexing its value
+    // and P&L. Returns false if the symbol is no longer held. Never waits on
+    // journal or snapshot I/O; see writer.
+    public synchronized boolean markToMarket(String symbol, long priceTicks) {
+        Position position = positions.get(symbol);
+        if (position == null) {
+            return false;
+        }
+        marketValue += (priceTicks - position.getMarkTicks()) * position.getQuantity();
+        position.setMarkTicks(priceTicks);
+        index.mark(position);
+        return true;
+    }
+
+    // Re-marks every position from scratch. Returns the new market value in ticks.
+    public synchronized long revalue(ToLongFunction<Position> markTicks) {
+        long value = 0;
+        for (Position position : positions.values()) {
+            position.setMarkTicks(markTicks.applyAsLong(position));
+            value += position.getMarketValueTicks();
+            index.mark(position);
+        }
+        marketValue = value;
+        return value;
+    }
+
+    public synchronized Position getPosition(String symbol) {
+        return positions.get(symbol);
+    }
+
+    public synchronized Collection<Position> getPositions() {
+        return new ArrayList<>(positions.values());
+    }
+
+    // One Stock per position, priced at its average cost.
+    public synchronized List<Stock> getStocks() {
+        List<Stock> stocks = new ArrayList<>(positions.size());
+        for (Position position : positions.values()) {
+            stocks.add(position.toStock());
+        }
+        return stocks;
+    }
+
+    // Positions in stored order, or in index order for the given key, with
+    // the total they add up to, so that a listing never mixes a position
+    // from before a trade or tick with a total from after it.
+    public synchronized Holdings holdings(PositionIndex.Key key) {
+        Collection<Position> ordered = key == null ? positions.values() : index.sorted(key, false);
+        List<Holding> rows = new ArrayList<>(ordered.size());
+        for (Position position : ordered) {
+            rows.add(new Holding(position));
+        }
+        return new Holdings(rows, getTotalValue());
+    }
+
+    public synchronized Position.LotMethod getLotMethod() {
+        return lotMethod;
+    }
+
+    public void setLotMethod(Position.LotMethod lotMethod) {
+        synchronized (writer) {
+            synchronized (this) {
+                this.lotMethod = lotMethod;
+            }
+        }
+    }
+
+    public synchronized long getTotalCostTicks() {
+        return totalCost;
+    }
+
+    public synchronized double getTotalCost() {
+        return MatchingEngine.toPrice(totalCost);
+    }
+
+    public synchronized double getMarketValue() {
+        return MatchingEngine.toPrice(marketValue);
+    }
+
+    public synchronized double getUnrealizedPnl() {
+        return MatchingEngine.toPrice(marketValue - totalCost);
+    }
+
+    // Cash plus the market value of the holdings; both are kept current, so this is O(1).
+    public synchronized double getTotalValue() {
+        return MatchingEngine.toPrice(getCashTicks() + marketValue);
+    }
+
+    // The position with the highest unrealized P&L, even if every position is at a loss.
+    public synchronized Stock getMostProfitableStock() {
+        List<Position> top = index.top(PositionIndex.Key.PNL, 1);
+        return top.isEmpty() ? null : top.get(0).toStock();
+    }
+
+    // Sorted views read off the index; the stored (and saved) order is left alone.
+    public synchronized List<Position> getPositions(PositionIndex.Key key, boolean descending) {
+        return index.sorted(key, descending);
+    }
+
+    public synchronized List<Position> top(PositionIndex.Key key, int k) {
+        return index.top(key, k);
+    }
+
+    public synchronized List<Position> range(PositionIndex.Key key, double min, double max) {
+        return index.range(key, min, max);
+    }
+
+    public synchronized List<Position> sortBySymbol() {
+        return index.sorted(PositionIndex.Key.SYMBOL, false);
+    }
+
+    public synchronized List<Position> sortByPrice() {
+        return index.sorted(PositionIndex.Key.PRICE, false);
+    }
+
+    public synchronized List<Position> sortByQuantity() {
+        return index.sorted(PositionIndex.Key.QUANTITY, false);
+    }
+
+    public synchronized void displayPortfolio() {
+        displayPortfolio(positions.values());
+    }
+
+    public synchronized void displayPortfolio(PositionIndex.Key key) {
+        displayPortfolio(index.sorted(key, false));
+    }
+
+    private void displayPortfolio(Collection<Position> ordered) {
+        if (positions.isEmpty()) {
+            System.out.println("Portfolio is empty.");
+            System.out.printf("Cash: $%.2f%n", getCash());
+        } else {
+            System.out.println("\n\nPortfolio:");
+            System.out.printf("%-10s %-20s %-10s %-10s %-10s %-10s %-10s%n", "Symbol", "Name", "Avg Cost", "Price", "Quantity", "Value", "P&L");
+            for (Position position : ordered) {
+                System.out.printf("%-10s %-20s %-10.2f %-10.2f %-10d %-10.2f %-10.2f%n",
+                        position.getSymbol(), position.getName(), position.getAveragePrice(), position.getMarkPrice(),
+                        position.getQuantity(), position.getMarketValue(), position.getMarketValue() - position.getCost());
+            }
+            System.out.printf("%nCash: $%.2f%n", getCash());
+            System.out.println("Total Portfolio Value: $" + getTotalValue());
+            System.out.printf("Unrealized P&L: $%.2f%n", getUnrealizedPnl());
+        }
+    }
+}
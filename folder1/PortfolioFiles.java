@@ -0,0 +1,291 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+// Reads and writes portfolio snapshots in either of two formats:
+//
+//   text    "#seq=N" then one "SYM;Name;price;qty" line per lot; the name is
+//           left empty on every lot after the first of a symbol
+//   binary  a fixed header, a table of the instruments in the file, then one
+//           24-byte record per lot (instrument, quantity, price in ticks,
+//           timestamp), all little-endian
+//
+// Binary files are read through a memory map: each instrument's strings are
+// decoded once, and the lot records are read in place with no per-lot parsing
+// or garbage. read() detects the format from the first bytes of the file.
+class PortfolioFiles {
+    static final String TEXT_EXTENSION = ".txt";
+    static final String BINARY_EXTENSION = ".pfb";
+    private static final String SEQ_HEADER = "#seq=";
+
+    // "PFB1" as little-endian bytes.
+    private static final int MAGIC = 0x31424650;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 24;
+    private static final long MAX_MAP = (Integer.MAX_VALUE / RECORD_SIZE) * (long) RECORD_SIZE;
+
+    interface LotHandler {
+        void lot(String symbol, String name, long priceTicks, int quantity, long timestamp);
+    }
+
+    static boolean isBinary(Path path) throws IOException {
+        if (!Files.exists(path) || Files.size(path) < HEADER_SIZE) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(magic, 0);
+            return magic.getInt(0) == MAGIC;
+        }
+    }
+
+    // Feeds every lot in the file to handler and returns the snapshot's
+    // journal sequence number. Bad text lines are skipped and reported.
+    static long read(Path path, LotHandler handler) throws IOException {
+        return read(path, handler, System.out::println);
+    }
+
+    static long read(Path path, LotHandler handler, Consumer<String> problems) throws IOException {
+        return isBinary(path) ? readBinary(path, handler) : readText(path, handler, problems);
+    }
+
+    static long readText(Path path, LotHandler handler, Consumer<String> problems) throws IOException {
+        long snapshotSeq = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            String lastSymbol = null;
+            String lastName = null;
+            int lineCount = 0;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                if (line.startsWith(SEQ_HEADER)) {
+                    snapshotSeq = Long.parseLong(line.substring(SEQ_HEADER.length()));
+                    continue;
+                }
+                String[] parts = line.split(";");
+                if (parts.length == 4 && parts[1].isEmpty() && parts[0].equals(lastSymbol)) {
+                    parts[1] = lastName;
+                }
+                if (parts.length != 4 || parts[1].isEmpty()) {
+                    problems.accept("Invalid data format in portfolio file at line " + lineCount + ": " + line + ". Skipping.");
+                    continue;
+                }
+                try {
+                    handler.lot(parts[0], parts[1], MatchingEngine.toTicks(Double.parseDouble(parts[2])), Integer.parseInt(parts[3]), 0);
+                    lastSymbol = parts[0];
+                    lastName = parts[1];
+                } catch (NumberFormatException e) {
+                    problems.accept("Error parsing data in portfolio file at line " + lineCount + ": " + line + ". Skipping.");
+                }
+            }
+        }
+        return snapshotSeq;
+    }
+
+    static long readBinary(Path path, LotHandler handler) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                throw new IOException("Not a version " + VERSION + " binary portfolio: " + path);
+            }
+            long snapshotSeq = header.getLong(8);
+            int instrumentCount = header.getInt(16);
+            long lotCount = header.getLong(24);
+
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+            map.order(ByteOrder.LITTLE_ENDIAN).position(HEADER_SIZE);
+            String[] symbols = new String[instrumentCount];
+            String[] names = new String[instrumentCount];
+            for (int i = 0; i < instrumentCount; i++) {
+                symbols[i] = getString(map);
+                names[i] = getString(map);
+            }
+            long recordStart = align(map.position());
+            if (recordStart + lotCount * RECORD_SIZE > size) {
+                throw new IOException("Binary portfolio is truncated: " + path);
+            }
+
+            long done = 0;
+            while (done < lotCount) {
+                long offset = recordStart + done * RECORD_SIZE;
+                long chunk = Math.min((lotCount - done) * RECORD_SIZE, MAX_MAP);
+                MappedByteBuffer records = offset + chunk <= map.capacity() ? map
+                        : channel.map(FileChannel.MapMode.READ_ONLY, offset, chunk);
+                int base = records == map ? (int) offset : 0;
+                records.order(ByteOrder.LITTLE_ENDIAN);
+                for (int r = 0; r < chunk / RECORD_SIZE; r++) {
+                    int at = base + r * RECORD_SIZE;
+                    int instrument = records.getInt(at);
+                    if (instrument < 0 || instrument >= instrumentCount) {
+                        throw new IOException("Bad instrument id " + instrument + " in " + path);
+                    }
+                    handler.lot(symbols[instrument], names[instrument], records.getLong(at + 8),
+                            records.getInt(at + 4), records.getLong(at + 16));
+                }
+                done += chunk / RECORD_SIZE;
+            }
+            return snapshotSeq;
+        }
+    }
+
+    // Writes a full snapshot to the channel; the caller forces and renames it.
+    static void write(FileChannel channel, long snapshotSeq, Collection<Position> positions, boolean binary) throws IOException {
+        if (binary) {
+            writeBinary(channel, snapshotSeq, positions);
+            return;
+        }
+        BufferedWriter writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+        writer.write(SEQ_HEADER + snapshotSeq);
+        writer.newLine();
+        for (Position position : positions) {
+            String symbol = position.getSymbol();
+            for (int i = 0; i < position.getLotCount(); i++) {
+                writer.write(symbol + ";" + (i == 0 ? position.getName() : "") + ";"
+                        + MatchingEngine.toPrice(position.getLotPrice(i)) + ";" + position.getLotQuantity(i));
+                writer.newLine();
+            }
+        }
+        writer.flush();
+    }
+
+    static void writeBinary(FileChannel channel, long snapshotSeq, Collection<Position> positions) throws IOException {
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        DataOutputStream tableOut = new DataOutputStream(table);
+        long lotCount = 0;
+        for (Position position : positions) {
+            putString(tableOut, position.getSymbol());
+            putString(tableOut, position.getName());
+            lotCount += position.getLotCount();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(snapshotSeq).putInt(positions.size()).putInt(0).putLong(lotCount);
+        drain(channel, buffer);
+        ByteBuffer tableBytes = ByteBuffer.wrap(table.toByteArray());
+        while (tableBytes.hasRemaining()) {
+            channel.write(tableBytes);
+        }
+        long padding = align(HEADER_SIZE + table.size()) - (HEADER_SIZE + table.size());
+        for (int i = 0; i < padding; i++) {
+            buffer.put((byte) 0);
+        }
+        int instrument = 0;
+        for (Position position : positions) {
+            for (int i = 0; i < position.getLotCount(); i++) {
+                if (buffer.remaining() < RECORD_SIZE) {
+                    drain(channel, buffer);
+                }
+                buffer.putInt(instrument).putInt(position.getLotQuantity(i))
+                        .putLong(position.getLotPrice(i)).putLong(position.getLotTimestamp(i));
+            }
+            instrument++;
+        }
+        drain(channel, buffer);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Binary portfolio header is truncated");
+            }
+        }
+    }
+
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(Short.reverseBytes((short) bytes.length));
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    // Reads a snapshot in either format into positions, keyed by symbol.
+    private static long readPositions(Path path, Map<String, Position> positions) throws IOException {
+        return read(path, (symbol, name, priceTicks, quantity, timestamp) ->
+                positions.computeIfAbsent(symbol, s -> new Position(symbol, name)).buy(priceTicks, quantity, timestamp));
+    }
+
+    private static void convert(Path from, Path to, boolean binary) throws IOException {
+        Map<String, Position> positions = new LinkedHashMap<>();
+        long snapshotSeq = readPositions(from, positions);
+        try (FileChannel channel = FileChannel.open(to, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, snapshotSeq, positions.values(), binary);
+            channel.force(true);
+        }
+    }
+
+    // java PortfolioFiles toBinary <in> <out.pfb>
+    // java PortfolioFiles toText <in> <out.txt>
+    //   converts a snapshot; the input format is detected.
+    // java PortfolioFiles bench [lots]
+    //   writes a portfolio of that many lots in both formats to a temp
+    //   directory and times reading each back.
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && (args[0].equals("toBinary") || args[0].equals("toText"))) {
+            convert(Paths.get(args[1]), Paths.get(args[2]), args[0].equals("toBinary"));
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("bench")) {
+            bench(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+            return;
+        }
+        System.out.println("usage: PortfolioFiles toBinary|toText <in> <out> | bench [lots]");
+    }
+
+    private static void bench(int lots) throws IOException {
+        Path dir = Files.createTempDirectory("portfolio-files");
+        Map<String, Position> positions = new LinkedHashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < lots; i++) {
+            String symbol = "SYM" + random.nextInt(500);
+            positions.computeIfAbsent(symbol, s -> new Position(symbol, "Company " + symbol))
+                    .buy(1_000 + random.nextInt(100_000), 1 + random.nextInt(100), 1_700_000_000_000L + i);
+        }
+        Path text = dir.resolve("bench" + TEXT_EXTENSION);
+        Path binary = dir.resolve("bench" + BINARY_EXTENSION);
+        for (Path path : new Path[] {text, binary}) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                write(channel, 0, positions.values(), path == binary);
+            }
+        }
+        positions = null;
+        for (int pass = 0; pass < 3; pass++) {
+            for (Path path : new Path[] {text, binary}) {
+                long[] quantity = new long[1];
+                long start = System.nanoTime();
+                read(path, (symbol, name, priceTicks, q, timestamp) -> quantity[0] += q);
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("pass %d %-6s %,d lots, %,d bytes: %.1f ms (%,.0f lots/s)%n", pass + 1,
+                        path == binary ? "binary" : "text", lots, Files.size(path), elapsed / 1e6, lots * 1e9 / elapsed);
+            }
+        }
+        Files.delete(text);
+        Files.delete(binary);
+        Files.delete(dir);
+    }
+}
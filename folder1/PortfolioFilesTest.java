@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// The two snapshot formats and the converter between them: a binary
+// snapshot reads back every lot with its time and the journal sequence
+// number, a text snapshot every lot but the times, converting text to binary
+// and back changes nothing else, and a damaged file is reported rather than
+// half read. Files go to a temp directory.
+//
+//   java PortfolioFilesTest
+class PortfolioFilesTest {
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("portfolio-files-test");
+        boolean passed = Checks.run("PortfolioFilesTest",
+                () -> binaryKeepsEveryField(dir),
+                () -> textDropsOnlyTimestamps(dir),
+                () -> converterRoundTrips(dir),
+                () -> damageIsReported(dir));
+        Checks.delete(dir);
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    static void binaryKeepsEveryField(Path dir) throws IOException {
+        Path path = dir.resolve("lots" + PortfolioFiles.BINARY_EXTENSION);
+        write(path, 42, sample(), true);
+        Checks.check(PortfolioFiles.isBinary(path), "binary file is detected");
+        List<String> lots = new ArrayList<>();
+        long seq = PortfolioFiles.read(path, collect(lots, true));
+        Checks.check(seq == 42, "sequence number survives, got " + seq);
+        Checks.check(lots.equals(expected(true)), "every lot survives, got " + lots);
+    }
+
+    // Text has no column for the time a lot was bought, and names only the
+    // first lot of each symbol.
+    static void textDropsOnlyTimestamps(Path dir) throws IOException {
+        Path path = dir.resolve("lots" + PortfolioFiles.TEXT_EXTENSION);
+        write(path, 7, sample(), false);
+        Checks.check(!PortfolioFiles.isBinary(path), "text file is not taken for binary");
+        List<String> file = Files.readAllLines(path, StandardCharsets.UTF_8);
+        Checks.check(file.get(0).equals("#seq=7") && file.get(2).startsWith("PFA;;"), "text layout, got " + file);
+        List<String> lots = new ArrayList<>();
+        Checks.check(PortfolioFiles.read(path, collect(lots, false)) == 7, "sequence number survives");
+        Checks.check(lots.equals(expected(false)), "lots survive without times, got " + lots);
+    }
+
+    // toBinary then toText through main(), as an operator would run them.
+    static void converterRoundTrips(Path dir) throws IOException {
+        Path text = dir.resolve("source" + PortfolioFiles.TEXT_EXTENSION);
+        Path binary = dir.resolve("converted" + PortfolioFiles.BINARY_EXTENSION);
+        Path back = dir.resolve("back" + PortfolioFiles.TEXT_EXTENSION);
+        write(text, 3, sample(), false);
+        PortfolioFiles.main(new String[] {"toBinary", text.toString(), binary.toString()});
+        Checks.check(PortfolioFiles.isBinary(binary), "converter writes binary");
+        List<String> lots = new ArrayList<>();
+        Checks.check(PortfolioFiles.read(binary, collect(lots, false)) == 3, "converter keeps the sequence number");
+        Checks.check(lots.equals(expected(false)), "converter keeps every lot, got " + lots);
+        PortfolioFiles.main(new String[] {"toText", binary.toString(), back.toString()});
+        Checks.check(Files.readAllLines(back).equals(Files.readAllLines(text)), "text to binary and back is unchanged");
+    }
+
+    static void damageIsReported(Path dir) throws IOException {
+        Path binary = dir.resolve("cut" + PortfolioFiles.BINARY_EXTENSION);
+        write(binary, 1, sample(), true);
+        try (FileChannel channel = FileChannel.open(binary, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 10);
+        }
+        try {
+            PortfolioFiles.read(binary, (symbol, name, price, quantity, timestamp) -> { });
+            Checks.check(false, "truncated binary file is refused");
+        } catch (IOException expected) {
+            // Reported before any lot is handed out.
+        }
+
+        Path text = dir.resolve("bad" + PortfolioFiles.TEXT_EXTENSION);
+        Files.write(text, List.of("#seq=5", "PFA;Alpha;10.5;3", "PFB;Beta;not-a-price;1", "garbage", "PFA;;11.0;2"));
+        List<String> lots = new ArrayList<>();
+        List<String> problems = new ArrayList<>();
+        PortfolioFiles.readText(text, collect(lots, false), problems::add);
+        Checks.check(lots.equals(List.of("PFA Alpha 1050 x3 @0", "PFA Alpha 1100 x2 @0")), "good lines are kept, got " + lots);
+        Checks.check(problems.size() == 2, "both bad lines are reported, got " + problems);
+    }
+
+    // Two lots of one symbol and one of another, bought at known times.
+    private static Collection<Position> sample() {
+        Position alpha = new Position("PFA", "Alpha Corp");
+        alpha.buy(1_050, 3, 1_700_000_000_000L);
+        alpha.buy(1_100, 2, 1_700_000_060_000L);
+        Position beta = new Position("PFB", "Beta Inc");
+        beta.buy(99, 1_000, 1_700_000_120_000L);
+        return List.of(alpha, beta);
+    }
+
+    private static List<String> expected(boolean withTimes) {
+        return List.of("PFA Alpha Corp 1050 x3 @" + (withTimes ? 1_700_000_000_000L : 0),
+                "PFA Alpha Corp 1100 x2 @" + (withTimes ? 1_700_000_060_000L : 0),
+                "PFB Beta Inc 99 x1000 @" + (withTimes ? 1_700_000_120_000L : 0));
+    }
+
+    private static PortfolioFiles.LotHandler collect(List<String> lots, boolean withTimes) {
+        return (symbol, name, priceTicks, quantity, timestamp) ->
+                lots.add(symbol + " " + name + " " + priceTicks + " x" + quantity + " @" + (withTimes ? timestamp : 0));
+    }
+
+    private static void write(Path path, long seq, Collection<Position> positions, boolean binary) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            PortfolioFiles.write(channel, seq, positions, binary);
+        }
+    }
+}
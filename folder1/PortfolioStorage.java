@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+// Where one user's portfolio snapshot and trade journal are kept. Local is a
+// directory of this process, portfolio_files/ unless sharding is on;
+// ShardRouter hands out storages that forward every call to the ShardWorker
+// process that owns the user. Portfolio serializes its calls.
+interface PortfolioStorage {
+    // Feeds the snapshot's lots and then every journal record written since
+    // it. Returns false if the snapshot could not be read; the journal is
+    // replayed either way.
+    boolean load(PortfolioFiles.LotHandler lots, Consumer<String[]> records);
+
+    // Appends one record and waits until it is durable.
+    void append(String record) throws IOException;
+
+    // Appends without waiting; sync() makes everything appended so far durable.
+    void appendDeferred(String record) throws IOException;
+
+    void sync() throws IOException;
+
+    // Replaces the snapshot with positions, which cover every record appended
+    // so far, and empties the journal.
+    void save(Collection<Position> positions) throws IOException;
+
+    int getRecordsSinceSnapshot();
+
+    void close();
+
+    // "<user>.txt" or "<user>.pfb" snapshots next to a "<user>.journal".
+    class Local implements PortfolioStorage {
+        static final String JOURNAL_EXTENSION = ".journal";
+
+        private final Path directory;
+        private final String username;
+        private final TradeJournal journal;
+        private boolean binary;
+
+        Local(Path directory, String username) {
+            this.directory = directory;
+            this.username = username;
+            this.journal = new TradeJournal(directory.resolve(username + JOURNAL_EXTENSION).toString());
+        }
+
+        private Path snapshot() {
+            return directory.resolve(username + (binary ? PortfolioFiles.BINARY_EXTENSION : PortfolioFiles.TEXT_EXTENSION));
+        }
+
+        // A binary snapshot wins over a text one; a new portfolio is text unless
+        // -Dportfolio.binary=true. Either way the file's own header decides how it
+        // is parsed, and later saves keep the format it was loaded in.
+        public boolean load(PortfolioFiles.LotHandler lots, Consumer<String[]> records) {
+            Path binaryFile = directory.resolve(username + PortfolioFiles.BINARY_EXTENSION);
+            Path textFile = directory.resolve(username + PortfolioFiles.TEXT_EXTENSION);
+            long snapshotSeq = 0;
+            boolean ok = true;
+            try {
+                Files.createDirectories(directory);
+                Path source;
+                if (Files.exists(binaryFile)) {
+                    source = binaryFile;
+                    binary = true;
+                } else if (Files.exists(textFile)) {
+                    source = textFile;
+                    binary = PortfolioFiles.isBinary(textFile);
+                } else {
+                    binary = Boolean.getBoolean("portfolio.binary");
+                    source = null;
+                    if (!binary) {
+                        Files.createFile(textFile);
+                    }
+                }
+                if (source != null) {
+                    snapshotSeq = PortfolioFiles.read(source, lots);
+                    if (Metrics.ENABLED) {
+                        Metrics.addBytes("portfolio.read", Files.size(source));
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                System.out.println("Error loading portfolio: " + e.getMessage());
+                ok = false;
+            }
+            if (!journal.replay(snapshotSeq, records)) {
+                System.out.println("Skipped damaged journal records for " + username + ".");
+            }
+            return ok;
+        }
+
+        public void append(String record) throws IOException {
+            journal.append(record);
+        }
+
+        public void appendDeferred(String record) throws IOException {
+            journal.appendDeferred(record);
+        }
+
+        public void sync() throws IOException {
+            journal.sync();
+        }
+
+        // Writes a full snapshot next to the live file and swaps it in, so a crash
+        // leaves either the old or the new snapshot, never a half-written one.
+        public void save(Collection<Position> positions) throws IOException {
+            Path target = snapshot();
+            Path temp = Paths.get(target + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                PortfolioFiles.write(channel, journal.getLastSeq(), positions, binary);
+                channel.force(true);
+                if (Metrics.ENABLED) {
+                    Metrics.addBytes("portfolio.write", channel.size());
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journal.reset();
+        }
+
+        public int getRecordsSinceSnapshot() {
+            return journal.getRecordsSinceSnapshot();
+        }
+
+        public void close() {
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+// Everything a portfolio holds in one instrument. The individual purchase
+// lots are kept underneath so that sells can consume them FIFO or LIFO and the
+// cost basis stays exact; quantity and cost are running totals over those lots.
+//
+// The instrument is held as its Instruments id, and every amount is in price
+// ticks (1/MatchingEngine.PRICE_SCALE), so sums never drift. Lots are packed
+// into a ring of parallel primitive arrays, 20 bytes a lot, rather than one
+// object each; lot(i) walks them oldest first.
+class Position {
+    enum LotMethod { FIFO, LIFO }
+
+    private final int instrument;
+    private long[] lotPrices;
+    private long[] lotTimestamps;
+    private int[] lotQuantities;
+    // Index of the oldest lot in the ring, and the number of lots held.
+    private int head;
+    private int lotCount;
+    private int quantity;
+    private long costTicks;
+    private long markTicks;
+
+    public Position(int instrument) {
+        this.instrument = instrument;
+        this.lotPrices = new long[2];
+        this.lotTimestamps = new long[2];
+        this.lotQuantities = new int[2];
+    }
+
+    public Position(String symbol, String name) {
+        this(Instruments.register(symbol, name));
+    }
+
+    public int getInstrument() {
+        return instrument;
+    }
+
+    public String getSymbol() {
+        return Instruments.symbol(instrument);
+    }
+
+    public String getName() {
+        return Instruments.name(instrument);
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public long getCostTicks() {
+        return costTicks;
+    }
+
+    public long getMarkTicks() {
+        return markTicks;
+    }
+
+    public long getMarketValueTicks() {
+        return markTicks * quantity;
+    }
+
+    public double getCost() {
+        return MatchingEngine.toPrice(costTicks);
+    }
+
+    public double getAveragePrice() {
+        return quantity == 0 ? 0 : MatchingEngine.toPrice(costTicks) / quantity;
+    }
+
+    public double getMarkPrice() {
+        return MatchingEngine.toPrice(markTicks);
+    }
+
+    public double getMarketValue() {
+        return MatchingEngine.toPrice(getMarketValueTicks());
+    }
+
+    public int getLotCount() {
+        return lotCount;
+    }
+
+    // Price in ticks of the i-th lot, oldest first.
+    public long getLotPrice(int i) {
+        return lotPrices[slot(i)];
+    }
+
+    public int getLotQuantity(int i) {
+        return lotQuantities[slot(i)];
+    }
+
+    // When the i-th lot was bought, in epoch millis; 0 if the record it came from had no time.
+    public long getLotTimestamp(int i) {
+        return lotTimestamps[slot(i)];
+    }
+
+    public boolean isEmpty() {
+        return quantity == 0;
+    }
+
+    private int slot(int i) {
+        return (head + i) & (lotPrices.length - 1);
+    }
+
+    void buy(long priceTicks, int quantity, long timestamp) {
+        if (lotCount == lotPrices.length) {
+            grow();
+        }
+        int slot = slot(lotCount);
+        lotPrices[slot] = priceTicks;
+        lotQuantities[slot] = quantity;
+        lotTimestamps[slot] = timestamp;
+        lotCount++;
+        this.quantity += quantity;
+        this.costTicks += priceTicks * quantity;
+        this.markTicks = priceTicks;
+    }
+
+    // Doubles the ring, unrolling it so the oldest lot is at slot 0 again.
+    private void grow() {
+        int capacity = lotPrices.length * 2;
+        long[] prices = new long[capacity];
+        long[] timestamps = new long[capacity];
+        int[] quantities = new int[capacity];
+        for (int i = 0; i < lotCount; i++) {
+            int slot = slot(i);
+            prices[i] = lotPrices[slot];
+            timestamps[i] = lotTimestamps[slot];
+            quantities[i] = lotQuantities[slot];
+        }
+        lotPrices = prices;
+        lotTimestamps = timestamps;
+        lotQuantities = quantities;
+        head = 0;
+    }
+
+    // Removes quantity from the lots in the order given by method and returns
+    // the cost basis in ticks that was taken out. The caller checks the quantity first.
+    long sell(int quantity, LotMethod method) {
+        long removedCost = 0;
+        int remaining = quantity;
+        while (remaining > 0) {
+            int slot = method == LotMethod.FIFO ? head : slot(lotCount - 1);
+            int taken = Math.min(remaining, lotQuantities[slot]);
+            lotQuantities[slot] -= taken;
+            removedCost += lotPrices[slot] * taken;
+            remaining -= taken;
+            if (lotQuantities[slot] == 0) {
+                if (method == LotMethod.FIFO) {
+                    head = (head + 1) & (lotPrices.length - 1);
+                }
+                lotCount--;
+            }
+        }
+        this.quantity -= quantity;
+        this.costTicks -= removedCost;
+        return removedCost;
+    }
+
+    void setMarkTicks(long markTicks) {
+        this.markTicks = markTicks;
+    }
+
+    public Stock toStock() {
+        return new Stock(getSymbol(), getName(), getAveragePrice(), quantity);
+    }
+}
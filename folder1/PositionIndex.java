@@ -0,0 +1,160 @@
+import java.util.*;
+
+// Secondary indexes over a portfolio's positions, one tree per sort key,
+// kept current on every buy, sell and mark. Sorted iteration, top-k and range
+// queries read straight off a tree in O(log n + k) and never touch the
+// portfolio's own storage order.
+//
+// Positions are mutable, so each tree holds a snapshot of the key values; an
+// update swaps the old snapshot for a new one in O(log n) per tree. A price
+// mark only moves the value and P&L keys, so mark() re-sorts the entry in
+// just those two trees, in place.
+// Not thread-safe: Portfolio calls it under its own lock.
+class PositionIndex {
+    enum Key { SYMBOL, PRICE, QUANTITY, VALUE, PNL }
+
+    private static final class Entry {
+        final Position position;
+        final String symbol;
+        final double price;
+        final double quantity;
+        // Changed by mark(), only while the entry is out of the value and P&L trees.
+        double value;
+        double pnl;
+
+        Entry(Position position) {
+            this.position = position;
+            this.symbol = position.getSymbol();
+            this.price = position.getAveragePrice();
+            this.quantity = position.getQuantity();
+            this.value = position.getMarketValue();
+            this.pnl = position.getMarketValue() - position.getCost();
+        }
+
+        // Bounds for range queries: sorts before or after every real entry
+        // with the same key value.
+        Entry(double key, String symbol) {
+            this.position = null;
+            this.symbol = symbol;
+            this.price = key;
+            this.quantity = key;
+            this.value = key;
+            this.pnl = key;
+        }
+
+        double get(Key key) {
+            switch (key) {
+                case PRICE:
+                    return price;
+                case QUANTITY:
+                    return quantity;
+                case VALUE:
+                    return value;
+                case PNL:
+                    return pnl;
+                default:
+                    throw new IllegalArgumentException("No numeric value for " + key);
+            }
+        }
+    }
+
+    private static final String LOWEST = "";
+    private static final String HIGHEST = "\uFFFF";
+
+    private final Map<String, Entry> entries;
+    private final EnumMap<Key, TreeSet<Entry>> trees;
+    private final TreeSet<Entry> byValue;
+    private final TreeSet<Entry> byPnl;
+
+    public PositionIndex() {
+        this.entries = new HashMap<>();
+        this.trees = new EnumMap<>(Key.class);
+        for (Key key : Key.values()) {
+            Comparator<Entry> bySymbol = Comparator.comparing(entry -> entry.symbol);
+            trees.put(key, new TreeSet<>(key == Key.SYMBOL ? bySymbol
+                    : Comparator.<Entry>comparingDouble(entry -> entry.get(key)).thenComparing(bySymbol)));
+        }
+        this.byValue = trees.get(Key.VALUE);
+        this.byPnl = trees.get(Key.PNL);
+    }
+
+    // Re-indexes the position after any change to it; empty positions are dropped.
+    public void update(Position position) {
+        remove(position.getSymbol());
+        if (position.isEmpty()) {
+            return;
+        }
+        Entry entry = new Entry(position);
+        entries.put(entry.symbol, entry);
+        for (TreeSet<Entry> tree : trees.values()) {
+            tree.add(entry);
+        }
+    }
+
+    // Re-indexes the position after its mark changed and nothing else did.
+    public void mark(Position position) {
+        Entry entry = entries.get(position.getSymbol());
+        if (entry == null) {
+            update(position);
+            return;
+        }
+        byValue.remove(entry);
+        byPnl.remove(entry);
+        entry.value = position.getMarketValue();
+        entry.pnl = entry.value - position.getCost();
+        byValue.add(entry);
+        byPnl.add(entry);
+    }
+
+    public void remove(String symbol) {
+        Entry old = entries.remove(symbol);
+        if (old != null) {
+            for (TreeSet<Entry> tree : trees.values()) {
+                tree.remove(old);
+            }
+        }
+    }
+
+    public void clear() {
+        entries.clear();
+        for (TreeSet<Entry> tree : trees.values()) {
+            tree.clear();
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public List<Position> sorted(Key key, boolean descending) {
+        TreeSet<Entry> tree = trees.get(key);
+        return collect(descending ? tree.descendingSet() : tree, Integer.MAX_VALUE);
+    }
+
+    // The k largest positions by key, largest first.
+    public List<Position> top(Key key, int k) {
+        return collect(trees.get(key).descendingSet(), k);
+    }
+
+    // Positions whose key value lies in [min, max], ascending.
+    public List<Position> range(Key key, double min, double max) {
+        if (key == Key.SYMBOL) {
+            throw new IllegalArgumentException("Range queries need a numeric key");
+        }
+        if (min > max) {
+            return new ArrayList<>();
+        }
+        return collect(trees.get(key).subSet(new Entry(min, LOWEST), true, new Entry(max, HIGHEST), true), Integer.MAX_VALUE);
+    }
+
+    private static List<Position> collect(NavigableSet<Entry> view, int limit) {
+        List<Position> positions = new ArrayList<>();
+        for (Entry entry : view) {
+            if (positions.size() == limit) {
+                break;
+            }
+            positions.add(entry.position);
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.*;
+
+// PositionIndex against the obvious answer: after any mix of buys, sells and
+// marks, every sorted view, top-k and range query must list the same
+// positions in the same order as sorting the live positions from scratch.
+//
+//   java PositionIndexTest
+class PositionIndexTest {
+    public static void main(String[] args) {
+        if (!Checks.run("PositionIndexTest",
+                PositionIndexTest::queriesReadTheTrees,
+                PositionIndexTest::markMovesOnlyValueAndPnl,
+                PositionIndexTest::matchesAFullSortAfterEveryChange)) {
+            System.exit(1);
+        }
+    }
+
+    static void queriesReadTheTrees() {
+        PositionIndex index = new PositionIndex();
+        Position a = held("PIA", 1_000, 10);
+        Position b = held("PIB", 2_000, 5);
+        Position c = held("PIC", 500, 40);
+        index.update(a);
+        index.update(b);
+        index.update(c);
+
+        Checks.check(symbols(index.sorted(PositionIndex.Key.PRICE, false)).equals(List.of("PIC", "PIA", "PIB")), "ascending by price");
+        Checks.check(symbols(index.sorted(PositionIndex.Key.QUANTITY, true)).equals(List.of("PIC", "PIA", "PIB")), "descending by quantity");
+        // a and b are both worth 100.00; ties go by symbol.
+        Checks.check(symbols(index.sorted(PositionIndex.Key.VALUE, false)).equals(List.of("PIA", "PIB", "PIC")), "ties sort by symbol");
+        Checks.check(symbols(index.top(PositionIndex.Key.VALUE, 1)).equals(List.of("PIC")), "top 1 by value");
+        Checks.check(symbols(index.range(PositionIndex.Key.PRICE, 5.0, 10.0)).equals(List.of("PIC", "PIA")), "range includes both bounds");
+        Checks.check(index.range(PositionIndex.Key.PRICE, 11.0, 10.0).isEmpty(), "empty range");
+        try {
+            index.range(PositionIndex.Key.SYMBOL, 0, 1);
+            Checks.check(false, "range by symbol is refused");
+        } catch (IllegalArgumentException expected) {
+            // Symbols have no numeric value.
+        }
+
+        a.sell(10, Position.LotMethod.FIFO);
+        index.update(a);
+        Checks.check(index.size() == 2 && !symbols(index.sorted(PositionIndex.Key.SYMBOL, false)).contains("PIA"), "sold-out position is dropped");
+        index.remove("PIB");
+        index.remove("PIB");
+        Checks.check(symbols(index.sorted(PositionIndex.Key.PNL, false)).equals(List.of("PIC")), "removed position is gone");
+    }
+
+    // A new mark re-sorts value and P&L; the cost-based keys stay put.
+    static void markMovesOnlyValueAndPnl() {
+        PositionIndex index = new PositionIndex();
+        Position a = held("PMA", 1_000, 10);
+        Position b = held("PMB", 2_000, 10);
+        index.update(a);
+        index.update(b);
+        Checks.check(symbols(index.top(PositionIndex.Key.VALUE, 2)).equals(List.of("PMB", "PMA")), "b is worth more");
+
+        a.setMarkTicks(3_000);
+        index.mark(a);
+        Checks.check(symbols(index.top(PositionIndex.Key.VALUE, 2)).equals(List.of("PMA", "PMB")), "a is worth more after its mark");
+        Checks.check(symbols(index.top(PositionIndex.Key.PNL, 1)).equals(List.of("PMA")), "a has the best P&L");
+        Checks.check(symbols(index.range(PositionIndex.Key.PNL, 200.0, 200.0)).equals(List.of("PMA")), "a's P&L is 200.00");
+        Checks.check(symbols(index.top(PositionIndex.Key.PRICE, 2)).equals(List.of("PMB", "PMA")), "average price is unchanged");
+    }
+
+    // Random buys, sells and marks over a handful of symbols, checked against
+    // a from-scratch sort after each one.
+    static void matchesAFullSortAfterEveryChange() {
+        PositionIndex index = new PositionIndex();
+        Map<String, Position> positions = new TreeMap<>();
+        Random random = new Random(11);
+        for (int step = 0; step < 5_000; step++) {
+            String symbol = "PR" + random.nextInt(12);
+            Position position = positions.computeIfAbsent(symbol, s -> new Position(s, "Random " + s));
+            int action = random.nextInt(3);
+            if (action == 0 || position.isEmpty()) {
+                position.buy(100 + random.nextInt(5_000), 1 + random.nextInt(50), step);
+                index.update(position);
+            } else if (action == 1) {
+                position.sell(1 + random.nextInt(position.getQuantity()), random.nextBoolean() ? Position.LotMethod.FIFO : Position.LotMethod.LIFO);
+                index.update(position);
+            } else {
+                position.setMarkTicks(100 + random.nextInt(5_000));
+                index.mark(position);
+            }
+            for (PositionIndex.Key key : PositionIndex.Key.values()) {
+                List<String> expected = bruteForce(positions.values(), key);
+                Checks.check(symbols(index.sorted(key, false)).equals(expected), "step " + step + " by " + key);
+            }
+        }
+        List<String> byValue = bruteForce(positions.values(), PositionIndex.Key.VALUE);
+        Collections.reverse(byValue);
+        Checks.check(symbols(index.top(PositionIndex.Key.VALUE, 3)).equals(byValue.subList(0, Math.min(3, byValue.size()))), "top 3 by value");
+    }
+
+    private static List<String> bruteForce(Collection<Position> positions, PositionIndex.Key key) {
+        List<Position> live = new ArrayList<>();
+        for (Position position : positions) {
+            if (!position.isEmpty()) {
+                live.add(position);
+            }
+        }
+        Comparator<Position> bySymbol = Comparator.comparing(Position::getSymbol);
+        live.sort(key == PositionIndex.Key.SYMBOL ? bySymbol : Comparator.comparingDouble((Position p) -> value(p, key)).thenComparing(bySymbol));
+        return symbols(live);
+    }
+
+    private static double value(Position position, PositionIndex.Key key) {
+        switch (key) {
+            case PRICE:
+                return position.getAveragePrice();
+            case QUANTITY:
+                return position.getQuantity();
+            case VALUE:
+                return position.getMarketValue();
+            default:
+                return position.getMarketValue() - position.getCost();
+        }
+    }
+
+    private static Position held(String symbol, long priceTicks, int quantity) {
+        Position position = new Position(symbol, "Company " + symbol);
+        position.buy(priceTicks, quantity, 0);
+        return position;
+    }
+
+    private static List<String> symbols(List<Position> positions) {
+        List<String> symbols = new ArrayList<>();
+        for (Position position : positions) {
+            symbols.add(position.getSymbol());
+        }
+        return symbols;
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Latest price of every instrument, indexed by the engine's symbol id and held
+// in ticks of 1/PRICE_SCALE. One writer (the feed) and any number of readers
+// share it without locks: a read is two volatile loads, the segment and the
+// price. Segments are added as instruments are opened.
+class PriceTable {
+    interface TickListener {
+        void onTick(int symbolId, long oldTicks, long newTicks);
+    }
+
+    static final long NO_PRICE = 0;
+
+    private final SegmentedLongArray prices;
+    private final AtomicInteger size;
+    private final CopyOnWriteArrayList<TickListener> listeners;
+
+    public PriceTable() {
+        this(Instruments.MAX_INSTRUMENTS);
+    }
+
+    // Room for ids below capacity.
+    public PriceTable(int capacity) {
+        this.prices = new SegmentedLongArray(capacity);
+        this.size = new AtomicInteger();
+        this.listeners = new CopyOnWriteArrayList<>();
+    }
+
+    public int capacity() {
+        return prices.length();
+    }
+
+    // Number of ids that have ever had a price.
+    public int size() {
+        return size.get();
+    }
+
+    public long getTicks(int symbolId) {
+        return prices.get(symbolId);
+    }
+
+    public double getPrice(int symbolId) {
+        return MatchingEngine.toPrice(prices.get(symbolId));
+    }
+
+    public void addListener(TickListener listener) {
+        listeners.add(listener);
+    }
+
+    public void update(int symbolId, long ticks) {
+        long old = prices.getAndSet(symbolId, ticks);
+        size.accumulateAndGet(symbolId + 1, Math::max);
+        if (old == ticks) {
+            return;
+        }
+        for (TickListener listener : listeners) {
+            listener.onTick(symbolId, old, ticks);
+        }
+    }
+
+    // Sets the first price of a new instrument; later ticks come from the feed.
+    public void initialize(int symbolId, long ticks) {
+        if (prices.compareAndSet(symbolId, NO_PRICE, ticks)) {
+            size.accumulateAndGet(symbolId + 1, Math::max);
+            for (TickListener listener : listeners) {
+                listener.onTick(symbolId, NO_PRICE, ticks);
+            }
+        }
+    }
+}
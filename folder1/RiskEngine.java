@@ -0,0 +1,590 @@
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+// Market risk over daily price history: per-symbol log returns and
+// volatility, their covariance matrix, and for each portfolio the one-day
+// historical and Monte Carlo value at risk, volatility and beta against an
+// equal-weighted index of the universe.
+//
+// The engine is built once for a universe of symbols and shared by every
+// portfolio it assesses, which is what keeps a nightly run over all users
+// cheap: the returns, the covariance matrix and the Monte Carlo scenarios
+// (multivariate normal draws through the Cholesky factor of the covariance)
+// are computed once, and a portfolio then costs one weighted sum per history
+// day and one per scenario. Everything is primitive double arrays with one
+// row per symbol, scenarios included, so a portfolio's Monte Carlo pass is a
+// few sequential multiply-adds over long rows; covariance rows, scenarios and
+// portfolios are split across a ForkJoinPool.
+//
+// Returns are lined up by the date of each close, not by position, over the
+// most recent days any symbol closed on. A symbol that did not trade on one
+// of those days keeps its previous close, so its return is zero that day and
+// the move lands on the next day it traded. Every covered symbol has returns
+// for the same days: the window covers as many symbols as can give at least
+// MIN_OBSERVATIONS returns, and is as long as the newest of them allows. A
+// symbol listed too recently for that is left out, and the value held in it
+// is reported as uncovered rather than guessed at.
+//
+// Tuning: -Drisk.days (default 250), -Drisk.scenarios (default 10000),
+// -Drisk.confidence (default 0.99).
+class RiskEngine {
+    static final int TRADING_DAYS = 252;
+    static final int DAYS = Integer.getInteger("risk.days", 250);
+    static final int SCENARIOS = Integer.getInteger("risk.scenarios", 10_000);
+    static final double CONFIDENCE = Double.parseDouble(System.getProperty("risk.confidence", "0.99"));
+    private static final int MIN_OBSERVATIONS = 20;
+    private static final int SCENARIO_BLOCK = 256;
+
+    // Daily closes for a symbol, oldest first; fewer than asked for, or none,
+    // if that is all there is.
+    interface PriceSource {
+        Closes closes(String symbol, int days);
+    }
+
+    // Closing prices with the day each one is for, ascending. Days only have
+    // to be comparable across the symbols of one source.
+    static class Closes {
+        static final Closes NONE = new Closes(new long[0], new double[0]);
+
+        final long[] days;
+        final double[] prices;
+
+        Closes(long[] days, double[] prices) {
+            this.days = days;
+            this.prices = prices;
+        }
+    }
+
+    // Closes of the daily candles recorded in a TickHistory.
+    static class HistoryPrices implements PriceSource {
+        private final TickHistory history;
+
+        HistoryPrices(TickHistory history) {
+            this.history = history;
+        }
+
+        // Keyed by the candle's start, so a day a symbol did not trade is a gap.
+        public Closes closes(String symbol, int days) {
+            if (!history.contains(symbol)) {
+                return Closes.NONE;
+            }
+            List<TickHistory.Candle> candles = history.lastCandles(symbol, TickHistory.Interval.DAY, days);
+            long[] starts = new long[candles.size()];
+            double[] prices = new double[candles.size()];
+            for (int i = 0; i < prices.length; i++) {
+                starts[i] = candles.get(i).start;
+                prices[i] = MatchingEngine.toPrice(candles.get(i).close);
+            }
+            return new Closes(starts, prices);
+        }
+    }
+
+    // A one-factor market for testing without outside data: each symbol's
+    // daily log return is its own beta times a shared market return, plus its
+    // own noise, so the history has realistic correlations. A symbol always
+    // gets the same path for the same seed.
+    static class SyntheticPrices implements PriceSource {
+        private final long seed;
+        private final double[] market;
+
+        SyntheticPrices(long seed, int days) {
+            this.seed = seed;
+            this.market = new double[days];
+            SplittableRandom random = new SplittableRandom(seed);
+            for (int t = 0; t < days; t++) {
+                market[t] = 0.0003 + 0.01 * random.nextGaussian();
+            }
+        }
+
+        // Every symbol trades every day, numbered from 0.
+        public Closes closes(String symbol, int days) {
+            SplittableRandom random = new SplittableRandom(seed ^ symbol.hashCode() * 0x9E3779B97F4A7C15L);
+            double beta = 0.5 + random.nextDouble() * 1.5;
+            double noise = 0.005 + random.nextDouble() * 0.02;
+            double price = 5 + random.nextDouble() * 495;
+            int n = Math.min(days, market.length);
+            long[] dates = new long[n];
+            double[] closes = new double[n];
+            // The whole path is walked, so a shorter series is the tail of a longer one.
+            for (int t = 0; t < market.length; t++) {
+                price *= Math.exp(beta * market[t] + noise * random.nextGaussian());
+                if (t >= market.length - n) {
+                    dates[t - (market.length - n)] = t;
+                    closes[t - (market.length - n)] = price;
+                }
+            }
+            return new Closes(dates, closes);
+        }
+    }
+
+    // One user's positions as share counts, with what each cost; the cost
+    // stands in for the value of a position the engine has no history for.
+    static class Holdings {
+        final String user;
+        final String[] symbols;
+        final long[] quantities;
+        final double[] costs;
+
+        Holdings(String user, String[] symbols, long[] quantities, double[] costs) {
+            this.user = user;
+            this.symbols = symbols;
+            this.quantities = quantities;
+            this.costs = costs;
+        }
+    }
+
+    // Values in currency; VaR is the one-day loss not exceeded at the confidence level.
+    static class Report {
+        final String user;
+        final double value;
+        final double uncovered;
+        final double volatility;
+        final double historicalVar;
+        final double monteCarloVar;
+        final double beta;
+
+        Report(String user, double value, double uncovered, double volatility, double historicalVar, double monteCarloVar, double beta) {
+            this.user = user;
+            this.value = value;
+            this.uncovered = uncovered;
+            this.volatility = volatility;
+            this.historicalVar = historicalVar;
+            this.monteCarloVar = monteCarloVar;
+            this.beta = beta;
+        }
+
+        String toCsv() {
+            return String.format(Locale.ROOT, "%s,%.2f,%.2f,%.4f,%.2f,%.2f,%.3f", user, value, uncovered, volatility, historicalVar, monteCarloVar, beta);
+        }
+    }
+
+    // Runs body(i) for every i in [from, to), splitting down to grain-sized pieces.
+    private static class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final IntConsumer body;
+
+        Range(int from, int to, int grain, IntConsumer body) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.body = body;
+        }
+
+        protected void compute() {
+            if (to - from <= grain) {
+                for (int i = from; i < to; i++) {
+                    body.accept(i);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Range(from, middle, grain, body), new Range(middle, to, grain, body));
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final String[] symbols;
+    private final Map<String, Integer> index;
+    private final int universeSize;
+    private final int observations;
+    // [symbol][day], oldest first.
+    private final double[][] returns;
+    private final double[] lastPrices;
+    private final double[] means;
+    private final double[] volatilities;
+    private final double[][] covariance;
+    private final double[] market;
+    private final double marketVariance;
+    private final int scenarioCount;
+    // One row of scenarioCount simulated returns per symbol, flattened.
+    private final double[] scenarios;
+    private final double confidence;
+
+    RiskEngine(Collection<String> universe, PriceSource source, int days, int scenarioCount, double confidence, long seed, ForkJoinPool pool) {
+        this.pool = pool;
+        this.confidence = confidence;
+        this.universeSize = universe.size();
+        String[] requested = universe.toArray(new String[0]);
+        Closes[] closes = new Closes[requested.length];
+        pool.invoke(new Range(0, requested.length, 16, i -> closes[i] = source.closes(requested[i], days + 1)));
+
+        // The most recent days + 1 days any symbol closed on.
+        TreeSet<Long> seen = new TreeSet<>();
+        for (Closes series : closes) {
+            for (long day : series.days) {
+                seen.add(day);
+            }
+        }
+        long[] calendar = new long[Math.min(days + 1, seen.size())];
+        Iterator<Long> newest = seen.descendingIterator();
+        for (int c = calendar.length - 1; c >= 0; c--) {
+            calendar[c] = newest.next();
+        }
+        // A symbol is covered if it has a close on or before the day that
+        // still leaves MIN_OBSERVATIONS returns; the window then starts on
+        // the first day every covered symbol has a price for.
+        int latestStart = calendar.length - 1 - MIN_OBSERVATIONS;
+        int start = 0;
+        int covered = 0;
+        for (Closes series : closes) {
+            if (latestStart >= 0 && series.days.length > 0 && series.days[0] <= calendar[latestStart]) {
+                covered++;
+                start = Math.max(start, firstOnOrAfter(calendar, series.days[0]));
+            }
+        }
+        int n = covered;
+        int t = covered == 0 ? 0 : calendar.length - 1 - start;
+        this.observations = t;
+        this.symbols = new String[n];
+        this.index = new HashMap<>(n * 2);
+        this.returns = new double[n][];
+        this.lastPrices = new double[n];
+        for (int i = 0, k = 0; i < requested.length; i++) {
+            Closes series = closes[i];
+            if (latestStart < 0 || series.days.length == 0 || series.days[0] > calendar[latestStart]) {
+                continue;
+            }
+            double[] aligned = new double[t + 1];
+            int next = 0;
+            double price = series.prices[0];
+            for (int c = start; c < calendar.length; c++) {
+                while (next < series.days.length && series.days[next] <= calendar[c]) {
+                    price = series.prices[next++];
+                }
+                aligned[c - start] = price;
+            }
+            double[] logReturns = new double[t];
+            for (int d = 0; d < t; d++) {
+                logReturns[d] = Math.log(aligned[d + 1] / aligned[d]);
+            }
+            symbols[k] = requested[i];
+            index.put(requested[i], k);
+            returns[k] = logReturns;
+            lastPrices[k] = series.prices[series.prices.length - 1];
+            k++;
+        }
+
+        this.means = new double[n];
+        double[][] centered = new double[n][t];
+        for (int i = 0; i < n; i++) {
+            double sum = 0;
+            for (int d = 0; d < t; d++) {
+                sum += returns[i][d];
+            }
+            means[i] = sum / t;
+            for (int d = 0; d < t; d++) {
+                centered[i][d] = returns[i][d] - means[i];
+            }
+        }
+        this.covariance = new double[n][n];
+        // Row i fills the lower triangle up to the diagonal and mirrors it, so no two rows write the same cell.
+        pool.invoke(new Range(0, n, 4, i -> {
+            for (int j = 0; j <= i; j++) {
+                double sum = 0;
+                double[] a = centered[i];
+                double[] b = centered[j];
+                for (int d = 0; d < t; d++) {
+                    sum += a[d] * b[d];
+                }
+                covariance[i][j] = sum / (t - 1);
+                covariance[j][i] = covariance[i][j];
+            }
+        }));
+        this.volatilities = new double[n];
+        for (int i = 0; i < n; i++) {
+            volatilities[i] = Math.sqrt(covariance[i][i]);
+        }
+
+        this.market = new double[t];
+        for (int d = 0; d < t; d++) {
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += returns[i][d];
+            }
+            market[d] = n == 0 ? 0 : sum / n;
+        }
+        this.marketVariance = variance(market);
+
+        this.scenarioCount = n == 0 ? 0 : scenarioCount;
+        this.scenarios = new double[this.scenarioCount * n];
+        double[] cholesky = cholesky(covariance);
+        int blocks = (this.scenarioCount + SCENARIO_BLOCK - 1) / SCENARIO_BLOCK;
+        pool.invoke(new Range(0, blocks, 1, block -> {
+            SplittableRandom random = new SplittableRandom(seed + block);
+            double[] z = new double[n];
+            for (int s = block * SCENARIO_BLOCK; s < Math.min(this.scenarioCount, (block + 1) * SCENARIO_BLOCK); s++) {
+                for (int i = 0; i < n; i++) {
+                    z[i] = random.nextGaussian();
+                }
+                for (int i = 0; i < n; i++) {
+                    double x = means[i];
+                    int li = i * n;
+                    for (int k = 0; k <= i; k++) {
+                        x += cholesky[li + k] * z[k];
+                    }
+                    scenarios[i * this.scenarioCount + s] = x;
+                }
+            }
+        }));
+    }
+
+    // Index of the first calendar day not before day; calendar is ascending.
+    private static int firstOnOrAfter(long[] calendar, long day) {
+        int found = Arrays.binarySearch(calendar, day);
+        return found >= 0 ? found : -found - 1;
+    }
+
+    // Lower-triangular factor, row-major. A pivot that is not positive (a
+    // symbol that never moved, or rounding) is nudged up so the factor exists.
+    private static double[] cholesky(double[][] matrix) {
+        int n = matrix.length;
+        double[] l = new double[n * n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j <= i; j++) {
+                double sum = matrix[i][j];
+                for (int k = 0; k < j; k++) {
+                    sum -= l[i * n + k] * l[j * n + k];
+                }
+                if (i == j) {
+                    l[i * n + i] = Math.sqrt(Math.max(sum, 1e-12));
+                } else {
+                    l[i * n + j] = sum / l[j * n + j];
+                }
+            }
+        }
+        return l;
+    }
+
+    private static double variance(double[] values) {
+        if (values.length < 2) {
+            return 0;
+        }
+        double mean = 0;
+        for (double v : values) {
+            mean += v;
+        }
+        mean /= values.length;
+        double sum = 0;
+        for (double v : values) {
+            sum += (v - mean) * (v - mean);
+        }
+        return sum / (values.length - 1);
+    }
+
+    // The q-quantile of values by quickselect; reorders values.
+    static double quantile(double[] values, double q) {
+        int k = (int) Math.floor(q * (values.length - 1));
+        int lo = 0;
+        int hi = values.length - 1;
+        while (lo < hi) {
+            double pivot = values[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    double swap = values[i];
+                    values[i++] = values[j];
+                    values[j--] = swap;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                break;
+            }
+        }
+        return values[k];
+    }
+
+    public Report assess(Holdings holdings) {
+        int[] held = new int[holdings.symbols.length];
+        double[] values = new double[held.length];
+        int m = 0;
+        double value = 0;
+        double uncovered = 0;
+        for (int p = 0; p < holdings.symbols.length; p++) {
+            Integer i = index.get(holdings.symbols[p]);
+            if (i == null) {
+                uncovered += holdings.costs[p];
+                continue;
+            }
+            held[m] = i;
+            values[m] = holdings.quantities[p] * lastPrices[i];
+            value += values[m];
+            m++;
+        }
+        if (m == 0 || value <= 0) {
+            return new Report(holdings.user, value, uncovered, 0, 0, 0, 0);
+        }
+        double[] weights = new double[m];
+        for (int k = 0; k < m; k++) {
+            weights[k] = values[k] / value;
+        }
+
+        double[] daily = new double[observations];
+        for (int k = 0; k < m; k++) {
+            double w = weights[k];
+            double[] r = returns[held[k]];
+            for (int d = 0; d < observations; d++) {
+                daily[d] += w * r[d];
+            }
+        }
+        double beta = 0;
+        if (marketVariance > 0) {
+            double dailyMean = 0;
+            double marketMean = 0;
+            for (int d = 0; d < observations; d++) {
+                dailyMean += daily[d];
+                marketMean += market[d];
+            }
+            dailyMean /= observations;
+            marketMean /= observations;
+            double sum = 0;
+            for (int d = 0; d < observations; d++) {
+                sum += (daily[d] - dailyMean) * (market[d] - marketMean);
+            }
+            beta = sum / (observations - 1) / marketVariance;
+        }
+        double variance = 0;
+        for (int a = 0; a < m; a++) {
+            double[] row = covariance[held[a]];
+            double inner = 0;
+            for (int b = 0; b < m; b++) {
+                inner += weights[b] * row[held[b]];
+            }
+            variance += weights[a] * inner;
+        }
+        double historicalVar = loss(value, quantile(daily, 1 - confidence));
+
+        double[] simulated = new double[scenarioCount];
+        for (int k = 0; k < m; k++) {
+            double w = weights[k];
+            int row = held[k] * scenarioCount;
+            for (int s = 0; s < scenarioCount; s++) {
+                simulated[s] += w * scenarios[row + s];
+            }
+        }
+        double monteCarloVar = loss(value, quantile(simulated, 1 - confidence));
+        return new Report(holdings.user, value, uncovered, Math.sqrt(variance * TRADING_DAYS), historicalVar, monteCarloVar, beta);
+    }
+
+    // What a log return of r costs on value, never less than zero.
+    private static double loss(double value, double r) {
+        return Math.max(0, value * (1 - Math.exp(r)));
+    }
+
+    // Every portfolio, in parallel; reports come back in the same order.
+    public Report[] assessAll(List<Holdings> portfolios) {
+        Report[] reports = new Report[portfolios.size()];
+        pool.invoke(new Range(0, reports.length, 64, i -> reports[i] = assess(portfolios.get(i))));
+        return reports;
+    }
+
+    public int getCoveredSymbols() {
+        return symbols.length;
+    }
+
+    public int getUniverseSize() {
+        return universeSize;
+    }
+
+    public int getObservations() {
+        return observations;
+    }
+
+    // Annualized volatility of the symbol, or NaN if it is not covered.
+    public double getVolatility(String symbol) {
+        Integer i = index.get(symbol);
+        return i == null ? Double.NaN : volatilities[i] * Math.sqrt(TRADING_DAYS);
+    }
+
+    // Correlation of two covered symbols' daily returns, or NaN.
+    public double getCorrelation(String a, String b) {
+        Integer i = index.get(a);
+        Integer j = index.get(b);
+        if (i == null || j == null || volatilities[i] == 0 || volatilities[j] == 0) {
+            return Double.NaN;
+        }
+        return covariance[i][j] / (volatilities[i] * volatilities[j]);
+    }
+
+    // Sums and the largest Monte Carlo VaRs of a finished run.
+    static void summarize(Report[] reports, int top) {
+        double value = 0;
+        double uncovered = 0;
+        double historical = 0;
+        double monteCarlo = 0;
+        for (Report report : reports) {
+            value += report.value;
+            uncovered += report.uncovered;
+            historical += report.historicalVar;
+            monteCarlo += report.monteCarloVar;
+        }
+        System.out.printf("%,d portfolios: value %,.2f (%,.2f uncovered), summed 1-day VaR historical %,.2f, Monte Carlo %,.2f%n",
+                reports.length, value, uncovered, historical, monteCarlo);
+        Report[] sorted = reports.clone();
+        Arrays.sort(sorted, Comparator.comparingDouble((Report report) -> report.monteCarloVar).reversed());
+        System.out.printf("%-20s %14s %8s %14s %14s %7s%n", "User", "Value", "Vol", "Hist VaR", "MC VaR", "Beta");
+        for (Report report : Arrays.asList(sorted).subList(0, Math.min(top, sorted.length))) {
+            System.out.printf("%-20s %14.2f %7.1f%% %14.2f %14.2f %7.2f%n", report.user, report.value,
+                    report.volatility * 100, report.historicalVar, report.monteCarloVar, report.beta);
+        }
+    }
+
+    // java RiskEngine [users] [symbols] [positionsPerUser] [threads]
+    //   builds an engine over synthetic prices and assesses that many random
+    //   portfolios, timing each stage.
+    public static void main(String[] args) {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int symbolCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int positions = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<String> universe = new ArrayList<>(symbolCount);
+        for (int i = 0; i < symbolCount; i++) {
+            universe.add("SYN" + i);
+        }
+        long start = System.nanoTime();
+        RiskEngine engine = new RiskEngine(universe, new SyntheticPrices(42, DAYS + 1), DAYS, SCENARIOS, CONFIDENCE, 42, pool);
+        long built = System.nanoTime();
+        System.out.printf("engine: %d of %d symbols, %d days, %,d scenarios in %.1f ms on %d threads%n",
+                engine.getCoveredSymbols(), engine.getUniverseSize(), engine.getObservations(), SCENARIOS, (built - start) / 1e6, threads);
+        System.out.printf("SYN0 vol %.1f%%, SYN1 vol %.1f%%, correlation %.2f%n",
+                engine.getVolatility("SYN0") * 100, engine.getVolatility("SYN1") * 100, engine.getCorrelation("SYN0", "SYN1"));
+
+        Random random = new Random(7);
+        List<Holdings> portfolios = new ArrayList<>(users);
+        for (int u = 0; u < users; u++) {
+            String[] held = new String[positions];
+            long[] quantities = new long[positions];
+            double[] costs = new double[positions];
+            for (int p = 0; p < positions; p++) {
+                held[p] = universe.get(random.nextInt(symbolCount));
+                quantities[p] = 1 + random.nextInt(100);
+                costs[p] = quantities[p] * 100.0;
+            }
+            portfolios.add(new Holdings("user" + u, held, quantities, costs));
+        }
+        start = System.nanoTime();
+        Report[] reports = engine.assessAll(portfolios);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("assessed %,d portfolios of %d positions in %.1f ms (%,.0f portfolios/s)%n",
+                users, positions, elapsed / 1e6, users * 1e9 / elapsed);
+        summarize(reports, 5);
+        pool.shutdown();
+    }
+}
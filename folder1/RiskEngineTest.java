@@ -0,0 +1,196 @@
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+// RiskEngine's numbers against hand-computed ones on small, made-up price
+// histories: volatility, correlation and historical VaR from the returns;
+// Monte Carlo VaR close to the normal figure for one symbol; symbols with
+// too little history reported as uncovered; and closes lined up by date when
+// a symbol skips a day.
+//
+//   java RiskEngineTest
+class RiskEngineTest {
+    private static final int DAYS = 60;
+    private static final double CONFIDENCE = 0.99;
+
+    public static void main(String[] args) {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        boolean passed = Checks.run("RiskEngineTest",
+                RiskEngineTest::quantileIsTheOrderStatistic,
+                () -> statisticsMatchTheReturns(pool),
+                () -> monteCarloIsCloseToNormal(pool),
+                () -> shortHistoryIsUncovered(pool),
+                () -> gapsAreFilledByDate(pool));
+        pool.shutdown();
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    static void quantileIsTheOrderStatistic() {
+        Random random = new Random(3);
+        for (int n = 1; n < 200; n += 7) {
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++) {
+                values[i] = random.nextInt(20) - 10;
+            }
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+            for (double q : new double[] {0, 0.01, 0.5, 0.99, 1}) {
+                double expected = sorted[(int) Math.floor(q * (n - 1))];
+                Checks.check(RiskEngine.quantile(values.clone(), q) == expected, "quantile " + q + " of " + n);
+            }
+        }
+    }
+
+    // B is A at twice the price and C moves against A, so their returns are
+    // A's and minus A's.
+    static void statisticsMatchTheReturns(ForkJoinPool pool) {
+        Map<String, double[]> prices = new HashMap<>();
+        double[] a = path(DAYS + 1, 1);
+        prices.put("A", a);
+        prices.put("B", scaled(a, 2));
+        prices.put("C", inverse(a));
+        RiskEngine engine = new RiskEngine(List.of("A", "B", "C"), source(prices), DAYS, 1_000, CONFIDENCE, 1, pool);
+        Checks.check(engine.getCoveredSymbols() == 3 && engine.getObservations() == DAYS, "every symbol covered over " + DAYS + " days");
+
+        double[] returns = logReturns(a);
+        double volatility = Math.sqrt(sampleVariance(returns) * RiskEngine.TRADING_DAYS);
+        Checks.check(close(engine.getVolatility("A"), volatility), "volatility of A " + engine.getVolatility("A") + " vs " + volatility);
+        Checks.check(close(engine.getVolatility("B"), volatility), "B moves like A");
+        Checks.check(close(engine.getCorrelation("A", "B"), 1), "A and B correlate fully");
+        Checks.check(close(engine.getCorrelation("A", "C"), -1), "A and C move against each other");
+        Checks.check(Double.isNaN(engine.getVolatility("Z")) && Double.isNaN(engine.getCorrelation("A", "Z")), "unknown symbol is NaN");
+
+        RiskEngine.Holdings holdings = new RiskEngine.Holdings("u", new String[] {"A", "Z"}, new long[] {10, 5}, new double[] {900, 123});
+        RiskEngine.Report report = engine.assess(holdings);
+        double value = 10 * a[a.length - 1];
+        Checks.check(close(report.value, value), "value at the last close, got " + report.value);
+        Checks.check(report.uncovered == 123, "unknown symbol counts at cost, got " + report.uncovered);
+        double historical = value * (1 - Math.exp(RiskEngine.quantile(returns.clone(), 1 - CONFIDENCE)));
+        Checks.check(close(report.historicalVar, historical), "historical VaR " + report.historicalVar + " vs " + historical);
+        Checks.check(close(report.volatility, volatility), "one-symbol portfolio has the symbol's volatility");
+
+        RiskEngine.Holdings hedged = new RiskEngine.Holdings("h", new String[] {"A", "C"},
+                new long[] {10, Math.round(10 * a[a.length - 1] / prices.get("C")[DAYS])}, new double[] {0, 0});
+        Checks.check(engine.assess(hedged).volatility < volatility / 5, "opposite positions hedge each other");
+
+        RiskEngine.Report[] all = engine.assessAll(List.of(holdings, hedged));
+        Checks.check(all[0].historicalVar == report.historicalVar && all[1].user.equals("h"), "assessAll keeps order and agrees with assess");
+    }
+
+    // With one symbol the scenarios are normal draws with its mean and
+    // variance, so the Monte Carlo VaR lands near the closed form.
+    static void monteCarloIsCloseToNormal(ForkJoinPool pool) {
+        double[] a = path(DAYS + 1, 5);
+        RiskEngine engine = new RiskEngine(List.of("A"), source(Map.of("A", a)), DAYS, 20_000, CONFIDENCE, 9, pool);
+        double[] returns = logReturns(a);
+        double mean = Arrays.stream(returns).average().orElse(0);
+        double sigma = Math.sqrt(sampleVariance(returns));
+        double value = 100 * a[a.length - 1];
+        double expected = value * (1 - Math.exp(mean - 2.326 * sigma));
+        double var = engine.assess(new RiskEngine.Holdings("u", new String[] {"A"}, new long[] {100}, new double[] {0})).monteCarloVar;
+        Checks.check(Math.abs(var - expected) < expected * 0.1, "Monte Carlo VaR " + var + " vs normal " + expected);
+    }
+
+    // A symbol listed ten days ago cannot give 20 returns, so it is left out
+    // and does not shorten the window of the others.
+    static void shortHistoryIsUncovered(ForkJoinPool pool) {
+        Map<String, double[]> prices = new HashMap<>();
+        prices.put("A", path(DAYS + 1, 1));
+        prices.put("NEW", Arrays.copyOfRange(path(DAYS + 1, 2), DAYS - 10, DAYS + 1));
+        RiskEngine engine = new RiskEngine(List.of("A", "NEW"), source(prices), DAYS, 1_000, CONFIDENCE, 1, pool);
+        Checks.check(engine.getCoveredSymbols() == 1 && engine.getUniverseSize() == 2, "only A is covered");
+        Checks.check(engine.getObservations() == DAYS, "A keeps its whole window, got " + engine.getObservations());
+        RiskEngine.Report report = engine.assess(new RiskEngine.Holdings("u", new String[] {"NEW"}, new long[] {3}, new double[] {300}));
+        Checks.check(report.value == 0 && report.uncovered == 300 && report.historicalVar == 0, "value in NEW is uncovered");
+    }
+
+    // G did not trade on day 30: its close carries over, so the return that
+    // day is zero and the move lands on day 31, the next day it traded.
+    static void gapsAreFilledByDate(ForkJoinPool pool) {
+        double[] a = path(DAYS + 1, 1);
+        double[] g = path(DAYS + 1, 4);
+        RiskEngine.PriceSource source = (symbol, days) -> {
+            if (symbol.equals("A")) {
+                return tail(a, days);
+            }
+            long[] dates = new long[DAYS];
+            double[] closes = new double[DAYS];
+            for (int t = 0, k = 0; t <= DAYS; t++) {
+                if (t != 30) {
+                    dates[k] = t;
+                    closes[k++] = g[t];
+                }
+            }
+            return new RiskEngine.Closes(dates, closes);
+        };
+        RiskEngine engine = new RiskEngine(List.of("A", "G"), source, DAYS, 1_000, CONFIDENCE, 1, pool);
+        Checks.check(engine.getCoveredSymbols() == 2 && engine.getObservations() == DAYS, "both covered over every day");
+        double[] filled = g.clone();
+        filled[30] = filled[29];
+        double expected = Math.sqrt(sampleVariance(logReturns(filled)) * RiskEngine.TRADING_DAYS);
+        Checks.check(close(engine.getVolatility("G"), expected), "G's returns are lined up by date, vol "
+                + engine.getVolatility("G") + " vs " + expected);
+    }
+
+    // A deterministic but irregular walk starting at 100.
+    private static double[] path(int length, int seed) {
+        double[] prices = new double[length];
+        prices[0] = 100;
+        for (int t = 1; t < length; t++) {
+            prices[t] = prices[t - 1] * Math.exp(0.012 * Math.sin(t * 1.7 + seed) + 0.004 * ((t * seed) % 3 - 1));
+        }
+        return prices;
+    }
+
+    private static double[] scaled(double[] prices, double factor) {
+        double[] out = prices.clone();
+        for (int i = 0; i < out.length; i++) {
+            out[i] *= factor;
+        }
+        return out;
+    }
+
+    private static double[] inverse(double[] prices) {
+        double[] out = new double[prices.length];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = 10_000 / prices[i];
+        }
+        return out;
+    }
+
+    private static double[] logReturns(double[] prices) {
+        double[] returns = new double[prices.length - 1];
+        for (int i = 0; i < returns.length; i++) {
+            returns[i] = Math.log(prices[i + 1] / prices[i]);
+        }
+        return returns;
+    }
+
+    private static double sampleVariance(double[] values) {
+        double mean = Arrays.stream(values).average().orElse(0);
+        double sum = 0;
+        for (double v : values) {
+            sum += (v - mean) * (v - mean);
+        }
+        return sum / (values.length - 1);
+    }
+
+    // Full histories, numbered by day so that the last close is day length - 1.
+    private static RiskEngine.PriceSource source(Map<String, double[]> prices) {
+        return (symbol, days) -> prices.containsKey(symbol) ? tail(prices.get(symbol), days) : RiskEngine.Closes.NONE;
+    }
+
+    private static RiskEngine.Closes tail(double[] prices, int days) {
+        int n = Math.min(days, prices.length);
+        long[] dates = new long[n];
+        for (int i = 0; i < n; i++) {
+            dates[i] = DAYS + 1 - n + i;
+        }
+        return new RiskEngine.Closes(dates, Arrays.copyOfRange(prices, prices.length - n, prices.length));
+    }
+
+    private static boolean close(double actual, double expected) {
+        return Math.abs(actual - expected) <= 1e-9 * Math.max(1, Math.abs(expected));
+    }
+}
@@ -0,0 +1,54 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// An AtomicLongArray that is allocated a segment at a time as indexes are
+// first written, for tables indexed by instrument id that cannot know up
+// front how many instruments there will be. Segments never move once
+// created, so every operation is one extra volatile load over an
+// AtomicLongArray, and a read of a segment not created yet sees zero.
+class SegmentedLongArray {
+    private static final int SEGMENT_BITS = 12;
+    private static final int SEGMENT = 1 << SEGMENT_BITS;
+    private static final int MASK = SEGMENT - 1;
+
+    private final AtomicReferenceArray<AtomicLongArray> segments;
+
+    SegmentedLongArray(int maxLength) {
+        this.segments = new AtomicReferenceArray<>((maxLength + SEGMENT - 1) >>> SEGMENT_BITS);
+    }
+
+    public int length() {
+        return segments.length() << SEGMENT_BITS;
+    }
+
+    public long get(int index) {
+        AtomicLongArray segment = segments.get(index >>> SEGMENT_BITS);
+        return segment == null ? 0 : segment.get(index & MASK);
+    }
+
+    public long getAndSet(int index, long value) {
+        return segment(index).getAndSet(index & MASK, value);
+    }
+
+    public boolean compareAndSet(int index, long expected, long value) {
+        return segment(index).compareAndSet(index & MASK, expected, value);
+    }
+
+    public long getAndAdd(int index, long delta) {
+        return segment(index).getAndAdd(index & MASK, delta);
+    }
+
+    public long addAndGet(int index, long delta) {
+        return segment(index).addAndGet(index & MASK, delta);
+    }
+
+    private AtomicLongArray segment(int index) {
+        int number = index >>> SEGMENT_BITS;
+        AtomicLongArray segment = segments.get(number);
+        if (segment == null) {
+            segments.compareAndSet(number, null, new AtomicLongArray(SEGMENT));
+            segment = segments.get(number);
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,232 @@
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Signed-in sessions, each behind an opaque token handed out once the password
+// has been checked. A returning client presents the token and gets its warm
+// TradingSession back with one map lookup: no password hash, no portfolio
+// load. Signing in again as a user who still has a live session hands back
+// that session. A session keeps its user pinned in the UserStore until it is
+// signed out or has been idle for -Dsession.idleSeconds (default 900);
+// evicting it releases the user, which flushes the portfolio.
+//
+// Idle sessions are found by a hashed timer wheel of WHEEL_SLOTS one-second
+// slots. Using a session only records the time; when its slot comes round, a
+// session used since is moved to the slot of its new deadline, so resuming
+// costs no wheel work at all.
+//
+// signIn and resume hand the session out held; every hold ends with done().
+// A held session is never evicted, only marked so the last done() evicts it.
+class SessionManager {
+    private static final int WHEEL_SLOTS = 512;
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int EVICTED = -1;
+    private static final Metrics.Operation SIGN_IN = Metrics.operation("session.signIn");
+    private static final Metrics.Operation RESUME = Metrics.operation("session.resume");
+
+    static class Session {
+        final String token;
+        private final TradingSession trading;
+        private volatile long lastUsed = System.nanoTime();
+        // Holds in flight, or EVICTED once the user has been released.
+        private final AtomicInteger holds = new AtomicInteger();
+        private volatile boolean closed;
+        private volatile Object attachment;
+
+        Session(String token, TradingSession trading) {
+            this.token = token;
+            this.trading = trading;
+        }
+
+        public TradingSession getTrading() {
+            return trading;
+        }
+
+        public String getUsername() {
+            return trading.getUser().getUsername();
+        }
+
+        // Front-end state kept with the session, such as the console's StockMarket.
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+    }
+
+    private final MarketContext market;
+    private final long idleNanos;
+    private final ConcurrentHashMap<String, Session> byToken = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Session> byUser = new ConcurrentHashMap<>();
+    private final List<ConcurrentLinkedQueue<Session>> wheel = new ArrayList<>(WHEEL_SLOTS);
+    private final long epoch = System.nanoTime();
+    private final ScheduledExecutorService ticker;
+    private final SecureRandom random = new SecureRandom();
+    private long currentTick;
+
+    public SessionManager(MarketContext market) {
+        this.market = market;
+        this.idleNanos = TimeUnit.SECONDS.toNanos(Long.getLong("session.idleSeconds", 900));
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel.add(new ConcurrentLinkedQueue<>());
+        }
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::advance, TICK_NANOS, TICK_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    // Checks the password and returns the user's session, held; null if the
+    // username or password is wrong.
+    public Session signIn(String username, String password) {
+        long start = SIGN_IN.start();
+        if (!market.getAuth().authenticate(username, password)) {
+            SIGN_IN.fail(start);
+            return null;
+        }
+        while (true) {
+            Session session = byUser.get(username);
+            if (session == null) {
+                // Opened outside the map, since it loads the portfolio; if
+                // another sign-in got there first, this copy is dropped.
+                Session opened = open(username);
+                session = byUser.putIfAbsent(username, opened);
+                if (session == null) {
+                    session = opened;
+                    byToken.put(session.token, session);
+                    schedule(session);
+                } else {
+                    market.getAuth().getUserStore().release(username);
+                }
+            }
+            if (hold(session)) {
+                SIGN_IN.stop(start);
+                return session;
+            }
+            // It was evicted between the lookup and the hold.
+            byUser.remove(username, session);
+        }
+    }
+
+    // The session behind the token, held; null if there is none or it has expired.
+    public Session resume(String token) {
+        long start = RESUME.start();
+        Session session = token == null ? null : byToken.get(token);
+        if (session == null || !hold(session)) {
+            RESUME.fail(start);
+            return null;
+        }
+        RESUME.stop(start);
+        return session;
+    }
+
+    // Ends a hold from signIn or resume.
+    public void done(Session session) {
+        session.lastUsed = System.nanoTime();
+        if (session.holds.decrementAndGet() == 0 && session.closed) {
+            evict(session);
+        }
+    }
+
+    // Ends the session behind the token; false if there was none.
+    public boolean signOut(String token) {
+        Session session = byToken.get(token);
+        if (session == null) {
+            return false;
+        }
+        close(session);
+        return true;
+    }
+
+    public int size() {
+        return byToken.size();
+    }
+
+    // Stops the wheel and ends every session that is not held.
+    public void close() {
+        ticker.shutdownNow();
+        for (Session session : byToken.values()) {
+            close(session);
+        }
+    }
+
+    private Session open(String username) {
+        User user = market.getAuth().getUserStore().acquire(username);
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), new TradingSession(user, market));
+    }
+
+    private static boolean hold(Session session) {
+        int holds;
+        do {
+            holds = session.holds.get();
+            if (holds == EVICTED || session.closed) {
+                return false;
+            }
+        } while (!session.holds.compareAndSet(holds, holds + 1));
+        session.lastUsed = System.nanoTime();
+        return true;
+    }
+
+    // Takes the session out of the maps so it cannot be resumed, and evicts it
+    // now unless it is held.
+    private void close(Session session) {
+        session.closed = true;
+        byToken.remove(session.token, session);
+        byUser.remove(session.getUsername(), session);
+        evict(session);
+    }
+
+    private void evict(Session session) {
+        if (session.holds.compareAndSet(0, EVICTED)) {
+            market.getAuth().getUserStore().release(session.getUsername());
+        }
+    }
+
+    private void schedule(Session session) {
+        long deadlineTick = (session.lastUsed + idleNanos - epoch) / TICK_NANOS;
+        wheel.get((int) (deadlineTick % WHEEL_SLOTS)).add(session);
+    }
+
+    // Runs every tick on the wheel thread, catching up on any it missed.
+    private void advance() {
+        long nowTick = (System.nanoTime() - epoch) / TICK_NANOS;
+        try {
+            while (currentTick <= nowTick) {
+                expire(wheel.get((int) (currentTick % WHEEL_SLOTS)), currentTick);
+                currentTick++;
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Error evicting idle sessions: " + e);
+        }
+    }
+
+    private void expire(ConcurrentLinkedQueue<Session> slot, long tick) {
+        for (int n = slot.size(); n > 0; n--) {
+            Session session = slot.poll();
+            if (session == null) {
+                return;
+            }
+            if (session.closed) {
+                continue;
+            }
+            long deadlineTick = (session.lastUsed + idleNanos - epoch) / TICK_NANOS;
+            if (deadlineTick > tick) {
+                schedule(session);
+            } else if (session.holds.get() > 0) {
+                // In use right now; look again next tick.
+                wheel.get((int) ((tick + 1) % WHEEL_SLOTS)).add(session);
+            } else {
+                close(session);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// SessionManager end to end over a real MarketContext: signing in again, or
+// from many threads at once, hands back the one live session; an idle session
+// is evicted, but never while it is held; and after eviction the old token is
+// dead and signing in opens a fresh session. Passwords are hashed with a
+// single iteration and sessions idle out after one second, so the run takes
+// a few seconds.
+//
+// It writes a credential store, portfolio_files/ and journals into the
+// working directory, so run it from an empty one:
+//
+//   mkdir /tmp/sessions && cd /tmp/sessions && java -cp <classes> SessionManagerTest
+class SessionManagerTest {
+    public static void main(String[] args) throws Exception {
+        if (Files.exists(Paths.get("credentials" + CredentialStore.RECORDS_EXTENSION)) || Files.exists(Paths.get("portfolio_files"))) {
+            System.out.println("Run SessionManagerTest from an empty directory; it writes a credential store and portfolio_files/.");
+            return;
+        }
+        System.setProperty("auth.hashIterations", "1");
+        System.setProperty("session.idleSeconds", "1");
+        Files.createDirectories(Paths.get("portfolio_files"));
+        Authentication auth = new Authentication();
+        MarketContext market = new MarketContext(auth);
+        SessionManager sessions = new SessionManager(market);
+        boolean passed = Checks.run("SessionManagerTest",
+                () -> Checks.check(auth.addUser("alice", "Alice#2024") && auth.addUser("bob", "Bob#2024pw"), "users sign up"),
+                () -> signInAgainGetsTheLiveSession(sessions),
+                () -> racingSignInsShareOneSession(sessions),
+                () -> idleSessionIsEvicted(sessions),
+                () -> heldSessionOutlivesItsIdleTime(sessions));
+        sessions.close();
+        market.close();
+        System.exit(passed ? 0 : 1);
+    }
+
+    static void signInAgainGetsTheLiveSession(SessionManager sessions) {
+        Checks.check(sessions.signIn("alice", "wrong#pass1") == null, "wrong password is refused");
+        Checks.check(sessions.signIn("nobody", "Alice#2024") == null, "unknown user is refused");
+        SessionManager.Session first = sessions.signIn("alice", "Alice#2024");
+        Checks.check(first != null && first.getUsername().equals("alice"), "sign in");
+        sessions.done(first);
+
+        SessionManager.Session resumed = sessions.resume(first.token);
+        Checks.check(resumed == first, "token resumes the same session");
+        sessions.done(resumed);
+        SessionManager.Session again = sessions.signIn("alice", "Alice#2024");
+        Checks.check(again == first, "signing in again hands back the live session");
+        sessions.done(again);
+
+        Checks.check(sessions.signOut(first.token), "sign out");
+        Checks.check(sessions.resume(first.token) == null, "signed-out token is dead");
+        Checks.check(!sessions.signOut(first.token), "second sign out finds nothing");
+    }
+
+    // Threads signing the same user in at once must all end up with one
+    // session, not one each.
+    static void racingSignInsShareOneSession(SessionManager sessions) throws Exception {
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<SessionManager.Session>> signedIn = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            signedIn.add(pool.submit(() -> {
+                start.await();
+                return sessions.signIn("bob", "Bob#2024pw");
+            }));
+        }
+        start.countDown();
+        Set<SessionManager.Session> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Future<SessionManager.Session> future : signedIn) {
+            distinct.add(future.get());
+        }
+        pool.shutdown();
+        Checks.check(distinct.size() == 1 && !distinct.contains(null), "racing sign-ins share one session, got " + distinct.size());
+        SessionManager.Session session = distinct.iterator().next();
+        for (int t = 0; t < threads; t++) {
+            sessions.done(session);
+        }
+        Checks.check(sessions.size() == 1, "one session open, got " + sessions.size());
+        Checks.check(sessions.signOut(session.token), "sign out bob");
+    }
+
+    // Nobody uses the session: the wheel evicts it, the token stops working,
+    // and signing in opens a new session for the same user.
+    static void idleSessionIsEvicted(SessionManager sessions) throws InterruptedException {
+        SessionManager.Session session = sessions.signIn("alice", "Alice#2024");
+        Checks.check(session != null, "sign in");
+        sessions.done(session);
+        Checks.check(waitFor(() -> sessions.size() == 0, 10_000), "idle session is evicted");
+        Checks.check(sessions.resume(session.token) == null, "evicted token is dead");
+
+        SessionManager.Session fresh = sessions.signIn("alice", "Alice#2024");
+        Checks.check(fresh != null && fresh != session && !fresh.token.equals(session.token), "sign in after eviction opens a new session");
+        Checks.check(fresh.getTrading().getPortfolio() != null, "new session has the portfolio");
+        SessionManager.Session resumed = sessions.resume(fresh.token);
+        Checks.check(resumed == fresh, "new token resumes");
+        sessions.done(resumed);
+        sessions.done(fresh);
+        Checks.check(sessions.signOut(fresh.token), "sign out");
+    }
+
+    // A session held past its idle time stays; once let go, it idles out.
+    static void heldSessionOutlivesItsIdleTime(SessionManager sessions) throws InterruptedException {
+        SessionManager.Session session = sessions.signIn("alice", "Alice#2024");
+        Checks.check(session != null, "sign in");
+        Thread.sleep(3_000);
+        Checks.check(sessions.size() == 1, "held session is not evicted");
+        SessionManager.Session resumed = sessions.resume(session.token);
+        Checks.check(resumed == session, "held session still resumes");
+        sessions.done(resumed);
+        sessions.done(session);
+        Checks.check(waitFor(() -> sessions.size() == 0, 10_000), "released session idles out");
+    }
+
+    private static boolean waitFor(java.util.function.BooleanSupplier condition, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+}
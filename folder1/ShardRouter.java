@@ -0,0 +1,476 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Places each user's portfolio files on one of several ShardWorker processes
+// and hands Authentication storages that forward to it. Placement is a
+// consistent-hash ring: every shard owns VIRTUAL_NODES points hashed from its
+// address, and a user belongs to the first point at or after the hash of the
+// username. Adding a shard therefore moves only the users whose nearest point
+// is now one of the new shard's, about 1/N of them, and the rest stay put.
+// The ring depends only on the -Dshards list, which every front-end must be
+// given in the same form.
+//
+//   java -Dshards=localhost:7101,localhost:7102 Main
+//   java ShardRouter cluster <baseDir> <workers> [basePort]
+//   java ShardRouter where <shards> <user>...
+//   java ShardRouter spread <shards> [users] [newShards]
+//   java ShardRouter rebalance <oldShards> <newShards>
+//   java ShardRouter import <portfolioDirectory> <shards>
+//
+// cluster starts the workers on localhost, one data directory each, and runs
+// until stopped. rebalance moves every user whose owner differs between the
+// two rings; run it with the front-ends stopped and restart them with the new
+// -Dshards. It is safe to run again after a failure, since a user is only
+// dropped from the old shard once the new one has it.
+class ShardRouter {
+    static final int VIRTUAL_NODES = 128;
+
+    private final List<String> shards;
+    private final List<ShardClient> clients = new ArrayList<>();
+    private final long[] points;
+    private final int[] owners;
+
+    ShardRouter(List<String> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("no shards");
+        }
+        this.shards = List.copyOf(shards);
+        long[][] ring = new long[shards.size() * VIRTUAL_NODES][];
+        for (int shard = 0; shard < shards.size(); shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                ring[shard * VIRTUAL_NODES + node] = new long[]{hash(shards.get(shard) + "#" + node), shard};
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[ring.length];
+        owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            owners[i] = (int) ring[i][1];
+        }
+        for (String shard : shards) {
+            clients.add(new ShardClient(shard));
+        }
+    }
+
+    // The router for -Dshards, or null when portfolios stay in this process.
+    static ShardRouter fromProperty() {
+        String spec = System.getProperty("shards");
+        return spec == null || spec.isBlank() ? null : new ShardRouter(parse(spec));
+    }
+
+    static List<String> parse(String spec) {
+        List<String> shards = new ArrayList<>();
+        for (String shard : spec.split(",")) {
+            if (!shard.isBlank()) {
+                shards.add(shard.trim());
+            }
+        }
+        return shards;
+    }
+
+    public int shardOf(String username) {
+        long h = hash(username);
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (points[mid] < h) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    public String owner(String username) {
+        return shards.get(shardOf(username));
+    }
+
+    public List<String> getShards() {
+        return shards;
+    }
+
+    public PortfolioStorage open(String username) {
+        return new RemoteStorage(clients.get(shardOf(username)), username);
+    }
+
+    public void close() {
+        for (ShardClient client : clients) {
+            client.close();
+        }
+    }
+
+    // 64-bit FNV-1a, finished with MurmurHash3's fmix64 so that similar names
+    // and addresses land far apart on the ring.
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    static String encode(String username) {
+        return URLEncoder.encode(username, StandardCharsets.UTF_8);
+    }
+
+    // Pooled connections to one worker; a request takes a connection for its
+    // round trip, so concurrent sessions never interleave on a socket.
+    static class ShardClient {
+        private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+        private static final int READ_TIMEOUT_MILLIS = 60000;
+        // A worker restarts in longer than this, so a connection used more
+        // recently is taken to be alive without asking.
+        private static final long IDLE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private final String address;
+        private final String host;
+        private final int port;
+        private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<>();
+
+        ShardClient(String address) {
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("shard " + address + " is not host:port");
+            }
+            this.address = address;
+            this.host = address.substring(0, colon);
+            this.port = Integer.parseInt(address.substring(colon + 1));
+        }
+
+        // Sends the request line and body, and returns the reply's data lines
+        // followed by its final OK line. An ERR reply throws. A pooled
+        // connection that has sat idle for over IDLE_CHECK_NANOS is checked
+        // with a PING first, so one the worker has since dropped, as after a
+        // restart, is replaced before the request goes out; busy connections
+        // skip that round trip. The request itself is never sent twice: a
+        // worker that fails after reading it may already have journaled the
+        // record.
+        public List<String> call(String request, List<String> body) throws IOException {
+            Connection connection = idle.poll();
+            if (connection != null && System.nanoTime() - connection.lastUsed > IDLE_CHECK_NANOS && !isAlive(connection)) {
+                // The rest of the pool went down with it.
+                close();
+                connection = null;
+            }
+            if (connection == null) {
+                connection = new Connection(host, port);
+            }
+            List<String> reply;
+            try {
+                reply = exchange(connection, request, body);
+            } catch (IOException e) {
+                // The pooled ones were talking to the same worker.
+                close();
+                throw e;
+            }
+            connection.lastUsed = System.nanoTime();
+            idle.add(connection);
+            String status = reply.get(reply.size() - 1);
+            if (status.startsWith("ERR")) {
+                throw new IOException("shard " + address + ": " + status.substring(3).trim());
+            }
+            return reply;
+        }
+
+        private boolean isAlive(Connection connection) {
+            try {
+                exchange(connection, "PING", null);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        // One round trip; closes the connection if it fails.
+        private List<String> exchange(Connection connection, String request, List<String> body) throws IOException {
+            List<String> reply = new ArrayList<>();
+            try {
+                connection.out.write(request);
+                connection.out.write('\n');
+                if (body != null) {
+                    for (String line : body) {
+                        connection.out.write(line);
+                        connection.out.write('\n');
+                    }
+                }
+                connection.out.flush();
+                String line;
+                while ((line = connection.in.readLine()) != null) {
+                    reply.add(line);
+                    if (line.equals("OK") || line.startsWith("OK ") || line.startsWith("ERR")) {
+                        break;
+                    }
+                }
+                if (line == null) {
+                    throw new EOFException("shard " + address + " closed the connection");
+                }
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+            return reply;
+        }
+
+        public void close() {
+            Connection connection;
+            while ((connection = idle.poll()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    private static class Connection {
+        final Socket socket;
+        final BufferedReader in;
+        final Writer out;
+        // System.nanoTime() when it last went back to the pool.
+        long lastUsed;
+
+        Connection(String host, int port) throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), ShardClient.CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(ShardClient.READ_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already gone.
+            }
+        }
+    }
+
+    // One user's portfolio on its owning worker. The worker keeps the journal
+    // and snapshot; this side only counts records so Portfolio can decide when
+    // to checkpoint without a round trip.
+    static class RemoteStorage implements PortfolioStorage {
+        private final ShardClient client;
+        private final String username;
+        private final String user;
+        private int recordsSinceSnapshot;
+
+        RemoteStorage(ShardClient client, String username) {
+            this.client = client;
+            this.username = username;
+            this.user = encode(username);
+        }
+
+        public boolean load(PortfolioFiles.LotHandler lots, Consumer<String[]> records) {
+            List<String> reply;
+            try {
+                reply = client.call("LOAD " + user, null);
+            } catch (IOException e) {
+                System.out.println("Error loading portfolio: " + e.getMessage());
+                return false;
+            }
+            for (String line : reply.subList(0, reply.size() - 1)) {
+                if (line.startsWith("L ")) {
+                    String[] fields = line.substring(2).split(";");
+                    lots.lot(fields[0], fields[1], Long.parseLong(fields[2]), Integer.parseInt(fields[3]), Long.parseLong(fields[4]));
+                } else if (line.startsWith("R ")) {
+                    records.accept(line.substring(2).split(";"));
+                }
+            }
+            String[] status = reply.get(reply.size() - 1).split(" ");
+            recordsSinceSnapshot = Integer.parseInt(status[1]);
+            if (!Boolean.parseBoolean(status[2])) {
+                System.out.println("Error loading portfolio: snapshot for " + username + " is unreadable on " + client.address);
+                return false;
+            }
+            return true;
+        }
+
+        public void append(String record) throws IOException {
+            client.call("APPEND " + user + " " + record, null);
+            recordsSinceSnapshot++;
+        }
+
+        public void appendDeferred(String record) throws IOException {
+            client.call("DEFER " + user + " " + record, null);
+            recordsSinceSnapshot++;
+        }
+
+        public void sync() throws IOException {
+            client.call("SYNC " + user, null);
+        }
+
+        public void save(Collection<Position> positions) throws IOException {
+            List<String> body = new ArrayList<>();
+            for (Position position : positions) {
+                for (int i = 0; i < position.getLotCount(); i++) {
+                    body.add("L " + position.getSymbol() + ";" + position.getName() + ";" + position.getLotPrice(i)
+                            + ";" + position.getLotQuantity(i) + ";" + position.getLotTimestamp(i));
+                }
+            }
+            client.call("SAVE " + user + " " + body.size(), body);
+            recordsSinceSnapshot = 0;
+        }
+
+        public int getRecordsSinceSnapshot() {
+            return recordsSinceSnapshot;
+        }
+
+        public void close() {
+            try {
+                client.call("CLOSE " + user, null);
+            } catch (IOException e) {
+                System.out.println("Error closing portfolio: " + e.getMessage());
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 3 && args[0].equals("cluster")) {
+            cluster(Paths.get(args[1]), Integer.parseInt(args[2]), args.length > 3 ? Integer.parseInt(args[3]) : 7101);
+        } else if (args.length >= 3 && args[0].equals("where")) {
+            ShardRouter router = new ShardRouter(parse(args[1]));
+            for (int i = 2; i < args.length; i++) {
+                System.out.println(args[i] + " -> " + router.owner(args[i]));
+            }
+        } else if (args.length >= 2 && args[0].equals("spread")) {
+            spread(parse(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 100000, args.length > 3 ? parse(args[3]) : null);
+        } else if (args.length == 3 && args[0].equals("rebalance")) {
+            rebalance(parse(args[1]), parse(args[2]));
+        } else if (args.length == 3 && args[0].equals("import")) {
+            importDirectory(Paths.get(args[1]), parse(args[2]));
+        } else {
+            System.out.println("usage: ShardRouter cluster <baseDir> <workers> [basePort]");
+            System.out.println("       ShardRouter where <shards> <user>...");
+            System.out.println("       ShardRouter spread <shards> [users] [newShards]");
+            System.out.println("       ShardRouter rebalance <oldShards> <newShards>");
+            System.out.println("       ShardRouter import <portfolioDirectory> <shards>");
+        }
+    }
+
+    // Runs one worker per data directory baseDir/shard<i> on consecutive
+    // localhost ports, with this JVM's options, until any of them exits.
+    static void cluster(Path baseDir, int workers, int basePort) throws IOException, InterruptedException {
+        List<String> classPath = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(Paths.get(entry).toAbsolutePath().toString());
+        }
+        List<Process> processes = new ArrayList<>();
+        List<String> shards = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroy)));
+        for (int i = 0; i < workers; i++) {
+            List<String> command = new ArrayList<>();
+            command.add(ProcessHandle.current().info().command().orElse("java"));
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(String.join(File.pathSeparator, classPath));
+            command.add(ShardWorker.class.getName());
+            command.add(String.valueOf(basePort + i));
+            command.add(baseDir.resolve("shard" + i).toAbsolutePath().toString());
+            processes.add(new ProcessBuilder(command).inheritIO().start());
+            shards.add("localhost:" + (basePort + i));
+        }
+        System.out.println("-Dshards=" + String.join(",", shards));
+        while (processes.stream().allMatch(Process::isAlive)) {
+            Thread.sleep(500);
+        }
+        processes.forEach(Process::destroy);
+    }
+
+    // How evenly synthetic user names spread over the ring, and what share of
+    // them a move to newShards would relocate.
+    static void spread(List<String> shards, int users, List<String> newShards) {
+        ShardRouter router = new ShardRouter(shards);
+        ShardRouter next = newShards == null ? null : new ShardRouter(newShards);
+        int[] counts = new int[shards.size()];
+        int moved = 0;
+        for (int i = 0; i < users; i++) {
+            String user = "user" + i;
+            counts[router.shardOf(user)]++;
+            if (next != null && !router.owner(user).equals(next.owner(user))) {
+                moved++;
+            }
+        }
+        for (int shard = 0; shard < counts.length; shard++) {
+            System.out.printf("%s: %d users (%.1f%%)%n", shards.get(shard), counts[shard], 100.0 * counts[shard] / users);
+        }
+        if (next != null) {
+            System.out.printf("Moving to %d shards relocates %d users (%.1f%%)%n", newShards.size(), moved, 100.0 * moved / users);
+        }
+    }
+
+    static void rebalance(List<String> oldShards, List<String> newShards) throws IOException {
+        ShardRouter target = new ShardRouter(newShards);
+        Map<String, ShardClient> clients = new HashMap<>();
+        for (String shard : newShards) {
+            clients.put(shard, target.clients.get(target.shards.indexOf(shard)));
+        }
+        int moved = 0;
+        int kept = 0;
+        try {
+            for (String shard : oldShards) {
+                ShardClient source = clients.computeIfAbsent(shard, ShardClient::new);
+                List<String> users = source.call("USERS", null);
+                for (String line : users.subList(0, users.size() - 1)) {
+                    String user = line.substring(2);
+                    String username = URLDecoder.decode(user, StandardCharsets.UTF_8);
+                    String owner = target.owner(username);
+                    if (owner.equals(shard)) {
+                        kept++;
+                        continue;
+                    }
+                    List<String> files = source.call("EXPORT " + user, null);
+                    files = files.subList(0, files.size() - 1);
+                    clients.get(owner).call("IMPORT " + user + " " + files.size(), files);
+                    source.call("DROP " + user, null);
+                    moved++;
+                }
+            }
+        } finally {
+            clients.values().forEach(ShardClient::close);
+        }
+        System.out.println("Moved " + moved + " users, " + kept + " already on their shard.");
+    }
+
+    // Copies an unsharded portfolio_files/ directory onto the shards. The
+    // source files are left in place.
+    static void importDirectory(Path directory, List<String> shards) throws IOException {
+        ShardRouter router = new ShardRouter(shards);
+        String[] extensions = {PortfolioFiles.TEXT_EXTENSION, PortfolioFiles.BINARY_EXTENSION, PortfolioStorage.Local.JOURNAL_EXTENSION};
+        Map<String, List<String>> files = new TreeMap<>();
+        try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
+            for (Path file : listing) {
+                String name = file.getFileName().toString();
+                for (String extension : extensions) {
+                    if (name.endsWith(extension)) {
+                        files.computeIfAbsent(name.substring(0, name.length() - extension.length()), u -> new ArrayList<>())
+                                .add("F " + extension + " " + Base64.getEncoder().encodeToString(Files.readAllBytes(file)));
+                    }
+                }
+            }
+        }
+        try {
+            for (Map.Entry<String, List<String>> user : files.entrySet()) {
+                router.clients.get(router.shardOf(user.getKey()))
+                        .call("IMPORT " + encode(user.getKey()) + " " + user.getValue().size(), user.getValue());
+            }
+        } finally {
+            router.close();
+        }
+        System.out.println("Imported " + files.size() + " portfolios onto " + shards.size() + " shards.");
+    }
+}
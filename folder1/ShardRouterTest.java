@@ -0,0 +1,201 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// ShardRouter's placement and rebalancing. The ring must put a user on the
+// same shard whatever order the shards are listed in, spread users evenly,
+// and on a new shard move only about 1/N of them, all onto the new shard.
+// rebalance() is then run against two in-process ShardWorkers: every user
+// must end up only on the owner the new ring names, with its lots intact,
+// and a second run must find nothing to move. ShardClient must PING a pooled
+// connection only once it has sat idle. Worker data goes to a temp directory
+// and the workers listen on free loopback ports.
+//
+//   java ShardRouterTest
+class ShardRouterTest {
+    private static final List<String> THREE = List.of("10.0.0.1:7101", "10.0.0.2:7101", "10.0.0.3:7101");
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("shard-test");
+        boolean passed = Checks.run("ShardRouterTest",
+                ShardRouterTest::placementIgnoresListOrder,
+                ShardRouterTest::usersSpreadEvenly,
+                ShardRouterTest::newShardTakesItsShareOnly,
+                () -> rebalanceMovesUsersToTheirOwner(dir),
+                ShardRouterTest::pingsOnlyIdleConnections);
+        Checks.delete(dir);
+        System.exit(passed ? 0 : 1);
+    }
+
+    static void placementIgnoresListOrder() {
+        ShardRouter router = new ShardRouter(THREE);
+        List<String> reversed = new ArrayList<>(THREE);
+        Collections.reverse(reversed);
+        ShardRouter other = new ShardRouter(reversed);
+        for (int i = 0; i < 10_000; i++) {
+            String user = "user" + i;
+            Checks.check(router.owner(user).equals(other.owner(user)), user + " has one owner");
+            Checks.check(router.owner(user).equals(THREE.get(router.shardOf(user))), "owner and shardOf agree for " + user);
+        }
+        Checks.check(ShardRouter.parse(" a:1, ,b:2 ").equals(List.of("a:1", "b:2")), "blank entries are dropped");
+        try {
+            new ShardRouter(List.of());
+            Checks.check(false, "an empty ring is refused");
+        } catch (IllegalArgumentException expected) {
+            // Nobody could own anything.
+        }
+    }
+
+    // With 128 points each, no shard should be far off a third.
+    static void usersSpreadEvenly() {
+        ShardRouter router = new ShardRouter(THREE);
+        int users = 60_000;
+        int[] counts = new int[THREE.size()];
+        for (int i = 0; i < users; i++) {
+            counts[router.shardOf("user" + i)]++;
+        }
+        for (int count : counts) {
+            Checks.check(Math.abs(count - users / 3) < users / 3 * 0.2, "uneven spread " + Arrays.toString(counts));
+        }
+    }
+
+    static void newShardTakesItsShareOnly() {
+        ShardRouter before = new ShardRouter(THREE);
+        List<String> four = new ArrayList<>(THREE);
+        four.add("10.0.0.4:7101");
+        ShardRouter after = new ShardRouter(four);
+        int users = 60_000;
+        int moved = 0;
+        for (int i = 0; i < users; i++) {
+            String user = "user" + i;
+            if (!before.owner(user).equals(after.owner(user))) {
+                Checks.check(after.owner(user).equals("10.0.0.4:7101"), user + " moved between old shards");
+                moved++;
+            }
+        }
+        Checks.check(Math.abs(moved - users / 4) < users / 4 * 0.25, "moved " + moved + " of " + users + ", expected about a quarter");
+    }
+
+    static void rebalanceMovesUsersToTheirOwner(Path dir) throws Exception {
+        String first = "localhost:" + freePort();
+        String second = "localhost:" + freePort();
+        ShardWorker[] workers = {start(dir.resolve("shard0"), first), start(dir.resolve("shard1"), second)};
+        try {
+            Path portfolios = Files.createDirectories(dir.resolve("portfolio_files"));
+            int users = 40;
+            for (int i = 0; i < users; i++) {
+                Files.write(portfolios.resolve("trader" + i + PortfolioFiles.TEXT_EXTENSION),
+                        List.of("#seq=0", "SRT;Shard Test Co;12.5;" + (i + 1)));
+            }
+            ShardRouter.importDirectory(portfolios, List.of(first));
+            Checks.check(usersOn(first).size() == users, "import puts everyone on the only shard");
+
+            List<String> both = List.of(first, second);
+            ShardRouter.rebalance(List.of(first), both);
+            ShardRouter router = new ShardRouter(both);
+            Set<String> onFirst = usersOn(first);
+            Set<String> onSecond = usersOn(second);
+            Checks.check(onFirst.size() + onSecond.size() == users && !onSecond.isEmpty(), "users split " + onFirst.size() + "/" + onSecond.size());
+            for (int i = 0; i < users; i++) {
+                String user = "trader" + i;
+                String owner = router.owner(user);
+                Checks.check((owner.equals(first) ? onFirst : onSecond).contains(user), user + " is on its owner");
+                Checks.check(!(owner.equals(first) ? onSecond : onFirst).contains(user), user + " left its old shard");
+                List<String> lots = new ArrayList<>();
+                router.open(user).load((symbol, name, ticks, quantity, time) -> lots.add(symbol + " " + ticks + " x" + quantity), record -> { });
+                Checks.check(lots.equals(List.of("SRT 1250 x" + (i + 1))), user + " kept its lots, got " + lots);
+            }
+            router.close();
+
+            ShardRouter.rebalance(List.of(first), both);
+            Checks.check(usersOn(first).equals(onFirst) && usersOn(second).equals(onSecond), "a second run moves nobody");
+        } finally {
+            for (ShardWorker worker : workers) {
+                worker.close();
+            }
+        }
+    }
+
+    // Against a stand-in worker that answers OK to every line and counts the
+    // PINGs: back-to-back calls reuse the connection unchecked, and one made
+    // after the idle threshold checks it first.
+    static void pingsOnlyIdleConnections() throws Exception {
+        AtomicInteger pings = new AtomicInteger();
+        AtomicInteger requests = new AtomicInteger();
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread thread = new Thread(() -> {
+                try (Socket socket = server.accept();
+                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                     Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        (line.equals("PING") ? pings : requests).incrementAndGet();
+                        out.write("OK\n");
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // The client closed.
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+            ShardRouter.ShardClient client = new ShardRouter.ShardClient("localhost:" + server.getLocalPort());
+            for (int i = 0; i < 20; i++) {
+                client.call("USERS", null);
+            }
+            Checks.check(requests.get() == 20 && pings.get() == 0, "busy connection is not pinged, " + pings.get() + " pings");
+            Thread.sleep(1_200);
+            client.call("USERS", null);
+            Checks.check(requests.get() == 21 && pings.get() == 1, "idle connection is pinged once, " + pings.get() + " pings");
+            client.close();
+        }
+    }
+
+    // Starts a worker on its own thread and waits until it answers.
+    private static ShardWorker start(Path directory, String address) throws Exception {
+        ShardWorker worker = new ShardWorker(directory);
+        int port = Integer.parseInt(address.substring(address.indexOf(':') + 1));
+        Thread thread = new Thread(() -> {
+            try {
+                worker.serve(port);
+            } catch (IOException e) {
+                System.out.println("Shard worker on " + address + " failed: " + e);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        ShardRouter.ShardClient client = new ShardRouter.ShardClient(address);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                client.call("PING", null);
+                client.close();
+                return worker;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static Set<String> usersOn(String address) throws IOException {
+        ShardRouter.ShardClient client = new ShardRouter.ShardClient(address);
+        List<String> reply = client.call("USERS", null);
+        client.close();
+        Set<String> users = new TreeSet<>();
+        for (String line : reply.subList(0, reply.size() - 1)) {
+            users.add(line.substring(2));
+        }
+        return users;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// One shard of the portfolio data: keeps the snapshots and journals of the
+// users ShardRouter places on it in its own data directory, laid out as
+// portfolio_files/ is, and serves them over a line protocol. Each user's
+// storage stays open between calls, so appends from every user on the shard
+// share its journal group commit.
+//
+//   LOAD <user>                  L <symbol>;<name>;<ticks>;<qty>;<time> per
+//                                snapshot lot, R <record> per journal record,
+//                                then OK <recordsSinceSnapshot> <snapshotRead>
+//   APPEND <user> <record>       durable before the reply
+//   DEFER <user> <record>        written, not yet forced
+//   SYNC <user>
+//   SAVE <user> <n>              followed by n lot lines as LOAD sends them
+//   CLOSE <user>
+//   USERS                        U <user> per user with files here
+//   EXPORT <user>                F <extension> <base64> per file
+//   IMPORT <user> <n>            followed by n F lines as EXPORT sends them
+//   DROP <user>
+//   PING
+//
+// User names are URL-encoded. Replies end with "OK" or "ERR <message>". A
+// user who is not open yet is opened on first use, so a restarted worker
+// carries on where it stopped. Listens on loopback unless -Dshard.host says
+// otherwise; there is no authentication.
+//
+//   java ShardWorker <port> <dataDirectory>
+class ShardWorker {
+    private static final String[] EXTENSIONS = {PortfolioFiles.TEXT_EXTENSION, PortfolioFiles.BINARY_EXTENSION, PortfolioStorage.Local.JOURNAL_EXTENSION};
+
+    private final Path directory;
+    private final ConcurrentHashMap<String, PortfolioStorage.Local> open = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+    private final ExecutorService connections = TradingServer.newSessionExecutor();
+    private ServerSocket serverSocket;
+
+    ShardWorker(Path directory) {
+        this.directory = directory;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("usage: ShardWorker <port> <dataDirectory>");
+            return;
+        }
+        ShardWorker worker = new ShardWorker(Paths.get(args[1]));
+        Runtime.getRuntime().addShutdownHook(new Thread(worker::close));
+        worker.serve(Integer.parseInt(args[0]));
+    }
+
+    public void serve(int port) throws IOException {
+        Files.createDirectories(directory);
+        String host = System.getProperty("shard.host");
+        InetAddress address = host == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+        serverSocket = new ServerSocket(port, 1024, address);
+        System.out.println("Shard worker for " + directory.toAbsolutePath() + " listening on " + address.getHostAddress() + ":" + serverSocket.getLocalPort());
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                break;
+            }
+            connections.execute(() -> handle(socket));
+        }
+    }
+
+    // Stops serving and closes every open journal.
+    public void close() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error closing shard worker: " + e.getMessage());
+        }
+        connections.shutdownNow();
+        for (String user : new ArrayList<>(open.keySet())) {
+            synchronized (lock(user)) {
+                closeUser(user);
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)))) {
+            socket.setTcpNoDelay(true);
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ", 3);
+                try {
+                    execute(parts, in, out);
+                } catch (IOException | RuntimeException e) {
+                    out.println("ERR " + e.getMessage());
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The router hung up.
+        }
+    }
+
+    private void execute(String[] parts, BufferedReader in, PrintWriter out) throws IOException {
+        String command = parts[0];
+        if (command.equals("PING")) {
+            out.println("OK");
+            return;
+        }
+        if (command.equals("USERS")) {
+            Set<String> users = users();
+            for (String user : users) {
+                out.println("U " + URLEncoder.encode(user, StandardCharsets.UTF_8));
+            }
+            out.println("OK " + users.size());
+            return;
+        }
+        if (parts.length < 2) {
+            out.println("ERR usage: " + command + " <user> ...");
+            return;
+        }
+        String user = URLDecoder.decode(parts[1], StandardCharsets.UTF_8);
+        if (user.isEmpty() || user.contains("/") || user.contains("\\") || user.startsWith(".")) {
+            out.println("ERR bad user name");
+            return;
+        }
+        // Bodies are read before taking the lock, so a slow router never holds it.
+        List<String> body = command.equals("SAVE") || command.equals("IMPORT") ? body(parts, in) : null;
+        synchronized (lock(user)) {
+            switch (command) {
+                case "LOAD":
+                    load(user, out);
+                    return;
+                case "APPEND":
+                    storage(user).append(parts[2]);
+                    break;
+                case "DEFER":
+                    storage(user).appendDeferred(parts[2]);
+                    break;
+                case "SYNC":
+                    storage(user).sync();
+                    break;
+                case "SAVE":
+                    storage(user).save(positions(body));
+                    break;
+                case "CLOSE":
+                    closeUser(user);
+                    break;
+                case "EXPORT":
+                    closeUser(user);
+                    for (String extension : EXTENSIONS) {
+                        Path file = directory.resolve(user + extension);
+                        if (Files.exists(file)) {
+                            out.println("F " + extension + " " + Base64.getEncoder().encodeToString(Files.readAllBytes(file)));
+                        }
+                    }
+                    break;
+                case "IMPORT":
+                    closeUser(user);
+                    importFiles(user, body);
+                    break;
+                case "DROP":
+                    closeUser(user);
+                    for (String extension : EXTENSIONS) {
+                        Files.deleteIfExists(directory.resolve(user + extension));
+                    }
+                    break;
+                default:
+                    out.println("ERR unknown command " + command);
+                    return;
+            }
+        }
+        out.println("OK");
+    }
+
+    private Object lock(String user) {
+        return locks.computeIfAbsent(user, u -> new Object());
+    }
+
+    // The user's open storage, replaying its files first if it is not open.
+    private PortfolioStorage.Local storage(String user) {
+        PortfolioStorage.Local storage = open.get(user);
+        if (storage == null) {
+            storage = new PortfolioStorage.Local(directory, user);
+            storage.load((symbol, name, priceTicks, quantity, timestamp) -> { }, record -> { });
+            open.put(user, storage);
+        }
+        return storage;
+    }
+
+    private void load(String user, PrintWriter out) {
+        closeUser(user);
+        PortfolioStorage.Local storage = new PortfolioStorage.Local(directory, user);
+        boolean loaded = storage.load(
+                (symbol, name, priceTicks, quantity, timestamp) -> out.println("L " + symbol + ";" + name + ";" + priceTicks + ";" + quantity + ";" + timestamp),
+                record -> out.println("R " + String.join(";", record)));
+        open.put(user, storage);
+        out.println("OK " + storage.getRecordsSinceSnapshot() + " " + loaded);
+    }
+
+    private void closeUser(String user) {
+        PortfolioStorage.Local storage = open.remove(user);
+        if (storage != null) {
+            storage.close();
+        }
+    }
+
+    private static List<String> body(String[] parts, BufferedReader in) throws IOException {
+        if (parts.length < 3) {
+            throw new IOException("missing line count");
+        }
+        int count = Integer.parseInt(parts[2]);
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String line = in.readLine();
+            if (line == null) {
+                throw new EOFException("body ended after " + i + " of " + count + " lines");
+            }
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    // Rebuilds the positions a router sent as lot lines.
+    static Collection<Position> positions(List<String> lots) {
+        Map<String, Position> positions = new LinkedHashMap<>();
+        for (String line : lots) {
+            String[] fields = line.substring(2).split(";");
+            Position position = positions.computeIfAbsent(fields[0], symbol -> new Position(symbol, fields[1]));
+            position.buy(Long.parseLong(fields[2]), Integer.parseInt(fields[3]), Long.parseLong(fields[4]));
+        }
+        return positions.values();
+    }
+
+    // Replaces whatever files the user had with the imported ones, each
+    // written beside its target and moved into place.
+    private void importFiles(String user, List<String> files) throws IOException {
+        for (String extension : EXTENSIONS) {
+            Files.deleteIfExists(directory.resolve(user + extension));
+        }
+        for (String line : files) {
+            String[] fields = line.split(" ", 3);
+            if (!fields[0].equals("F") || !Arrays.asList(EXTENSIONS).contains(fields[1])) {
+                throw new IOException("bad file line for " + user);
+            }
+            Path target = directory.resolve(user + fields[1]);
+            Path temp = directory.resolve(user + fields[1] + ".tmp");
+            Files.write(temp, Base64.getDecoder().decode(fields.length == 3 ? fields[2] : ""));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private Set<String> users() throws IOException {
+        Set<String> users = new TreeSet<>();
+        try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
+            for (Path file : listing) {
+                String name = file.getFileName().toString();
+                for (String extension : EXTENSIONS) {
+                    if (name.endsWith(extension)) {
+                        users.add(name.substring(0, name.length() - extension.length()));
+                    }
+                }
+            }
+        }
+        return users;
+    }
+}
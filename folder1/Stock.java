@@ -0,0 +1,37 @@
+class Stock {
+    private String symbol;
+    private String name;
+    private double price;
+    private int quantity;
+
+    public Stock(String symbol, String name, double price, int quantity) {
+        this.symbol = symbol;
+        this.name = name;
+        this.price = price;
+        this.quantity = quantity;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(int quantity) {
+        this.quantity = quantity;
+    }
+
+    public double getValue() {
+        return price * quantity;
+    }
+}
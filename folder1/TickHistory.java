@@ -0,0 +1,717 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Append-only price history, one memory-mapped file per symbol. Each file is
+// a header page followed by fixed-size segments; a segment holds SEGMENT
+// ticks as three columns of longs (time in epoch millis, price in ticks,
+// volume), so scans over one column stay sequential. Times only move
+// forward, which lets range lookups binary-search the time column.
+//
+// On top of the raw ticks every symbol keeps 1s, 1m and 1d OHLCV candles,
+// updated incrementally on append. The 1m and 1d candles are rows of six
+// longs in files of their own beside the ticks (symbol + ".1m" / ".1d"),
+// also memory-mapped, so they take no heap however long the history gets;
+// on open only their last candle is rebuilt, from the ticks since it began,
+// and a candle file that is missing or does not match the ticks is rebuilt
+// from all of them. Only the last day of 1s candles is kept, in memory, and
+// rebuilt from that day's ticks on open. Queries for the last N candles or
+// the candles in [from, to] are a binary search plus a copy of the result.
+//
+// record() only queues the tick, since it is called with the order book
+// locked, and takes no lock of its own; a recorder thread writes the queue to
+// the files. Ticks that do not fit in the queue, or cannot be written, are
+// dropped and counted, and the recorder reports how many the queue turned
+// away each time it catches up. A symbol whose file cannot be opened is
+// reported once and then skipped.
+class TickHistory {
+    private static final int SEGMENT = 1 << 16;
+    private static final int HEADER = 4096;
+    private static final long MAGIC = 0x5449434b53303031L;
+    private static final long SEGMENT_BYTES = SEGMENT * 24L;
+    private static final int QUEUE_CAPACITY = 1 << 16;
+
+    enum Interval {
+        SECOND(1000L, null), MINUTE(60_000L, ".1m"), DAY(86_400_000L, ".1d");
+
+        final long millis;
+        // The candle file's extension; null for candles kept in memory.
+        final String extension;
+
+        Interval(long millis, String extension) {
+            this.millis = millis;
+            this.extension = extension;
+        }
+
+        long bucket(long time) {
+            return time - Math.floorMod(time, millis);
+        }
+    }
+
+    static class Candle {
+        final long start;
+        final long open;
+        final long high;
+        final long low;
+        final long close;
+        final long volume;
+
+        Candle(long start, long open, long high, long low, long close, long volume) {
+            this.start = start;
+            this.open = open;
+            this.high = high;
+            this.low = low;
+            this.close = close;
+            this.volume = volume;
+        }
+
+        public String toString() {
+            return String.format("%tF %<tT open %.2f high %.2f low %.2f close %.2f volume %d", start,
+                    MatchingEngine.toPrice(open), MatchingEngine.toPrice(high), MatchingEngine.toPrice(low), MatchingEngine.toPrice(close), volume);
+        }
+    }
+
+    // Candles for one interval, oldest first, as six longs each: start, open,
+    // high, low, close and volume. The last candle is also kept in fields, so
+    // a tick in it only writes out what it changed.
+    private abstract static class CandleSeries {
+        static final int START = 0;
+        static final int OPEN = 1;
+        static final int HIGH = 2;
+        static final int LOW = 3;
+        static final int CLOSE = 4;
+        static final int VOLUME = 5;
+
+        final Interval interval;
+        int size;
+        private long lastStart = Long.MIN_VALUE;
+        private long lastHigh;
+        private long lastLow;
+        private long lastVolume;
+
+        CandleSeries(Interval interval) {
+            this.interval = interval;
+        }
+
+        abstract long get(int index, int column);
+
+        abstract void set(int index, int column, long value);
+
+        // Makes room for the candle at index size.
+        abstract void reserve() throws IOException;
+
+        // Records size once a new candle has been written.
+        void sized() {
+        }
+
+        // Called on open with the time of the last tick: drops the candles
+        // that have to be rebuilt and returns the time from which the ticks
+        // are to be added again, Long.MIN_VALUE for all of them.
+        abstract long resume(long lastTime);
+
+        void force() {
+        }
+
+        void close() throws IOException {
+        }
+
+        void add(long time, long price, long quantity) throws IOException {
+            long bucket = interval.bucket(time);
+            int last = size - 1;
+            if (bucket == lastStart) {
+                if (price > lastHigh) {
+                    lastHigh = price;
+                    set(last, HIGH, price);
+                } else if (price < lastLow) {
+                    lastLow = price;
+                    set(last, LOW, price);
+                }
+                lastVolume += quantity;
+                set(last, CLOSE, price);
+                set(last, VOLUME, lastVolume);
+                return;
+            }
+            reserve();
+            set(size, START, bucket);
+            set(size, OPEN, price);
+            set(size, HIGH, price);
+            set(size, LOW, price);
+            set(size, CLOSE, price);
+            set(size, VOLUME, quantity);
+            size++;
+            sized();
+            lastStart = bucket;
+            lastHigh = price;
+            lastLow = price;
+            lastVolume = quantity;
+        }
+
+        // After size was cut back: the fields follow the new last candle.
+        void truncated() {
+            if (size == 0) {
+                lastStart = Long.MIN_VALUE;
+                return;
+            }
+            lastStart = get(size - 1, START);
+            lastHigh = get(size - 1, HIGH);
+            lastLow = get(size - 1, LOW);
+            lastVolume = get(size - 1, VOLUME);
+        }
+
+        List<Candle> copy(int from, int to) {
+            List<Candle> candles = new ArrayList<>(Math.max(0, to - from));
+            for (int i = from; i < to; i++) {
+                candles.add(new Candle(get(i, START), get(i, OPEN), get(i, HIGH), get(i, LOW), get(i, CLOSE), get(i, VOLUME)));
+            }
+            return candles;
+        }
+
+        // First candle starting at or after time.
+        int lowerBound(long time) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (get(mid, START) < time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    // Candles in primitive arrays, at most retained of them; the oldest half
+    // goes once that is reached.
+    private static class MemoryCandles extends CandleSeries {
+        final int retained;
+        final long[][] columns = new long[6][];
+
+        MemoryCandles(Interval interval, int retained) {
+            super(interval);
+            this.retained = retained;
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = new long[16];
+            }
+        }
+
+        long get(int index, int column) {
+            return columns[column][index];
+        }
+
+        void set(int index, int column, long value) {
+            columns[column][index] = value;
+        }
+
+        List<Candle> copy(int from, int to) {
+            List<Candle> candles = new ArrayList<>(Math.max(0, to - from));
+            long[] start = columns[START];
+            long[] open = columns[OPEN];
+            long[] high = columns[HIGH];
+            long[] low = columns[LOW];
+            long[] close = columns[CLOSE];
+            long[] volume = columns[VOLUME];
+            for (int i = from; i < to; i++) {
+                candles.add(new Candle(start[i], open[i], high[i], low[i], close[i], volume[i]));
+            }
+            return candles;
+        }
+
+        void reserve() {
+            if (size == retained) {
+                int dropped = size / 2;
+                for (long[] column : columns) {
+                    System.arraycopy(column, dropped, column, 0, size - dropped);
+                }
+                size -= dropped;
+            }
+            if (size == columns[0].length) {
+                int capacity = (int) Math.min((long) size * 2, retained);
+                for (int c = 0; c < columns.length; c++) {
+                    columns[c] = Arrays.copyOf(columns[c], capacity);
+                }
+            }
+        }
+
+        // Rebuilt only as far back as it keeps.
+        long resume(long lastTime) {
+            size = 0;
+            truncated();
+            return lastTime == Long.MIN_VALUE ? Long.MIN_VALUE : interval.bucket(lastTime) - (retained - 1) * interval.millis;
+        }
+    }
+
+    // Candles as rows of six longs in a file of their own, after a header
+    // page holding a magic number and the candle count. The rows are mapped
+    // as one region, mapped again twice the size when it fills.
+    private static class FileCandles extends CandleSeries {
+        static final long MAGIC = 0x434e444c53303031L;
+        static final int ROW = 6;
+        static final int INITIAL_ROWS = 1 << 12;
+
+        final FileChannel channel;
+        final MappedByteBuffer header;
+        MappedByteBuffer mapped;
+        LongBuffer rows;
+        int capacity;
+
+        FileCandles(Interval interval, Path file) throws IOException {
+            super(interval);
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            long stored = header.getLong(8);
+            boolean valid = header.getLong(0) == MAGIC && stored >= 0 && stored <= (channel.size() - HEADER) / (ROW * 8);
+            size = valid ? (int) stored : 0;
+            map(Math.max(INITIAL_ROWS, size));
+        }
+
+        long get(int index, int column) {
+            return rows.get(index * ROW + column);
+        }
+
+        void set(int index, int column, long value) {
+            rows.put(index * ROW + column, value);
+        }
+
+        void reserve() throws IOException {
+            if (size == capacity) {
+                map(capacity * 2);
+            }
+        }
+
+        void sized() {
+            header.putLong(8, size);
+        }
+
+        private void map(int rowCount) throws IOException {
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, HEADER, (long) rowCount * ROW * 8);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            rows = mapped.asLongBuffer();
+            capacity = rowCount;
+        }
+
+        List<Candle> copy(int from, int to) {
+            if (from >= to) {
+                return new ArrayList<>(0);
+            }
+            long[] values = new long[(to - from) * ROW];
+            LongBuffer view = rows.duplicate();
+            view.position(from * ROW);
+            view.get(values);
+            List<Candle> candles = new ArrayList<>(to - from);
+            for (int i = 0; i < values.length; i += ROW) {
+                candles.add(new Candle(values[i], values[i + 1], values[i + 2], values[i + 3], values[i + 4], values[i + 5]));
+            }
+            return candles;
+        }
+
+        // Keeps every candle but the last, which may have missed ticks that
+        // reached the tick file, or counted some that did not. If the kept
+        // ones run past the ticks, the file is not this history's and
+        // everything is rebuilt.
+        long resume(long lastTime) {
+            int kept = Math.max(0, size - 1);
+            if (kept == 0 || lastTime == Long.MIN_VALUE || get(kept - 1, START) > lastTime) {
+                size = 0;
+                truncated();
+                header.putLong(0, MAGIC).putLong(8, 0);
+                return Long.MIN_VALUE;
+            }
+            long from = get(kept, START);
+            size = kept;
+            truncated();
+            header.putLong(8, size);
+            return from;
+        }
+
+        void force() {
+            header.force();
+            mapped.force();
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static class Series {
+        final FileChannel channel;
+        final MappedByteBuffer header;
+        final List<MappedByteBuffer> segments = new ArrayList<>();
+        final EnumMap<Interval, CandleSeries> candles = new EnumMap<>(Interval.class);
+        long count;
+        long lastTime = Long.MIN_VALUE;
+
+        Series(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getLong(0) != MAGIC) {
+                header.putLong(0, MAGIC);
+                header.putLong(8, 0);
+            }
+            count = header.getLong(8);
+            long last = count > 0 ? time(count - 1) : Long.MIN_VALUE;
+            String name = file.getFileName().toString();
+            String stem = name.substring(0, name.length() - ".ticks".length());
+            long[] resumeAt = new long[Interval.values().length];
+            long from = Long.MAX_VALUE;
+            for (Interval interval : Interval.values()) {
+                CandleSeries series = interval.extension == null ? new MemoryCandles(interval, 86_400)
+                        : new FileCandles(interval, file.resolveSibling(stem + interval.extension));
+                candles.put(interval, series);
+                resumeAt[interval.ordinal()] = series.resume(last);
+                from = Math.min(from, resumeAt[interval.ordinal()]);
+            }
+            for (long i = from == Long.MIN_VALUE ? 0 : lowerBound(from); i < count; i++) {
+                MappedByteBuffer segment = segment(i);
+                int slot = (int) (i % SEGMENT);
+                long time = segment.getLong(slot * 8);
+                long price = segment.getLong((SEGMENT + slot) * 8);
+                long volume = segment.getLong((2 * SEGMENT + slot) * 8);
+                for (CandleSeries series : candles.values()) {
+                    if (time >= resumeAt[series.interval.ordinal()]) {
+                        series.add(time, price, volume);
+                    }
+                }
+            }
+            lastTime = last;
+        }
+
+        MappedByteBuffer segment(long index) throws IOException {
+            int number = (int) (index / SEGMENT);
+            while (segments.size() <= number) {
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, HEADER + segments.size() * SEGMENT_BYTES, SEGMENT_BYTES);
+                segment.order(ByteOrder.LITTLE_ENDIAN);
+                segments.add(segment);
+            }
+            return segments.get(number);
+        }
+
+        long time(long index) throws IOException {
+            return segment(index).getLong((int) (index % SEGMENT) * 8);
+        }
+
+        void append(long time, long price, long volume) throws IOException {
+            MappedByteBuffer segment = segment(count);
+            int slot = (int) (count % SEGMENT);
+            segment.putLong(slot * 8, time);
+            segment.putLong((SEGMENT + slot) * 8, price);
+            segment.putLong((2 * SEGMENT + slot) * 8, volume);
+            count++;
+            header.putLong(8, count);
+            lastTime = time;
+            for (CandleSeries series : candles.values()) {
+                series.add(time, price, volume);
+            }
+        }
+
+        // First tick at or after time.
+        long lowerBound(long time) throws IOException {
+            long lo = 0;
+            long hi = count;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if (time(mid) < time) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        void close() throws IOException {
+            header.force();
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            for (CandleSeries series : candles.values()) {
+                series.force();
+                series.close();
+            }
+            channel.close();
+        }
+    }
+
+    private static class Tick {
+        final String symbol;
+        final long time;
+        final long price;
+        final long volume;
+
+        Tick(String symbol, long time, long price, long volume) {
+            this.symbol = symbol;
+            this.time = time;
+            this.price = price;
+            this.volume = volume;
+        }
+    }
+
+    private final Path directory;
+    private final ConcurrentHashMap<String, Series> series = new ConcurrentHashMap<>();
+    private final Set<String> unavailable = ConcurrentHashMap.newKeySet();
+    private final BlockingQueue<Tick> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread recorder;
+    // Ticks queued, and ticks the recorder has written or dropped. flush()
+    // waits on this for handled to catch up.
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong handled = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    // Turned away by a full queue since the recorder last reported it.
+    private final AtomicLong overflowed = new AtomicLong();
+
+    public TickHistory(Path directory) {
+        this.directory = directory;
+        this.recorder = new Thread(this::run, "tick-recorder");
+        recorder.setDaemon(true);
+        recorder.start();
+    }
+
+    // The symbol's series, or null if its file cannot be opened.
+    private Series series(String symbol) {
+        if (unavailable.contains(symbol)) {
+            return null;
+        }
+        try {
+            return series.computeIfAbsent(symbol, s -> {
+                try {
+                    Files.createDirectories(directory);
+                    return new Series(directory.resolve(s + ".ticks"));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            if (unavailable.add(symbol)) {
+                System.out.println("Error opening tick history for " + symbol + ": " + e.getCause().getMessage() + ". Not recording it.");
+            }
+            return null;
+        }
+    }
+
+    // Queues the tick for the recorder. A time earlier than the last
+    // recorded one is moved up to it, so the time column stays sorted.
+    public void record(String symbol, long time, long priceTicks, long volume) {
+        queued.incrementAndGet();
+        if (!queue.offer(new Tick(symbol, time, priceTicks, volume))) {
+            dropped.increment();
+            overflowed.incrementAndGet();
+            handled.incrementAndGet();
+        }
+    }
+
+    private void run() {
+        List<Tick> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            int failed = 0;
+            for (Tick tick : batch) {
+                Series s = series(tick.symbol);
+                if (s == null) {
+                    failed++;
+                    continue;
+                }
+                synchronized (s) {
+                    try {
+                        s.append(Math.max(tick.time, s.lastTime), tick.price, tick.volume);
+                    } catch (IOException e) {
+                        System.out.println("Error recording tick for " + tick.symbol + ": " + e.getMessage());
+                        failed++;
+                    }
+                }
+            }
+            dropped.add(failed);
+            handled.addAndGet(batch.size());
+            long turnedAway = overflowed.getAndSet(0);
+            if (turnedAway > 0) {
+                System.out.println("Tick history fell behind: " + turnedAway + " ticks did not fit in the queue and were not recorded.");
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    // Waits until every tick recorded so far has been written or dropped.
+    public synchronized void flush() {
+        long target = queued.get();
+        while (handled.get() < target && recorder.isAlive()) {
+            try {
+                wait(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Ticks that were not recorded, because the queue was full or the file
+    // could not be written.
+    public long droppedTicks() {
+        return dropped.sum();
+    }
+
+    // Whether the symbol has any history, without creating a file for it.
+    public boolean contains(String symbol) {
+        return series.containsKey(symbol) || Files.exists(directory.resolve(symbol + ".ticks"));
+    }
+
+    // For queries: the symbol's series, or null if it has no history. Unlike
+    // series(), never creates a file.
+    private Series existing(String symbol) {
+        Series s = series.get(symbol);
+        return s != null || !contains(symbol) ? s : series(symbol);
+    }
+
+    public long tickCount(String symbol) {
+        Series s = existing(symbol);
+        if (s == null) {
+            return 0;
+        }
+        synchronized (s) {
+            return s.count;
+        }
+    }
+
+    // Number of raw ticks with from <= time <= to.
+    public long tickCount(String symbol, long from, long to) throws IOException {
+        Series s = existing(symbol);
+        if (s == null || from > to) {
+            return 0;
+        }
+        synchronized (s) {
+            long end = to == Long.MAX_VALUE ? s.count : s.lowerBound(to + 1);
+            return end - s.lowerBound(from);
+        }
+    }
+
+    public List<Candle> lastCandles(String symbol, Interval interval, int n) {
+        Series s = existing(symbol);
+        if (s == null) {
+            return Collections.emptyList();
+        }
+        synchronized (s) {
+            CandleSeries candles = s.candles.get(interval);
+            return candles.copy(Math.max(0, candles.size - n), candles.size);
+        }
+    }
+
+    // Candles whose start lies in [from, to].
+    public List<Candle> candles(String symbol, Interval interval, long from, long to) {
+        Series s = existing(symbol);
+        if (s == null || from > to) {
+            return Collections.emptyList();
+        }
+        synchronized (s) {
+            CandleSeries candles = s.candles.get(interval);
+            return candles.copy(candles.lowerBound(from), to == Long.MAX_VALUE ? candles.size : candles.lowerBound(to + 1));
+        }
+    }
+
+    // Today's daily candle, or null if nothing traded today.
+    public Candle today(String symbol, long now) {
+        Series s = existing(symbol);
+        if (s == null) {
+            return null;
+        }
+        synchronized (s) {
+            CandleSeries days = s.candles.get(Interval.DAY);
+            int last = days.size - 1;
+            if (last < 0 || days.get(last, CandleSeries.START) != Interval.DAY.bucket(now)) {
+                return null;
+            }
+            return days.copy(last, last + 1).get(0);
+        }
+    }
+
+    // Writes out what is queued, then stops the recorder and closes the files.
+    public void close() {
+        flush();
+        recorder.interrupt();
+        try {
+            recorder.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Series s : series.values()) {
+            synchronized (s) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing tick history: " + e.getMessage());
+                }
+            }
+        }
+        series.clear();
+    }
+
+    // java TickHistory [ticks] — appends a random walk at one tick per 10 ms of
+    // simulated time to a temp directory, reopens it, and times the queries.
+    public static void main(String[] args) throws IOException {
+        int ticks = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        Path dir = Files.createTempDirectory("tick-history");
+        TickHistory history = new TickHistory(dir);
+        Random random = new Random(42);
+        long time = 1_700_000_000_000L;
+        long price = 10_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < ticks; i++) {
+            time += 10;
+            price = Math.max(1, price + random.nextInt(11) - 5);
+            history.record("BENCH", time, price, random.nextInt(100));
+            if (i % QUEUE_CAPACITY == QUEUE_CAPACITY - 1) {
+                // Keep ahead of the queue rather than measure how much it drops.
+                history.flush();
+            }
+        }
+        history.flush();
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("append: %,d ticks in %.1f ms (%,.0f ticks/s), %,d dropped%n",
+                ticks, elapsed / 1e6, ticks * 1e9 / elapsed, history.droppedTicks());
+        history.close();
+
+        start = System.nanoTime();
+        history = new TickHistory(dir);
+        long reopened = history.tickCount("BENCH");
+        System.out.printf("reopen and rebuild candles: %,d ticks in %.1f ms%n", reopened, (System.nanoTime() - start) / 1e6);
+
+        start = System.nanoTime();
+        int queries = 100_000;
+        long found = 0;
+        for (int i = 0; i < queries; i++) {
+            long from = 1_700_000_000_000L + random.nextInt(Math.max(1, ticks / 100)) * 1000L;
+            found += history.candles("BENCH", Interval.MINUTE, from, from + 3_600_000).size();
+            found += history.lastCandles("BENCH", Interval.SECOND, 60).size();
+        }
+        elapsed = System.nanoTime() - start;
+        System.out.printf("queries: %,d range + last-N pairs in %.1f ms (%.2f us each, %,d candles)%n",
+                queries, elapsed / 1e6, elapsed / 1e3 / queries, found);
+        for (Candle candle : history.lastCandles("BENCH", Interval.DAY, 2)) {
+            System.out.println(candle);
+        }
+        history.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+}
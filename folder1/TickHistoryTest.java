@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+
+// TickHistory's range queries and candles. Ranges include both ends, and an
+// open end at Long.MIN_VALUE or Long.MAX_VALUE takes in everything on that
+// side without overflowing. Candles kept in their own files come back the
+// same after a reopen, and are rebuilt when those files are lost or belong to
+// other ticks; today() finds a symbol that has not been touched since the
+// open. A tick turned away by a full queue is counted, never lost silently.
+// Histories go to a temp directory.
+//
+//   java TickHistoryTest
+class TickHistoryTest {
+    private static final long DAY = 86_400_000L;
+    // Midnight UTC, so the day buckets are easy to name.
+    private static final long T0 = 1_700_006_400_000L;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("tick-test");
+        boolean passed = Checks.run("TickHistoryTest",
+                () -> rangesIncludeBothEnds(dir.resolve("ranges")),
+                () -> candlesSurviveReopen(dir.resolve("reopen")),
+                () -> lostCandleFilesAreRebuilt(dir.resolve("lost")),
+                () -> overflowIsCounted(dir.resolve("overflow")));
+        Checks.delete(dir);
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    // Ticks at T0, T0+1s, ... T0+9s, each at price 100 + i.
+    static void rangesIncludeBothEnds(Path dir) throws IOException {
+        TickHistory history = new TickHistory(dir);
+        for (int i = 0; i < 10; i++) {
+            history.record("RNG", T0 + i * 1000L, 100 + i, 1);
+        }
+        // Earlier than the last tick: recorded at the last tick's time.
+        history.record("RNG", T0, 50, 1);
+        history.flush();
+
+        Checks.check(history.tickCount("RNG") == 11, "every tick recorded, got " + history.tickCount("RNG"));
+        Checks.check(history.tickCount("RNG", T0, T0 + 9_000) == 11, "both ends included");
+        Checks.check(history.tickCount("RNG", T0 + 1_000, T0 + 1_000) == 1, "a one-instant range");
+        Checks.check(history.tickCount("RNG", T0 + 500, T0 + 2_500) == 2, "ticks between the bounds");
+        Checks.check(history.tickCount("RNG", T0 + 3_000, Long.MAX_VALUE) == 8, "open end at Long.MAX_VALUE");
+        Checks.check(history.tickCount("RNG", Long.MIN_VALUE, T0 + 3_000) == 4, "open start at Long.MIN_VALUE");
+        Checks.check(history.tickCount("RNG", Long.MIN_VALUE, Long.MAX_VALUE) == 11, "fully open range");
+        Checks.check(history.tickCount("RNG", T0 + 5_000, T0 + 4_000) == 0, "from after to is empty");
+        Checks.check(history.tickCount("NONE", Long.MIN_VALUE, Long.MAX_VALUE) == 0 && !history.contains("NONE"), "unknown symbol is empty and not created");
+
+        List<TickHistory.Candle> seconds = history.candles("RNG", TickHistory.Interval.SECOND, T0 + 2_000, T0 + 4_000);
+        Checks.check(starts(seconds).equals(List.of(T0 + 2_000, T0 + 3_000, T0 + 4_000)), "second candles in [from, to], got " + starts(seconds));
+        Checks.check(history.candles("RNG", TickHistory.Interval.SECOND, T0 + 8_000, Long.MAX_VALUE).size() == 2, "second candles to Long.MAX_VALUE");
+        List<TickHistory.Candle> last = history.candles("RNG", TickHistory.Interval.SECOND, T0 + 9_000, T0 + 9_000);
+        Checks.check(last.size() == 1 && last.get(0).close == 50 && last.get(0).low == 50 && last.get(0).volume == 2, "late tick joins the last candle");
+        List<TickHistory.Candle> minute = history.candles("RNG", TickHistory.Interval.MINUTE, Long.MIN_VALUE, Long.MAX_VALUE);
+        Checks.check(minute.size() == 1 && minute.get(0).open == 100 && minute.get(0).high == 109 && minute.get(0).volume == 11, "one minute candle, got " + minute);
+        Checks.check(history.candles("RNG", TickHistory.Interval.MINUTE, T0 + 1, Long.MAX_VALUE).isEmpty(), "a candle starting before from is left out");
+        Checks.check(history.candles("RNG", TickHistory.Interval.DAY, T0 + 1, T0).isEmpty(), "from after to gives no candles");
+        history.close();
+    }
+
+    // Three days of ticks a minute apart, then a few on a fourth day.
+    static void candlesSurviveReopen(Path dir) throws IOException {
+        TickHistory history = new TickHistory(dir);
+        Random random = new Random(5);
+        long price = 10_000;
+        for (long time = T0; time < T0 + 3 * DAY; time += 60_000) {
+            price = Math.max(1, price + random.nextInt(21) - 10);
+            history.record("RO", time, price, 1 + random.nextInt(9));
+        }
+        for (int i = 0; i < 5; i++) {
+            history.record("RO", T0 + 3 * DAY + i * 1000L, 777, 1);
+        }
+        history.flush();
+        Map<TickHistory.Interval, List<String>> before = snapshot(history, "RO");
+        history.close();
+
+        TickHistory reopened = new TickHistory(dir);
+        TickHistory.Candle today = reopened.today("RO", T0 + 3 * DAY + 12 * 3_600_000L);
+        Checks.check(today != null && today.open == 777 && today.volume == 5, "today() opens the series from disk, got " + today);
+        Checks.check(reopened.today("RO", T0 + 4 * DAY) == null, "nothing traded on a later day");
+        Checks.check(snapshot(reopened, "RO").equals(before), "candles are the same after a reopen");
+        Checks.check(before.get(TickHistory.Interval.DAY).size() == 4 && before.get(TickHistory.Interval.MINUTE).size() == 3 * 24 * 60 + 1,
+                "four days and every minute, got " + before.get(TickHistory.Interval.DAY).size() + " days");
+
+        // Appends after the reopen land in the candle the file was resumed at.
+        reopened.record("RO", T0 + 3 * DAY + 10_000, 778, 4);
+        reopened.flush();
+        today = reopened.today("RO", T0 + 3 * DAY);
+        Checks.check(today.volume == 9 && today.close == 778 && today.high == 778, "resumed day candle keeps counting, got " + today);
+        reopened.close();
+    }
+
+    static void lostCandleFilesAreRebuilt(Path dir) throws IOException {
+        TickHistory history = new TickHistory(dir);
+        for (long time = T0; time < T0 + 2 * DAY; time += 30_000) {
+            history.record("LOST", time, 100 + (time / 30_000) % 50, 1);
+            history.record("OTHER", time + 3 * DAY, 5, 1);
+        }
+        history.flush();
+        Map<TickHistory.Interval, List<String>> before = snapshot(history, "LOST");
+        history.close();
+
+        Files.delete(dir.resolve("LOST.1m"));
+        // A day file that starts after the last tick is someone else's.
+        Files.copy(dir.resolve("OTHER.1d"), dir.resolve("LOST.1d"), StandardCopyOption.REPLACE_EXISTING);
+        history = new TickHistory(dir);
+        Checks.check(snapshot(history, "LOST").equals(before), "lost and foreign candle files are rebuilt from the ticks");
+        history.close();
+    }
+
+    // Far more ticks than the queue holds, offered without waiting: whatever
+    // was not written is counted as dropped.
+    static void overflowIsCounted(Path dir) throws IOException {
+        TickHistory history = new TickHistory(dir);
+        int offered = 400_000;
+        for (int i = 0; i < offered; i++) {
+            history.record("OVF", T0 + i, 100, 1);
+        }
+        history.flush();
+        Checks.check(history.tickCount("OVF") + history.droppedTicks() == offered,
+                "written " + history.tickCount("OVF") + " + dropped " + history.droppedTicks() + " != " + offered);
+        history.close();
+    }
+
+    // Every minute and day candle, and the second candles of the last day:
+    // only those are rebuilt on open.
+    private static Map<TickHistory.Interval, List<String>> snapshot(TickHistory history, String symbol) throws IOException {
+        long last = history.lastCandles(symbol, TickHistory.Interval.SECOND, 1).get(0).start;
+        Map<TickHistory.Interval, List<String>> candles = new EnumMap<>(TickHistory.Interval.class);
+        for (TickHistory.Interval interval : TickHistory.Interval.values()) {
+            long from = interval == TickHistory.Interval.SECOND ? last - DAY + 1_000 : Long.MIN_VALUE;
+            List<String> rows = new ArrayList<>();
+            for (TickHistory.Candle candle : history.candles(symbol, interval, from, Long.MAX_VALUE)) {
+                rows.add(candle.start + " " + candle.open + " " + candle.high + " " + candle.low + " " + candle.close + " " + candle.volume);
+            }
+            candles.put(interval, rows);
+        }
+        return candles;
+    }
+
+    private static List<Long> starts(List<TickHistory.Candle> candles) {
+        List<Long> starts = new ArrayList<>();
+        for (TickHistory.Candle candle : candles) {
+            starts.add(candle.start);
+        }
+        return starts;
+    }
+}
@@ -0,0 +1,432 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Append-only log of the trades made on one portfolio since its last snapshot.
+// Each line is "seq;<record fields>;crc", so a torn tail left by a crash is
+// detected and dropped on replay. A journal found damaged is rewritten with
+// only its intact records before the next append, so new records never land
+// behind, or glued onto, the damaged ones. A write or force that fails leaves
+// the journal damaged in the same way, so it is repaired before the next
+// append too.
+class TradeJournal {
+    private static final GroupCommitter COMMITTER = new GroupCommitter();
+    private static final Metrics.Operation APPEND = Metrics.operation("journal.append");
+
+    // Opens the file appends go to; tests pass one that fails on purpose.
+    interface ChannelOpener {
+        FileChannel open(Path path) throws IOException;
+    }
+
+    private final Path path;
+    private final ChannelOpener opener;
+    private FileChannel channel;
+    // Set by the committer when a write or force to that channel failed.
+    private volatile FileChannel failedChannel;
+    private long lastSeq;
+    private final AtomicInteger recordsSinceSnapshot = new AtomicInteger();
+    private boolean damaged;
+    private boolean batching;
+
+    public TradeJournal(String filePath) {
+        this(filePath, path -> FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    }
+
+    TradeJournal(String filePath, ChannelOpener opener) {
+        this.path = Paths.get(filePath);
+        this.opener = opener;
+    }
+
+    // Replays every intact record with a sequence number after snapshotSeq.
+    // Returns false if it had to skip a damaged record; intact records past
+    // it, written after an earlier crash, are still replayed.
+    public boolean replay(long snapshotSeq, Consumer<String[]> handler) {
+        lastSeq = snapshotSeq;
+        recordsSinceSnapshot.set(0);
+        damaged = false;
+        if (!Files.exists(path)) {
+            return true;
+        }
+        try {
+            damaged = !scan(snapshotSeq, (seq, body) -> {
+                handler.accept(body.substring(body.indexOf(';') + 1).split(";"));
+                lastSeq = seq;
+                recordsSinceSnapshot.incrementAndGet();
+            });
+        } catch (IOException e) {
+            System.out.println("Error replaying journal: " + e.getMessage());
+            damaged = true;
+        }
+        return !damaged;
+    }
+
+    interface LineHandler {
+        void line(long seq, String body);
+    }
+
+    // Feeds the body of each intact line whose sequence number is above
+    // afterSeq and the line before it. A line is intact if its checksum
+    // matches and it ends in a newline: the newline goes out in the same
+    // write, so a line without one was never acknowledged. Returns false if
+    // any line was skipped.
+    private boolean scan(long afterSeq, LineHandler handler) throws IOException {
+        boolean intact = true;
+        boolean terminated = endsWithNewline();
+        long previous = afterSeq;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                String body = next != null || terminated ? intactBody(line) : null;
+                long seq = body == null ? -1 : seqOf(body);
+                if (seq < 0) {
+                    intact = false;
+                } else if (seq > previous) {
+                    handler.line(seq, body);
+                    previous = seq;
+                }
+                line = next;
+            }
+        }
+        return intact;
+    }
+
+    private boolean endsWithNewline() throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            if (size == 0) {
+                return true;
+            }
+            ByteBuffer last = ByteBuffer.allocate(1);
+            file.read(last, size - 1);
+            return last.get(0) == '\n';
+        }
+    }
+
+    private static String intactBody(String line) {
+        int lastSep = line.lastIndexOf(';');
+        int firstSep = line.indexOf(';');
+        if (firstSep < 0 || lastSep <= firstSep) {
+            return null;
+        }
+        String body = line.substring(0, lastSep);
+        return Long.toHexString(crc(body)).equals(line.substring(lastSep + 1)) ? body : null;
+    }
+
+    private static long seqOf(String body) {
+        try {
+            return Long.parseLong(body.substring(0, body.indexOf(';')));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Opens the journal for appending, first rewriting it without the damaged
+    // lines replay skipped or a failed write left behind: written beside it,
+    // forced, and moved into place.
+    private FileChannel channel() throws IOException {
+        if (channel != null && channel == failedChannel) {
+            failed();
+        }
+        if (channel == null) {
+            if (damaged && Files.exists(path)) {
+                Path temp = Paths.get(path + ".tmp");
+                try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    scan(0, (seq, body) -> {
+                        try {
+                            writer.write(body + ";" + Long.toHexString(crc(body)) + "\n");
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                try (FileChannel written = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    written.force(true);
+                }
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            damaged = false;
+            channel = opener.open(path);
+        }
+        return channel;
+    }
+
+    // After a failed write the file may end in part of a line, so it is
+    // closed and rewritten before anything else is appended to it.
+    private void failed() {
+        damaged = true;
+        close();
+    }
+
+    private static byte[] line(long seq, String record) {
+        String body = seq + ";" + record;
+        return (body + ";" + Long.toHexString(crc(body)) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Appends one record and waits until it is on disk. Concurrent appends from
+    // other portfolios share the same fsync. The record only takes its
+    // sequence number once it is durable.
+    public void append(String record) throws IOException {
+        channel();
+        long seq = lastSeq + 1;
+        byte[] line = line(seq, record);
+        long start = APPEND.start();
+        try {
+            await(COMMITTER.submit(this, channel, line));
+        } catch (InterruptedIOException e) {
+            // Still queued and may yet be written, so its number is spent.
+            APPEND.fail(start);
+            lastSeq = seq;
+            throw e;
+        } catch (IOException e) {
+            APPEND.fail(start);
+            failed();
+            throw e;
+        }
+        APPEND.stop(start);
+        Metrics.addBytes("journal.write", line.length);
+        lastSeq = seq;
+        recordsSinceSnapshot.incrementAndGet();
+    }
+
+    // Queues the record for the next group commit and returns straight away;
+    // the future completes once it is on disk. The caller keeps appends in
+    // order, but can wait for the commit without holding its own lock. The
+    // sequence number is taken now, since later records are queued before
+    // this one is written; if the write fails it is left as a gap, which
+    // replay accepts.
+    public CompletableFuture<Void> appendAsync(String record) throws IOException {
+        channel();
+        byte[] line = line(++lastSeq, record);
+        return COMMITTER.submit(this, channel, line).thenRun(() -> {
+            Metrics.addBytes("journal.write", line.length);
+            recordsSinceSnapshot.incrementAndGet();
+        });
+    }
+
+    // For journals shared by many threads, which call this under their own
+    // lock to keep records in order and then await() the result without it.
+    // Outside a batch this is appendAsync(); between beginBatch() and
+    // endBatch() the record is only written, and the returned future is
+    // already complete.
+    public CompletableFuture<Void> write(String record) throws IOException {
+        if (batching) {
+            appendDeferred(record);
+            return CompletableFuture.completedFuture(null);
+        }
+        return appendAsync(record);
+    }
+
+    // Waits until a record from appendAsync() or write() is on disk.
+    public static void await(CompletableFuture<Void> committed) throws IOException {
+        try {
+            committed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for journal commit");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Until endBatch(), write() does not wait for the disk; endBatch() makes
+    // the whole batch durable with a single force.
+    public void beginBatch() {
+        batching = true;
+    }
+
+    public void endBatch() throws IOException {
+        batching = false;
+        sync();
+    }
+
+    // Writes the record without waiting for it to reach the disk; sync() then
+    // makes everything written so far durable with a single force.
+    public void appendDeferred(String record) throws IOException {
+        channel();
+        long seq = lastSeq + 1;
+        ByteBuffer line = ByteBuffer.wrap(line(seq, record));
+        Metrics.addBytes("journal.write", line.remaining());
+        writeFully(line);
+        lastSeq = seq;
+        recordsSinceSnapshot.incrementAndGet();
+    }
+
+    // appendDeferred for several records with a single write.
+    public void appendDeferred(Collection<String> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        channel();
+        StringBuilder lines = new StringBuilder(records.size() * 32);
+        long seq = lastSeq;
+        for (String record : records) {
+            String body = (++seq) + ";" + record;
+            lines.append(body).append(';').append(Long.toHexString(crc(body))).append('\n');
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        Metrics.addBytes("journal.write", buffer.remaining());
+        writeFully(buffer);
+        lastSeq = seq;
+        recordsSinceSnapshot.addAndGet(records.size());
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            failed();
+            throw e;
+        }
+    }
+
+    public void sync() throws IOException {
+        if (channel != null) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                failed();
+                throw e;
+            }
+        }
+    }
+
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    public int getRecordsSinceSnapshot() {
+        return recordsSinceSnapshot.get();
+    }
+
+    // Called once a snapshot covering every record up to getLastSeq() is durable.
+    public void reset() throws IOException {
+        if (channel != null) {
+            channel.truncate(0);
+            channel.force(true);
+        } else {
+            Files.deleteIfExists(path);
+        }
+        damaged = false;
+        recordsSinceSnapshot.set(0);
+    }
+
+    public void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing journal: " + e.getMessage());
+        }
+        channel = null;
+    }
+
+    private static long crc(String body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    // Single writer thread: drains every pending append, writes them, then
+    // forces each touched file once before acknowledging the whole batch.
+    // Once a write to a channel fails, nothing more is written to it: the
+    // journal closes it and repairs the file before its next append.
+    private static class GroupCommitter implements Runnable {
+        private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+        GroupCommitter() {
+            Thread thread = new Thread(this, "trade-journal-committer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        CompletableFuture<Void> submit(TradeJournal journal, FileChannel channel, byte[] line) {
+            PendingWrite write = new PendingWrite(journal, channel, line);
+            queue.add(write);
+            return write.done;
+        }
+
+        public void run() {
+            List<PendingWrite> batch = new ArrayList<>();
+            Set<FileChannel> touched = new HashSet<>();
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.drainTo(batch);
+                Map<FileChannel, IOException> failures = new HashMap<>();
+                for (PendingWrite write : batch) {
+                    if (failures.containsKey(write.channel)) {
+                        continue;
+                    }
+                    if (write.journal.failedChannel == write.channel) {
+                        failures.put(write.channel, new IOException("Journal write failed earlier"));
+                        continue;
+                    }
+                    try {
+                        ByteBuffer buffer = ByteBuffer.wrap(write.line);
+                        while (buffer.hasRemaining()) {
+                            write.channel.write(buffer);
+                        }
+                        touched.add(write.channel);
+                    } catch (IOException e) {
+                        failures.put(write.channel, e);
+                    }
+                }
+                for (FileChannel channel : touched) {
+                    if (failures.containsKey(channel)) {
+                        continue;
+                    }
+                    try {
+                        channel.force(false);
+                    } catch (IOException e) {
+                        failures.put(channel, e);
+                    }
+                }
+                for (PendingWrite write : batch) {
+                    if (failures.containsKey(write.channel)) {
+                        write.journal.failedChannel = write.channel;
+                    }
+                }
+                for (PendingWrite write : batch) {
+                    IOException failure = failures.get(write.channel);
+                    if (failure == null) {
+                        write.done.complete(null);
+                    } else {
+                        write.done.completeExceptionally(failure);
+                    }
+                }
+                batch.clear();
+                touched.clear();
+            }
+        }
+    }
+
+    private static class PendingWrite {
+        final TradeJournal journal;
+        final FileChannel channel;
+        final byte[] line;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(TradeJournal journal, FileChannel channel, byte[] line) {
+            this.journal = journal;
+            this.channel = channel;
+            this.line = line;
+        }
+    }
+}
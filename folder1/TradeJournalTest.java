@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Crash recovery of TradeJournal: neither a torn tail, a damaged line in the
+// middle nor a failed write may swallow the trades appended after it.
+//
+//   java TradeJournalTest
+class TradeJournalTest {
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("journal-test");
+        boolean passed = Checks.run("TradeJournalTest",
+                () -> tornTailIsCutBeforeAppend(dir.resolve("torn.journal")),
+                () -> recordsBehindDamageAreKept(dir.resolve("glued.journal")),
+                () -> partialWriteIsRepairedBeforeAppend(dir.resolve("partial.journal")));
+        Checks.delete(dir);
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    // A crash in the middle of a write leaves half a line; the records
+    // appended after the restart must replay, now and on every later start.
+    static void tornTailIsCutBeforeAppend(Path path) throws IOException {
+        TradeJournal journal = new TradeJournal(path.toString());
+        Checks.check(journal.replay(0, record -> { }), "empty journal replays clean");
+        journal.append("B;AAA;1");
+        journal.append("B;BBB;2");
+        journal.close();
+        Files.write(path, "3;B;CCC;3;12ab".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        journal = new TradeJournal(path.toString());
+        List<String> replayed = new ArrayList<>();
+        Checks.check(!journal.replay(0, record -> replayed.add(record[1])), "torn tail is reported");
+        Checks.check(replayed.equals(List.of("AAA", "BBB")), "records before the tear replay, got " + replayed);
+        journal.append("B;DDD;4");
+        journal.close();
+
+        for (int start = 0; start < 2; start++) {
+            journal = new TradeJournal(path.toString());
+            replayed.clear();
+            Checks.check(journal.replay(0, record -> replayed.add(record[1])), "repaired journal replays clean");
+            Checks.check(replayed.equals(List.of("AAA", "BBB", "DDD")), "append after the tear replays, got " + replayed);
+            Checks.check(journal.getLastSeq() == 3, "sequence continues after the tear, got " + journal.getLastSeq());
+            journal.close();
+        }
+    }
+
+    // Before the repair, the first append after a restart was glued onto
+    // the torn line and lost with it, and later ones landed behind it.
+    // Replay keeps those later records and the next append drops the damage.
+    static void recordsBehindDamageAreKept(Path path) throws IOException {
+        TradeJournal journal = new TradeJournal(path.toString());
+        journal.replay(0, record -> { });
+        journal.append("B;AAA;1");
+        journal.append("B;BBB;2");
+        journal.append("B;CCC;3");
+        journal.close();
+        List<String> lines = new ArrayList<>(Files.readAllLines(path, StandardCharsets.UTF_8));
+        lines.set(1, "2;B;XX" + lines.get(1));
+        Files.write(path, lines, StandardCharsets.UTF_8);
+
+        journal = new TradeJournal(path.toString());
+        List<String> replayed = new ArrayList<>();
+        Checks.check(!journal.replay(0, record -> replayed.add(record[1])), "glued line is reported");
+        Checks.check(replayed.equals(List.of("AAA", "CCC")), "record behind the damage replays, got " + replayed);
+        journal.append("B;DDD;4");
+        journal.close();
+
+        journal = new TradeJournal(path.toString());
+        replayed.clear();
+        Checks.check(journal.replay(0, record -> replayed.add(record[1])), "repaired journal replays clean");
+        Checks.check(replayed.equals(List.of("AAA", "CCC", "DDD")), "records around the damage survive, got " + replayed);
+        Checks.check(journal.getLastSeq() == 4, "sequence continues after the damage, got " + journal.getLastSeq());
+        journal.close();
+    }
+
+    // A write that fails halfway leaves part of a line in the file while the
+    // process carries on. The next append must not be glued onto it, and
+    // the failed record must not use up a sequence number.
+    static void partialWriteIsRepairedBeforeAppend(Path path) throws IOException {
+        int[] writes = {0};
+        TradeJournal journal = new TradeJournal(path.toString(), file -> new FailingChannel(
+                FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND), writes, 2));
+        journal.replay(0, record -> { });
+        journal.append("B;AAA;1");
+        try {
+            journal.append("B;BBB;2");
+            Checks.check(false, "failed write is reported");
+        } catch (IOException expected) {
+        }
+        Checks.check(journal.getLastSeq() == 1, "failed record takes no sequence number, got " + journal.getLastSeq());
+        Checks.check(journal.getRecordsSinceSnapshot() == 1, "failed record is not counted, got " + journal.getRecordsSinceSnapshot());
+        journal.append("B;CCC;3");
+        journal.appendDeferred("B;DDD;4");
+        journal.sync();
+        journal.close();
+
+        journal = new TradeJournal(path.toString());
+        List<String> replayed = new ArrayList<>();
+        Checks.check(journal.replay(0, record -> replayed.add(record[1])), "journal replays clean after a failed write");
+        Checks.check(replayed.equals(List.of("AAA", "CCC", "DDD")), "appends after the failed write replay, got " + replayed);
+        Checks.check(journal.getLastSeq() == 3, "sequence continues after the failed write, got " + journal.getLastSeq());
+        journal.close();
+    }
+
+    // Writes half of the failAt-th buffer written through any channel that
+    // shares the counter, then throws, as a full disk would.
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel file;
+        private final int[] writes;
+        private final int failAt;
+
+        FailingChannel(FileChannel file, int[] writes, int failAt) {
+            this.file = file;
+            this.writes = writes;
+            this.failAt = failAt;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            if (++writes[0] != failAt) {
+                return file.write(src);
+            }
+            ByteBuffer half = src.duplicate();
+            half.limit(src.position() + src.remaining() / 2);
+            src.position(half.limit());
+            file.write(half);
+            throw new IOException("No space left on device");
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            return file.read(dst);
+        }
+
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return file.read(dsts, offset, length);
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return file.write(srcs, offset, length);
+        }
+
+        public long position() throws IOException {
+            return file.position();
+        }
+
+        public FileChannel position(long newPosition) throws IOException {
+            file.position(newPosition);
+            return this;
+        }
+
+        public long size() throws IOException {
+            return file.size();
+        }
+
+        public FileChannel truncate(long size) throws IOException {
+            file.truncate(size);
+            return this;
+        }
+
+        public void force(boolean metaData) throws IOException {
+            file.force(metaData);
+        }
+
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return file.transferTo(position, count, target);
+        }
+
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return file.transferFrom(src, position, count);
+        }
+
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return file.read(dst, position);
+        }
+
+        public int write(ByteBuffer src, long position) throws IOException {
+            return file.write(src, position);
+        }
+
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return file.map(mode, position, size);
+        }
+
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return file.lock(position, size, shared);
+        }
+
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return file.tryLock(position, size, shared);
+        }
+
+        protected void implCloseChannel() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,565 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Line-protocol TCP front end for the market. Every connection gets its own
+// thread; all of them share a MarketContext and a SessionManager.
+//
+//   SIGNUP <user> <password>      LOGIN <user> <password>
+//   RESUME <token>                LOGOUT
+//   BUY <symbol> <qty>            SELL <symbol> <qty>
+//   PORTFOLIO [symbol|price|quantity|value|pnl]
+//   QUOTES                        PRICE <symbol>
+//   WATCH <symbol>                UNWATCH <symbol>
+//   WATCHLIST                     ALERTS
+//   ALERT <symbol> [ABOVE|BELOW] <price>
+//   CANCEL <alertId>
+//   QUIT
+//
+// Replies start with "OK" or "ERR"; multi-line replies end with an "OK" line.
+// LOGIN replies with a session token. QUIT or a dropped connection leaves the
+// session warm, so a client that reconnects sends RESUME with the token instead
+// of its password. LOGOUT ends the session.
+// While a connection is signed in, alerts that fire for its user are pushed
+// to it as "ALERT <id> <symbol> above|below <threshold> now <price>" lines
+// between replies; those that fired while no connection was signed in are
+// sent on the next LOGIN or RESUME. ALERT without a direction fires when the
+// price crosses the threshold from where it is now.
+// BUY charges the account through the payment gateway; run with
+// -Dpayment.latency=<ms> -Dpayment.failureRate=<0..1> to simulate a slow one.
+class TradingServer {
+    private static final int DEFAULT_PORT = 9090;
+
+    private final MarketContext market;
+    private final SessionManager sessionManager;
+    private final ExecutorService sessions;
+    private ServerSocket serverSocket;
+
+    public TradingServer(MarketContext market, SessionManager sessionManager) {
+        this.market = market;
+        this.sessionManager = sessionManager;
+        this.sessions = newSessionExecutor();
+    }
+
+    // One virtual thread per session where the JDK has them (21+), otherwise
+    // a cached pool of platform threads.
+    static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "trading-session");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public void serve(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 4096);
+        System.out.println("Trading server listening on port " + serverSocket.getLocalPort());
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                break;
+            }
+            sessions.execute(() -> handle(socket));
+        }
+    }
+
+    public void close() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error closing server: " + e.getMessage());
+        }
+        sessions.shutdownNow();
+    }
+
+    // Replies are built in a buffer and written in one piece, so alert
+    // pushes never land in the middle of a reply.
+    private void handle(Socket socket) {
+        String token = null;
+        Pusher pusher = null;
+        AlertService alerts = market.getAlerts();
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)))) {
+            socket.setTcpNoDelay(true);
+            StringWriter buffer = new StringWriter();
+            PrintWriter reply = new PrintWriter(buffer);
+            String line;
+            try {
+                while ((line = in.readLine()) != null) {
+                    String[] parts = line.trim().split("\\s+");
+                    String command = parts[0].toUpperCase(Locale.ROOT);
+                    if (command.equals("QUIT")) {
+                        synchronized (out) {
+                            out.println("OK bye");
+                            out.flush();
+                        }
+                        break;
+                    }
+                    String before = token;
+                    token = execute(command, parts, token, reply);
+                    reply.flush();
+                    synchronized (out) {
+                        out.write(buffer.toString());
+                        out.flush();
+                    }
+                    buffer.getBuffer().setLength(0);
+                    if (!Objects.equals(before, token)) {
+                        if (pusher != null) {
+                            pusher.stop();
+                            pusher = null;
+                        }
+                        String subscribed = token == null ? null : username(token);
+                        if (subscribed != null) {
+                            pusher = new Pusher(subscribed, out, alerts);
+                            pusher.start(sessions);
+                            alerts.subscribe(subscribed, pusher);
+                        }
+                    }
+                }
+            } finally {
+                if (pusher != null) {
+                    pusher.stop();
+                }
+            }
+        } catch (IOException e) {
+            // The client went away; its session stays to be resumed.
+        }
+    }
+
+    // Alert pushes to one connection for its signed-in user. The delivery
+    // thread only queues them, and the connection's own task writes them
+    // out, so a client that stops reading holds up nobody else. A push that
+    // does not fit in the queue, or whose write fails, goes back to the
+    // user's inbox for the next session.
+    private static class Pusher implements Consumer<AlertService.Notification>, Runnable {
+        private final String user;
+        private final PrintWriter out;
+        private final AlertService alerts;
+        private final BlockingQueue<AlertService.Notification> queue = new ArrayBlockingQueue<>(AlertService.INBOX_LIMIT);
+        private boolean stopped;
+        private volatile Future<?> task;
+
+        Pusher(String user, PrintWriter out, AlertService alerts) {
+            this.user = user;
+            this.out = out;
+            this.alerts = alerts;
+        }
+
+        void start(ExecutorService executor) {
+            task = executor.submit(this);
+        }
+
+        public synchronized void accept(AlertService.Notification notification) {
+            if (stopped || !queue.offer(notification)) {
+                throw new RejectedExecutionException("alert push to " + user + " not accepted");
+            }
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    AlertService.Notification notification = queue.take();
+                    boolean failed;
+                    synchronized (out) {
+                        out.println(alertLine(notification));
+                        out.flush();
+                        failed = out.checkError();
+                    }
+                    if (failed) {
+                        alerts.undelivered(user, this, notification);
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stopped.
+            }
+            stop();
+        }
+
+        // Unsubscribes and hands whatever is still queued back to the inbox.
+        void stop() {
+            alerts.unsubscribe(user, this);
+            List<AlertService.Notification> left = new ArrayList<>();
+            synchronized (this) {
+                stopped = true;
+                queue.drainTo(left);
+            }
+            for (AlertService.Notification notification : left) {
+                alerts.undelivered(user, this, notification);
+            }
+            if (task != null) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    private static String alertLine(AlertService.Notification notification) {
+        return String.format(Locale.ROOT, "ALERT %d %s %s %.2f now %.2f", notification.id, notification.symbol,
+                notification.direction == TriggerIndex.ABOVE ? "above" : "below",
+                MatchingEngine.toPrice(notification.thresholdTicks), MatchingEngine.toPrice(notification.priceTicks));
+    }
+
+    private String username(String token) {
+        SessionManager.Session session = sessionManager.resume(token);
+        if (session == null) {
+            return null;
+        }
+        sessionManager.done(session);
+        return session.getUsername();
+    }
+
+    // Runs one command for the connection signed in with token, or null, and
+    // returns the connection's token afterwards.
+    private String execute(String command, String[] parts, String token, PrintWriter out) {
+        Authentication auth = market.getAuth();
+        try {
+            switch (command) {
+                case "SIGNUP":
+                    if (parts.length != 3) {
+                        out.println("ERR usage: SIGNUP <user> <password>");
+                    } else if (auth.addUser(parts[1], parts[2])) {
+                        out.println("OK signed up");
+                    } else {
+                        out.println("ERR username taken or password too weak");
+                    }
+                    return token;
+                case "LOGIN":
+                    if (parts.length != 3) {
+                        out.println("ERR usage: LOGIN <user> <password>");
+                        return token;
+                    }
+                    SessionManager.Session signedIn = sessionManager.signIn(parts[1], parts[2]);
+                    if (signedIn == null) {
+                        out.println("ERR invalid username or password");
+                        return token;
+                    }
+                    sessionManager.done(signedIn);
+                    out.println("OK signed in as " + parts[1] + " token " + signedIn.token);
+                    return signedIn.token;
+                case "RESUME":
+                    if (parts.length != 2) {
+                        out.println("ERR usage: RESUME <token>");
+                        return token;
+                    }
+                    SessionManager.Session resumed = sessionManager.resume(parts[1]);
+                    if (resumed == null) {
+                        out.println("ERR unknown or expired session");
+                        return token;
+                    }
+                    sessionManager.done(resumed);
+                    out.println("OK resumed " + resumed.getUsername());
+                    return resumed.token;
+                case "LOGOUT":
+                    if (token != null) {
+                        sessionManager.signOut(token);
+                    }
+                    out.println("OK signed out");
+                    return null;
+                case "QUOTES":
+                    for (Stock listing : market.getListings().values()) {
+                        out.printf(Locale.ROOT, "QUOTE %s %.2f%n", listing.getSymbol(), market.getPrice(listing.getSymbol(), listing.getPrice()));
+                    }
+                    out.println("OK " + market.getListings().size());
+                    return token;
+                case "PRICE":
+                    if (parts.length != 2 || !market.getListings().containsKey(parts[1])) {
+                        out.println("ERR unknown symbol");
+                    } else {
+                        out.printf(Locale.ROOT, "OK %s %.2f%n", parts[1], market.getPrice(parts[1], market.getListings().get(parts[1]).getPrice()));
+                    }
+                    return token;
+                default:
+                    break;
+            }
+            if (token == null) {
+                out.println("ERR sign in first");
+                return null;
+            }
+            SessionManager.Session held = sessionManager.resume(token);
+            if (held == null) {
+                out.println("ERR session expired; sign in again");
+                return null;
+            }
+            try {
+                trade(command, parts, held.getTrading(), out);
+            } finally {
+                sessionManager.done(held);
+            }
+            return token;
+        } catch (NumberFormatException e) {
+            out.println("ERR bad number: " + e.getMessage());
+            return token;
+        }
+    }
+
+    private void trade(String command, String[] parts, TradingSession session, PrintWriter out) {
+        AlertService alerts = market.getAlerts();
+        String user = session.getUser().getUsername();
+        switch (command) {
+            case "BUY":
+            case "SELL":
+                if (parts.length != 3) {
+                    out.println("ERR usage: " + command + " <symbol> <qty>");
+                    return;
+                }
+                int quantity = Integer.parseInt(parts[2]);
+                TradingSession.TradeResult trade = command.equals("BUY") ? buy(session, parts[1], quantity) : session.sell(parts[1], quantity);
+                if (trade.isFilled()) {
+                    out.printf(Locale.ROOT, "OK %s %s %d/%d %.2f %.2f%n", command, trade.symbol, trade.filled, trade.requested, trade.getAveragePrice(), trade.total);
+                } else {
+                    out.println("ERR " + trade.status);
+                }
+                return;
+            case "WATCH":
+            case "UNWATCH":
+                if (parts.length != 2) {
+                    out.println("ERR usage: " + command + " <symbol>");
+                } else if (command.equals("WATCH") ? alerts.watch(user, parts[1]) : alerts.unwatch(user, parts[1])) {
+                    out.println("OK " + command.toLowerCase(Locale.ROOT) + "ed " + parts[1]);
+                } else {
+                    out.println(command.equals("WATCH") ? "ERR unknown symbol, already watched or watchlist full" : "ERR not watched");
+                }
+                return;
+            case "WATCHLIST":
+                List<String> watchlist = alerts.getWatchlist(user);
+                for (String symbol : watchlist) {
+                    Stock listing = market.getListings().get(symbol);
+                    out.printf(Locale.ROOT, "WATCH %s %.2f%n", symbol, market.getPrice(symbol, listing == null ? 0 : listing.getPrice()));
+                }
+                out.println("OK " + watchlist.size());
+                return;
+            case "ALERT":
+                if (parts.length != 3 && parts.length != 4) {
+                    out.println("ERR usage: ALERT <symbol> [ABOVE|BELOW] <price>");
+                    return;
+                }
+                long threshold = MatchingEngine.toTicks(Double.parseDouble(parts[parts.length - 1]));
+                byte direction;
+                if (parts.length == 3) {
+                    direction = alerts.crossing(parts[1], threshold);
+                } else if (parts[2].equalsIgnoreCase("ABOVE")) {
+                    direction = TriggerIndex.ABOVE;
+                } else if (parts[2].equalsIgnoreCase("BELOW")) {
+                    direction = TriggerIndex.BELOW;
+                } else {
+                    out.println("ERR direction must be ABOVE or BELOW");
+                    return;
+                }
+                AlertService.Alert alert = alerts.add(user, parts[1], direction, threshold);
+                out.println(alert == null ? "ERR unknown symbol or bad price" : "OK alert " + alert.describe());
+                return;
+            case "ALERTS":
+                List<AlertService.Alert> standing = alerts.getAlerts(user);
+                for (AlertService.Alert each : standing) {
+                    out.println("STANDING " + each.describe());
+                }
+                out.println("OK " + standing.size());
+                return;
+            case "CANCEL":
+                if (parts.length != 2) {
+                    out.println("ERR usage: CANCEL <alertId>");
+                } else if (alerts.cancel(user, Long.parseLong(parts[1]))) {
+                    out.println("OK cancelled " + parts[1]);
+                } else {
+                    out.println("ERR no such alert");
+                }
+                return;
+            case "PORTFOLIO":
+                PositionIndex.Key order = parts.length < 2 ? null : sortOrder(parts[1]);
+                Portfolio.Holdings holdings = session.getPortfolio().holdings(order);
+                for (Portfolio.Holding position : holdings.positions) {
+                    out.printf(Locale.ROOT, "POS %s %d %.2f %.2f %.2f%n", position.symbol, position.quantity,
+                            position.averagePrice, position.markPrice, position.marketValue);
+                }
+                out.printf(Locale.ROOT, "OK %d %.2f%n", holdings.positions.size(), holdings.totalValue);
+                return;
+            default:
+                out.println("ERR unknown command " + command);
+        }
+    }
+
+    // Reserves, charges the account through the settlement queue and fills
+    // only once the payment has cleared.
+    private TradingSession.TradeResult buy(TradingSession session, String symbol, int quantity) {
+        TradingSession.BuyOrder order = session.prepareBuy(symbol, quantity);
+        if (!order.isReserved()) {
+            return TradingSession.TradeResult.rejected(order.status, symbol, quantity);
+        }
+        PaymentSettlement.Payment payment = new PaymentSettlement.Payment(session.getUser().getUsername(), "account", order.getTotal());
+        return session.buy(order, payment.method, market.getPayments().submit(payment));
+    }
+
+    private static PositionIndex.Key sortOrder(String key) {
+        switch (key.toLowerCase(Locale.ROOT)) {
+            case "price":
+                return PositionIndex.Key.PRICE;
+            case "quantity":
+                return PositionIndex.Key.QUANTITY;
+            case "value":
+                return PositionIndex.Key.VALUE;
+            case "pnl":
+                return PositionIndex.Key.PNL;
+            default:
+                return PositionIndex.Key.SYMBOL;
+        }
+    }
+
+    // java TradingServer [port]
+    //   serves the market from the current directory's credentials and portfolios.
+    // java TradingServer bench <host> <port> <connections> <roundTrips>
+    //   opens that many concurrent client connections against a running server,
+    //   each signing up its own user and alternating BUY/SELL/PORTFOLIO.
+    // java TradingServer reconnect <host> <port> <clients> <reconnects> [login]
+    //   has each client sign in once, then reconnect that many times, each
+    //   time resuming its session by token (or, with "login", signing in with
+    //   the password again) and reading its portfolio.
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("bench")) {
+            bench(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("reconnect")) {
+            reconnect(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+                    args.length > 5 && args[5].equals("login"));
+            return;
+        }
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        Authentication auth = new Authentication();
+        MarketContext market = new MarketContext(auth);
+        Metrics.start();
+        MarketDataFeed feed = new MarketDataFeed(market.getPrices(), 0,
+                Double.parseDouble(System.getProperty("feed.rate", "5")), 0.002, System.nanoTime());
+        feed.start();
+        SessionManager sessionManager = new SessionManager(market);
+        TradingServer server = new TradingServer(market, sessionManager);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            feed.stop();
+            sessionManager.close();
+            auth.getUserStore().flushAll();
+            market.close();
+        }));
+        server.serve(port);
+    }
+
+    private static void bench(String host, int port, int connections, int roundTrips) throws Exception {
+        ExecutorService clients = newSessionExecutor();
+        AtomicLong ok = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        long[] latencies = new long[connections * roundTrips];
+        CountDownLatch done = new CountDownLatch(connections);
+        long start = System.nanoTime();
+        for (int c = 0; c < connections; c++) {
+            final int client = c;
+            clients.execute(() -> {
+                try (Socket socket = new Socket(host, port);
+                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                     PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+                    socket.setTcpNoDelay(true);
+                    String user = "bench" + client;
+                    request(in, out, "SIGNUP " + user + " Bench#" + client + "pw");
+                    request(in, out, "LOGIN " + user + " Bench#" + client + "pw");
+                    for (int i = 0; i < roundTrips; i++) {
+                        String command = i % 3 == 0 ? "BUY AAPL 1" : i % 3 == 1 ? "SELL AAPL 1" : "PORTFOLIO";
+                        long sent = System.nanoTime();
+                        String reply = request(in, out, command);
+                        latencies[client * roundTrips + i] = System.nanoTime() - sent;
+                        (reply.startsWith("OK") ? ok : errors).incrementAndGet();
+                    }
+                    out.println("QUIT");
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        clients.shutdown();
+        Arrays.sort(latencies);
+        System.out.printf("%d connections, %,d requests in %.1f ms: %,.0f req/s (%d OK, %d ERR)%n",
+                connections, latencies.length, elapsed / 1e6, latencies.length * 1e9 / elapsed, ok.get(), errors.get());
+        System.out.printf("latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                latencies[latencies.length / 2] / 1e6, latencies[(int) (latencies.length * 0.99)] / 1e6, latencies[latencies.length - 1] / 1e6);
+    }
+
+    private static void reconnect(String host, int port, int clients, int reconnects, boolean login) throws Exception {
+        ExecutorService pool = newSessionExecutor();
+        AtomicLong errors = new AtomicLong();
+        long[] latencies = new long[clients * reconnects];
+        CountDownLatch done = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int c = 0; c < clients; c++) {
+            final int client = c;
+            pool.execute(() -> {
+                String user = "reconnect" + client;
+                String password = "Recon#" + client + "pw";
+                try {
+                    String token;
+                    try (Socket socket = new Socket(host, port);
+                         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                         PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+                        request(in, out, "SIGNUP " + user + " " + password);
+                        String reply = request(in, out, "LOGIN " + user + " " + password);
+                        token = reply.substring(reply.lastIndexOf(' ') + 1);
+                    }
+                    for (int i = 0; i < reconnects; i++) {
+                        long sent = System.nanoTime();
+                        try (Socket socket = new Socket(host, port);
+                             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+                            socket.setTcpNoDelay(true);
+                            String reply = request(in, out, login ? "LOGIN " + user + " " + password : "RESUME " + token);
+                            if (reply.startsWith("OK")) {
+                                reply = request(in, out, "PORTFOLIO");
+                            }
+                            if (!reply.startsWith("OK")) {
+                                errors.incrementAndGet();
+                            }
+                            out.println("QUIT");
+                        }
+                        latencies[client * reconnects + i] = System.nanoTime() - sent;
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        Arrays.sort(latencies);
+        System.out.printf("%d clients, %,d reconnects by %s in %.1f ms: %,.0f reconnects/s (%d ERR)%n",
+                clients, latencies.length, login ? "LOGIN" : "RESUME", elapsed / 1e6, latencies.length * 1e9 / elapsed, errors.get());
+        System.out.printf("reconnect + portfolio p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                latencies[latencies.length / 2] / 1e6, latencies[(int) (latencies.length * 0.99)] / 1e6, latencies[latencies.length - 1] / 1e6);
+    }
+
+    // Sends one command and returns the final line of its reply.
+    private static String request(BufferedReader in, PrintWriter out, String command) throws IOException {
+        out.println(command);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("OK") || line.startsWith("ERR")) {
+                return line;
+            }
+        }
+        throw new EOFException("Server closed the connection");
+    }
+}
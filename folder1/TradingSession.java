@@ -0,0 +1,341 @@
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+
+// The trading actions of one signed-in user, free of any console or network
+// I/O. StockMarket drives it from the terminal and TradingServer from a socket.
+class TradingSession {
+    static class TradeResult {
+        enum Status { RESERVED, FILLED, PARTIAL, INVALID, NOT_FOUND, NOT_HELD, INSUFFICIENT_FUNDS, INSUFFICIENT_QUANTITY, SOLD_OUT, PAYMENT_DECLINED, NO_LIQUIDITY, NOT_RECORDED }
+
+        final Status status;
+        final String symbol;
+        final String name;
+        final int requested;
+        final int filled;
+        final double total;
+        // For a buy paid by card or UPI: what was paid back of the part of
+        // the payment the fill did not use, and what could not be.
+        final double refunded;
+        final double owed;
+
+        TradeResult(Status status, String symbol, String name, int requested, int filled, double total) {
+            this(status, symbol, name, requested, filled, total, 0, 0);
+        }
+
+        TradeResult(Status status, String symbol, String name, int requested, int filled, double total, double refunded, double owed) {
+            this.status = status;
+            this.symbol = symbol;
+            this.name = name;
+            this.requested = requested;
+            this.filled = filled;
+            this.total = total;
+            this.refunded = refunded;
+            this.owed = owed;
+        }
+
+        static TradeResult rejected(Status status, String symbol, int requested) {
+            return new TradeResult(status, symbol, null, requested, 0, 0);
+        }
+
+        boolean isFilled() {
+            return filled > 0;
+        }
+
+        double getAveragePrice() {
+            return filled == 0 ? 0 : total / filled;
+        }
+    }
+
+    // A buy between the quote and the fill: the shares are reserved in the
+    // shared inventory and the price is quoted, so payment can be taken for
+    // total before anything is bought.
+    static class BuyOrder {
+        final TradeResult.Status status;
+        final String symbol;
+        final String name;
+        final int quantity;
+        final double price;
+        final InventoryService.Reservation reservation;
+
+        BuyOrder(TradeResult.Status status, String symbol, String name, int quantity, double price, InventoryService.Reservation reservation) {
+            this.status = status;
+            this.symbol = symbol;
+            this.name = name;
+            this.quantity = quantity;
+            this.price = price;
+            this.reservation = reservation;
+        }
+
+        boolean isReserved() {
+            return status == TradeResult.Status.RESERVED;
+        }
+
+        double getTotal() {
+            return price * quantity;
+        }
+    }
+
+    // Payment method for buys paid out of the user's cash balance.
+    static final String CASH = "cash";
+
+    private static final Metrics.Operation BUY = Metrics.operation("trade.buy");
+    private static final Metrics.Operation SELL = Metrics.operation("trade.sell");
+
+    private final User user;
+    private final Portfolio portfolio;
+    private final MarketContext market;
+    private final int ownerId;
+
+    public TradingSession(User user, MarketContext market) {
+        this.user = user;
+        this.portfolio = user.getPortfolio();
+        this.market = market;
+        this.ownerId = market.getEngine().ownerId(user.getUsername());
+    }
+
+    public User getUser() {
+        return user;
+    }
+
+    public Portfolio getPortfolio() {
+        return portfolio;
+    }
+
+    public MarketContext getMarket() {
+        return market;
+    }
+
+    // Reserves, then fills straight away out of the cash balance.
+    public TradeResult buy(String symbol, int quantity) {
+        BuyOrder order = prepareBuy(symbol, quantity);
+        if (!order.isReserved()) {
+            return TradeResult.rejected(order.status, symbol, quantity);
+        }
+        return execute(order);
+    }
+
+    public BuyOrder prepareBuy(String symbol, int quantity) {
+        if (quantity <= 0) {
+            return new BuyOrder(TradeResult.Status.INVALID, symbol, null, quantity, 0, null);
+        }
+        Stock listing = market.getListings().get(symbol);
+        int symbolId = market.open(symbol);
+        if (listing == null || symbolId < 0) {
+            return new BuyOrder(TradeResult.Status.NOT_FOUND, symbol, null, quantity, 0, null);
+        }
+        double price = market.getPrice(symbol, listing.getPrice());
+        InventoryService.Reservation reservation = market.getInventory().reserve(symbolId, quantity);
+        if (reservation == null) {
+            return new BuyOrder(TradeResult.Status.SOLD_OUT, symbol, listing.getName(), quantity, price, null);
+        }
+        return new BuyOrder(TradeResult.Status.RESERVED, symbol, listing.getName(), quantity, price, reservation);
+    }
+
+    // Buys the reserved shares out of the cash balance.
+    public TradeResult execute(BuyOrder order) {
+        return execute(order, CASH);
+    }
+
+    // Buys the reserved shares at up to the quoted price, immediate-or-cancel;
+    // the part of the reservation that did not fill goes back to the
+    // inventory. A cash buy first holds the most the order can cost and is
+    // rejected if the balance does not cover it; any other method has been
+    // paid already, so the fill is posted from that method's payments
+    // account. The fill is paid for before the shares are booked into the
+    // portfolio, and whatever could not be paid for or booked is undone on
+    // both sides, so a trade is never reported that the books do not show.
+    private TradeResult execute(BuyOrder order, String method) {
+        long limit = MatchingEngine.toTicks(order.price);
+        boolean fromCash = method.equals(CASH);
+        CashLedger ledger = market.getLedger();
+        CashLedger.Account from = fromCash ? cash() : ledger.paymentsAccount(method);
+        long held = fromCash ? limit * order.quantity : 0;
+        if (fromCash && !from.hold(held)) {
+            cancel(order);
+            return TradeResult.rejected(TradeResult.Status.INSUFFICIENT_FUNDS, order.symbol, order.quantity);
+        }
+        int symbolId = order.reservation.symbolId;
+        long start = BUY.start();
+        OrderBook.Result result = new OrderBook.Result();
+        Booked booked = new Booked();
+        try {
+            market.getEngine().submit(symbolId, OrderBook.BUY, limit, order.quantity, ownerId, true, result);
+        } finally {
+            market.getInventory().commit(order.reservation, result.filledQuantity);
+            String memo = "buy " + order.symbol + " " + result.filledQuantity;
+            boolean paid = fromCash
+                    ? ledger.settleHold(from, ledger.getHouse(), held, result.filledNotional, memo)
+                    : result.filledNotional == 0 || ledger.post(from, ledger.getHouse(), result.filledNotional, memo);
+            for (MarketContext.Fill fill : market.takeFills()) {
+                if (fill.owner != ownerId || !fill.bought || fill.symbolId != symbolId) {
+                    bookOther(fill);
+                } else if (paid && market.book(fill)) {
+                    booked.add(fill);
+                } else {
+                    market.reverseFills(symbolId, true, fill.quantity);
+                }
+            }
+            if (paid) {
+                refund(ledger.getHouse(), from, result.filledNotional - booked.notional, "undo buy " + order.symbol + " " + (result.filledQuantity - booked.quantity));
+            }
+        }
+        market.settleHouseFills(symbolId);
+        return timed(BUY, start, recorded(order.symbol, order.name, order.quantity, result, booked));
+    }
+
+    // Waits for the payment to settle, then fills the reserved shares on this
+    // thread; a declined or failed payment releases them instead, so nothing
+    // reaches the portfolio unless the gateway has said yes. The payment
+    // covered the whole quote, so whatever the fill did not use is refunded
+    // through the gateway before this returns. With CASH the payment only
+    // stands for the user's go-ahead and the balance is charged.
+    public TradeResult buy(BuyOrder order, String method, CompletableFuture<Boolean> payment) {
+        boolean paid;
+        try {
+            paid = payment.join();
+        } catch (CompletionException | CancellationException e) {
+            paid = false;
+        }
+        if (!paid) {
+            cancel(order);
+            return TradeResult.rejected(TradeResult.Status.PAYMENT_DECLINED, order.symbol, order.quantity);
+        }
+        TradeResult trade = execute(order, method);
+        long unused = MatchingEngine.toTicks(order.price) * order.quantity - MatchingEngine.toTicks(trade.total);
+        if (method.equals(CASH) || unused <= 0) {
+            return trade;
+        }
+        double amount = MatchingEngine.toPrice(unused);
+        boolean refunded;
+        try {
+            refunded = market.getPayments().refund(user.getUsername(), method, amount).join();
+        } catch (CompletionException | CancellationException e) {
+            refunded = false;
+        }
+        if (!refunded) {
+            System.out.println("Error refunding payment: " + amount + " INR by " + method + " for " + user.getUsername() + " was not paid back.");
+        }
+        return new TradeResult(trade.status, trade.symbol, trade.name, trade.requested, trade.filled, trade.total,
+                refunded ? amount : 0, refunded ? 0 : amount);
+    }
+
+    public void cancel(BuyOrder order) {
+        if (order.reservation != null) {
+            market.getInventory().release(order.reservation);
+        }
+    }
+
+    // Sells down to one tick under the latest price, immediate-or-cancel. The
+    // shares are set aside in the portfolio before the order goes to the
+    // book, so two sessions of the same user can never sell them twice; what
+    // did not fill is freed again. As with a buy, the proceeds are posted
+    // before the shares leave the portfolio, and a fill that cannot be posted
+    // or booked is undone on both sides.
+    public TradeResult sell(String symbol, int quantity) {
+        if (quantity <= 0) {
+            return TradeResult.rejected(TradeResult.Status.INVALID, symbol, quantity);
+        }
+        Position position = portfolio.getPosition(symbol);
+        if (position == null) {
+            return TradeResult.rejected(TradeResult.Status.NOT_HELD, symbol, quantity);
+        }
+        if (!portfolio.holdShares(symbol, quantity)) {
+            return TradeResult.rejected(TradeResult.Status.INSUFFICIENT_QUANTITY, symbol, quantity);
+        }
+        int symbolId = market.open(symbol);
+        if (symbolId < 0) {
+            portfolio.releaseShares(symbol, quantity);
+            return TradeResult.rejected(TradeResult.Status.NOT_FOUND, symbol, quantity);
+        }
+        long start = SELL.start();
+        OrderBook.Result result = new OrderBook.Result();
+        long bidFloor = market.getPrices().getTicks(symbolId) - 1;
+        Booked booked = new Booked();
+        try {
+            market.getEngine().submit(symbolId, OrderBook.SELL, bidFloor, quantity, ownerId, true, result);
+        } finally {
+            CashLedger ledger = market.getLedger();
+            CashLedger.Account to = cash();
+            boolean paid = result.filledNotional == 0
+                    || ledger.post(ledger.getHouse(), to, result.filledNotional, "sell " + symbol + " " + result.filledQuantity);
+            for (MarketContext.Fill fill : market.takeFills()) {
+                if (fill.owner != ownerId || fill.bought || fill.symbolId != symbolId) {
+                    bookOther(fill);
+                } else if (paid && portfolio.removeHeld(symbol, fill.quantity)) {
+                    booked.add(fill);
+                } else {
+                    market.reverseFills(symbolId, false, fill.quantity);
+                }
+            }
+            if (paid) {
+                refund(to, ledger.getHouse(), result.filledNotional - booked.notional, "undo sell " + symbol + " " + (result.filledQuantity - booked.quantity));
+            }
+            portfolio.releaseShares(symbol, quantity - booked.quantity);
+        }
+        market.settleHouseFills(symbolId);
+        return timed(SELL, start, recorded(symbol, position.getName(), quantity, result, booked));
+    }
+
+    // The user's cash account, looked up per trade so that an opening
+    // balance that could not be posted at sign-in is retried.
+    private CashLedger.Account cash() {
+        return market.getLedger().cashAccount(user.getUsername());
+    }
+
+    // The part of an order's fills that made it into the portfolio.
+    private static class Booked {
+        int quantity;
+        long notional;
+
+        void add(MarketContext.Fill fill) {
+            quantity += fill.quantity;
+            notional += fill.priceTicks * fill.quantity;
+        }
+    }
+
+    // Fills of other users' orders that this order traded against.
+    private void bookOther(MarketContext.Fill fill) {
+        if (!market.book(fill)) {
+            System.out.println("Fill of " + fill.quantity + " " + market.getEngine().symbol(fill.symbolId) + " could not be booked for " + market.getEngine().ownerName(fill.owner) + ".");
+        }
+    }
+
+    // Pays back what was posted for fills that were then undone.
+    private void refund(CashLedger.Account from, CashLedger.Account to, long amount, String memo) {
+        if (amount > 0 && !market.getLedger().post(from, to, amount, memo)) {
+            System.out.println("Error writing cash ledger: " + memo + " for " + user.getUsername() + " could not be posted.");
+        }
+    }
+
+    // Positions in stored order, or in index order for the given key.
+    public List<Position> getPositions(PositionIndex.Key key) {
+        if (key == null) {
+            return new ArrayList<>(portfolio.getPositions());
+        }
+        return portfolio.getPositions(key, false);
+    }
+
+    // An order that filled nothing counts as an error.
+    private static TradeResult timed(Metrics.Operation operation, long start, TradeResult trade) {
+        if (trade.isFilled()) {
+            operation.stop(start);
+        } else {
+            operation.fail(start);
+        }
+        return trade;
+    }
+
+    // Reports what was booked; fills that had to be undone count as unfilled.
+    private static TradeResult recorded(String symbol, String name, int requested, OrderBook.Result result, Booked booked) {
+        if (result.filledQuantity == 0) {
+            return new TradeResult(TradeResult.Status.NO_LIQUIDITY, symbol, name, requested, 0, 0);
+        }
+        if (booked.quantity == 0) {
+            return new TradeResult(TradeResult.Status.NOT_RECORDED, symbol, name, requested, 0, 0);
+        }
+        TradeResult.Status status = booked.quantity < requested ? TradeResult.Status.PARTIAL : TradeResult.Status.FILLED;
+        return new TradeResult(status, symbol, name, requested, booked.quantity, MatchingEngine.toPrice(booked.notional));
+    }
+}
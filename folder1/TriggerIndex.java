@@ -0,0 +1,239 @@
+import java.util.Arrays;
+
+// Standing price alerts for one symbol, indexed by threshold so that a price
+// update finds the alerts it triggers without looking at any other.
+//
+// Laid out like OrderBook: alerts live in a pool of parallel primitive arrays
+// chained into a FIFO per threshold level, and each direction keeps its
+// levels in a sorted long[] with the next level to trigger at the end. An
+// ABOVE alert triggers once the price is at or over its threshold, a BELOW
+// alert once it is at or under it, so fire() only pops levels off the end of
+// each side: O(1) when nothing triggers, O(triggered) when something does.
+// Adding a level is a binary search and a shift of the levels past it.
+// Not thread-safe: AlertService locks each index.
+class TriggerIndex {
+    static final byte ABOVE = 0;
+    static final byte BELOW = 1;
+    static final long NO_ALERT = 0;
+
+    private static final int NIL = -1;
+    private static final int DEFAULT_CAPACITY = 1 << 6;
+
+    interface FireListener {
+        void onFire(long alertId, int owner, byte direction, long threshold);
+    }
+
+    private int[] generation;
+    private long[] alertId;
+    private long[] threshold;
+    private int[] owner;
+    private byte[] direction;
+    private int[] next;
+    private int[] prev;
+    private int[] freeSlots;
+    private int freeCount;
+    private int capacity;
+
+    // ABOVE levels descending, so the lowest is last; BELOW ascending.
+    private final Levels above = new Levels(false);
+    private final Levels below = new Levels(true);
+
+    public TriggerIndex() {
+        this.capacity = 0;
+        grow(DEFAULT_CAPACITY);
+    }
+
+    // Indexes the alert and returns its handle for cancel().
+    public long add(long id, int ownerId, byte side, long thresholdTicks) {
+        if (freeCount == 0) {
+            grow(capacity * 2);
+        }
+        int slot = freeSlots[--freeCount];
+        generation[slot]++;
+        alertId[slot] = id;
+        threshold[slot] = thresholdTicks;
+        owner[slot] = ownerId;
+        direction[slot] = side;
+        next[slot] = NIL;
+        Levels levels = side == ABOVE ? above : below;
+        int level = levels.findOrInsert(thresholdTicks);
+        int tail = levels.tail[level];
+        prev[slot] = tail;
+        if (tail == NIL) {
+            levels.head[level] = slot;
+        } else {
+            next[tail] = slot;
+        }
+        levels.tail[level] = slot;
+        return handleOf(slot);
+    }
+
+    public boolean cancel(long handle) {
+        int slot = liveSlot(handle);
+        if (slot == NIL) {
+            return false;
+        }
+        unlink(slot);
+        release(slot);
+        return true;
+    }
+
+    // Whether fire() at this price would trigger anything.
+    public boolean triggers(long priceTicks) {
+        return above.count > 0 && above.prices[above.count - 1] <= priceTicks
+                || below.count > 0 && below.prices[below.count - 1] >= priceTicks;
+    }
+
+    // Removes every alert the price triggers and reports each one, oldest
+    // first within a level. Returns how many fired.
+    public int fire(long priceTicks, FireListener listener) {
+        int fired = 0;
+        while (above.count > 0 && above.prices[above.count - 1] <= priceTicks) {
+            fired += drain(above, above.count - 1, listener);
+        }
+        while (below.count > 0 && below.prices[below.count - 1] >= priceTicks) {
+            fired += drain(below, below.count - 1, listener);
+        }
+        return fired;
+    }
+
+    public int size() {
+        return capacity - freeCount;
+    }
+
+    private int drain(Levels levels, int level, FireListener listener) {
+        int fired = 0;
+        int slot = levels.head[level];
+        while (slot != NIL) {
+            int following = next[slot];
+            long id = alertId[slot];
+            int ownerId = owner[slot];
+            byte side = direction[slot];
+            long thresholdTicks = threshold[slot];
+            release(slot);
+            listener.onFire(id, ownerId, side, thresholdTicks);
+            fired++;
+            slot = following;
+        }
+        levels.remove(level);
+        return fired;
+    }
+
+    private void unlink(int slot) {
+        Levels levels = direction[slot] == ABOVE ? above : below;
+        int level = levels.find(threshold[slot]);
+        if (prev[slot] == NIL) {
+            levels.head[level] = next[slot];
+        } else {
+            next[prev[slot]] = next[slot];
+        }
+        if (next[slot] == NIL) {
+            levels.tail[level] = prev[slot];
+        } else {
+            prev[next[slot]] = prev[slot];
+        }
+        if (levels.head[level] == NIL) {
+            levels.remove(level);
+        }
+    }
+
+    private void release(int slot) {
+        generation[slot]++;
+        freeSlots[freeCount++] = slot;
+    }
+
+    // Handles carry the slot's generation, as OrderBook's order ids do, so a
+    // stale handle can never cancel the alert that later reuses the slot.
+    private long handleOf(int slot) {
+        return ((long) generation[slot] << 32) | slot;
+    }
+
+    private int liveSlot(long handle) {
+        int slot = (int) handle;
+        if (handle == NO_ALERT || slot < 0 || slot >= capacity) {
+            return NIL;
+        }
+        if (generation[slot] != (int) (handle >>> 32) || (generation[slot] & 1) == 0) {
+            return NIL;
+        }
+        return slot;
+    }
+
+    private void grow(int newCapacity) {
+        int old = capacity;
+        generation = generation == null ? new int[newCapacity] : Arrays.copyOf(generation, newCapacity);
+        alertId = alertId == null ? new long[newCapacity] : Arrays.copyOf(alertId, newCapacity);
+        threshold = threshold == null ? new long[newCapacity] : Arrays.copyOf(threshold, newCapacity);
+        owner = owner == null ? new int[newCapacity] : Arrays.copyOf(owner, newCapacity);
+        direction = direction == null ? new byte[newCapacity] : Arrays.copyOf(direction, newCapacity);
+        next = next == null ? new int[newCapacity] : Arrays.copyOf(next, newCapacity);
+        prev = prev == null ? new int[newCapacity] : Arrays.copyOf(prev, newCapacity);
+        freeSlots = freeSlots == null ? new int[newCapacity] : Arrays.copyOf(freeSlots, newCapacity);
+        for (int slot = newCapacity - 1; slot >= old; slot--) {
+            freeSlots[freeCount++] = slot;
+        }
+        capacity = newCapacity;
+    }
+
+    // Threshold levels of one direction, sorted so the next to trigger is last.
+    private static class Levels {
+        private final boolean ascending;
+        long[] prices = new long[16];
+        int[] head = new int[16];
+        int[] tail = new int[16];
+        int count;
+
+        Levels(boolean ascending) {
+            this.ascending = ascending;
+        }
+
+        // Index of price, or -(insertion point) - 1 if there is no such level.
+        int find(long price) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long p = prices[mid];
+                if (p == price) {
+                    return mid;
+                }
+                if (ascending ? p < price : p > price) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return -(low + 1);
+        }
+
+        int findOrInsert(long price) {
+            int level = find(price);
+            if (level >= 0) {
+                return level;
+            }
+            level = -level - 1;
+            if (count == prices.length) {
+                prices = Arrays.copyOf(prices, count * 2);
+                head = Arrays.copyOf(head, count * 2);
+                tail = Arrays.copyOf(tail, count * 2);
+            }
+            int moved = count - level;
+            System.arraycopy(prices, level, prices, level + 1, moved);
+            System.arraycopy(head, level, head, level + 1, moved);
+            System.arraycopy(tail, level, tail, level + 1, moved);
+            prices[level] = price;
+            head[level] = NIL;
+            tail[level] = NIL;
+            count++;
+            return level;
+        }
+
+        void remove(int level) {
+            int moved = count - level - 1;
+            System.arraycopy(prices, level + 1, prices, level, moved);
+            System.arraycopy(head, level + 1, head, level, moved);
+            System.arraycopy(tail, level + 1, tail, level, moved);
+            count--;
+        }
+    }
+}
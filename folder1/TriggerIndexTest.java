@@ -0,0 +1,104 @@
+import java.util.*;
+
+// An ABOVE alert fires once the price reaches or passes its threshold, a
+// BELOW alert once the price falls to or through it, each exactly once
+// however often the price comes back; a cancelled alert never fires.
+//
+//   java TriggerIndexTest
+class TriggerIndexTest {
+    public static void main(String[] args) {
+        if (!Checks.run("TriggerIndexTest",
+                TriggerIndexTest::aboveFiresOnce,
+                TriggerIndexTest::belowFiresOnce,
+                TriggerIndexTest::cancelledAlertsNeverFire,
+                TriggerIndexTest::manyAlertsEachFireOnce)) {
+            System.exit(1);
+        }
+    }
+
+    // Fires as "id direction threshold", in the order they happened.
+    private static class Fired implements TriggerIndex.FireListener {
+        final List<String> seen = new ArrayList<>();
+
+        public void onFire(long alertId, int owner, byte direction, long threshold) {
+            seen.add(alertId + (direction == TriggerIndex.ABOVE ? " above " : " below ") + threshold);
+        }
+    }
+
+    // Rising prices fire the lower thresholds first and, within a level, the
+    // older alert first; the price coming back fires nothing again.
+    static void aboveFiresOnce() {
+        TriggerIndex index = new TriggerIndex();
+        Fired fired = new Fired();
+        index.add(1, 0, TriggerIndex.ABOVE, 110);
+        index.add(2, 0, TriggerIndex.ABOVE, 105);
+        index.add(3, 0, TriggerIndex.ABOVE, 105);
+
+        Checks.check(!index.triggers(104) && index.fire(104, fired) == 0, "nothing fires under the thresholds");
+        Checks.check(index.triggers(105), "threshold itself triggers");
+        Checks.check(index.fire(105, fired) == 2, "both alerts at 105 fire");
+        Checks.check(index.fire(109, fired) == 0 && index.fire(105, fired) == 0, "fired alerts do not fire again");
+        Checks.check(index.fire(200, fired) == 1, "price over 110 fires the last one");
+        Checks.check(index.fire(200, fired) == 0 && index.size() == 0, "index is empty");
+        Checks.check(fired.seen.equals(List.of("2 above 105", "3 above 105", "1 above 110")), "fires in order, got " + fired.seen);
+    }
+
+    static void belowFiresOnce() {
+        TriggerIndex index = new TriggerIndex();
+        Fired fired = new Fired();
+        index.add(1, 0, TriggerIndex.BELOW, 90);
+        index.add(2, 0, TriggerIndex.BELOW, 95);
+        index.add(3, 0, TriggerIndex.ABOVE, 100);
+
+        Checks.check(index.fire(96, fired) == 0, "nothing fires between the thresholds");
+        Checks.check(index.fire(95, fired) == 1, "threshold itself triggers");
+        Checks.check(index.fire(94, fired) == 0, "fired alert does not fire again");
+        Checks.check(index.fire(10, fired) == 1, "price under 90 fires the other one");
+        Checks.check(index.fire(10, fired) == 0 && index.size() == 1, "only the ABOVE alert is left");
+        Checks.check(fired.seen.equals(List.of("2 below 95", "1 below 90")), "fires in order, got " + fired.seen);
+    }
+
+    // A handle only cancels its own alert: not twice, and not the alert that
+    // later takes the freed slot.
+    static void cancelledAlertsNeverFire() {
+        TriggerIndex index = new TriggerIndex();
+        Fired fired = new Fired();
+        long first = index.add(1, 0, TriggerIndex.ABOVE, 100);
+        long second = index.add(2, 0, TriggerIndex.ABOVE, 100);
+        Checks.check(index.cancel(first), "cancel");
+        Checks.check(!index.cancel(first), "second cancel finds nothing");
+        Checks.check(!index.cancel(TriggerIndex.NO_ALERT), "NO_ALERT cancels nothing");
+        long reused = index.add(3, 0, TriggerIndex.BELOW, 50);
+        Checks.check(!index.cancel(first), "stale handle does not cancel the reused slot");
+        Checks.check(index.cancel(second), "cancel the last alert at a level");
+        Checks.check(!index.triggers(100), "empty level is gone");
+
+        Checks.check(index.fire(1_000, fired) == 0, "cancelled alerts never fire");
+        Checks.check(index.fire(50, fired) == 1 && fired.seen.equals(List.of("3 below 50")), "alert in the reused slot fires, got " + fired.seen);
+        Checks.check(!index.cancel(second) && !index.cancel(reused), "fired and cancelled handles are dead");
+    }
+
+    // More alerts than the starting capacity, on both sides and many levels,
+    // with the price swinging back and forth: each fires exactly once.
+    static void manyAlertsEachFireOnce() {
+        int alerts = 10_000;
+        TriggerIndex index = new TriggerIndex();
+        Random random = new Random(7);
+        Map<Long, Integer> times = new HashMap<>();
+        for (long id = 1; id <= alerts; id++) {
+            byte side = random.nextBoolean() ? TriggerIndex.ABOVE : TriggerIndex.BELOW;
+            index.add(id, (int) (id % 3), side, 1_000 + random.nextInt(1_000) * (side == TriggerIndex.ABOVE ? 1 : -1));
+        }
+        Checks.check(index.size() == alerts, "all alerts indexed, got " + index.size());
+        TriggerIndex.FireListener count = (id, owner, direction, threshold) -> times.merge(id, 1, Integer::sum);
+        for (long price = 1_000; price < 2_000; price += 37) {
+            index.fire(price, count);
+            index.fire(2_000 - price, count);
+        }
+        index.fire(Long.MAX_VALUE, count);
+        index.fire(Long.MIN_VALUE, count);
+        Checks.check(times.size() == alerts, "every alert fired, got " + times.size());
+        Checks.check(times.values().stream().allMatch(n -> n == 1), "every alert fired exactly once");
+        Checks.check(index.size() == 0, "index is empty, got " + index.size());
+    }
+}
@@ -0,0 +1,17 @@
+class User {
+    private String username;
+    private Portfolio portfolio;
+
+    public User(String username, PortfolioStorage storage) {
+        this.username = username;
+        this.portfolio = new Portfolio(username, storage);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public Portfolio getPortfolio() {
+        return portfolio;
+    }
+}
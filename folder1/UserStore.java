@@ -0,0 +1,198 @@
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+class UserStore {
+    // Told when a user's portfolio enters or leaves the cache. Called with the store's lock held.
+    interface Listener {
+        void loaded(User user);
+
+        void evicted(User user);
+    }
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final Authentication auth;
+    private final int capacity;
+    private final LinkedHashMap<String, User> cache;
+    private final Map<String, Integer> pins;
+    private final List<Listener> listeners;
+    // Portfolios being read, or written out after eviction, outside the lock.
+    // A user is loaded by one thread while the rest wait on its future, and
+    // never while their evicted portfolio is still being closed.
+    private final Map<String, CompletableFuture<User>> loading;
+    private final Map<String, CompletableFuture<Void>> closing;
+
+    public UserStore(Authentication auth) {
+        this(auth, DEFAULT_CAPACITY);
+    }
+
+    public UserStore(Authentication auth, int capacity) {
+        this.auth = auth;
+        this.capacity = capacity;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
+        this.pins = new HashMap<>();
+        this.listeners = new ArrayList<>();
+        this.loading = new HashMap<>();
+        this.closing = new HashMap<>();
+    }
+
+    public synchronized void addListener(Listener listener) {
+        listeners.add(listener);
+        for (User user : cache.values()) {
+            listener.loaded(user);
+        }
+    }
+
+    public synchronized List<User> getLoadedUsers() {
+        return new ArrayList<>(cache.values());
+    }
+
+    // Returns the user, loading their portfolio the first time they are asked
+    // for. The load, which may be a remote call, runs without the store's
+    // lock, so other users are not held up behind it.
+    public User get(String username) {
+        CompletableFuture<User> pending;
+        CompletableFuture<Void> closed;
+        synchronized (this) {
+            User user = cache.get(username);
+            if (user != null) {
+                return user;
+            }
+            pending = loading.get(username);
+            if (pending == null) {
+                loading.put(username, new CompletableFuture<>());
+            }
+            closed = closing.get(username);
+        }
+        if (pending != null) {
+            try {
+                return pending.join();
+            } catch (CompletionException e) {
+                throw (RuntimeException) e.getCause();
+            }
+        }
+        User user = null;
+        RuntimeException failure = null;
+        List<User> evicted = Collections.emptyList();
+        try {
+            if (closed != null) {
+                closed.join();
+            }
+            if (auth.hasUser(username)) {
+                user = new User(username, auth.openPortfolio(username));
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            synchronized (this) {
+                if (user != null) {
+                    cache.put(username, user);
+                    for (Listener listener : listeners) {
+                        listener.loaded(user);
+                    }
+                    evicted = evictIfNeeded(username);
+                }
+                pending = loading.remove(username);
+            }
+            if (failure != null) {
+                pending.completeExceptionally(failure);
+            } else {
+                pending.complete(user);
+            }
+            close(evicted);
+        }
+        return user;
+    }
+
+    // Like get, but keeps the user in the cache until release is called.
+    public User acquire(String username) {
+        while (true) {
+            User user = get(username);
+            if (user == null) {
+                return null;
+            }
+            synchronized (this) {
+                // Evicted again between the load and here: load it once more.
+                if (cache.get(username) == user) {
+                    pins.merge(username, 1, Integer::sum);
+                    return user;
+                }
+            }
+        }
+    }
+
+    // Flushed while still pinned, so it cannot be evicted underneath.
+    public void release(String username) {
+        User user;
+        synchronized (this) {
+            if (!pins.containsKey(username)) {
+                return;
+            }
+            user = cache.get(username);
+        }
+        if (user != null) {
+            user.getPortfolio().flush();
+        }
+        List<User> evicted;
+        synchronized (this) {
+            Integer count = pins.get(username);
+            if (count == null) {
+                return;
+            }
+            if (count <= 1) {
+                pins.remove(username);
+            } else {
+                pins.put(username, count - 1);
+            }
+            evicted = evictIfNeeded(null);
+        }
+        close(evicted);
+    }
+
+    // A user evicted meanwhile is closed, which flushes them too.
+    public void flushAll() {
+        for (User user : getLoadedUsers()) {
+            user.getPortfolio().flush();
+        }
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    // Never evicts keep, the user that is being handed out right now. The
+    // evicted users are returned for close() once the lock is released.
+    private List<User> evictIfNeeded(String keep) {
+        List<User> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, User>> it = cache.entrySet().iterator();
+        while (cache.size() > capacity && it.hasNext()) {
+            Map.Entry<String, User> eldest = it.next();
+            if (pins.containsKey(eldest.getKey()) || eldest.getKey().equals(keep)) {
+                continue;
+            }
+            it.remove();
+            closing.put(eldest.getKey(), new CompletableFuture<>());
+            evicted.add(eldest.getValue());
+            for (Listener listener : listeners) {
+                listener.evicted(eldest.getValue());
+            }
+        }
+        return evicted;
+    }
+
+    private void close(List<User> evicted) {
+        for (User user : evicted) {
+            try {
+                user.getPortfolio().close();
+            } finally {
+                CompletableFuture<Void> closed;
+                synchronized (this) {
+                    closed = closing.remove(user.getUsername());
+                }
+                closed.complete(null);
+            }
+        }
+    }
+}
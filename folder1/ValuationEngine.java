@@ -0,0 +1,155 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Keeps every loaded portfolio marked to the latest prices. A reverse index
+// from symbol to the portfolios holding it means a tick only touches the
+// holders of that symbol. Each holder takes its own lock, adjusts its total
+// in O(1) and re-sorts the position in its value and P&L indexes in
+// O(log n) for its n positions. Trades hold that lock only while they change
+// memory, never across their journal or snapshot I/O, so a tick does not
+// wait on the disk. revalueAll() is the full parallel pass for end-of-day
+// runs.
+class ValuationEngine implements PriceTable.TickListener, Portfolio.HoldingsListener, UserStore.Listener {
+    private static final int REVALUE_BATCH = 64;
+
+    // Totals from a full revaluation pass, in price ticks.
+    static class Summary {
+        int portfolios;
+        long marketValue;
+        long cost;
+
+        double getMarketValue() {
+            return MatchingEngine.toPrice(marketValue);
+        }
+
+        double getUnrealizedPnl() {
+            return MatchingEngine.toPrice(marketValue - cost);
+        }
+
+        Summary add(Summary other) {
+            portfolios += other.portfolios;
+            marketValue += other.marketValue;
+            cost += other.cost;
+            return this;
+        }
+    }
+
+    private final MatchingEngine engine;
+    private final PriceTable prices;
+    private final ConcurrentHashMap<String, Set<Portfolio>> holders;
+    private final Set<Portfolio> tracked;
+
+    public ValuationEngine(MatchingEngine engine, PriceTable prices) {
+        this.engine = engine;
+        this.prices = prices;
+        this.holders = new ConcurrentHashMap<>();
+        this.tracked = ConcurrentHashMap.newKeySet();
+    }
+
+    public void loaded(User user) {
+        track(user.getPortfolio());
+    }
+
+    public void evicted(User user) {
+        untrack(user.getPortfolio());
+    }
+
+    public void track(Portfolio portfolio) {
+        if (!tracked.add(portfolio)) {
+            return;
+        }
+        portfolio.setHoldingsListener(this);
+        for (String symbol : portfolio.getSymbols()) {
+            positionOpened(portfolio, symbol);
+        }
+    }
+
+    public void untrack(Portfolio portfolio) {
+        if (!tracked.remove(portfolio)) {
+            return;
+        }
+        portfolio.setHoldingsListener(null);
+        for (String symbol : portfolio.getSymbols()) {
+            positionClosed(portfolio, symbol);
+        }
+    }
+
+    // Indexes the holder, then marks it at the current price so a tick that
+    // arrived before the index entry existed is not missed.
+    public void positionOpened(Portfolio portfolio, String symbol) {
+        holders.computeIfAbsent(symbol, s -> ConcurrentHashMap.newKeySet()).add(portfolio);
+        int symbolId = engine.symbolId(symbol);
+        long ticks = symbolId < 0 ? PriceTable.NO_PRICE : prices.getTicks(symbolId);
+        if (ticks != PriceTable.NO_PRICE) {
+            portfolio.markToMarket(symbol, ticks);
+        }
+    }
+
+    public void positionClosed(Portfolio portfolio, String symbol) {
+        Set<Portfolio> set = holders.get(symbol);
+        if (set != null) {
+            set.remove(portfolio);
+        }
+    }
+
+    public void onTick(int symbolId, long oldTicks, long newTicks) {
+        String symbol = engine.symbol(symbolId);
+        Set<Portfolio> set = holders.get(symbol);
+        if (set == null || set.isEmpty()) {
+            return;
+        }
+        for (Portfolio portfolio : set) {
+            portfolio.markToMarket(symbol, newTicks);
+        }
+    }
+
+    public int holderCount(String symbol) {
+        Set<Portfolio> set = holders.get(symbol);
+        return set == null ? 0 : set.size();
+    }
+
+    // Re-marks every tracked portfolio from the price table on the common
+    // fork/join pool and returns the aggregate.
+    public Summary revalueAll() {
+        Portfolio[] portfolios = tracked.toArray(new Portfolio[0]);
+        return ForkJoinPool.commonPool().invoke(new RevalueTask(portfolios, 0, portfolios.length));
+    }
+
+    // Positions carry their Instruments id, which is also the price table's index.
+    private long markFor(Position position) {
+        int instrument = position.getInstrument();
+        long ticks = instrument < prices.capacity() ? prices.getTicks(instrument) : PriceTable.NO_PRICE;
+        return ticks == PriceTable.NO_PRICE ? position.getMarkTicks() : ticks;
+    }
+
+    private class RevalueTask extends RecursiveTask<Summary> {
+        private static final long serialVersionUID = 1L;
+
+        private final Portfolio[] portfolios;
+        private final int from;
+        private final int to;
+
+        RevalueTask(Portfolio[] portfolios, int from, int to) {
+            this.portfolios = portfolios;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected Summary compute() {
+            if (to - from <= REVALUE_BATCH) {
+                Summary summary = new Summary();
+                for (int i = from; i < to; i++) {
+                    summary.marketValue += portfolios[i].revalue(ValuationEngine.this::markFor);
+                    summary.cost += portfolios[i].getTotalCostTicks();
+                    summary.portfolios++;
+                }
+                return summary;
+            }
+            int mid = (from + to) >>> 1;
+            RevalueTask left = new RevalueTask(portfolios, from, mid);
+            left.fork();
+            Summary right = new RevalueTask(portfolios, mid, to).compute();
+            return right.add(left.join());
+        }
+    }
+}